@@ -0,0 +1,93 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Messages per second a single Device handles, with `pipelined` messages in its mailbox at a time. The device has
+// no group to publish its readings to.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DeviceBenchmark {
+    static final int MESSAGES = 10_000;
+
+    static final class Replies extends AbstractActor {
+        static Props props(CountDownLatch[] done){
+            return Props.create(Replies.class, (Object) done);
+        }
+
+        final CountDownLatch[] done;
+
+        Replies(CountDownLatch[] done){
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .matchAny(reply -> done[0].countDown())
+                    .build();
+        }
+    }
+
+    @Param({"1", "100", "10000"})
+    int pipelined;
+
+    ActorSystem system;
+    ActorRef deviceActor;
+    ActorRef replies;
+    final CountDownLatch[] done = new CountDownLatch[1];
+
+    @Setup(Level.Trial)
+    public void setup(){
+        system = ActorSystem.create("device-bench");
+        deviceActor = system.actorOf(Device.props("group", "device", DeviceGroupSettings.DEFAULT.withAggregates(false)));
+        replies = system.actorOf(Replies.props(done));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Await.ready(system.terminate(), Duration.create(60, TimeUnit.SECONDS));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void recordTemperature() throws Exception {
+        for (int sent = 0; sent < MESSAGES; sent += pipelined){
+            done[0] = new CountDownLatch(pipelined);
+            for (int i = 0; i < pipelined; i++){
+                deviceActor.tell(new Device.RecordTemperature(sent + i, 20.0 + i % 10), replies);
+            }
+            await();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void readTemperature() throws Exception {
+        for (int sent = 0; sent < MESSAGES; sent += pipelined){
+            done[0] = new CountDownLatch(pipelined);
+            for (int i = 0; i < pipelined; i++){
+                deviceActor.tell(new Device.ReadTemperature(sent + i), replies);
+            }
+            await();
+        }
+    }
+
+    private void await() throws InterruptedException {
+        if (!done[0].await(60, TimeUnit.SECONDS)){
+            throw new IllegalStateException("Timed out");
+        }
+    }
+}
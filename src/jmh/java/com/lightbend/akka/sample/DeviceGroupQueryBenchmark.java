@@ -0,0 +1,64 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.Patterns;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// A RequestAllTemperatures of a group whose devices all have a reading, answered by the group's query manager
+// after asking every device actor.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DeviceGroupQueryBenchmark {
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    int groupSize;
+
+    ActorSystem system;
+    ActorRef group;
+    final java.time.Duration timeout = java.time.Duration.ofSeconds(60);
+    long requestId;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        system = ActorSystem.create("query-bench");
+        ActorRef manager = system.actorOf(DeviceManager.props());
+        String[] groupIds = new String[groupSize];
+        String[] deviceIds = new String[groupSize];
+        long[] timestamps = new long[groupSize];
+        double[] values = new double[groupSize];
+        Arrays.fill(groupIds, "group");
+        Arrays.fill(timestamps, System.currentTimeMillis());
+        Arrays.fill(values, 21.5);
+        for (int i = 0; i < groupSize; i++){
+            deviceIds[i] = "device-" + i;
+        }
+        Patterns.ask(manager, new DeviceManager.RequestTrackDevices(0L, groupIds, deviceIds), timeout)
+                .toCompletableFuture().get();
+        Patterns.ask(manager, new DeviceManager.RecordTemperatureBatch(1L, "group", deviceIds, timestamps, values), timeout)
+                .toCompletableFuture().get();
+        DeviceManager.ReplyGroupList groups = (DeviceManager.ReplyGroupList) Patterns.ask(
+                manager, new DeviceManager.RequestGroupList(2L), timeout).toCompletableFuture().get();
+        group = groups.actors.iterator().next();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Await.ready(system.terminate(), Duration.create(60, TimeUnit.SECONDS));
+    }
+
+    @Benchmark
+    public DeviceGroup.RespondAllTemperatures queryAllTemperatures() throws Exception {
+        return (DeviceGroup.RespondAllTemperatures) Patterns.ask(
+                group, new DeviceGroup.RequestAllTemperatures(requestId++), timeout).toCompletableFuture().get();
+    }
+}
@@ -0,0 +1,145 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.pattern.Patterns;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// One round of traffic through the DeviceManager: a reading batch for every group, addressed by ids or by the
+// handles from DeviceRegistered, routed to the group and on to its devices, and a repeated registration of every
+// device. All wait for every acknowledgement.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DeviceManagerRoutingBenchmark {
+
+    static final class Acks extends AbstractActor {
+        static Props props(CountDownLatch[] done){
+            return Props.create(Acks.class, (Object) done);
+        }
+
+        final CountDownLatch[] done;
+
+        Acks(CountDownLatch[] done){
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .match(DeviceManager.DeviceRegistered.class, r -> done[0].countDown())
+                    .match(DeviceManager.TemperatureBatchRecorded.class, r -> done[0].countDown())
+                    .build();
+        }
+    }
+
+    @Param({"1", "100", "1000"})
+    int groups;
+
+    @Param({"100"})
+    int devicesPerGroup;
+
+    ActorSystem system;
+    ActorRef manager;
+    ActorRef acks;
+    final CountDownLatch[] done = new CountDownLatch[1];
+    String[] deviceIds;
+    int[] groupHandles;
+    long[] epochs;
+    int[][] deviceHandles;
+    long requestId = 0L;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        system = ActorSystem.create("routing-bench");
+        manager = system.actorOf(DeviceManager.props());
+        acks = system.actorOf(Acks.props(done));
+        deviceIds = new String[devicesPerGroup];
+        for (int d = 0; d < devicesPerGroup; d++){
+            deviceIds[d] = "device-" + d;
+        }
+        registerDevices();
+        groupHandles = new int[groups];
+        epochs = new long[groups];
+        deviceHandles = new int[groups][devicesPerGroup];
+        for (int g = 0; g < groups; g++){
+            for (int d = 0; d < devicesPerGroup; d++){
+                DeviceManager.DeviceRegistered registered = (DeviceManager.DeviceRegistered) Patterns.ask(manager,
+                        new DeviceManager.RequestTrackDevice("group-" + g, deviceIds[d]), java.time.Duration.ofSeconds(10))
+                        .toCompletableFuture().get();
+                groupHandles[g] = registered.groupHandle;
+                epochs[g] = registered.epoch;
+                deviceHandles[g][d] = registered.deviceHandle;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Await.ready(system.terminate(), Duration.create(60, TimeUnit.SECONDS));
+    }
+
+    @Benchmark
+    public void routeBatches() throws Exception {
+        done[0] = new CountDownLatch(groups);
+        long now = System.currentTimeMillis();
+        for (int g = 0; g < groups; g++){
+            long[] timestamps = new long[devicesPerGroup];
+            double[] values = new double[devicesPerGroup];
+            for (int d = 0; d < devicesPerGroup; d++){
+                timestamps[d] = now;
+                values[d] = 20.0 + d % 10;
+            }
+            manager.tell(new DeviceManager.RecordTemperatureBatch(requestId++, "group-" + g, deviceIds, timestamps, values), acks);
+        }
+        await();
+    }
+
+    @Benchmark
+    public void routeHandleBatches() throws Exception {
+        done[0] = new CountDownLatch(groups);
+        long now = System.currentTimeMillis();
+        for (int g = 0; g < groups; g++){
+            long[] timestamps = new long[devicesPerGroup];
+            double[] values = new double[devicesPerGroup];
+            for (int d = 0; d < devicesPerGroup; d++){
+                timestamps[d] = now;
+                values[d] = 20.0 + d % 10;
+            }
+            manager.tell(new DeviceManager.RecordTemperatureHandleBatch(requestId++, groupHandles[g], epochs[g], deviceHandles[g],
+                    timestamps, values), acks);
+        }
+        await();
+    }
+
+    @Benchmark
+    public void routeRegistrations() throws Exception {
+        registerDevices();
+    }
+
+    private void registerDevices() throws InterruptedException {
+        done[0] = new CountDownLatch(groups * devicesPerGroup);
+        for (int g = 0; g < groups; g++){
+            for (String deviceId : deviceIds){
+                manager.tell(new DeviceManager.RequestTrackDevice("group-" + g, deviceId), acks);
+            }
+        }
+        await();
+    }
+
+    private void await() throws InterruptedException {
+        if (!done[0].await(120, TimeUnit.SECONDS)){
+            throw new IllegalStateException("Timed out");
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Mixed load of device readings and group queries under each execution profile of application.conf.
+// Results depend on the core count, run it on the target box, e.g. -p profile=default,throughput -t 1
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DispatcherProfileBenchmark {
+
+    static final class Counter extends AbstractActor {
+        static Props props(List<ActorRef> registered, CountDownLatch[] done){
+            return Props.create(Counter.class, registered, done);
+        }
+
+        final List<ActorRef> registered;
+        // Latch of the running invocation, swapped by the benchmark thread
+        final CountDownLatch[] done;
+
+        Counter(List<ActorRef> registered, CountDownLatch[] done){
+            this.registered = registered;
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .match(DeviceManager.DeviceRegistered.class, r -> {
+                        registered.add(getSender());
+                        done[0].countDown();
+                    })
+                    .match(Device.TemperatureRecoded.class, r -> done[0].countDown())
+                    .match(DeviceGroup.RespondAllTemperatures.class, r -> done[0].countDown())
+                    .build();
+        }
+    }
+
+    static final class GroupCollector extends AbstractActor {
+        static Props props(List<ActorRef> groupActors, CountDownLatch[] done){
+            return Props.create(GroupCollector.class, groupActors, done);
+        }
+
+        final List<ActorRef> groupActors;
+        final CountDownLatch[] done;
+
+        GroupCollector(List<ActorRef> groupActors, CountDownLatch[] done){
+            this.groupActors = groupActors;
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .match(DeviceManager.ReplyGroupList.class, r -> {
+                        groupActors.addAll(r.actors);
+                        done[0].countDown();
+                    })
+                    .build();
+        }
+    }
+
+    @Param({"default", "throughput", "bounded"})
+    String profile;
+
+    @Param({"100"})
+    int groups;
+
+    @Param({"100"})
+    int devicesPerGroup;
+
+    @Param({"20"})
+    int readingsPerDevice;
+
+    @Param({"10"})
+    int queriesPerGroup;
+
+    ActorSystem system;
+    ActorRef counter;
+    final List<ActorRef> devices = new CopyOnWriteArrayList<>();
+    final List<ActorRef> groupActors = new CopyOnWriteArrayList<>();
+    final CountDownLatch[] done = new CountDownLatch[1];
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        system = ActorSystem.create("profile-bench");
+        DeviceGroupSettings settings = DeviceGroupSettings.fromConfig(
+                system.settings().config().getConfig("iot.profiles." + profile));
+        Props managerProps = DeviceManager.props(settings);
+        if (!profile.equals("default")){
+            managerProps = managerProps.withDispatcher("iot.manager-dispatcher");
+        }
+        ActorRef manager = system.actorOf(managerProps);
+        counter = system.actorOf(Counter.props(devices, done));
+
+        done[0] = new CountDownLatch(groups * devicesPerGroup);
+        for (int g = 0; g < groups; g++){
+            for (int d = 0; d < devicesPerGroup; d++){
+                manager.tell(new DeviceManager.RequestTrackDevice("group-" + g, "device-" + d), counter);
+            }
+        }
+        await();
+        done[0] = new CountDownLatch(1);
+        manager.tell(new DeviceManager.RequestGroupList(0L), system.actorOf(GroupCollector.props(groupActors, done)));
+        await();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Await.ready(system.terminate(), Duration.create(60, TimeUnit.SECONDS));
+    }
+
+    @Benchmark
+    public void mixedLoad() throws Exception {
+        done[0] = new CountDownLatch(devices.size() * readingsPerDevice
+                + groupActors.size() * Math.min(queriesPerGroup, readingsPerDevice));
+        long requestId = 0L;
+        for (int r = 0; r < readingsPerDevice; r++){
+            for (ActorRef device : devices){
+                device.tell(new Device.RecordTemperature(requestId++, r), counter);
+            }
+            if (r < queriesPerGroup){
+                for (ActorRef group : groupActors){
+                    group.tell(new DeviceGroup.RequestAllTemperatures(requestId++, true), counter);
+                }
+            }
+        }
+        await();
+    }
+
+    private void await() throws InterruptedException {
+        if (!done[0].await(120, TimeUnit.SECONDS)){
+            throw new IllegalStateException(done[0].getCount() + " replies missing");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// End to end: LoadGenerator -> TCP -> IngestServer -> DeviceManager -> DeviceGroup -> Device, until every
+// batch is acknowledged. Divide the readings by the score for the sustained rate.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class IngestionBenchmark {
+
+    static final class Latch extends AbstractActor {
+        static Props props(CountDownLatch[] done){
+            return Props.create(Latch.class, (Object) done);
+        }
+
+        final CountDownLatch[] done;
+
+        Latch(CountDownLatch[] done){
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .match(DeviceManager.DeviceRegistered.class, r -> done[0].countDown())
+                    .match(TemperatureIngestor.Completed.class, c -> done[0].countDown())
+                    .build();
+        }
+    }
+
+    @Param({"100"})
+    int groups;
+
+    @Param({"100"})
+    int devicesPerGroup;
+
+    @Param({"1000000"})
+    long readings;
+
+    @Param({"512"})
+    int batchSize;
+
+    @Param({"1", "16"})
+    int maxInFlight;
+
+    ActorSystem system;
+    InetSocketAddress address;
+    final CountDownLatch[] done = new CountDownLatch[1];
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        system = ActorSystem.create("ingestion-bench");
+        ActorRef manager = system.actorOf(DeviceManager.props());
+        ActorRef latch = system.actorOf(Latch.props(done));
+        system.eventStream().subscribe(latch, TemperatureIngestor.Completed.class);
+
+        done[0] = new CountDownLatch(groups * devicesPerGroup);
+        for (int g = 0; g < groups; g++){
+            for (int d = 0; d < devicesPerGroup; d++){
+                manager.tell(new DeviceManager.RequestTrackDevice("group-" + g, "device-" + d), latch);
+            }
+        }
+        await();
+
+        try (ServerSocket free = new ServerSocket(0)){
+            address = new InetSocketAddress("127.0.0.1", free.getLocalPort());
+        }
+        system.actorOf(IngestServer.props(manager, address, batchSize, maxInFlight));
+        // Binding is asynchronous
+        Thread.sleep(500);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Await.ready(system.terminate(), Duration.create(60, TimeUnit.SECONDS));
+    }
+
+    @Benchmark
+    public void ingest() throws Exception {
+        done[0] = new CountDownLatch(1);
+        LoadGenerator.send(address, groups, devicesPerGroup, readings);
+        await();
+    }
+
+    private void await() throws InterruptedException {
+        if (!done[0].await(300, TimeUnit.SECONDS)){
+            throw new IllegalStateException("Timed out");
+        }
+    }
+}
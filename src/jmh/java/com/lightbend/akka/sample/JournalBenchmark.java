@@ -0,0 +1,102 @@
+package com.lightbend.akka.sample;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class JournalBenchmark {
+
+    // Cost of journaling one reading when an fsync is shared by groupCommit readings.
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    public static class Ingest {
+        @Param({"1", "64", "1024"})
+        int groupCommit;
+
+        Path directory;
+        Journal journal;
+        long counter;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("journal-bench");
+            journal = Journal.open(directory, DeviceJournal.DEFAULT_SEGMENT_SIZE);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            journal.close();
+            deleteRecursively(directory);
+        }
+
+        @Benchmark
+        @OperationsPerInvocation(1024)
+        public void appendReadings() throws IOException {
+            for (int i = 0; i < 1024; i++){
+                long n = counter++;
+                journal.appendRecorded("group-" + (n & 63), "device-" + (n & 4095), n, n * 0.5);
+                if ((i + 1) % groupCommit == 0){
+                    journal.sync();
+                }
+            }
+            journal.sync();
+        }
+    }
+
+    // Time to rebuild the state from a log of the given number of readings, with or without a snapshot.
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    public static class Recovery {
+        @Param({"100000", "1000000"})
+        int events;
+
+        @Param({"false", "true"})
+        boolean snapshot;
+
+        Path directory;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("journal-bench");
+            try (Journal journal = Journal.open(directory, DeviceJournal.DEFAULT_SEGMENT_SIZE)){
+                for (int n = 0; n < events; n++){
+                    journal.appendRecorded("group-" + (n & 63), "device-" + (n & 65535), n, n * 0.5);
+                }
+                if (snapshot){
+                    journal.snapshot();
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteRecursively(directory);
+        }
+
+        @Benchmark
+        public int recover() throws IOException {
+            try (Journal journal = Journal.open(directory, DeviceJournal.DEFAULT_SEGMENT_SIZE)){
+                return journal.base().groups().size() + journal.delta().size();
+            }
+        }
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)){
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.event.Logging;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Device ingest with a log line per reading, one in a hundred sampled at the default rate limit, and none. Log
+// events go to a logger that drops them, so the score is the cost inside the devices and on the event bus rather
+// than of the console.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LoggingBenchmark {
+
+    public static final class DiscardingLogger extends AbstractActor {
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .match(Logging.InitializeLogger.class, i -> getSender().tell(Logging.loggerInitialized(), getSelf()))
+                    .matchAny(event -> {})
+                    .build();
+        }
+    }
+
+    static final class Acks extends AbstractActor {
+        static Props props(CountDownLatch[] done){
+            return Props.create(Acks.class, (Object) done);
+        }
+
+        final CountDownLatch[] done;
+
+        Acks(CountDownLatch[] done){
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .match(Device.TemperatureRecoded.class, r -> done[0].countDown())
+                    .build();
+        }
+    }
+
+    @Param({"all", "sampled", "off"})
+    String readingsLog;
+
+    @Param({"100"})
+    int devices;
+
+    @Param({"1000"})
+    int readingsPerDevice;
+
+    ActorSystem system;
+    ActorRef[] deviceActors;
+    ActorRef acks;
+    final CountDownLatch[] done = new CountDownLatch[1];
+
+    @Setup(Level.Trial)
+    public void setup(){
+        String readings;
+        switch (readingsLog){
+            case "all": readings = "sample-every = 1, max-per-second = 1000000000"; break;
+            case "sampled": readings = "sample-every = 100, max-per-second = 10"; break;
+            default: readings = "sample-every = 0";
+        }
+        system = ActorSystem.create("logging-bench", ConfigFactory
+                .parseString("iot.logging.readings { " + readings + " }\n"
+                        + "akka.loggers = [\"" + DiscardingLogger.class.getName() + "\"]\n"
+                        + "iot.metrics.enabled = off")
+                .withFallback(ConfigFactory.load()));
+        deviceActors = new ActorRef[devices];
+        for (int i = 0; i < devices; i++){
+            deviceActors[i] = system.actorOf(Device.props("group", "device-" + i));
+        }
+        acks = system.actorOf(Acks.props(done));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Await.ready(system.terminate(), Duration.create(60, TimeUnit.SECONDS));
+    }
+
+    @Benchmark
+    public void recordTemperatures() throws Exception {
+        done[0] = new CountDownLatch(devices * readingsPerDevice);
+        for (int r = 0; r < readingsPerDevice; r++){
+            for (ActorRef deviceActor : deviceActors){
+                deviceActor.tell(new Device.RecordTemperature(r, 20.0 + r % 10), acks);
+            }
+        }
+        if (!done[0].await(60, TimeUnit.SECONDS)){
+            throw new IllegalStateException("Timed out");
+        }
+    }
+}
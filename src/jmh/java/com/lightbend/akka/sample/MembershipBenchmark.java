@@ -0,0 +1,59 @@
+package com.lightbend.akka.sample;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// What a group pays to hand its membership to a query or device list, a defensive HashMap copy against a
+// HashTrieMap snapshot, and what a registration followed by a termination costs in each.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MembershipBenchmark {
+
+    @Param({"1000", "100000"})
+    int devices;
+
+    HashMap<String, Integer> hashMap;
+    HashTrieMap<String, Integer> trie;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        hashMap = new HashMap<>();
+        trie = HashTrieMap.empty();
+        for (int i = 0; i < devices; i++){
+            hashMap.put("device-" + i, i);
+            trie = trie.plus("device-" + i, i);
+        }
+    }
+
+    @Benchmark
+    public Map<String, Integer> snapshotHashMap(){
+        return new HashMap<>(hashMap);
+    }
+
+    @Benchmark
+    public Map<String, Integer> snapshotTrie(){
+        return trie;
+    }
+
+    @Benchmark
+    public Object registerAndTerminateHashMap(){
+        String deviceId = "new-" + (next++ & 1023);
+        hashMap.put(deviceId, 0);
+        return hashMap.remove(deviceId);
+    }
+
+    @Benchmark
+    public Object registerAndTerminateTrie(){
+        String deviceId = "new-" + (next++ & 1023);
+        trie = trie.plus(deviceId, 0).minus(deviceId);
+        return trie;
+    }
+}
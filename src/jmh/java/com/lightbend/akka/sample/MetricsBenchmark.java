@@ -0,0 +1,115 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cost of the metrics layer. record* time single updates from 4 threads at once, recordTemperatures sends readings
+// to devices with metrics on and off, compare the two for the overhead on the hot path.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MetricsBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Counters {
+        final LongAdder readings = new LongAdder();
+        final LatencyHistogram histogram = new LatencyHistogram();
+    }
+
+    @State(Scope.Thread)
+    public static class Latency {
+        long nanos = 0L;
+    }
+
+    static final class Acks extends AbstractActor {
+        static Props props(CountDownLatch[] done){
+            return Props.create(Acks.class, (Object) done);
+        }
+
+        final CountDownLatch[] done;
+
+        Acks(CountDownLatch[] done){
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .match(Device.TemperatureRecoded.class, r -> done[0].countDown())
+                    .build();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Devices {
+        @Param({"on", "off"})
+        String metrics;
+
+        @Param({"100"})
+        int devices;
+
+        @Param({"1000"})
+        int readingsPerDevice;
+
+        ActorSystem system;
+        ActorRef[] deviceActors;
+        ActorRef acks;
+        final CountDownLatch[] done = new CountDownLatch[1];
+
+        @Setup(Level.Trial)
+        public void setup(){
+            // Device logging would dwarf the metrics
+            system = ActorSystem.create("metrics-bench", ConfigFactory
+                    .parseString("iot.metrics.enabled = " + metrics + "\nakka.loglevel = WARNING")
+                    .withFallback(ConfigFactory.load()));
+            deviceActors = new ActorRef[devices];
+            for (int i = 0; i < devices; i++){
+                deviceActors[i] = system.actorOf(Device.props("group", "device-" + i));
+            }
+            acks = system.actorOf(Acks.props(done));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            Await.ready(system.terminate(), Duration.create(60, TimeUnit.SECONDS));
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordCounter(Counters counters){
+        counters.readings.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordHistogram(Counters counters, Latency latency){
+        counters.histogram.record(latency.nanos++ & 0xFFFFF);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void recordTemperatures(Devices state) throws Exception {
+        state.done[0] = new CountDownLatch(state.devices * state.readingsPerDevice);
+        for (int r = 0; r < state.readingsPerDevice; r++){
+            for (ActorRef deviceActor : state.deviceActors){
+                deviceActor.tell(new Device.RecordTemperature(r, 20.0 + r % 10), state.acks);
+            }
+        }
+        if (!state.done[0].await(60, TimeUnit.SECONDS)){
+            throw new IllegalStateException("Timed out");
+        }
+    }
+}
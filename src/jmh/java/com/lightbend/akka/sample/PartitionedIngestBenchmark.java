@@ -0,0 +1,155 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Readings per second ingested through a PartitionedDeviceManager whose groups are spread over `nodes` IoTMain
+// node JVMs on localhost, started with node.conf. Each round sends a batch for every group and waits for every
+// acknowledgement, which come back over remoting. Node output goes to iot-node-<i>.log in java.io.tmpdir.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PartitionedIngestBenchmark {
+    static final int GROUPS = 100;
+    static final int DEVICES_PER_GROUP = 100;
+
+    static final class Acks extends AbstractActor {
+        static Props props(CountDownLatch[] done){
+            return Props.create(Acks.class, (Object) done);
+        }
+
+        final CountDownLatch[] done;
+
+        Acks(CountDownLatch[] done){
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .match(DeviceManager.TemperatureBatchRecorded.class, r -> done[0].countDown())
+                    .build();
+        }
+    }
+
+    @Param({"1", "2", "4"})
+    int nodes;
+
+    final List<Process> nodeProcesses = new ArrayList<>();
+    ActorSystem system;
+    ActorRef manager;
+    ActorRef acks;
+    final CountDownLatch[] done = new CountDownLatch[1];
+    String[] deviceIds;
+    long requestId = 0L;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        List<String> nodePaths = new ArrayList<>();
+        for (int i = 0; i < nodes; i++){
+            int port;
+            try (ServerSocket free = new ServerSocket(0)){
+                port = free.getLocalPort();
+            }
+            nodeProcesses.add(new ProcessBuilder(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"),
+                    "-Dconfig.resource=node.conf",
+                    "-Dakka.remote.netty.tcp.port=" + port,
+                    "-Dakka.loglevel=WARNING",
+                    "-Diot.metrics.dump-interval=0",
+                    "-Diot.logging.lifecycle.sample-every=0",
+                    IoTMain.class.getName())
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "iot-node-" + i + ".log"))
+                    .start());
+            nodePaths.add("akka.tcp://iot-system@127.0.0.1:" + port + "/user/iot-supervisor/device-manager");
+        }
+
+        Config remote = ConfigFactory.parseString(
+                "akka.actor.provider = remote\n" +
+                "akka.actor.warn-about-java-serializer-usage = off\n" +
+                "akka.remote.netty.tcp.hostname = \"127.0.0.1\"\n" +
+                "akka.remote.netty.tcp.port = 0\n").withFallback(ConfigFactory.load());
+        system = ActorSystem.create("iot-system", remote);
+        manager = system.actorOf(PartitionedDeviceManager.props(nodePaths), "device-manager");
+        acks = system.actorOf(Acks.props(done));
+        awaitNodes();
+
+        deviceIds = new String[DEVICES_PER_GROUP];
+        for (int d = 0; d < DEVICES_PER_GROUP; d++){
+            deviceIds[d] = "device-" + d;
+        }
+        String[] groupIds = new String[GROUPS * DEVICES_PER_GROUP];
+        String[] registeredIds = new String[GROUPS * DEVICES_PER_GROUP];
+        for (int g = 0; g < GROUPS; g++){
+            for (int d = 0; d < DEVICES_PER_GROUP; d++){
+                groupIds[g * DEVICES_PER_GROUP + d] = "group-" + g;
+                registeredIds[g * DEVICES_PER_GROUP + d] = deviceIds[d];
+            }
+        }
+        Patterns.ask(manager, new DeviceManager.RequestTrackDevices(0L, groupIds, registeredIds), java.time.Duration.ofSeconds(60))
+                .toCompletableFuture().get();
+    }
+
+    // Node JVMs take a few seconds to start, the manager keeps identifying them until they answer
+    private void awaitNodes() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+        while (System.nanoTime() < deadline){
+            PartitionedDeviceManager.ReplyNodes reply = (PartitionedDeviceManager.ReplyNodes) Patterns.ask(
+                    manager, new PartitionedDeviceManager.RequestNodes(0L), java.time.Duration.ofSeconds(30)).toCompletableFuture().get();
+            if (reply.paths.size() == nodes){
+                return;
+            }
+            Thread.sleep(200);
+        }
+        throw new IllegalStateException("Nodes did not start, see iot-node-*.log in " + System.getProperty("java.io.tmpdir"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Await.ready(system.terminate(), Duration.create(60, TimeUnit.SECONDS));
+        for (Process node : nodeProcesses){
+            node.destroy();
+            node.waitFor(30, TimeUnit.SECONDS);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GROUPS * DEVICES_PER_GROUP)
+    public void ingestBatches() throws Exception {
+        done[0] = new CountDownLatch(GROUPS);
+        long now = System.currentTimeMillis();
+        for (int g = 0; g < GROUPS; g++){
+            long[] timestamps = new long[DEVICES_PER_GROUP];
+            double[] values = new double[DEVICES_PER_GROUP];
+            for (int d = 0; d < DEVICES_PER_GROUP; d++){
+                timestamps[d] = now;
+                values[d] = 20.0 + d % 10;
+            }
+            manager.tell(new DeviceManager.RecordTemperatureBatch(requestId++, "group-" + g, deviceIds, timestamps, values), acks);
+        }
+        if (!done[0].await(120, TimeUnit.SECONDS)){
+            throw new IllegalStateException("Timed out");
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RegistrationStormBenchmark {
+
+    static final class Registrar extends AbstractActor {
+        static Props props(CountDownLatch done){
+            return Props.create(Registrar.class, done);
+        }
+
+        final CountDownLatch done;
+
+        Registrar(CountDownLatch done){
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .match(DeviceManager.DeviceRegistered.class, r -> done.countDown())
+                    .match(DeviceManager.DevicesRegistered.class, r -> {
+                        for (int i = 0; i < r.outcomes.length; i++){
+                            done.countDown();
+                        }
+                    })
+                    .build();
+        }
+    }
+
+    @Param({"1", "2", "4", "8"})
+    int shards;
+
+    @Param({"1000"})
+    int groups;
+
+    @Param({"50"})
+    int devicesPerGroup;
+
+    // Devices per RequestTrackDevices in registerAllDevicesInBulk
+    @Param({"1000"})
+    int bulkSize;
+
+    ActorSystem system;
+    ActorRef manager;
+
+    @Setup(Level.Invocation)
+    public void setup(){
+        system = ActorSystem.create("registration-bench");
+        manager = shards == 1
+                ? system.actorOf(DeviceManager.props())
+                : system.actorOf(ShardedDeviceManager.props(shards));
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws Exception {
+        Await.ready(system.terminate(), Duration.create(60, TimeUnit.SECONDS));
+    }
+
+    @Benchmark
+    public void registerAllDevices() throws Exception {
+        int total = groups * devicesPerGroup;
+        CountDownLatch done = new CountDownLatch(total);
+        ActorRef registrar = system.actorOf(Registrar.props(done));
+        for (int d = 0; d < devicesPerGroup; d++){
+            for (int g = 0; g < groups; g++){
+                manager.tell(new DeviceManager.RequestTrackDevice("group-" + g, "device-" + d), registrar);
+            }
+        }
+        await(done, total);
+    }
+
+    // The same devices in the same order, onboarded with RequestTrackDevices of bulkSize devices each
+    @Benchmark
+    public void registerAllDevicesInBulk() throws Exception {
+        int total = groups * devicesPerGroup;
+        CountDownLatch done = new CountDownLatch(total);
+        ActorRef registrar = system.actorOf(Registrar.props(done));
+        for (int start = 0; start < total; start += bulkSize){
+            int size = Math.min(bulkSize, total - start);
+            String[] groupIds = new String[size];
+            String[] deviceIds = new String[size];
+            for (int i = 0; i < size; i++){
+                int n = start + i;
+                groupIds[i] = "group-" + n % groups;
+                deviceIds[i] = "device-" + n / groups;
+            }
+            manager.tell(new DeviceManager.RequestTrackDevices(start, groupIds, deviceIds), registrar);
+        }
+        await(done, total);
+    }
+
+    private static void await(CountDownLatch done, int total) throws InterruptedException {
+        if (!done.await(120, TimeUnit.SECONDS)){
+            throw new IllegalStateException("Only " + (total - done.getCount()) + " of " + total + " devices registered");
+        }
+    }
+}
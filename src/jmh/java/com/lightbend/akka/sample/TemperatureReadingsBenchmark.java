@@ -0,0 +1,70 @@
+package com.lightbend.akka.sample;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Cost of building one RespondAllTemperatures payload from collected replies, as a HashMap of reading objects
+// versus TemperatureReadings. Run with -prof gc and compare gc.alloc.rate.norm, the bytes allocated per reply:
+//
+//   mvn -Pbench compile exec:exec -Djmh.args="TemperatureReadingsBenchmark -prof gc"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TemperatureReadingsBenchmark {
+
+    @Param({"1000", "50000"})
+    int groupSize;
+
+    String[] deviceIds;
+    double[] values;
+    byte[] status;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        deviceIds = new String[groupSize];
+        values = new double[groupSize];
+        status = new byte[groupSize];
+        for (int i = 0; i < groupSize; i++){
+            deviceIds[i] = "device-" + i;
+            values[i] = 15.0 + i % 200 / 10.0;
+            // Mostly live readings, some devices without one
+            status[i] = i % 10 == 0 ? TemperatureReadings.TEMPERATURE_NOT_AVAILABLE : TemperatureReadings.TEMPERATURE;
+        }
+    }
+
+    @Benchmark
+    public Map<String, DeviceGroup.TemperatureReading> hashMap(){
+        Map<String, DeviceGroup.TemperatureReading> replies = new HashMap<>(groupSize * 4 / 3 + 1);
+        DeviceGroup.TemperatureReading notAvailable = new DeviceGroup.TemperatureNotAvailable();
+        for (int i = 0; i < groupSize; i++){
+            replies.put(deviceIds[i], status[i] == TemperatureReadings.TEMPERATURE
+                    ? new DeviceGroup.Temperature(values[i]) : notAvailable);
+        }
+        return replies;
+    }
+
+    @Benchmark
+    public TemperatureReadings compact(){
+        // What GroupQuery does: the reply arrays are filled in place, then copied out of the actor
+        TemperatureReadings.Builder replies = new TemperatureReadings.Builder(groupSize);
+        for (int i = 0; i < groupSize; i++){
+            replies.add(deviceIds[i], status[i], values[i]);
+        }
+        return replies.build();
+    }
+
+    // Reading every value through the map view, as callers that were not changed do
+    @Benchmark
+    public void compactMapView(Blackhole blackhole){
+        for (Map.Entry<String, DeviceGroup.TemperatureReading> entry : compact().entrySet()){
+            blackhole.consume(entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.ActorRef;
+
+// Open-addressing map from ActorRef to a dense index, sized once and never resized.
+final class ActorIndex {
+    private final ActorRef[] keys;
+    private final int[] values;
+    private final int mask;
+
+    ActorIndex(int expectedSize){
+        int capacity = 2;
+        while (capacity < expectedSize * 2){
+            capacity <<= 1;
+        }
+        this.keys = new ActorRef[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    void put(ActorRef key, int value){
+        int slot = mix(key.hashCode()) & mask;
+        while (keys[slot] != null && !keys[slot].equals(key)){
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    int get(ActorRef key){
+        int slot = mix(key.hashCode()) & mask;
+        ActorRef k;
+        while ((k = keys[slot]) != null){
+            if (k.equals(key)){
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int mix(int h){
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
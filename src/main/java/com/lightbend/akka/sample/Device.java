@@ -1,14 +1,22 @@
 package com.lightbend.akka.sample;
 
 import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
 import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 
 import com.lightbend.akka.sample.DeviceManager.DeviceRegistered;
 import com.lightbend.akka.sample.DeviceManager.RequestTrackDevice;
 
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
 import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Device extends AbstractActor {
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(),this);
@@ -17,22 +25,74 @@ public class Device extends AbstractActor {
 
     final String deviceId;
 
-    public Device(String groupId, String deviceId){
+    public static final int DEFAULT_HISTORY_DEPTH = 128;
+
+    // Whether every recorded reading is also pushed to the parent group as a TemperatureChanged.
+    boolean publishReadings;
+
+    // When set, the device asks its group to passivate it after this long without messages.
+    final FiniteDuration passivationTimeout;
+
+    // When set, single readings are acknowledged only once the journal has made them durable.
+    final ActorRef journal;
+
+    boolean passivating = false;
+
+    final TemperatureSubscriptions subscriptions = new TemperatureSubscriptions();
+    Cancellable subscriptionTimer = null;
+
+    final Metrics metrics;
+    final LogSampling.Category readingsLog;
+    final LogSampling.Category lifecycleLog;
+    // Readings counter of the group, null while metrics are disabled
+    final LongAdder recordedReadings;
+
+    public Device(String groupId, String deviceId, DeviceGroupSettings settings){
         this.deviceId = deviceId;
         this.groupId = groupId;
+        this.history = new TemperatureHistory(settings.historyDepth);
+        this.publishReadings = settings.devicesPublish();
+        this.passivationTimeout = settings.passivationTimeout;
+        this.journal = settings.journal;
+        this.metrics = Metrics.get(getContext().getSystem());
+        this.recordedReadings = metrics.enabled ? metrics.readings(groupId) : null;
+        LogSampling logSampling = LogSampling.get(getContext().getSystem());
+        this.readingsLog = logSampling.readings;
+        this.lifecycleLog = logSampling.lifecycle;
     }
 
     public static Props props(String groupId, String deviceId){
-        return Props.create(Device.class, groupId, deviceId);
+        return props(groupId, deviceId, DeviceGroupSettings.DEFAULT);
+    }
+
+    public static Props props(String groupId, String deviceId, int historyDepth){
+        return props(groupId, deviceId, DeviceGroupSettings.DEFAULT.withHistoryDepth(historyDepth));
+    }
+
+    public static Props props(String groupId, String deviceId, DeviceGroupSettings settings){
+        Props props = Props.create(Device.class, groupId, deviceId, settings);
+        if (settings.deviceDispatcher != null){
+            props = props.withDispatcher(settings.deviceDispatcher);
+        }
+        if (settings.deviceMailbox != null){
+            props = props.withMailbox(settings.deviceMailbox);
+        }
+        return props;
     }
 
     public static final class RecordTemperature {
         final long requestId;
         final double value;
+        final long timestamp;
 
         public RecordTemperature(long requestId, double value){
+            this(requestId, value, System.currentTimeMillis());
+        }
+
+        public RecordTemperature(long requestId, double value, long timestamp){
             this.requestId = requestId;
             this.value = value;
+            this.timestamp = timestamp;
         }
     }
 
@@ -44,6 +104,111 @@ public class Device extends AbstractActor {
         }
     }
 
+    public static final class RecordTemperatures {
+        // Acknowledged with TemperaturesRecorded when not negative
+        final long batchId;
+        final long[] timestamps;
+        final double[] values;
+
+        public RecordTemperatures(long[] timestamps, double[] values){
+            this(-1L, timestamps, values);
+        }
+
+        public RecordTemperatures(long batchId, long[] timestamps, double[] values){
+            this.batchId = batchId;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+    }
+
+    public static final class TemperaturesRecorded {
+        final long batchId;
+
+        public TemperaturesRecorded(long batchId){
+            this.batchId = batchId;
+        }
+    }
+
+    // Turns TemperatureChanged notifications to the parent on or off, sent by a group that needs them
+    public static final class PublishReadings {
+        final boolean enabled;
+
+        public PublishReadings(boolean enabled){
+            this.enabled = enabled;
+        }
+    }
+
+    public static final class TemperatureChanged {
+        final String deviceId;
+        final long timestamp;
+        final double value;
+
+        public TemperatureChanged(String deviceId, long timestamp, double value){
+            this.deviceId = deviceId;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    public static final class Passivate {
+        final String deviceId;
+        final boolean hasReading;
+        final long timestamp;
+        final double value;
+
+        public Passivate(String deviceId, boolean hasReading, long timestamp, double value){
+            this.deviceId = deviceId;
+            this.hasReading = hasReading;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    public static final class RestoreReading {
+        final long timestamp;
+        final double value;
+
+        public RestoreReading(long timestamp, double value){
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    // A reading of a group handed off to this node after its group had started here, kept only when newer than
+    // the last reading recorded since
+    public static final class MergeReading {
+        final long timestamp;
+        final double value;
+
+        public MergeReading(long timestamp, double value){
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    // The last reading with its timestamp, for a DeviceGroup.RequestGroupState
+    static final class ReadLastReading {
+        final long requestId;
+
+        ReadLastReading(long requestId){
+            this.requestId = requestId;
+        }
+    }
+
+    static final class RespondLastReading {
+        final long requestId;
+        final boolean hasReading;
+        final long timestamp;
+        final double value;
+
+        RespondLastReading(long requestId, boolean hasReading, long timestamp, double value){
+            this.requestId = requestId;
+            this.hasReading = hasReading;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
     public static final class ReadTemperature {
         long requestId;
 
@@ -62,16 +227,148 @@ public class Device extends AbstractActor {
         }
     }
 
-    Optional<Double> lastTemperatureReading = Optional.empty();
+    public static final class ReadTemperatureWindow {
+        final long requestId;
+        final long from;
+        final long to;
+
+        public ReadTemperatureWindow(long requestId, long from, long to){
+            this.requestId = requestId;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    public static final class RespondTemperatureWindow {
+        final long requestId;
+        final long[] timestamps;
+        final double[] values;
+
+        public RespondTemperatureWindow(long requestId, long[] timestamps, double[] values){
+            this.requestId = requestId;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+    }
+
+    public static final class ReadTemperatureStats {
+        static final double[] DEFAULT_QUANTILES = {0.5, 0.9, 0.99};
+
+        final long requestId;
+        final long from;
+        final long to;
+        final double[] quantiles;
+
+        public ReadTemperatureStats(long requestId, long from, long to){
+            this(requestId, from, to, DEFAULT_QUANTILES);
+        }
+
+        public ReadTemperatureStats(long requestId, long from, long to, double[] quantiles){
+            this.requestId = requestId;
+            this.from = from;
+            this.to = to;
+            this.quantiles = quantiles;
+        }
+    }
+
+    public static final class RespondTemperatureStats {
+        final long requestId;
+        final int count;
+        final double min;
+        final double max;
+        final double avg;
+        final double[] quantiles;
+        final double[] percentiles;
+
+        public RespondTemperatureStats(long requestId, int count, double min, double max, double avg,
+                                       double[] quantiles, double[] percentiles){
+            this.requestId = requestId;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.avg = avg;
+            this.quantiles = quantiles;
+            this.percentiles = percentiles;
+        }
+    }
+
+    final TemperatureHistory history;
+
+    Optional<Double> lastTemperatureReading(){
+        return history.isEmpty() ? Optional.empty() : Optional.of(history.lastValue());
+    }
+
+    private void publishLastReading(){
+        subscriptions.offer(deviceId, history.lastValue());
+        if (publishReadings){
+            getContext().getParent().tell(new TemperatureChanged(deviceId, history.lastTimestamp(), history.lastValue()), getSelf());
+        }
+        if (passivating){
+            // A reading arrived after we asked to be passivated, hand the newer state over as well
+            requestPassivation();
+        }
+    }
+
+    private void requestPassivation(){
+        passivating = true;
+        getContext().setReceiveTimeout(Duration.Undefined());
+        if (history.isEmpty()){
+            getContext().getParent().tell(new Passivate(deviceId, false, 0L, 0.0), getSelf());
+        }else {
+            getContext().getParent().tell(new Passivate(deviceId, true, history.lastTimestamp(), history.lastValue()), getSelf());
+        }
+    }
 
     @Override
     public void preStart() {
-        log.info("Device actor {}-{} started", groupId, deviceId);
+        if (lifecycleLog.sample()){
+            log.info("Device actor {}-{} started", groupId, deviceId);
+        }
+        if (metrics.enabled){
+            metrics.devices.increment();
+        }
+        if (passivationTimeout != null){
+            getContext().setReceiveTimeout(passivationTimeout);
+        }
     }
 
     @Override
     public void postStop() {
-        log.info("Device actor {}-{} stopped", groupId, deviceId);
+        if (subscriptionTimer != null){
+            subscriptionTimer.cancel();
+        }
+        if (metrics.enabled){
+            metrics.devices.decrement();
+        }
+        if (lifecycleLog.sample()){
+            log.info("Device actor {}-{} stopped", groupId, deviceId);
+        }
+    }
+
+    private void onSubscribe(DeviceGroup.SubscribeTemperatures subscribe){
+        if (subscriptions.add(subscribe, getSender())){
+            getContext().watch(getSender());
+        }
+        if (subscriptionTimer == null){
+            subscriptionTimer = getContext().getSystem().scheduler().schedule(
+                    TemperatureSubscriptions.TICK, TemperatureSubscriptions.TICK,
+                    getSelf(), DeviceGroup.SubscriptionTick.INSTANCE, getContext().dispatcher(), getSelf());
+        }
+        getSender().tell(new DeviceGroup.TemperaturesSubscribed(subscribe.requestId), getSelf());
+    }
+
+    private void onUnsubscribe(DeviceGroup.UnsubscribeTemperatures unsubscribe){
+        if (subscriptions.remove(unsubscribe.requestId, getSender())){
+            getContext().unwatch(getSender());
+        }
+        stopSubscriptionTimerIfIdle();
+    }
+
+    private void stopSubscriptionTimerIfIdle(){
+        if (subscriptions.isEmpty() && subscriptionTimer != null){
+            subscriptionTimer.cancel();
+            subscriptionTimer = null;
+        }
     }
 
     @Override
@@ -79,7 +376,7 @@ public class Device extends AbstractActor {
         return receiveBuilder()
                 .match(RequestTrackDevice.class, r ->{
                     if (this.groupId.equals(r.groupId)&&this.deviceId.equals(r.deviceId)){
-                        getSender().tell(new DeviceRegistered(), getSelf());
+                        getSender().tell(new DeviceRegistered(r.groupHandle, r.deviceHandle, r.epoch), getSelf());
                     }else{
                         log.warning(
                                 "Ignoring TrackDevice request for {}-{}. This actor is responsible for {}-{}.",
@@ -88,12 +385,80 @@ public class Device extends AbstractActor {
                     }
                 })
                 .match(RecordTemperature.class, r -> {
-                    log.info("Recorded temperature reading {} with {}", r.value, r.requestId);
-                    lastTemperatureReading = Optional.of(r.value);
-                    getSender().tell(new TemperatureRecoded(r.requestId), getSelf());
+                    long start = metrics.enabled ? System.nanoTime() : 0L;
+                    if (readingsLog.sample()){
+                        log.info("Device actor {}-{} recorded temperature reading {} with {}", groupId, deviceId, r.value, r.requestId);
+                    }
+                    history.record(r.timestamp, r.value);
+                    publishLastReading();
+                    if (journal != null){
+                        journal.tell(new DeviceJournal.Append(
+                                DeviceJournal.Recorded.single(groupId, deviceId, r.timestamp, r.value),
+                                getSender(), new TemperatureRecoded(r.requestId), getSelf()), getSelf());
+                    }else {
+                        getSender().tell(new TemperatureRecoded(r.requestId), getSelf());
+                    }
+                    if (metrics.enabled){
+                        recordedReadings.increment();
+                        metrics.recordTemperature.record(System.nanoTime() - start);
+                    }
                 })
+                .match(RecordTemperatures.class, r -> {
+                    if (readingsLog.sample()){
+                        log.info("Device actor {}-{} recorded {} temperature readings", groupId, deviceId, r.values.length);
+                    }
+                    for (int i = 0; i < r.values.length; i++){
+                        history.record(r.timestamps[i], r.values[i]);
+                    }
+                    if (r.values.length > 0){
+                        publishLastReading();
+                    }
+                    if (metrics.enabled){
+                        recordedReadings.add(r.values.length);
+                    }
+                    if (r.batchId >= 0){
+                        getSender().tell(new TemperaturesRecorded(r.batchId), getSelf());
+                    }
+                })
+                .match(RestoreReading.class, r -> history.record(r.timestamp, r.value))
+                .match(MergeReading.class, r -> {
+                    if (history.isEmpty() || r.timestamp > history.lastTimestamp()){
+                        history.record(r.timestamp, r.value);
+                        publishLastReading();
+                        if (journal != null){
+                            journal.tell(new DeviceJournal.Append(DeviceJournal.Recorded.single(
+                                    groupId, deviceId, r.timestamp, r.value), null, null, getSelf()), getSelf());
+                        }
+                    }
+                })
+                .match(ReceiveTimeout.class, r -> {
+                    // Subscribers keep a device alive, passivation would silently end their subscriptions
+                    if (subscriptions.isEmpty()){
+                        if (lifecycleLog.sample()){
+                            log.info("Device actor {}-{} is idle, requesting passivation", groupId, deviceId);
+                        }
+                        requestPassivation();
+                    }
+                })
+                .match(PublishReadings.class, r -> publishReadings = r.enabled)
+                .match(DeviceGroup.SubscribeTemperatures.class, this::onSubscribe)
+                .match(DeviceGroup.UnsubscribeTemperatures.class, this::onUnsubscribe)
+                .match(DeviceGroup.SubscriptionTick.class, t -> subscriptions.flush(getSelf()))
+                .match(Terminated.class, t -> {
+                    subscriptions.removeSubscriber(t.getActor());
+                    stopSubscriptionTimerIfIdle();
+                })
+                .match(ReadLastReading.class, r -> getSender().tell(history.isEmpty()
+                        ? new RespondLastReading(r.requestId, false, 0L, 0.0)
+                        : new RespondLastReading(r.requestId, true, history.lastTimestamp(), history.lastValue()), getSelf()))
                 .match(ReadTemperature.class,  r -> {
-                    getSender().tell(new RespondTemperature(r.requestId, lastTemperatureReading), getSelf());
+                    getSender().tell(new RespondTemperature(r.requestId, lastTemperatureReading()), getSelf());
+                })
+                .match(ReadTemperatureWindow.class, r -> {
+                    getSender().tell(history.window(r.requestId, r.from, r.to), getSelf());
+                })
+                .match(ReadTemperatureStats.class, r -> {
+                    getSender().tell(history.stats(r.requestId, r.from, r.to, r.quantiles), getSelf());
                 }).build();
     }
 }
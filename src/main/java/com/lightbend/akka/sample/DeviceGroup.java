@@ -1,29 +1,58 @@
 package com.lightbend.akka.sample;
 
 import akka.actor.AbstractActor;
+import akka.actor.ActorPath;
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.PoisonPill;
 import akka.actor.Props;
+import akka.actor.Status;
 import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import scala.concurrent.duration.FiniteDuration;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 
 public class DeviceGroup extends AbstractActor {
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
 
     final String groupId;
 
-    public DeviceGroup(String groupId){
+    final DeviceGroupSettings settings;
+    final Metrics metrics = Metrics.get(getContext().getSystem());
+    final LogSampling.Category lifecycleLog = LogSampling.get(getContext().getSystem()).lifecycle;
+
+    public DeviceGroup(String groupId, DeviceGroupSettings settings){
         this.groupId = groupId;
+        this.settings = settings;
     }
 
     public static Props props(String groupId){
-        return Props.create(DeviceGroup.class, groupId);
+        return props(groupId, DeviceGroupSettings.DEFAULT);
+    }
+
+    // When a staleness bound is given, devices push their readings to the group and RequestAllTemperatures
+    // is answered from a snapshot that is at most this old.
+    public static Props props(String groupId, FiniteDuration snapshotStaleness){
+        return props(groupId, DeviceGroupSettings.DEFAULT.withSnapshotStaleness(snapshotStaleness));
+    }
+
+    public static Props props(String groupId, DeviceGroupSettings settings){
+        if (settings.tableMode){
+            return DeviceTableGroup.props(groupId, settings);
+        }
+        return Props.create(DeviceGroup.class, groupId, settings);
     }
 
     public static final class RequestDeviceList{
@@ -44,24 +73,327 @@ public class DeviceGroup extends AbstractActor {
         }
     }
 
+    // The devices of the group as they are, for handing it to another node with the handles unchanged: ids in the
+    // order of their handles, followed by those that never had one like devices only in the recovered snapshot,
+    // each with its last reading and the timestamp it was taken at.
+    static final class RequestGroupState {
+        final long requestId;
+
+        RequestGroupState(long requestId){
+            this.requestId = requestId;
+        }
+    }
+
+    static final class GroupState {
+        final long requestId;
+        final String[] deviceIds;
+        final boolean[] hasReadings;
+        final long[] timestamps;
+        final double[] values;
+        final long epoch;
+
+        GroupState(long requestId, String[] deviceIds, boolean[] hasReadings, long[] timestamps, double[] values,
+                   long epoch){
+            this.requestId = requestId;
+            this.deviceIds = deviceIds;
+            this.hasReadings = hasReadings;
+            this.timestamps = timestamps;
+            this.values = values;
+            this.epoch = epoch;
+        }
+
+        GroupState(long requestId, int size, long epoch){
+            this(requestId, new String[size], new boolean[size], new long[size], new double[size], epoch);
+        }
+
+        void setReading(int i, long timestamp, double value){
+            hasReadings[i] = true;
+            timestamps[i] = timestamp;
+            values[i] = value;
+        }
+    }
+
+    static final class GroupStateTimeout {
+        final long collectionId;
+
+        GroupStateTimeout(long collectionId){
+            this.collectionId = collectionId;
+        }
+    }
+
+    // Answered with BatchesDrained once no batch is waiting for its devices or the journal, so that a group handed
+    // off acknowledges every batch it accepted before it is stopped
+    static final class DrainBatches {
+        final long requestId;
+
+        DrainBatches(long requestId){
+            this.requestId = requestId;
+        }
+    }
+
+    static final class BatchesDrained {
+        final long requestId;
+
+        BatchesDrained(long requestId){
+            this.requestId = requestId;
+        }
+    }
+
+    // Devices of a snapshot view (may be null) plus the devices registered or updated after it.
+    // The arrays take precedence, except that an entry without a reading keeps the reading of the snapshot.
+    // An adopted group takes over the epoch of the one handed off, 0 keeps its own.
+    public static final class RecoverDevices {
+        final MappedSnapshot.Group base;
+        final String[] deviceIds;
+        final boolean[] hasReadings;
+        final long[] timestamps;
+        final double[] values;
+        final long epoch;
+
+        // Every device with the reading given
+        public RecoverDevices(String[] deviceIds, long[] timestamps, double[] values){
+            this(null, deviceIds, filled(deviceIds.length), timestamps, values, 0L);
+        }
+
+        RecoverDevices(MappedSnapshot.Group base, String[] deviceIds, boolean[] hasReadings, long[] timestamps,
+                       double[] values, long epoch){
+            this.base = base;
+            this.deviceIds = deviceIds;
+            this.hasReadings = hasReadings;
+            this.timestamps = timestamps;
+            this.values = values;
+            this.epoch = epoch;
+        }
+
+        static RecoverDevices fromTable(MappedSnapshot.Group base, DeviceTable table){
+            int size = table == null ? 0 : table.size();
+            String[] deviceIds = new String[size];
+            boolean[] hasReadings = new boolean[size];
+            long[] timestamps = new long[size];
+            double[] values = new double[size];
+            for (int i = 0; i < size; i++){
+                deviceIds[i] = table.deviceId(i);
+                hasReadings[i] = table.hasReading(i);
+                timestamps[i] = table.timestamp(i);
+                values[i] = table.value(i);
+            }
+            return new RecoverDevices(base, deviceIds, hasReadings, timestamps, values, 0L);
+        }
+
+        private static boolean[] filled(int size){
+            boolean[] all = new boolean[size];
+            Arrays.fill(all, true);
+            return all;
+        }
+
+        boolean hasReading(int i){
+            return hasReadings[i];
+        }
+    }
+
+    // A group handed off to this node after the group here had already started, as the routing moved to this node
+    // before the handoff was confirmed. Merged into the group, keeping whichever reading of a device is newer.
+    static final class MergeDevices {
+        final String[] deviceIds;
+        final boolean[] hasReadings;
+        final long[] timestamps;
+        final double[] values;
+
+        MergeDevices(String[] deviceIds, boolean[] hasReadings, long[] timestamps, double[] values){
+            this.deviceIds = deviceIds;
+            this.hasReadings = hasReadings;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+    }
+
+    // The devices of one group from a DeviceManager.RequestTrackDevices, answered with DevicesTracked
+    static final class TrackDevices {
+        final long requestId;
+        final String groupId;
+        final String[] deviceIds;
+
+        TrackDevices(long requestId, String groupId, String[] deviceIds){
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.deviceIds = deviceIds;
+        }
+    }
+
+    // Outcomes as in DeviceManager.DevicesRegistered, aligned with the ids of TrackDevices
+    static final class DevicesTracked {
+        final long requestId;
+        final byte[] outcomes;
+        final int[] deviceHandles;
+        final long epoch;
+
+        DevicesTracked(long requestId, byte[] outcomes, int[] deviceHandles, long epoch){
+            this.requestId = requestId;
+            this.outcomes = outcomes;
+            this.deviceHandles = deviceHandles;
+            this.epoch = epoch;
+        }
+
+        static DevicesTracked rejected(long requestId, int size){
+            byte[] outcomes = new byte[size];
+            int[] deviceHandles = new int[size];
+            Arrays.fill(outcomes, DeviceManager.DevicesRegistered.REJECTED);
+            Arrays.fill(deviceHandles, -1);
+            return new DevicesTracked(requestId, outcomes, deviceHandles, 0L);
+        }
+    }
+
+    public static final class DeviceEnvelope {
+        final String deviceId;
+        final Object message;
+
+        public DeviceEnvelope(String deviceId, Object message){
+            this.deviceId = deviceId;
+            this.message = message;
+        }
+    }
+
     public static final class RequestAllTemperatures {
         final long requestId;
+        final boolean requireFresh;
+        // Overrides the group's query timeout when set
+        final FiniteDuration deadline;
+        // Answer with partial RespondAllTemperatures as device replies arrive, then AllTemperaturesCompleted
+        final boolean streaming;
 
         public RequestAllTemperatures(long requestId){
+            this(requestId, false);
+        }
+
+        public RequestAllTemperatures(long requestId, boolean requireFresh){
+            this(requestId, requireFresh, null, false);
+        }
+
+        public RequestAllTemperatures(long requestId, FiniteDuration deadline, boolean streaming){
+            this(requestId, false, deadline, streaming);
+        }
+
+        public RequestAllTemperatures(long requestId, boolean requireFresh, FiniteDuration deadline, boolean streaming){
             this.requestId = requestId;
+            this.requireFresh = requireFresh;
+            this.deadline = deadline;
+            this.streaming = streaming;
         }
     }
 
     public static final class RespondAllTemperatures {
         final long requestId;
+        // Map view of readings
         final Map<String , TemperatureReading> temperatures;
+        final TemperatureReadings readings;
+
+        public RespondAllTemperatures(long requestId, TemperatureReadings readings){
+            this.requestId = requestId;
+            this.temperatures = readings;
+            this.readings = readings;
+        }
 
         public RespondAllTemperatures(long requestId, Map<String , TemperatureReading> temperatures){
+            this(requestId, TemperatureReadings.of(temperatures));
+        }
+    }
+
+    // Ends a streamed answer, after chunks that together hold one reading per device
+    public static final class AllTemperaturesCompleted {
+        final long requestId;
+        final int devices;
+
+        public AllTemperaturesCompleted(long requestId, int devices){
+            this.requestId = requestId;
+            this.devices = devices;
+        }
+    }
+
+    // Push notifications of temperature changes, sent to a DeviceGroup for all of its devices or to a single Device.
+    // Only changes of at least deadband from the last value sent are reported, at most once per minInterval.
+    public static final class SubscribeTemperatures {
+        final long requestId;
+        final double deadband;
+        final FiniteDuration minInterval;
+
+        public SubscribeTemperatures(long requestId){
+            this(requestId, 0.0, FiniteDuration.Zero());
+        }
+
+        public SubscribeTemperatures(long requestId, double deadband, FiniteDuration minInterval){
             this.requestId = requestId;
-            this.temperatures = temperatures;
+            this.deadband = deadband;
+            this.minInterval = minInterval;
         }
     }
 
+    public static final class TemperaturesSubscribed {
+        final long requestId;
+
+        public TemperaturesSubscribed(long requestId){
+            this.requestId = requestId;
+        }
+    }
+
+    public static final class UnsubscribeTemperatures {
+        final long requestId;
+
+        public UnsubscribeTemperatures(long requestId){
+            this.requestId = requestId;
+        }
+    }
+
+    // Latest value of every device that changed since the previous update to this subscription
+    public static final class TemperatureUpdates {
+        final long requestId;
+        final Map<String, Double> changes;
+
+        public TemperatureUpdates(long requestId, Map<String, Double> changes){
+            this.requestId = requestId;
+            this.changes = changes;
+        }
+    }
+
+    static final class SubscriptionTick {
+        static final SubscriptionTick INSTANCE = new SubscriptionTick();
+    }
+
+    // Statistics over the latest reading of every device in the group, answered from running aggregates
+    public static final class RequestGroupStats {
+        final long requestId;
+
+        public RequestGroupStats(long requestId){
+            this.requestId = requestId;
+        }
+    }
+
+    public static final class RespondGroupStats {
+        final long requestId;
+        final TemperatureStats stats;
+
+        public RespondGroupStats(long requestId, TemperatureStats stats){
+            this.requestId = requestId;
+            this.stats = stats;
+        }
+    }
+
+    // Pushed to the parent at most once per STATS_INTERVAL while the group's aggregates change
+    static final class GroupStatsUpdated {
+        final String groupId;
+        final TemperatureStats stats;
+
+        GroupStatsUpdated(String groupId, TemperatureStats stats){
+            this.groupId = groupId;
+            this.stats = stats;
+        }
+    }
+
+    static final class StatsTick {
+        static final StatsTick INSTANCE = new StatsTick();
+    }
+
+    static final FiniteDuration STATS_INTERVAL = new FiniteDuration(1, TimeUnit.SECONDS);
+
     public static interface TemperatureReading {
     }
 
@@ -82,63 +414,969 @@ public class DeviceGroup extends AbstractActor {
     public static final class DeviceTimeOut implements  TemperatureReading{
     }
 
-    final Map<String, ActorRef> deviceIdToActor = new HashMap<>();
-    final Map<ActorRef, String> actorToDeviceId = new HashMap<>();
-    final long nextCollectionId = 0L;
+    // Live device actors by device handle, null while a device is passivated, in the snapshot or gone
+    final IdRegistry deviceHandles = new IdRegistry(64);
+    // Identifies this incarnation's handles, see DeviceManager.DeviceRegistered
+    long epoch = newEpoch();
+    ActorRef[] devicesByHandle = new ActorRef[64];
+    // Live device actors and every registered device id, persistent maps so that queries and device lists get
+    // them as immutable snapshots without a copy
+    HashTrieMap<ActorRef, String> actorToDeviceId = HashTrieMap.empty();
+    HashTrieMap<String, Boolean> registeredDevices = HashTrieMap.empty();
+    // Set once the devices only in the recovered snapshot have been added to registeredDevices
+    boolean recoveredBaseRegistered = false;
+    long nextCollectionId = 0L;
+
+    static final class PendingRequest {
+        final long requestId;
+        final ActorRef requester;
+
+        PendingRequest(long requestId, ActorRef requester){
+            this.requestId = requestId;
+            this.requester = requester;
+        }
+    }
+
+    // Live requests arriving while a query is in flight attach to it instead of starting another fan-out.
+    final List<PendingRequest> pendingRequests = new ArrayList<>();
+    long inFlightCollectionId = -1L;
+
+    final Map<String, TemperatureReading> latestReadings = new HashMap<>();
+    TemperatureReadings snapshot = null;
+    long snapshotTakenAt = 0L;
+    boolean snapshotDirty = false;
+
+    static final class PassivatedDevice {
+        final boolean hasReading;
+        final long timestamp;
+        final double value;
+
+        PassivatedDevice(boolean hasReading, long timestamp, double value){
+            this.hasReading = hasReading;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    // Registered devices whose actor has been stopped for idleness, re-created on their next message.
+    final Map<String, PassivatedDevice> passivatedDevices = new HashMap<>();
+    final Map<ActorRef, String> passivatingActors = new HashMap<>();
+    long nextIncarnation = 0L;
+
+    // Devices recovered from the mapped journal snapshot, read from its pages until their actor is first needed.
+    MappedSnapshot.Group recoveredBase = null;
+    final BitSet materialized = new BitSet();
+    // What knownReadings() returns until a device is passivated or materialized, null while it needs rebuilding
+    TemperatureReadings knownReadings = null;
+
+    static final class BatchPersisted {
+        final long batchId;
+        // False when the journal lost the batch to a failed write
+        final boolean durable;
+
+        BatchPersisted(long batchId, boolean durable){
+            this.batchId = batchId;
+            this.durable = durable;
+        }
+    }
+
+    static final class BatchTimeout {
+        final long batchId;
+
+        BatchTimeout(long batchId){
+            this.batchId = batchId;
+        }
+    }
+
+    // How long a batch waits on its devices and the journal before it is rejected as a whole
+    static final FiniteDuration BATCH_TIMEOUT = FiniteDuration.create(10, TimeUnit.SECONDS);
+
+    // A batch is acknowledged once every device applied its readings and, with a journal, they are durable,
+    // so the acknowledgements pace producers to what the devices actually keep up with.
+    static final class PendingBatch {
+        final ActorRef requester;
+        DeviceManager.TemperatureBatchRecorded ack;
+        final Set<ActorRef> awaitingDevices;
+        boolean awaitingJournal;
+        Cancellable timeout = null;
+
+        PendingBatch(ActorRef requester, DeviceManager.TemperatureBatchRecorded ack, Set<ActorRef> awaitingDevices,
+                     boolean awaitingJournal){
+            this.requester = requester;
+            this.ack = ack;
+            this.awaitingDevices = awaitingDevices;
+            this.awaitingJournal = awaitingJournal;
+        }
+
+        boolean isDone(){
+            return awaitingDevices.isEmpty() && !awaitingJournal;
+        }
+
+        // Nothing of the batch is known to be kept, so the producer should resend it all
+        DeviceManager.TemperatureBatchRecorded rejection(){
+            return new DeviceManager.TemperatureBatchRecorded(ack.requestId, 0, ack.recorded + ack.rejected);
+        }
+    }
+
+    // A RequestGroupState waiting for the readings of the live devices
+    static final class PendingGroupState {
+        final ActorRef requester;
+        final GroupState state;
+        final Map<ActorRef, Integer> awaitingDevices = new HashMap<>();
+        Cancellable timeout = null;
+
+        PendingGroupState(ActorRef requester, GroupState state){
+            this.requester = requester;
+            this.state = state;
+        }
+    }
+
+    final Map<Long, PendingGroupState> pendingGroupStates = new HashMap<>();
+    long nextGroupStateId = 0L;
+
+    final Map<Long, PendingBatch> pendingBatches = new HashMap<>();
+    long nextBatchId = 0L;
+    final List<PendingRequest> drainRequests = new ArrayList<>();
+
+    // While anyone is subscribed, devices push their readings to the group as in snapshot mode
+    final TemperatureSubscriptions subscriptions = new TemperatureSubscriptions();
+    Cancellable subscriptionTimer = null;
+
+    // Runs the RequestAllTemperatures fan-outs of this group. Watched, as a collection in flight ends with it.
+    ActorRef queryManager;
+
+    // Latest value of every device with a reading by handle, which turns each TemperatureChanged into a delta of the
+    // aggregate
+    double[] aggregatedValues = new double[0];
+    final BitSet aggregated = new BitSet();
+    final TemperatureAggregate aggregate = new TemperatureAggregate();
+    Cancellable statsTimer = null;
+
+    boolean snapshotEnabled(){
+        return settings.snapshotEnabled();
+    }
 
     @Override
     public void preStart() {
         log.info("DeviceGroup {} started", groupId);
+        if (metrics.enabled){
+            metrics.groups.increment();
+        }
+        startQueryManager();
+        if (settings.aggregates){
+            statsTimer = getContext().getSystem().scheduler().schedule(STATS_INTERVAL, STATS_INTERVAL,
+                    getSelf(), StatsTick.INSTANCE, getContext().dispatcher(), getSelf());
+        }
     }
 
     @Override
     public void postStop(){
+        if (subscriptionTimer != null){
+            subscriptionTimer.cancel();
+        }
+        if (statsTimer != null){
+            statsTimer.cancel();
+        }
+        if (metrics.enabled){
+            metrics.groups.decrement();
+        }
+        // E.g. stopped by a handoff, the producers should not wait on acknowledgements that will not come
+        pendingBatches.values().forEach(pending -> {
+            pending.timeout.cancel();
+            pending.requester.tell(pending.rejection(), getSelf());
+        });
         log.info("DeviceGroup {} stopped", groupId);
     }
 
     private void onTrackDevice(DeviceManager.RequestTrackDevice trackMsg){
         if (this.groupId.equals(trackMsg.groupId)){
-            ActorRef deviceActor = deviceIdToActor.get(trackMsg.deviceId);
+            ActorRef deviceActor = deviceActorFor(trackMsg.deviceId);
             if (deviceActor!=null){
-                deviceActor.forward(trackMsg, getContext());
+                deviceActor.forward(trackMsg.withDeviceHandle(deviceHandles.handleOf(trackMsg.deviceId), epoch), getContext());
             }else {
-                log.info("Creating device actor for {}", trackMsg.deviceId);
-                deviceActor = getContext().actorOf(Device.props(groupId, trackMsg.deviceId), "device-"+trackMsg.deviceId);
-                getContext().watch(deviceActor);
-                actorToDeviceId.put(deviceActor, trackMsg.deviceId);
-                deviceIdToActor.put(trackMsg.deviceId, deviceActor);
-                deviceActor.forward(trackMsg, getContext());
+                if (lifecycleLog.sample()){
+                    log.info("Creating device actor for {}", trackMsg.deviceId);
+                }
+                deviceActor = createDeviceActor(trackMsg.deviceId, "device-"+trackMsg.deviceId);
+                int handle = deviceHandles.handleOf(trackMsg.deviceId);
+                if (snapshotEnabled()){
+                    latestReadings.put(trackMsg.deviceId, new TemperatureNotAvailable());
+                    snapshotDirty = true;
+                }
+                if (settings.journal != null){
+                    // Acknowledge the registration once it is durable
+                    settings.journal.tell(new DeviceJournal.Append(
+                            new DeviceJournal.Tracked(groupId, trackMsg.deviceId),
+                            getSender(), new DeviceManager.DeviceRegistered(trackMsg.groupHandle, handle, epoch), deviceActor), getSelf());
+                }else {
+                    deviceActor.forward(trackMsg.withDeviceHandle(handle, epoch), getContext());
+                }
             }
         }else {
             log.warning("Ignoring TrackDevice request for {}, This actor is responsible for {}.", trackMsg.groupId, this.groupId);
         }
     }
 
+    // Random, so that a restarted group cannot pick the epoch of the incarnation before, never 0
+    static long newEpoch(){
+        long epoch;
+        do {
+            epoch = ThreadLocalRandom.current().nextLong();
+        } while (epoch == 0L);
+        return epoch;
+    }
+
+    static boolean isValidDeviceId(String deviceId){
+        return deviceId != null && !deviceId.isEmpty() && ActorPath.isValidPathElement("device-" + deviceId);
+    }
+
+    // Whether the device has a live, passivated or not yet materialized actor, without creating one
+    private boolean isRegistered(String deviceId){
+        return liveActorOf(deviceId) != null || passivatedDevices.containsKey(deviceId) || unmaterializedIndex(deviceId) >= 0;
+    }
+
+    // Registers the new devices of the request in one pass and acknowledges them together, once durable when
+    // there is a journal. Devices already present keep their actor as it is.
+    private void onTrackDevices(TrackDevices r){
+        if (!groupId.equals(r.groupId)){
+            log.warning("Ignoring TrackDevices request for {}, This actor is responsible for {}.", r.groupId, groupId);
+            getSender().tell(DevicesTracked.rejected(r.requestId, r.deviceIds.length), getSelf());
+            return;
+        }
+        byte[] outcomes = new byte[r.deviceIds.length];
+        int[] handles = new int[r.deviceIds.length];
+        String[] created = new String[r.deviceIds.length];
+        int createdCount = 0;
+        for (int i = 0; i < r.deviceIds.length; i++){
+            String deviceId = r.deviceIds[i];
+            if (!isValidDeviceId(deviceId)){
+                outcomes[i] = DeviceManager.DevicesRegistered.REJECTED;
+                handles[i] = -1;
+            }else if (isRegistered(deviceId)){
+                outcomes[i] = DeviceManager.DevicesRegistered.ALREADY_PRESENT;
+                handles[i] = handleFor(deviceId);
+            }else {
+                createDeviceActor(deviceId, "device-" + deviceId);
+                outcomes[i] = DeviceManager.DevicesRegistered.REGISTERED;
+                handles[i] = deviceHandles.handleOf(deviceId);
+                created[createdCount++] = deviceId;
+                if (snapshotEnabled()){
+                    latestReadings.put(deviceId, new TemperatureNotAvailable());
+                    snapshotDirty = true;
+                }
+            }
+        }
+        if (createdCount > 0 && lifecycleLog.sample()){
+            log.info("Created {} device actors", createdCount);
+        }
+        DevicesTracked ack = new DevicesTracked(r.requestId, outcomes, handles, epoch);
+        if (settings.journal != null && createdCount > 0){
+            settings.journal.tell(new DeviceJournal.Append(
+                    new DeviceJournal.TrackedBatch(groupId, Arrays.copyOf(created, createdCount)),
+                    getSender(), ack, getSelf(), DevicesTracked.rejected(r.requestId, r.deviceIds.length)), getSelf());
+        }else {
+            getSender().tell(ack, getSelf());
+        }
+    }
+
+    private void onRecoverDevices(RecoverDevices r){
+        log.info("Recovering {} devices", (r.base == null ? 0 : r.base.size()) + r.deviceIds.length);
+        if (r.epoch != 0L){
+            epoch = r.epoch;
+        }
+        recoveredBase = r.base;
+        knownReadings = null;
+        if (settings.aggregates && r.base != null){
+            for (int i = 0; i < r.base.size(); i++){
+                if (r.base.hasReading(i)){
+                    aggregateReading(r.base.deviceId(i), r.base.value(i));
+                }
+            }
+        }
+        if (snapshotEnabled() && r.base != null){
+            for (int i = 0; i < r.base.size(); i++){
+                latestReadings.put(r.base.deviceId(i),
+                        r.base.hasReading(i) ? new Temperature(r.base.value(i)) : new TemperatureNotAvailable());
+            }
+            snapshotDirty = true;
+        }
+        // Devices changed after the snapshot are few, their actors are created right away
+        for (int i = 0; i < r.deviceIds.length; i++){
+            int baseIndex = r.base == null ? -1 : r.base.indexOf(r.deviceIds[i]);
+            if (baseIndex >= 0){
+                materialized.set(baseIndex);
+                knownReadings = null;
+            }
+            ActorRef deviceActor = createDeviceActor(r.deviceIds[i], "device-" + r.deviceIds[i]);
+            if (r.hasReading(i)){
+                deviceActor.tell(new Device.RestoreReading(r.timestamps[i], r.values[i]), getSelf());
+                if (settings.aggregates){
+                    aggregateReading(r.deviceIds[i], r.values[i]);
+                }
+            }else if (baseIndex >= 0 && r.base.hasReading(baseIndex)){
+                deviceActor.tell(new Device.RestoreReading(r.base.timestamp(baseIndex), r.base.value(baseIndex)), getSelf());
+            }
+            if (snapshotEnabled()){
+                if (r.hasReading(i)){
+                    latestReadings.put(r.deviceIds[i], new Temperature(r.values[i]));
+                }else {
+                    latestReadings.putIfAbsent(r.deviceIds[i], new TemperatureNotAvailable());
+                }
+                snapshotDirty = true;
+            }
+        }
+    }
+
+    // Devices missing here are registered, every reading is merged by its device, see Device.MergeReading
+    private void onMergeDevices(MergeDevices m){
+        List<String> created = new ArrayList<>();
+        for (int i = 0; i < m.deviceIds.length; i++){
+            String deviceId = m.deviceIds[i];
+            ActorRef deviceActor = deviceActorFor(deviceId);
+            if (deviceActor == null){
+                deviceActor = createDeviceActor(deviceId, "device-" + deviceId);
+                created.add(deviceId);
+                if (snapshotEnabled()){
+                    latestReadings.put(deviceId, new TemperatureNotAvailable());
+                    snapshotDirty = true;
+                }
+            }
+            if (m.hasReadings[i]){
+                deviceActor.tell(new Device.MergeReading(m.timestamps[i], m.values[i]), getSelf());
+            }
+        }
+        if (settings.journal != null && !created.isEmpty()){
+            settings.journal.tell(new DeviceJournal.Append(new DeviceJournal.TrackedBatch(
+                    groupId, created.toArray(new String[0])), null, null, getSelf()), getSelf());
+        }
+        log.info("Merged {} handed off devices into group {}, {} of them new", m.deviceIds.length, groupId, created.size());
+    }
+
+    // Index of a device in the recovered snapshot whose actor has not been created yet, or -1.
+    private int unmaterializedIndex(String deviceId){
+        if (recoveredBase == null){
+            return -1;
+        }
+        int index = recoveredBase.indexOf(deviceId);
+        return index >= 0 && !materialized.get(index) ? index : -1;
+    }
+
+    private ActorRef createDeviceActor(String deviceId, String name){
+        ActorRef deviceActor = getContext().actorOf(
+                Device.props(groupId, deviceId, settings),
+                name);
+        getContext().watch(deviceActor);
+        actorToDeviceId = actorToDeviceId.plus(deviceActor, deviceId);
+        registeredDevices = registeredDevices.plus(deviceId, Boolean.TRUE);
+        setLiveActor(deviceId, deviceActor);
+        if (!subscriptions.isEmpty() && !settings.devicesPublish()){
+            deviceActor.tell(new Device.PublishReadings(true), getSelf());
+        }
+        return deviceActor;
+    }
+
+    private ActorRef liveActorOf(String deviceId){
+        int handle = deviceHandles.handleOf(deviceId);
+        return handle < 0 ? null : devicesByHandle[handle];
+    }
+
+    // The handle of the device, assigned if it has none yet
+    private int handleFor(String deviceId){
+        int handle = deviceHandles.intern(deviceId);
+        if (handle >= devicesByHandle.length){
+            devicesByHandle = Arrays.copyOf(devicesByHandle, devicesByHandle.length * 2);
+        }
+        return handle;
+    }
+
+    private void setLiveActor(String deviceId, ActorRef deviceActor){
+        int handle = handleFor(deviceId);
+        devicesByHandle[handle] = deviceActor;
+    }
+
+    private void clearLiveActor(String deviceId){
+        int handle = deviceId == null ? -1 : deviceHandles.handleOf(deviceId);
+        if (handle >= 0){
+            devicesByHandle[handle] = null;
+        }
+    }
+
+    // As deviceActorFor, for a handle from DeviceRegistered
+    private ActorRef deviceActorFor(int handle){
+        if (!deviceHandles.contains(handle)){
+            return null;
+        }
+        ActorRef deviceActor = devicesByHandle[handle];
+        return deviceActor != null ? deviceActor : deviceActorFor(deviceHandles.idOf(handle));
+    }
+
+    // Returns the live actor of a registered device, creating it if it was passivated or is only in the
+    // recovered snapshot, or null if unknown.
+    private ActorRef deviceActorFor(String deviceId){
+        ActorRef deviceActor = liveActorOf(deviceId);
+        if (deviceActor != null){
+            return deviceActor;
+        }
+        PassivatedDevice state = passivatedDevices.remove(deviceId);
+        if (state == null){
+            int baseIndex = unmaterializedIndex(deviceId);
+            if (baseIndex < 0){
+                return null;
+            }
+            materialized.set(baseIndex);
+            knownReadings = null;
+            deviceActor = createDeviceActor(deviceId, "device-" + deviceId);
+            if (recoveredBase.hasReading(baseIndex)){
+                deviceActor.tell(new Device.RestoreReading(
+                        recoveredBase.timestamp(baseIndex), recoveredBase.value(baseIndex)), getSelf());
+            }
+            return deviceActor;
+        }
+        knownReadings = null;
+        if (lifecycleLog.sample()){
+            log.info("Re-creating passivated device actor for {}", deviceId);
+        }
+        deviceActor = createDeviceActor(deviceId, "device-" + deviceId + "-" + (++nextIncarnation));
+        if (state.hasReading){
+            deviceActor.tell(new Device.RestoreReading(state.timestamp, state.value), getSelf());
+        }
+        return deviceActor;
+    }
+
+    private void onPassivate(Device.Passivate p){
+        ActorRef deviceActor = getSender();
+        PassivatedDevice state = new PassivatedDevice(p.hasReading, p.timestamp, p.value);
+        if (actorToDeviceId.containsKey(deviceActor)){
+            actorToDeviceId = actorToDeviceId.minus(deviceActor);
+            clearLiveActor(p.deviceId);
+            passivatingActors.put(deviceActor, p.deviceId);
+            passivatedDevices.put(p.deviceId, state);
+            knownReadings = null;
+            // PoisonPill lets the device drain messages already in its mailbox before stopping
+            deviceActor.tell(PoisonPill.getInstance(), getSelf());
+        }else if (passivatingActors.containsKey(deviceActor)){
+            // The device recorded a reading while stopping, keep the newer state
+            if (passivatedDevices.containsKey(p.deviceId)){
+                passivatedDevices.put(p.deviceId, state);
+                knownReadings = null;
+            }else if (p.hasReading && liveActorOf(p.deviceId) != null){
+                liveActorOf(p.deviceId).tell(new Device.RestoreReading(p.timestamp, p.value), getSelf());
+            }
+        }
+    }
+
+    private void onDeviceEnvelope(DeviceEnvelope envelope){
+        PassivatedDevice state = passivatedDevices.get(envelope.deviceId);
+        if (state != null && envelope.message instanceof Device.ReadTemperature){
+            // Plain reads of a passivated device are served from its handed-over state
+            long requestId = ((Device.ReadTemperature) envelope.message).requestId;
+            Optional<Double> value = state.hasReading ? Optional.of(state.value) : Optional.empty();
+            getSender().tell(new Device.RespondTemperature(requestId, value), getSelf());
+            return;
+        }
+        if (envelope.message instanceof Device.ReadTemperature){
+            int baseIndex = unmaterializedIndex(envelope.deviceId);
+            if (baseIndex >= 0){
+                long requestId = ((Device.ReadTemperature) envelope.message).requestId;
+                Optional<Double> value = recoveredBase.hasReading(baseIndex)
+                        ? Optional.of(recoveredBase.value(baseIndex)) : Optional.empty();
+                getSender().tell(new Device.RespondTemperature(requestId, value), getSelf());
+                return;
+            }
+        }
+        ActorRef deviceActor = deviceActorFor(envelope.deviceId);
+        if (deviceActor != null){
+            deviceActor.forward(envelope.message, getContext());
+        }else {
+            log.warning("Dropping message for unknown device {}", envelope.deviceId);
+        }
+    }
+
+    private void onRecordTemperatureBatch(DeviceManager.RecordTemperatureBatch batch){
+        if (!this.groupId.equals(batch.groupId)){
+            log.warning("Ignoring temperature batch for {}, This actor is responsible for {}.", batch.groupId, this.groupId);
+            getSender().tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
+            return;
+        }
+        ActorRef[] targets = new ActorRef[batch.size()];
+        for (int i = 0; i < batch.size(); i++){
+            targets[i] = deviceActorFor(batch.deviceIds[i]);
+        }
+        recordBatch(batch.requestId, targets, batch.timestamps, batch.values,
+                (unknown, rejected) -> DeviceJournal.Recorded.accepted(batch, unknown, rejected));
+    }
+
+    private void onRecordTemperatureHandleBatch(DeviceManager.RecordTemperatureHandleBatch batch){
+        if (batch.epoch != epoch){
+            log.warning("Rejecting temperature batch {} with handles of an earlier incarnation of group {}",
+                    batch.requestId, groupId);
+            getSender().tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
+            return;
+        }
+        ActorRef[] targets = new ActorRef[batch.size()];
+        for (int i = 0; i < batch.size(); i++){
+            targets[i] = deviceActorFor(batch.deviceHandles[i]);
+        }
+        recordBatch(batch.requestId, targets, batch.timestamps, batch.values, (unknown, rejected) -> {
+            String[] deviceIds = new String[batch.size()];
+            for (int i = 0; i < batch.size(); i++){
+                deviceIds[i] = unknown[i] ? null : deviceHandles.idOf(batch.deviceHandles[i]);
+            }
+            return DeviceJournal.Recorded.accepted(groupId, deviceIds, batch.timestamps, batch.values, unknown, rejected);
+        });
+    }
+
+    // Sends the readings to their devices, targets[i] being null for readings of unknown devices. The journal
+    // event is only built when there is a journal.
+    private void recordBatch(long requestId, ActorRef[] targets, long[] timestamps, double[] values,
+                             BiFunction<boolean[], Integer, DeviceJournal.Recorded> journalEvent){
+        // First pass counts readings per device, second pass packs them so every device receives a single message.
+        Map<ActorRef, int[]> countPerDevice = new HashMap<>();
+        int rejected = 0;
+        for (ActorRef deviceActor : targets){
+            if (deviceActor == null){
+                rejected++;
+                continue;
+            }
+            countPerDevice.computeIfAbsent(deviceActor, a -> new int[1])[0]++;
+        }
+        long batchId = nextBatchId++;
+        Map<ActorRef, Device.RecordTemperatures> perDevice = new HashMap<>(countPerDevice.size() * 4 / 3 + 1);
+        countPerDevice.forEach((deviceActor, count) ->
+                perDevice.put(deviceActor, new Device.RecordTemperatures(batchId, new long[count[0]], new double[count[0]])));
+        for (int i = 0; i < targets.length; i++){
+            if (targets[i] == null){
+                continue;
+            }
+            int slot = --countPerDevice.get(targets[i])[0];
+            Device.RecordTemperatures readings = perDevice.get(targets[i]);
+            int index = readings.values.length - 1 - slot;
+            readings.timestamps[index] = timestamps[i];
+            readings.values[index] = values[i];
+        }
+        perDevice.forEach((deviceActor, readings) -> deviceActor.tell(readings, getSelf()));
+        DeviceManager.TemperatureBatchRecorded ack =
+                new DeviceManager.TemperatureBatchRecorded(requestId, targets.length - rejected, rejected);
+        PendingBatch pending = new PendingBatch(getSender(), ack, perDevice.keySet(), settings.journal != null);
+        if (settings.journal != null){
+            boolean[] unknown = new boolean[targets.length];
+            for (int i = 0; i < targets.length; i++){
+                unknown[i] = targets[i] == null;
+            }
+            settings.journal.tell(new DeviceJournal.Append(
+                    journalEvent.apply(unknown, rejected), getSelf(), new BatchPersisted(batchId, true), getSelf(),
+                    new BatchPersisted(batchId, false)), getSelf());
+        }
+        if (pending.isDone()){
+            pending.requester.tell(pending.ack, getSelf());
+        }else {
+            pending.timeout = getContext().getSystem().scheduler().scheduleOnce(BATCH_TIMEOUT, getSelf(),
+                    new BatchTimeout(batchId), getContext().dispatcher(), getSelf());
+            pendingBatches.put(batchId, pending);
+        }
+    }
+
+    private void onTemperaturesRecorded(Device.TemperaturesRecorded recorded){
+        PendingBatch pending = pendingBatches.get(recorded.batchId);
+        if (pending != null){
+            pending.awaitingDevices.remove(getSender());
+            completeBatchIfDone(recorded.batchId, pending);
+        }
+    }
+
+    private void onBatchPersisted(BatchPersisted persisted){
+        PendingBatch pending = pendingBatches.get(persisted.batchId);
+        if (pending != null){
+            pending.awaitingJournal = false;
+            if (!persisted.durable){
+                // The devices hold the readings, but none is durable
+                pending.ack = pending.rejection();
+            }
+            completeBatchIfDone(persisted.batchId, pending);
+        }
+    }
+
+    private void completeBatchIfDone(long batchId, PendingBatch pending){
+        if (pending.isDone()){
+            pendingBatches.remove(batchId);
+            pending.timeout.cancel();
+            pending.requester.tell(pending.ack, getSelf());
+            replyDrainedIfIdle();
+        }
+    }
+
+    // A device's acknowledgement or the journal's can be lost, e.g. to a bounded mailbox
+    private void onBatchTimeout(BatchTimeout t){
+        PendingBatch pending = pendingBatches.remove(t.batchId);
+        if (pending == null){
+            return;
+        }
+        log.warning("Batch {} of group {} timed out waiting on {} devices{}, rejecting it",
+                pending.ack.requestId, groupId, pending.awaitingDevices.size(),
+                pending.awaitingJournal ? " and the journal" : "");
+        pending.requester.tell(pending.rejection(), getSelf());
+        replyDrainedIfIdle();
+    }
+
+    private void onDrainBatches(DrainBatches r){
+        drainRequests.add(new PendingRequest(r.requestId, getSender()));
+        replyDrainedIfIdle();
+    }
+
+    private void replyDrainedIfIdle(){
+        if (pendingBatches.isEmpty() && !drainRequests.isEmpty()){
+            for (PendingRequest drain : drainRequests){
+                drain.requester.tell(new BatchesDrained(drain.requestId), getSelf());
+            }
+            drainRequests.clear();
+        }
+    }
+
     private void onDeviceList(RequestDeviceList r){
-        getSender().tell(new ReplyDeviceList(r.requestId, deviceIdToActor.keySet()),getSelf());
+        if (recoveredBase != null && !recoveredBaseRegistered){
+            // Done once, on the first listing rather than at recovery, which stays free of per-device work
+            for (int i = materialized.nextClearBit(0); i < recoveredBase.size(); i = materialized.nextClearBit(i + 1)){
+                registeredDevices = registeredDevices.plus(recoveredBase.deviceId(i), Boolean.TRUE);
+            }
+            recoveredBaseRegistered = true;
+        }
+        getSender().tell(new ReplyDeviceList(r.requestId, registeredDevices.keySet()),getSelf());
+    }
+
+    private void onGroupState(RequestGroupState r){
+        List<Integer> withoutHandle = new ArrayList<>();
+        if (recoveredBase != null){
+            for (int i = materialized.nextClearBit(0); i < recoveredBase.size(); i = materialized.nextClearBit(i + 1)){
+                if (deviceHandles.handleOf(recoveredBase.deviceId(i)) < 0){
+                    withoutHandle.add(i);
+                }
+            }
+        }
+        long collectionId = nextGroupStateId++;
+        PendingGroupState pending = new PendingGroupState(getSender(),
+                new GroupState(r.requestId, deviceHandles.size() + withoutHandle.size(), epoch));
+        GroupState state = pending.state;
+        for (int i = 0; i < deviceHandles.size(); i++){
+            String deviceId = deviceHandles.idOf(i);
+            state.deviceIds[i] = deviceId;
+            ActorRef deviceActor = liveActorOf(deviceId);
+            if (deviceActor != null){
+                pending.awaitingDevices.put(deviceActor, i);
+                deviceActor.tell(new Device.ReadLastReading(collectionId), getSelf());
+                continue;
+            }
+            PassivatedDevice passivated = passivatedDevices.get(deviceId);
+            int baseIndex = unmaterializedIndex(deviceId);
+            if (passivated != null && passivated.hasReading){
+                state.setReading(i, passivated.timestamp, passivated.value);
+            }else if (baseIndex >= 0 && recoveredBase.hasReading(baseIndex)){
+                state.setReading(i, recoveredBase.timestamp(baseIndex), recoveredBase.value(baseIndex));
+            }
+        }
+        for (int j = 0; j < withoutHandle.size(); j++){
+            int baseIndex = withoutHandle.get(j);
+            int i = deviceHandles.size() + j;
+            state.deviceIds[i] = recoveredBase.deviceId(baseIndex);
+            if (recoveredBase.hasReading(baseIndex)){
+                state.setReading(i, recoveredBase.timestamp(baseIndex), recoveredBase.value(baseIndex));
+            }
+        }
+        if (pending.awaitingDevices.isEmpty()){
+            getSender().tell(state, getSelf());
+        }else {
+            pending.timeout = getContext().getSystem().scheduler().scheduleOnce(settings.queryTimeout, getSelf(),
+                    new GroupStateTimeout(collectionId), getContext().dispatcher(), getSelf());
+            pendingGroupStates.put(collectionId, pending);
+        }
+    }
+
+    private void onLastReading(Device.RespondLastReading reading){
+        PendingGroupState pending = pendingGroupStates.get(reading.requestId);
+        Integer index = pending == null ? null : pending.awaitingDevices.remove(getSender());
+        if (index == null){
+            return;
+        }
+        if (reading.hasReading){
+            pending.state.setReading(index, reading.timestamp, reading.value);
+        }
+        completeGroupStateIfDone(reading.requestId, pending);
+    }
+
+    private void completeGroupStateIfDone(long collectionId, PendingGroupState pending){
+        if (pending.awaitingDevices.isEmpty()){
+            pendingGroupStates.remove(collectionId);
+            pending.timeout.cancel();
+            pending.requester.tell(pending.state, getSelf());
+        }
+    }
+
+    private void onGroupStateTimeout(GroupStateTimeout t){
+        PendingGroupState pending = pendingGroupStates.remove(t.collectionId);
+        if (pending != null){
+            log.warning("{} devices of group {} did not report their reading in time, handing them over without one",
+                    pending.awaitingDevices.size(), groupId);
+            pending.requester.tell(pending.state, getSelf());
+        }
+    }
+
+    private void startQueryManager(){
+        queryManager = getContext().actorOf(DeviceGroupQueryManager.props(settings), "queries");
+        getContext().watch(queryManager);
     }
 
     private void onTerminated(Terminated t){
         ActorRef deviceActor = t.getActor();
+        if (deviceActor.equals(queryManager)){
+            log.warning("Query manager of group {} stopped, starting a new one", groupId);
+            failCollection(new IllegalStateException("Query manager of group " + groupId + " stopped"));
+            startQueryManager();
+            return;
+        }
+        if (subscriptions.removeSubscriber(deviceActor)){
+            stopSubscriptionsIfIdle();
+            return;
+        }
+        if (!pendingGroupStates.isEmpty()){
+            // A device stopped for passivation hands its reading to the group instead
+            String passivating = passivatingActors.get(deviceActor);
+            PassivatedDevice passivated = passivating == null ? null : passivatedDevices.get(passivating);
+            new ArrayList<>(pendingGroupStates.entrySet()).forEach(e -> {
+                Integer index = e.getValue().awaitingDevices.remove(deviceActor);
+                if (index != null){
+                    if (passivated != null && passivated.hasReading){
+                        e.getValue().state.setReading(index, passivated.timestamp, passivated.value);
+                    }
+                    completeGroupStateIfDone(e.getKey(), e.getValue());
+                }
+            });
+        }
+        if (!pendingBatches.isEmpty()){
+            // A stopped device will never acknowledge its part of a batch
+            new ArrayList<>(pendingBatches.entrySet()).forEach(e -> {
+                e.getValue().awaitingDevices.remove(deviceActor);
+                completeBatchIfDone(e.getKey(), e.getValue());
+            });
+        }
+        String passivatedId = passivatingActors.remove(deviceActor);
+        if (passivatedId != null){
+            if (lifecycleLog.sample()){
+                log.info("Device actor for {} has been passivated", passivatedId);
+            }
+            return;
+        }
         String deviceId = actorToDeviceId.get(deviceActor);
-        log.info("Device actor for {} has been terminated", deviceId);
-        actorToDeviceId.remove(deviceActor);
-        deviceIdToActor.remove(deviceId);
+        if (lifecycleLog.sample()){
+            log.info("Device actor for {} has been terminated", deviceId);
+        }
+        actorToDeviceId = actorToDeviceId.minus(deviceActor);
+        if (deviceId != null){
+            registeredDevices = registeredDevices.minus(deviceId);
+        }
+        clearLiveActor(deviceId);
+        if (latestReadings.remove(deviceId) != null){
+            snapshotDirty = true;
+        }
+        int handle = deviceId == null ? -1 : deviceHandles.handleOf(deviceId);
+        if (handle >= 0 && aggregated.get(handle)){
+            aggregated.clear(handle);
+            aggregate.remove(aggregatedValues[handle]);
+        }
+    }
+
+    private void onSubscribe(SubscribeTemperatures subscribe){
+        if (subscriptions.isEmpty()){
+            setDevicesPublishing(true);
+            subscriptionTimer = getContext().getSystem().scheduler().schedule(
+                    TemperatureSubscriptions.TICK, TemperatureSubscriptions.TICK,
+                    getSelf(), SubscriptionTick.INSTANCE, getContext().dispatcher(), getSelf());
+        }
+        if (subscriptions.add(subscribe, getSender())){
+            getContext().watch(getSender());
+        }
+        getSender().tell(new TemperaturesSubscribed(subscribe.requestId), getSelf());
+    }
+
+    private void onUnsubscribe(UnsubscribeTemperatures unsubscribe){
+        if (subscriptions.remove(unsubscribe.requestId, getSender())){
+            getContext().unwatch(getSender());
+        }
+        stopSubscriptionsIfIdle();
+    }
+
+    private void stopSubscriptionsIfIdle(){
+        if (subscriptions.isEmpty() && subscriptionTimer != null){
+            subscriptionTimer.cancel();
+            subscriptionTimer = null;
+            setDevicesPublishing(false);
+        }
+    }
+
+    private void setDevicesPublishing(boolean enabled){
+        if (settings.devicesPublish()){
+            // Devices always publish for snapshots and aggregates
+            return;
+        }
+        Device.PublishReadings publish = new Device.PublishReadings(enabled);
+        for (ActorRef deviceActor : actorToDeviceId.keySet()){
+            deviceActor.tell(publish, getSelf());
+        }
+    }
+
+    private void onTemperatureChanged(Device.TemperatureChanged changed){
+        subscriptions.offer(changed.deviceId, changed.value);
+        if (latestReadings.containsKey(changed.deviceId)){
+            latestReadings.put(changed.deviceId, new Temperature(changed.value));
+            snapshotDirty = true;
+        }
+        if (settings.aggregates){
+            aggregateReading(changed.deviceId, changed.value);
+        }
+    }
+
+    private void aggregateReading(String deviceId, double value){
+        int handle = handleFor(deviceId);
+        if (handle >= aggregatedValues.length){
+            aggregatedValues = Arrays.copyOf(aggregatedValues, Math.max(handle + 1, aggregatedValues.length * 2));
+        }
+        if (aggregated.get(handle)){
+            aggregate.replace(aggregatedValues[handle], value);
+        }else {
+            aggregated.set(handle);
+            aggregate.add(value);
+        }
+        aggregatedValues[handle] = value;
+    }
+
+    private void onGroupStats(RequestGroupStats r){
+        if (!settings.aggregates){
+            log.warning("Aggregates are disabled for group {}, answering empty statistics", groupId);
+        }
+        getSender().tell(new RespondGroupStats(r.requestId, aggregate.stats()), getSelf());
+    }
+
+    private void onStatsTick(StatsTick tick){
+        if (aggregate.takeChanged()){
+            getContext().getParent().tell(new GroupStatsUpdated(groupId, aggregate.stats()), getSelf());
+        }
     }
 
     private void onAllTemperatures(RequestAllTemperatures r){
-        getContext().actorOf(DeviceGroupQuery.props(
-                actorToDeviceId, r.requestId, getSender(), new FiniteDuration(3, TimeUnit.SECONDS)
-        ));
+        if (snapshotEnabled() && !r.requireFresh){
+            TemperatureReadings readings = currentSnapshot();
+            getSender().tell(new RespondAllTemperatures(r.requestId, readings), getSelf());
+            if (r.streaming){
+                getSender().tell(new AllTemperaturesCompleted(r.requestId, readings.size()), getSelf());
+            }
+            return;
+        }
+        if (r.deadline != null || r.streaming){
+            // A query of its own, answering the requester directly
+            startQuery(r.requestId, getSender(), r.deadline, r.streaming);
+            return;
+        }
+        pendingRequests.add(new PendingRequest(r.requestId, getSender()));
+        if (inFlightCollectionId < 0){
+            inFlightCollectionId = nextCollectionId++;
+            startQuery(inFlightCollectionId, getSelf(), null, false);
+        }
+    }
+
+    // A null timeout leaves it to the query manager
+    private void startQuery(long requestId, ActorRef requester, FiniteDuration timeout, boolean streaming){
+        queryManager.tell(new DeviceGroupQueryManager.StartQuery(
+                actorToDeviceId, knownReadings(), requestId, requester, timeout, streaming), getSelf());
+    }
+
+    private void onCollectionCompleted(RespondAllTemperatures collected){
+        if (collected.requestId != inFlightCollectionId){
+            log.warning("Ignoring result of unknown collection {}", collected.requestId);
+            return;
+        }
+        // Readings are immutable, all requesters share them
+        for (PendingRequest pending : pendingRequests){
+            pending.requester.tell(new RespondAllTemperatures(pending.requestId, collected.readings), getSelf());
+        }
+        pendingRequests.clear();
+        inFlightCollectionId = -1L;
+    }
+
+    // The query manager restarted or stopped and lost the collection in flight, so the next request starts another
+    private void failCollection(Throwable reason){
+        for (PendingRequest pending : pendingRequests){
+            pending.requester.tell(new Status.Failure(reason), getSelf());
+        }
+        pendingRequests.clear();
+        inFlightCollectionId = -1L;
+    }
+
+    // Readings of devices without a live actor: passivated ones and those not yet materialized from the snapshot.
+    // Built once and shared by the queries until one of those devices changes, as walking the snapshot pages
+    // on every query costs as much as the query itself for a large group.
+    private TemperatureReadings knownReadings(){
+        if (knownReadings == null){
+            knownReadings = buildKnownReadings();
+        }
+        return knownReadings;
+    }
+
+    private TemperatureReadings buildKnownReadings(){
+        int unmaterialized = recoveredBase == null ? 0 : recoveredBase.size() - materialized.cardinality();
+        if (passivatedDevices.isEmpty() && unmaterialized == 0){
+            return TemperatureReadings.EMPTY;
+        }
+        TemperatureReadings.Builder readings = new TemperatureReadings.Builder(passivatedDevices.size() + unmaterialized);
+        passivatedDevices.forEach((deviceId, state) -> readings.add(deviceId,
+                state.hasReading ? TemperatureReadings.TEMPERATURE : TemperatureReadings.TEMPERATURE_NOT_AVAILABLE, state.value));
+        if (unmaterialized > 0){
+            for (int i = materialized.nextClearBit(0); i < recoveredBase.size(); i = materialized.nextClearBit(i + 1)){
+                readings.add(recoveredBase.deviceId(i), recoveredBase.hasReading(i)
+                        ? TemperatureReadings.TEMPERATURE : TemperatureReadings.TEMPERATURE_NOT_AVAILABLE, recoveredBase.value(i));
+            }
+        }
+        return readings.build();
+    }
+
+    // Rebuilds the immutable snapshot only when readings changed and the current one exceeds the staleness bound,
+    // so frequent pollers share a single copy.
+    private TemperatureReadings currentSnapshot(){
+        long now = System.nanoTime();
+        if (snapshot == null || (snapshotDirty && now - snapshotTakenAt >= settings.snapshotStaleness.toNanos())){
+            snapshot = TemperatureReadings.of(latestReadings);
+            snapshotTakenAt = now;
+            snapshotDirty = false;
+        }
+        return snapshot;
     }
 
     @Override
     public Receive createReceive(){
         return receiveBuilder()
                 .match(DeviceManager.RequestTrackDevice.class, this::onTrackDevice)
+                .match(TrackDevices.class, this::onTrackDevices)
+                .match(DeviceManager.RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+                .match(DeviceManager.RecordTemperatureHandleBatch.class, this::onRecordTemperatureHandleBatch)
                 .match(RequestDeviceList.class, this::onDeviceList)
+                .match(RequestGroupState.class, this::onGroupState)
+                .match(Device.RespondLastReading.class, this::onLastReading)
+                .match(GroupStateTimeout.class, this::onGroupStateTimeout)
+                .match(DrainBatches.class, this::onDrainBatches)
+                .match(Device.TemperaturesRecorded.class, this::onTemperaturesRecorded)
+                .match(BatchPersisted.class, this::onBatchPersisted)
+                .match(BatchTimeout.class, this::onBatchTimeout)
+                .match(MergeDevices.class, this::onMergeDevices)
                 .match(Terminated.class, this::onTerminated)
                 .match(RequestAllTemperatures.class, this::onAllTemperatures)
+                .match(RespondAllTemperatures.class, this::onCollectionCompleted)
+                .match(Status.Failure.class, f -> getSender().equals(queryManager), f -> failCollection(f.cause()))
+                .match(Device.TemperatureChanged.class, this::onTemperatureChanged)
+                .match(Device.Passivate.class, this::onPassivate)
+                .match(DeviceEnvelope.class, this::onDeviceEnvelope)
+                .match(SubscribeTemperatures.class, this::onSubscribe)
+                .match(UnsubscribeTemperatures.class, this::onUnsubscribe)
+                .match(SubscriptionTick.class, tick -> subscriptions.flush(getSelf()))
+                .match(RecoverDevices.class, this::onRecoverDevices)
+                .match(RequestGroupStats.class, this::onGroupStats)
+                .match(StatsTick.class, this::onStatsTick)
                 .build();
     }
 }
@@ -5,26 +5,33 @@ import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import scala.concurrent.duration.FiniteDuration;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+// Queries any set of device actors, with one actor and one scheduled timeout per query. DeviceGroup does not use
+// it, it runs its queries in a DeviceGroupQueryManager. Kept for callers that query devices outside a group.
 public class DeviceGroupQuery extends AbstractActor {
     public static final class CollectionTimeout {}
 
+    static final class FlushChunk {
+        static final FlushChunk INSTANCE = new FlushChunk();
+    }
+
+    static final FiniteDuration STREAM_FLUSH_INTERVAL = new FiniteDuration(20, TimeUnit.MILLISECONDS);
+
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    private final Metrics metrics = Metrics.get(getContext().getSystem());
 
-    final Map<ActorRef, String > actorToDeviceId;
-    final long requestId;
-    final ActorRef requester;
+    final GroupQuery query;
+    final QuantileSketch latencies = new QuantileSketch(QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
 
     Cancellable queryTimeoutTimer;
+    Cancellable flushTimer = null;
 
-    public DeviceGroupQuery(Map<ActorRef, String > actorToDeviceId, long requestId, ActorRef requester, FiniteDuration timeout){
-        this.actorToDeviceId = actorToDeviceId;
-        this.requester = requester;
-        this.requestId = requestId;
+    public DeviceGroupQuery(Map<ActorRef, String > actorToDeviceId, Map<String, DeviceGroup.TemperatureReading> knownReadings,
+                            long requestId, ActorRef requester, FiniteDuration timeout, boolean streaming){
+        this.query = new GroupQuery(actorToDeviceId, knownReadings, requestId, requester, timeout, streaming);
 
         queryTimeoutTimer = getContext().getSystem().scheduler().scheduleOnce(
                 timeout, getSelf(), new CollectionTimeout(), getContext().dispatcher(), getSelf()
@@ -32,72 +39,76 @@ public class DeviceGroupQuery extends AbstractActor {
     }
 
     public static Props props(Map<ActorRef, String > actorToDeviceId, long requestId, ActorRef requester, FiniteDuration timeout) {
-        return Props.create(DeviceGroupQuery.class, actorToDeviceId, requestId, requester, timeout);
+        return props(actorToDeviceId, Collections.emptyMap(), requestId, requester, timeout);
+    }
+
+    public static Props props(Map<ActorRef, String > actorToDeviceId, Map<String, DeviceGroup.TemperatureReading> knownReadings,
+                              long requestId, ActorRef requester, FiniteDuration timeout) {
+        return props(actorToDeviceId, knownReadings, requestId, requester, timeout, false);
+    }
+
+    public static Props props(Map<ActorRef, String > actorToDeviceId, Map<String, DeviceGroup.TemperatureReading> knownReadings,
+                              long requestId, ActorRef requester, FiniteDuration timeout, boolean streaming) {
+        return Props.create(DeviceGroupQuery.class, actorToDeviceId, knownReadings, requestId, requester, timeout, streaming);
     }
 
     @Override
     public void preStart(){
-        for (ActorRef deviceActor : actorToDeviceId.keySet()){
+        for (ActorRef deviceActor : query.deviceActors){
             getContext().watch(deviceActor);
-            deviceActor.tell(new Device.ReadTemperature(0L), getSelf());
+        }
+        query.start(0L, getSelf());
+        if (query.streaming){
+            flushTimer = getContext().getSystem().scheduler().schedule(
+                    STREAM_FLUSH_INTERVAL, STREAM_FLUSH_INTERVAL, getSelf(), FlushChunk.INSTANCE, getContext().dispatcher(), getSelf());
+        }
+        if (query.isComplete()){
+            replyAndStop();
         }
     }
 
     @Override
     public void postStop(){
-
         queryTimeoutTimer.cancel();
+        if (flushTimer != null){
+            flushTimer.cancel();
+        }
     }
 
     @Override
     public Receive createReceive() {
-
-        return waitingForReplies(new HashMap<>(), actorToDeviceId.keySet());
-    }
-
-    public Receive waitingForReplies(
-            Map<String, DeviceGroup.TemperatureReading> repliesSoFar,
-            Set<ActorRef> stillWaiting){
         return receiveBuilder()
                 .match(Device.RespondTemperature.class, r ->{
-                    ActorRef deviceActor = getSender();
-                    DeviceGroup.TemperatureReading reading = r.value
-                            .map(v -> (DeviceGroup.TemperatureReading) new DeviceGroup.Temperature(v))
-                            .orElse(new DeviceGroup.TemperatureNotAvailable());
-                    receivedResponse(deviceActor, reading, stillWaiting, repliesSoFar);
+                    if (r.value.isPresent()){
+                        receivedResponse(getSender(), TemperatureReadings.TEMPERATURE, r.value.get());
+                    }else {
+                        receivedResponse(getSender(), TemperatureReadings.TEMPERATURE_NOT_AVAILABLE, 0.0);
+                    }
                 })
                 .match(Terminated.class, t -> {
-                    receivedResponse(t.getActor(), new DeviceGroup.DeviceNotAvailable(), stillWaiting, repliesSoFar);
+                    receivedResponse(t.getActor(), TemperatureReadings.DEVICE_NOT_AVAILABLE, 0.0);
                 })
                 .match(CollectionTimeout.class, t ->{
-                    Map<String, DeviceGroup.TemperatureReading> replies = new HashMap<>(repliesSoFar);
-                    for(ActorRef deviceActor: stillWaiting){
-                        String deviceId = actorToDeviceId.get(deviceActor);
-                        replies.put(deviceId, new DeviceGroup.DeviceTimeOut());
-                    }
-                    requester.tell(new DeviceGroup.RespondAllTemperatures(requestId, replies), getSelf());
-                    getContext().stop(getSelf());
+                    query.timeOut(latencies);
+                    replyAndStop();
                 })
+                .match(FlushChunk.class, f -> query.flush(getSelf()))
                 .build();
     }
 
-    public void receivedResponse(ActorRef deviceActor,
-                                 DeviceGroup.TemperatureReading reading,
-                                 Set<ActorRef> stillWaiting,
-                                 Map<String, DeviceGroup.TemperatureReading> repliesSoFar){
+    public void receivedResponse(ActorRef deviceActor, byte readingStatus, double value){
+        if (!query.received(deviceActor, readingStatus, value, latencies, getSelf())){
+            return;
+        }
         getContext().unwatch(deviceActor);
-        String deviceId = actorToDeviceId.get(deviceActor);
-
-        Set<ActorRef> newStillWaiting = new HashSet<>(stillWaiting);
-        newStillWaiting.remove(deviceActor);
-
-        Map<String, DeviceGroup.TemperatureReading> newRepliesSoFar = new HashMap<>(repliesSoFar);
-        newRepliesSoFar.put(deviceId, reading);
-        if(newStillWaiting.isEmpty()){
-            requester.tell(new DeviceGroup.RespondAllTemperatures(requestId, newRepliesSoFar), getSelf());
-            getContext().stop(getSelf());
-        }else{
-            getContext().become(waitingForReplies(newRepliesSoFar, newStillWaiting));
+        if (query.isComplete()){
+            replyAndStop();
         }
     }
+
+    private void replyAndStop(){
+        query.reply(getSelf());
+        metrics.queryCompleted(query);
+        getContext().stop(getSelf());
+    }
 }
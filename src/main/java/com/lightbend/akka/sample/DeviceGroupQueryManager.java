@@ -0,0 +1,216 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.actor.Terminated;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Runs every in-flight query of one DeviceGroup. Queries are plain GroupQuery state told apart by the requestId
+// of their ReadTemperature, and their timeouts sit on one TimerWheel driven by a single periodic tick that only
+// runs while queries are in flight, so tens of thousands of concurrent queries cost no actor and no scheduler
+// task each. Devices are watched once, not once per query. A restart loses every query, so their requesters get a
+// Status.Failure rather than waiting for an answer that will never come.
+public class DeviceGroupQueryManager extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    private final Metrics metrics = Metrics.get(getContext().getSystem());
+
+    static final FiniteDuration TICK = new FiniteDuration(10, TimeUnit.MILLISECONDS);
+    static final int WHEEL_SIZE = 512;
+
+    // Device reply latencies of recent queries in microseconds, the current window and the one before
+    static final long LATENCY_WINDOW = 10_000L;
+    static final long MIN_LATENCY_SAMPLES = 100L;
+
+    final FiniteDuration queryTimeout;
+    // When set, queries without a deadline time out adaptively, see timeoutFor()
+    final FiniteDuration adaptiveTimeoutFloor;
+
+    public DeviceGroupQueryManager(FiniteDuration queryTimeout, FiniteDuration adaptiveTimeoutFloor){
+        this.queryTimeout = queryTimeout;
+        this.adaptiveTimeoutFloor = adaptiveTimeoutFloor;
+    }
+
+    static Props props(DeviceGroupSettings settings){
+        Props props = Props.create(DeviceGroupQueryManager.class, settings.queryTimeout, settings.adaptiveTimeoutFloor);
+        return settings.queryDispatcher == null ? props : props.withDispatcher(settings.queryDispatcher);
+    }
+
+    // The devices come as an immutable snapshot of the group's membership, which the manager copies into the
+    // query, so starting a query costs the group O(1) however many devices it has.
+    static final class StartQuery {
+        final Map<ActorRef, String> actorToDeviceId;
+        final Map<String, DeviceGroup.TemperatureReading> knownReadings;
+        final long requestId;
+        final ActorRef requester;
+        final FiniteDuration timeout;
+        final boolean streaming;
+
+        StartQuery(Map<ActorRef, String> actorToDeviceId, Map<String, DeviceGroup.TemperatureReading> knownReadings,
+                   long requestId, ActorRef requester, FiniteDuration timeout, boolean streaming){
+            this.actorToDeviceId = actorToDeviceId;
+            this.knownReadings = knownReadings;
+            this.requestId = requestId;
+            this.requester = requester;
+            this.timeout = timeout;
+            this.streaming = streaming;
+        }
+    }
+
+    static final class Tick {
+        static final Tick INSTANCE = new Tick();
+    }
+
+    final Map<Long, GroupQuery> queries = new HashMap<>();
+    final List<GroupQuery> streamingQueries = new ArrayList<>();
+    final Set<ActorRef> watchedDevices = new HashSet<>();
+    final TimerWheel<GroupQuery> wheel = new TimerWheel<>(WHEEL_SIZE, TICK.toNanos(), System.nanoTime());
+    long nextReadId = 0L;
+    Cancellable ticker = null;
+
+    QuantileSketch replyLatencies = new QuantileSketch(QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    QuantileSketch previousReplyLatencies = null;
+
+    @Override
+    public void preRestart(Throwable reason, Optional<Object> message) throws Exception {
+        for (GroupQuery query : queries.values()){
+            query.requester.tell(new Status.Failure(reason), getSelf());
+        }
+        if (message.isPresent() && message.get() instanceof StartQuery){
+            ((StartQuery) message.get()).requester.tell(new Status.Failure(reason), getSelf());
+        }
+        super.preRestart(reason, message);
+    }
+
+    @Override
+    public void postStop(){
+        if (ticker != null){
+            ticker.cancel();
+        }
+    }
+
+    private void onStartQuery(StartQuery start){
+        GroupQuery query = new GroupQuery(start.actorToDeviceId, start.knownReadings,
+                start.requestId, start.requester, start.timeout, start.streaming);
+        if (query.timeout == null){
+            query.timeout = timeoutFor();
+        }
+        long readId = nextReadId++;
+        for (ActorRef deviceActor : query.deviceActors){
+            if (watchedDevices.add(deviceActor)){
+                getContext().watch(deviceActor);
+            }
+        }
+        query.start(readId, getSelf());
+        if (query.isComplete()){
+            query.reply(getSelf());
+            metrics.queryCompleted(query);
+            return;
+        }
+        queries.put(readId, query);
+        if (query.streaming){
+            streamingQueries.add(query);
+        }
+        if (ticker == null){
+            ticker = getContext().getSystem().scheduler().schedule(TICK, TICK, getSelf(), Tick.INSTANCE,
+                    getContext().dispatcher(), getSelf());
+        }
+        query.timer = wheel.schedule(query, query.timeout.toNanos(), System.nanoTime());
+    }
+
+    // Twice the p99.9 reply latency of recent queries within [floor, queryTimeout], so one slow device holds a
+    // reply up only about as long as normal replies take. Until enough replies were seen it is the queryTimeout.
+    private FiniteDuration timeoutFor(){
+        if (adaptiveTimeoutFloor == null){
+            return queryTimeout;
+        }
+        QuantileSketch window = replyLatencies.copy();
+        if (previousReplyLatencies != null){
+            window.merge(previousReplyLatencies);
+        }
+        if (window.count() < MIN_LATENCY_SAMPLES){
+            return queryTimeout;
+        }
+        long micros = (long) (2 * window.quantile(0.999));
+        long floor = adaptiveTimeoutFloor.toMicros();
+        long ceiling = queryTimeout.toMicros();
+        return new FiniteDuration(Math.max(floor, Math.min(ceiling, micros)), TimeUnit.MICROSECONDS);
+    }
+
+    private void onRespondTemperature(Device.RespondTemperature r){
+        GroupQuery query = queries.get(r.requestId);
+        if (query == null){
+            // Late reply to a query that already timed out
+            return;
+        }
+        boolean recorded = r.value.isPresent()
+                ? query.received(getSender(), TemperatureReadings.TEMPERATURE, r.value.get(), replyLatencies, getSelf())
+                : query.received(getSender(), TemperatureReadings.TEMPERATURE_NOT_AVAILABLE, 0.0, replyLatencies, getSelf());
+        if (recorded && query.isComplete()){
+            complete(query);
+        }
+    }
+
+    private void onTerminated(Terminated t){
+        ActorRef deviceActor = t.getActor();
+        watchedDevices.remove(deviceActor);
+        for (GroupQuery query : new ArrayList<>(queries.values())){
+            if (query.received(deviceActor, TemperatureReadings.DEVICE_NOT_AVAILABLE, 0.0, replyLatencies, getSelf())
+                    && query.isComplete()){
+                complete(query);
+            }
+        }
+    }
+
+    private void onTick(Tick tick){
+        wheel.expire(System.nanoTime(), query -> {
+            log.debug("Query {} timed out waiting for {} devices", query.requestId, query.stillWaiting);
+            query.timeOut(replyLatencies);
+            complete(query);
+        });
+        for (GroupQuery query : streamingQueries){
+            query.flush(getSelf());
+        }
+        if (queries.isEmpty() && ticker != null){
+            ticker.cancel();
+            ticker = null;
+        }
+    }
+
+    private void complete(GroupQuery query){
+        queries.remove(query.readId);
+        if (query.streaming){
+            streamingQueries.remove(query);
+        }
+        wheel.cancel(query.timer);
+        query.reply(getSelf());
+        metrics.queryCompleted(query);
+        if (replyLatencies.count() >= LATENCY_WINDOW){
+            previousReplyLatencies = replyLatencies;
+            replyLatencies = new QuantileSketch(QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        }
+    }
+
+    @Override
+    public Receive createReceive(){
+        return receiveBuilder()
+                .match(StartQuery.class, this::onStartQuery)
+                .match(Device.RespondTemperature.class, this::onRespondTemperature)
+                .match(Terminated.class, this::onTerminated)
+                .match(Tick.class, this::onTick)
+                .build();
+    }
+}
@@ -0,0 +1,134 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.ActorRef;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+
+// Immutable per-group tuning. Optional features are disabled while their duration is null.
+public final class DeviceGroupSettings {
+    public static final DeviceGroupSettings DEFAULT = new DeviceGroupSettings(
+            Device.DEFAULT_HISTORY_DEPTH, new FiniteDuration(3, TimeUnit.SECONDS), null, null, false, null,
+            null, null, null, false, null);
+
+    final int historyDepth;
+    final FiniteDuration queryTimeout;
+    final FiniteDuration snapshotStaleness;
+    final FiniteDuration passivationTimeout;
+    // Keep device state in a DeviceTableGroup instead of one Device actor per device
+    final boolean tableMode;
+    // DeviceJournal that registrations and readings are written to, set by a DeviceManager with persistence
+    final ActorRef journal;
+    // Dispatcher and mailbox config paths for Device actors, and the dispatcher of the query actors, the group's
+    // DeviceGroupQueryManager and the manager's FleetTemperatureQuery. The defaults are used while null
+    final String deviceDispatcher;
+    final String deviceMailbox;
+    final String queryDispatcher;
+    // Keep running statistics over the devices' latest readings, which has every device push its readings to the
+    // group and so doubles the messages per reading. Off unless RequestGroupStats or RequestFleetStats are used.
+    final boolean aggregates;
+    // When set, queries time out after twice the observed p99.9 device reply latency, but no sooner than this
+    // and no later than queryTimeout
+    final FiniteDuration adaptiveTimeoutFloor;
+
+    private DeviceGroupSettings(int historyDepth, FiniteDuration queryTimeout,
+                                FiniteDuration snapshotStaleness, FiniteDuration passivationTimeout, boolean tableMode,
+                                ActorRef journal, String deviceDispatcher, String deviceMailbox, String queryDispatcher,
+                                boolean aggregates, FiniteDuration adaptiveTimeoutFloor){
+        this.historyDepth = historyDepth;
+        this.queryTimeout = queryTimeout;
+        this.snapshotStaleness = snapshotStaleness;
+        this.passivationTimeout = passivationTimeout;
+        this.tableMode = tableMode;
+        this.journal = journal;
+        this.deviceDispatcher = deviceDispatcher;
+        this.deviceMailbox = deviceMailbox;
+        this.queryDispatcher = queryDispatcher;
+        this.aggregates = aggregates;
+        this.adaptiveTimeoutFloor = adaptiveTimeoutFloor;
+    }
+
+    // Reads a group section such as iot.group or one of the iot.profiles, empty paths keep the defaults.
+    public static DeviceGroupSettings fromConfig(Config group){
+        return DEFAULT
+                .withHistoryDepth(group.getInt("history-depth"))
+                .withQueryTimeout(FiniteDuration.create(group.getDuration("query-timeout").toNanos(), TimeUnit.NANOSECONDS))
+                .withDeviceDispatcher(emptyToNull(group.getString("device-dispatcher")))
+                .withDeviceMailbox(emptyToNull(group.getString("device-mailbox")))
+                .withQueryDispatcher(emptyToNull(group.getString("query-dispatcher")))
+                .withAggregates(group.getBoolean("aggregates"));
+    }
+
+    private static String emptyToNull(String path){
+        return path.isEmpty() ? null : path;
+    }
+
+    public DeviceGroupSettings withHistoryDepth(int historyDepth){
+        return new DeviceGroupSettings(historyDepth, queryTimeout, snapshotStaleness, passivationTimeout, tableMode, journal,
+                deviceDispatcher, deviceMailbox, queryDispatcher, aggregates, adaptiveTimeoutFloor);
+    }
+
+    public DeviceGroupSettings withQueryTimeout(FiniteDuration queryTimeout){
+        return new DeviceGroupSettings(historyDepth, queryTimeout, snapshotStaleness, passivationTimeout, tableMode, journal,
+                deviceDispatcher, deviceMailbox, queryDispatcher, aggregates, adaptiveTimeoutFloor);
+    }
+
+    public DeviceGroupSettings withSnapshotStaleness(FiniteDuration snapshotStaleness){
+        return new DeviceGroupSettings(historyDepth, queryTimeout, snapshotStaleness, passivationTimeout, tableMode, journal,
+                deviceDispatcher, deviceMailbox, queryDispatcher, aggregates, adaptiveTimeoutFloor);
+    }
+
+    public DeviceGroupSettings withPassivationTimeout(FiniteDuration passivationTimeout){
+        return new DeviceGroupSettings(historyDepth, queryTimeout, snapshotStaleness, passivationTimeout, tableMode, journal,
+                deviceDispatcher, deviceMailbox, queryDispatcher, aggregates, adaptiveTimeoutFloor);
+    }
+
+    public DeviceGroupSettings withTableMode(boolean tableMode){
+        return new DeviceGroupSettings(historyDepth, queryTimeout, snapshotStaleness, passivationTimeout, tableMode, journal,
+                deviceDispatcher, deviceMailbox, queryDispatcher, aggregates, adaptiveTimeoutFloor);
+    }
+
+    public DeviceGroupSettings withDeviceDispatcher(String deviceDispatcher){
+        return new DeviceGroupSettings(historyDepth, queryTimeout, snapshotStaleness, passivationTimeout, tableMode, journal,
+                deviceDispatcher, deviceMailbox, queryDispatcher, aggregates, adaptiveTimeoutFloor);
+    }
+
+    public DeviceGroupSettings withDeviceMailbox(String deviceMailbox){
+        return new DeviceGroupSettings(historyDepth, queryTimeout, snapshotStaleness, passivationTimeout, tableMode, journal,
+                deviceDispatcher, deviceMailbox, queryDispatcher, aggregates, adaptiveTimeoutFloor);
+    }
+
+    public DeviceGroupSettings withQueryDispatcher(String queryDispatcher){
+        return new DeviceGroupSettings(historyDepth, queryTimeout, snapshotStaleness, passivationTimeout, tableMode, journal,
+                deviceDispatcher, deviceMailbox, queryDispatcher, aggregates, adaptiveTimeoutFloor);
+    }
+
+    public DeviceGroupSettings withAggregates(boolean aggregates){
+        return new DeviceGroupSettings(historyDepth, queryTimeout, snapshotStaleness, passivationTimeout, tableMode, journal,
+                deviceDispatcher, deviceMailbox, queryDispatcher, aggregates, adaptiveTimeoutFloor);
+    }
+
+    public DeviceGroupSettings withAdaptiveQueryTimeout(FiniteDuration adaptiveTimeoutFloor){
+        return new DeviceGroupSettings(historyDepth, queryTimeout, snapshotStaleness, passivationTimeout, tableMode, journal,
+                deviceDispatcher, deviceMailbox, queryDispatcher, aggregates, adaptiveTimeoutFloor);
+    }
+
+    DeviceGroupSettings withJournal(ActorRef journal){
+        return new DeviceGroupSettings(historyDepth, queryTimeout, snapshotStaleness, passivationTimeout, tableMode, journal,
+                deviceDispatcher, deviceMailbox, queryDispatcher, aggregates, adaptiveTimeoutFloor);
+    }
+
+    boolean snapshotEnabled(){
+        return snapshotStaleness != null;
+    }
+
+    // Devices push every reading to their group when it keeps a snapshot or aggregates
+    boolean devicesPublish(){
+        return snapshotEnabled() || aggregates;
+    }
+
+    boolean passivationEnabled(){
+        return passivationTimeout != null;
+    }
+}
@@ -0,0 +1,237 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// Serializes all journal writes of a DeviceManager and commits them in groups: every Append is buffered,
+// and a single fsync covers all appends that were in the mailbox when the first one arrived.
+// Replies attached to an append are only sent after the fsync that made it durable. When a write fails the journal
+// restarts, and the appends it had not made durable get their failure reply instead, so no one waits for them.
+// The restarted instance continues on the same Journal, reloaded from disk without those appends.
+public class DeviceJournal extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final long DEFAULT_SNAPSHOT_EVERY = 1_000_000L;
+    public static final FiniteDuration DEFAULT_SNAPSHOT_INTERVAL = Duration.create(5, TimeUnit.MINUTES);
+
+    final Journal journal;
+    final long snapshotEvery;
+    // Also snapshots at this interval when anything was written, so a restart replays at most this much log
+    final FiniteDuration snapshotInterval;
+
+    public DeviceJournal(Journal journal, long snapshotEvery, FiniteDuration snapshotInterval){
+        this.journal = journal;
+        this.snapshotEvery = snapshotEvery;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    static Props props(Journal journal, long snapshotEvery){
+        return props(journal, snapshotEvery, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    static Props props(Journal journal, long snapshotEvery, FiniteDuration snapshotInterval){
+        return Props.create(DeviceJournal.class, journal, snapshotEvery, snapshotInterval);
+    }
+
+    public static final class Tracked {
+        final String groupId;
+        final String deviceId;
+
+        public Tracked(String groupId, String deviceId){
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+        }
+    }
+
+    public static final class Recorded {
+        final String groupId;
+        final String[] deviceIds;
+        final long[] timestamps;
+        final double[] values;
+
+        public Recorded(String groupId, String[] deviceIds, long[] timestamps, double[] values){
+            this.groupId = groupId;
+            this.deviceIds = deviceIds;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+
+        static Recorded single(String groupId, String deviceId, long timestamp, double value){
+            return new Recorded(groupId, new String[]{deviceId}, new long[]{timestamp}, new double[]{value});
+        }
+
+        // The readings of a batch whose device was known, rejected[i] marks the others.
+        static Recorded accepted(DeviceManager.RecordTemperatureBatch batch, boolean[] rejected, int rejectedCount){
+            return accepted(batch.groupId, batch.deviceIds, batch.timestamps, batch.values, rejected, rejectedCount);
+        }
+
+        static Recorded accepted(String groupId, String[] batchDeviceIds, long[] batchTimestamps, double[] batchValues,
+                                 boolean[] rejected, int rejectedCount){
+            if (rejectedCount == 0){
+                return new Recorded(groupId, batchDeviceIds, batchTimestamps, batchValues);
+            }
+            int accepted = batchDeviceIds.length - rejectedCount;
+            String[] deviceIds = new String[accepted];
+            long[] timestamps = new long[accepted];
+            double[] values = new double[accepted];
+            int j = 0;
+            for (int i = 0; i < batchDeviceIds.length; i++){
+                if (!rejected[i]){
+                    deviceIds[j] = batchDeviceIds[i];
+                    timestamps[j] = batchTimestamps[i];
+                    values[j] = batchValues[i];
+                    j++;
+                }
+            }
+            return new Recorded(groupId, deviceIds, timestamps, values);
+        }
+    }
+    // Devices registered together by DeviceManager.RequestTrackDevices
+    public static final class TrackedBatch {
+        final String groupId;
+        final String[] deviceIds;
+
+        public TrackedBatch(String groupId, String[] deviceIds){
+            this.groupId = groupId;
+            this.deviceIds = deviceIds;
+        }
+    }
+
+    public static final class Append {
+        final Object event;
+        final ActorRef replyTo;
+        final Object reply;
+        final ActorRef replyFrom;
+        // Sent instead of the reply when the append is lost to a failed write, a Status.Failure while null
+        final Object failure;
+
+        public Append(Object event, ActorRef replyTo, Object reply, ActorRef replyFrom){
+            this(event, replyTo, reply, replyFrom, null);
+        }
+
+        public Append(Object event, ActorRef replyTo, Object reply, ActorRef replyFrom, Object failure){
+            this.event = event;
+            this.replyTo = replyTo;
+            this.reply = reply;
+            this.replyFrom = replyFrom;
+            this.failure = failure;
+        }
+
+        void fail(Throwable reason){
+            replyTo.tell(failure != null ? failure : new Status.Failure(reason), replyFrom);
+        }
+    }
+
+    static final class Flush {
+        static final Flush INSTANCE = new Flush();
+    }
+
+    static final class SnapshotTick {
+        static final SnapshotTick INSTANCE = new SnapshotTick();
+    }
+
+    final List<Append> awaitingSync = new ArrayList<>();
+    boolean flushScheduled = false;
+    Cancellable snapshotTimer;
+
+    @Override
+    public void preStart(){
+        snapshotTimer = getContext().getSystem().scheduler().schedule(snapshotInterval, snapshotInterval,
+                getSelf(), SnapshotTick.INSTANCE, getContext().dispatcher(), getSelf());
+    }
+
+    @Override
+    public void preRestart(Throwable reason, Optional<Object> message) throws IOException {
+        log.error(reason, "Journal write failed, failing {} pending acknowledgements", awaitingSync.size());
+        for (Append append : awaitingSync){
+            append.fail(reason);
+        }
+        awaitingSync.clear();
+        // Failed while being written, so it never made it into awaitingSync
+        message.filter(m -> m instanceof Append && ((Append) m).reply != null)
+                .ifPresent(m -> ((Append) m).fail(reason));
+        snapshotTimer.cancel();
+        // Keep the journal open, but without the records the failed write left half written or not at all
+        journal.reload();
+    }
+
+    @Override
+    public void postStop() throws IOException {
+        snapshotTimer.cancel();
+        journal.close();
+    }
+
+    private void onAppend(Append append) throws IOException {
+        if (append.event instanceof Tracked){
+            Tracked t = (Tracked) append.event;
+            journal.appendTracked(t.groupId, t.deviceId);
+        }else if (append.event instanceof TrackedBatch){
+            TrackedBatch t = (TrackedBatch) append.event;
+            for (String deviceId : t.deviceIds){
+                journal.appendTracked(t.groupId, deviceId);
+            }
+        }else if (append.event instanceof Recorded){
+            Recorded r = (Recorded) append.event;
+            for (int i = 0; i < r.deviceIds.length; i++){
+                journal.appendRecorded(r.groupId, r.deviceIds[i], r.timestamps[i], r.values[i]);
+            }
+        }else {
+            log.warning("Ignoring unknown journal event {}", append.event);
+            return;
+        }
+        if (append.reply != null){
+            awaitingSync.add(append);
+        }
+        if (!flushScheduled){
+            // Lands behind every append already queued, so they all share one fsync
+            flushScheduled = true;
+            getSelf().tell(Flush.INSTANCE, getSelf());
+        }
+    }
+
+    private void onFlush(Flush f) throws IOException {
+        flushScheduled = false;
+        journal.sync();
+        for (Append append : awaitingSync){
+            append.replyTo.tell(append.reply, append.replyFrom);
+        }
+        awaitingSync.clear();
+        if (journal.eventsSinceSnapshot() >= snapshotEvery){
+            snapshot();
+        }
+    }
+
+    private void onSnapshotTick(SnapshotTick t) throws IOException {
+        if (journal.eventsSinceSnapshot() > 0){
+            snapshot();
+        }
+    }
+
+    private void snapshot() throws IOException {
+        log.info("Writing journal snapshot at sequence number {}", journal.lastSeq());
+        journal.snapshot();
+    }
+
+    @Override
+    public Receive createReceive(){
+        return receiveBuilder()
+                .match(Append.class, this::onAppend)
+                .match(Flush.class, this::onFlush)
+                .match(SnapshotTick.class, this::onSnapshotTick)
+                .build();
+    }
+}
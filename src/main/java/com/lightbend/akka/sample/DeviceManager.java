@@ -1,37 +1,233 @@
 package com.lightbend.akka.sample;
 
 import akka.actor.AbstractActor;
+import akka.actor.ActorPath;
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
 import akka.actor.Props;
 import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import scala.concurrent.duration.FiniteDuration;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class DeviceManager extends AbstractActor{
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
 
+    // A group that has not acknowledged its part of a RequestTrackDevices by then, because it stopped or its
+    // journal write was lost, has its devices rejected
+    static final FiniteDuration REGISTRATION_TIMEOUT = FiniteDuration.create(10, TimeUnit.SECONDS);
+
+    DeviceGroupSettings groupSettings;
+
+    // When set, registrations and readings are journaled here and recovered on start
+    final Path journalDirectory;
+
+    public DeviceManager(DeviceGroupSettings groupSettings, Path journalDirectory){
+        this.groupSettings = groupSettings;
+        this.journalDirectory = journalDirectory;
+    }
+
     public static Props props(){
-        return Props.create(DeviceManager.class);
+        return props(DeviceGroupSettings.DEFAULT);
+    }
+
+    public static Props props(DeviceGroupSettings groupSettings){
+        return props(groupSettings, null);
+    }
+
+    public static Props props(DeviceGroupSettings groupSettings, Path journalDirectory){
+        return Props.create(DeviceManager.class, groupSettings, journalDirectory);
     }
 
     public static final class RequestTrackDevice {
         public final String groupId;
         public final String deviceId;
+        // Filled in on the way to the device, which hands them out with DeviceRegistered
+        final int groupHandle;
+        final int deviceHandle;
+        final long epoch;
 
         public RequestTrackDevice(String groupId, String deviceId) {
+            this(groupId, deviceId, -1, -1, 0L);
+        }
+
+        RequestTrackDevice(String groupId, String deviceId, int groupHandle, int deviceHandle, long epoch) {
             this.groupId = groupId;
             this.deviceId = deviceId;
+            this.groupHandle = groupHandle;
+            this.deviceHandle = deviceHandle;
+            this.epoch = epoch;
+        }
+
+        RequestTrackDevice withGroupHandle(int groupHandle) {
+            return new RequestTrackDevice(groupId, deviceId, groupHandle, deviceHandle, epoch);
+        }
+
+        RequestTrackDevice withDeviceHandle(int deviceHandle, long epoch) {
+            return new RequestTrackDevice(groupId, deviceId, groupHandle, deviceHandle, epoch);
         }
     }
 
+    // The handles address the device in RecordTemperatureHandleBatch, -1 when not known, and are only valid with
+    // the epoch of the group incarnation that handed them out. A restarted manager or group hands out handles
+    // anew, its groups reject batches carrying an earlier epoch instead of recording them for other devices.
     public static final class DeviceRegistered {
+        public final int groupHandle;
+        public final int deviceHandle;
+        public final long epoch;
+
+        public DeviceRegistered() {
+            this(-1, -1, 0L);
+        }
+
+        public DeviceRegistered(int groupHandle, int deviceHandle, long epoch) {
+            this.groupHandle = groupHandle;
+            this.deviceHandle = deviceHandle;
+            this.epoch = epoch;
+        }
+    }
+
+    // Registers many devices at once, device i being deviceIds[i] of group groupIds[i]. Each group creates its
+    // devices in one pass and the whole request is acknowledged with a single DevicesRegistered.
+    public static final class RequestTrackDevices {
+        public final long requestId;
+        public final String[] groupIds;
+        public final String[] deviceIds;
+        // Filled in by a ShardedDeviceManager in front of the shards, null otherwise
+        final int[] groupHandles;
+
+        public RequestTrackDevices(long requestId, String[] groupIds, String[] deviceIds) {
+            this(requestId, groupIds, deviceIds, null);
+        }
+
+        RequestTrackDevices(long requestId, String[] groupIds, String[] deviceIds, int[] groupHandles) {
+            if (groupIds.length != deviceIds.length) {
+                throw new IllegalArgumentException("groupIds and deviceIds must have the same length");
+            }
+            this.requestId = requestId;
+            this.groupIds = groupIds;
+            this.deviceIds = deviceIds;
+            this.groupHandles = groupHandles;
+        }
+
+        public int size() {
+            return deviceIds.length;
+        }
+    }
+
+    // The outcome, handles and group epoch of every device of a RequestTrackDevices, aligned with its ids. Devices
+    // are rejected when an id is empty or cannot name an actor, their handles are -1 and their epoch 0.
+    public static final class DevicesRegistered {
+        public static final byte REGISTERED = 0;
+        public static final byte ALREADY_PRESENT = 1;
+        public static final byte REJECTED = 2;
+
+        public final long requestId;
+        public final byte[] outcomes;
+        public final int[] groupHandles;
+        public final int[] deviceHandles;
+        public final long[] epochs;
+
+        public DevicesRegistered(long requestId, byte[] outcomes, int[] groupHandles, int[] deviceHandles, long[] epochs) {
+            this.requestId = requestId;
+            this.outcomes = outcomes;
+            this.groupHandles = groupHandles;
+            this.deviceHandles = deviceHandles;
+            this.epochs = epochs;
+        }
+
+        public int count(byte outcome) {
+            int count = 0;
+            for (byte o : outcomes) {
+                if (o == outcome) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    public static final class RecordTemperatureBatch {
+        public final long requestId;
+        public final String groupId;
+        public final String[] deviceIds;
+        public final long[] timestamps;
+        public final double[] values;
+
+        public RecordTemperatureBatch(long requestId, String groupId, String[] deviceIds, long[] timestamps, double[] values) {
+            if (deviceIds.length != timestamps.length || deviceIds.length != values.length) {
+                throw new IllegalArgumentException("deviceIds, timestamps and values must have the same length");
+            }
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.deviceIds = deviceIds;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+
+        public int size() {
+            return deviceIds.length;
+        }
+    }
+
+    // A RecordTemperatureBatch addressed by the handles of DeviceRegistered instead of ids, which saves the id
+    // lookups on the way to the devices. Acknowledged the same way, readings for unknown handles are rejected.
+    public static final class RecordTemperatureHandleBatch {
+        public final long requestId;
+        public final int groupHandle;
+        // Of the group incarnation the handles came from, see DeviceRegistered
+        public final long epoch;
+        public final int[] deviceHandles;
+        public final long[] timestamps;
+        public final double[] values;
+
+        public RecordTemperatureHandleBatch(long requestId, int groupHandle, long epoch, int[] deviceHandles,
+                                            long[] timestamps, double[] values) {
+            if (deviceHandles.length != timestamps.length || deviceHandles.length != values.length) {
+                throw new IllegalArgumentException("deviceHandles, timestamps and values must have the same length");
+            }
+            this.requestId = requestId;
+            this.groupHandle = groupHandle;
+            this.epoch = epoch;
+            this.deviceHandles = deviceHandles;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+
+        public int size() {
+            return deviceHandles.length;
+        }
+    }
+
+    public static final class TemperatureBatchRecorded {
+        public final long requestId;
+        public final int recorded;
+        public final int rejected;
+
+        public TemperatureBatchRecorded(long requestId, int recorded, int rejected) {
+            this.requestId = requestId;
+            this.recorded = recorded;
+            this.rejected = rejected;
+        }
     }
 
-    public static final class RequestGroupList {
+    public static final class RequestGroupList implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         final long requestId;
 
         public RequestGroupList(long requestId){
@@ -39,7 +235,9 @@ public class DeviceManager extends AbstractActor{
         }
     }
 
-    public static final class ReplyGroupList {
+    public static final class ReplyGroupList implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         final long requestId;
         final Set<String> ids;
         final Set<ActorRef> actors;
@@ -51,12 +249,424 @@ public class DeviceManager extends AbstractActor{
         }
     }
 
+    // Fleet-wide statistics, merged from the aggregates that groups push while their readings change
+    public static final class RequestFleetStats implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+
+        public RequestFleetStats(long requestId){
+            this.requestId = requestId;
+        }
+    }
+
+    public static final class RespondFleetStats implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        // Number of groups whose statistics are included
+        final int groups;
+        final TemperatureStats stats;
+
+        public RespondFleetStats(long requestId, int groups, TemperatureStats stats){
+            this.requestId = requestId;
+            this.groups = groups;
+            this.stats = stats;
+        }
+    }
+
+    // Readings of the whole fleet, gathered from at most maxConcurrentGroups groups at a time on every DeviceManager.
+    // Only the groups and readings accepted by filter are kept. Groups without an answer by the deadline are reported
+    // missing, those of a shard or node that stops before answering are not known and so not reported.
+    public static final class RequestFleetTemperatures implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public static final int DEFAULT_MAX_CONCURRENT_GROUPS = 8;
+
+        final long requestId;
+        // All readings when null
+        final ReadingFilter filter;
+        // The groups' query timeout when null
+        final FiniteDuration deadline;
+        final int maxConcurrentGroups;
+
+        public RequestFleetTemperatures(long requestId){
+            this(requestId, ReadingFilter.ALL, null, DEFAULT_MAX_CONCURRENT_GROUPS);
+        }
+
+        public RequestFleetTemperatures(long requestId, ReadingFilter filter, FiniteDuration deadline,
+                                        int maxConcurrentGroups){
+            if (maxConcurrentGroups < 1){
+                throw new IllegalArgumentException("maxConcurrentGroups must be at least 1, was " + maxConcurrentGroups);
+            }
+            this.requestId = requestId;
+            this.filter = filter != null ? filter : ReadingFilter.ALL;
+            this.deadline = deadline;
+            this.maxConcurrentGroups = maxConcurrentGroups;
+        }
+    }
+
+    // Which groups and readings a RequestFleetTemperatures keeps, described as data so that it can be sent to the
+    // nodes of a PartitionedDeviceManager. Status as in TemperatureReadings, the value range only applies to
+    // TEMPERATURE readings.
+    public static final class ReadingFilter implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public static final ReadingFilter ALL = new ReadingFilter(null, Collections.emptySet(), -1,
+                Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+        // Only these groups, all when null
+        final Set<String> groupIds;
+        final Set<String> excludedGroupIds;
+        // Bit 1 << status for every status kept
+        final int statuses;
+        final double minValue;
+        final double maxValue;
+
+        private ReadingFilter(Set<String> groupIds, Set<String> excludedGroupIds, int statuses,
+                              double minValue, double maxValue){
+            this.groupIds = groupIds;
+            this.excludedGroupIds = excludedGroupIds;
+            this.statuses = statuses;
+            this.minValue = minValue;
+            this.maxValue = maxValue;
+        }
+
+        public ReadingFilter withGroups(String... groupIds){
+            return new ReadingFilter(new HashSet<>(Arrays.asList(groupIds)), excludedGroupIds, statuses,
+                    minValue, maxValue);
+        }
+
+        public ReadingFilter withoutGroups(String... excludedGroupIds){
+            return new ReadingFilter(groupIds, new HashSet<>(Arrays.asList(excludedGroupIds)), statuses,
+                    minValue, maxValue);
+        }
+
+        public ReadingFilter withStatuses(byte... statuses){
+            int mask = 0;
+            for (byte status : statuses){
+                mask |= 1 << status;
+            }
+            return new ReadingFilter(groupIds, excludedGroupIds, mask, minValue, maxValue);
+        }
+
+        // Both bounds inclusive
+        public ReadingFilter withValuesBetween(double minValue, double maxValue){
+            return new ReadingFilter(groupIds, excludedGroupIds, statuses, minValue, maxValue);
+        }
+
+        boolean acceptsGroup(String groupId){
+            return (groupIds == null || groupIds.contains(groupId)) && !excludedGroupIds.contains(groupId);
+        }
+
+        boolean test(String groupId, byte status, double value){
+            if ((statuses & (1 << status)) == 0 || !acceptsGroup(groupId)){
+                return false;
+            }
+            return status != TemperatureReadings.TEMPERATURE || (value >= minValue && value <= maxValue);
+        }
+    }
+
+    // The kept readings of all answering groups in one set of columns, those of group g at [groupStart(g), groupEnd(g))
+    public static final class RespondFleetTemperatures implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        final String[] groupIds;
+        final int[] groupStarts;
+        final String[] deviceIds;
+        final byte[] status;
+        final double[] values;
+        // Groups that did not answer by the deadline or stopped before answering
+        final List<String> missingGroups;
+
+        RespondFleetTemperatures(long requestId, String[] groupIds, int[] groupStarts, String[] deviceIds, byte[] status,
+                                 double[] values, List<String> missingGroups){
+            this.requestId = requestId;
+            this.groupIds = groupIds;
+            this.groupStarts = groupStarts;
+            this.deviceIds = deviceIds;
+            this.status = status;
+            this.values = values;
+            this.missingGroups = missingGroups;
+        }
+
+        public int groupCount(){
+            return groupIds.length;
+        }
+
+        public String groupId(int g){
+            return groupIds[g];
+        }
+
+        public int groupStart(int g){
+            return groupStarts[g];
+        }
+
+        public int groupEnd(int g){
+            return g + 1 < groupStarts.length ? groupStarts[g + 1] : deviceIds.length;
+        }
+
+        public int size(){
+            return deviceIds.length;
+        }
+
+        public String deviceId(int i){
+            return deviceIds[i];
+        }
+
+        public byte status(int i){
+            return status[i];
+        }
+
+        public double value(int i){
+            return values[i];
+        }
+
+        public List<String> missingGroups(){
+            return missingGroups;
+        }
+    }
+
+    // Sent by a PartitionedDeviceManager to the node that holds a group the ring now places on target. The node
+    // lets the group acknowledge the batches it accepted, hands its devices and latest readings to target with
+    // AdoptGroup and only stops its own group actor once target confirms, answering GroupHandedOff to the sender.
+    // Sent again for a handoff still in progress, the AdoptGroup is sent again if it went to the same target.
+    public static final class HandOffGroup implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String groupId;
+        final int groupHandle;
+        final ActorRef target;
+
+        public HandOffGroup(String groupId, int groupHandle, ActorRef target){
+            this.groupId = groupId;
+            this.groupHandle = groupHandle;
+            this.target = target;
+        }
+    }
+
+    // The state of a handed off group, device ids in the order of their handles and its epoch so that handles stay
+    // valid. Answered with GroupHandedOff to the sender. A group already present on the target, started there when
+    // the handoff took longer than the rebalance, has the handed off devices merged into it.
+    public static final class AdoptGroup implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String groupId;
+        final int groupHandle;
+        final long epoch;
+        final String[] deviceIds;
+        final boolean[] hasReadings;
+        final long[] timestamps;
+        final double[] values;
+
+        public AdoptGroup(String groupId, int groupHandle, long epoch, String[] deviceIds, boolean[] hasReadings,
+                          long[] timestamps, double[] values){
+            this.groupId = groupId;
+            this.groupHandle = groupHandle;
+            this.epoch = epoch;
+            this.deviceIds = deviceIds;
+            this.hasReadings = hasReadings;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+    }
+
+    public static final class GroupHandedOff implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String groupId;
+
+        public GroupHandedOff(String groupId){
+            this.groupId = groupId;
+        }
+    }
+
+    // Positions of a request's devices that go to the same group or shard
+    static final class Positions {
+        int[] positions = new int[8];
+        int size = 0;
+
+        void add(int position){
+            if (size == positions.length){
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+
+        int[] toArray(){
+            return Arrays.copyOf(positions, size);
+        }
+
+        <T> T[] select(T[] all, T[] into){
+            for (int i = 0; i < size; i++){
+                into[i] = all[positions[i]];
+            }
+            return into;
+        }
+    }
+
+    // Gathers the partial acknowledgements of a RequestTrackDevices into the one sent to the requester
+    static final class PendingRegistration {
+        final long requestId;
+        final ActorRef requester;
+        final byte[] outcomes;
+        final int[] groupHandles;
+        final int[] deviceHandles;
+        final long[] epochs;
+        int stillWaiting = 0;
+
+        PendingRegistration(long requestId, ActorRef requester, int size){
+            this.requestId = requestId;
+            this.requester = requester;
+            this.outcomes = new byte[size];
+            this.groupHandles = new int[size];
+            this.deviceHandles = new int[size];
+            this.epochs = new long[size];
+            Arrays.fill(groupHandles, -1);
+            Arrays.fill(deviceHandles, -1);
+        }
+
+        void reject(int position){
+            outcomes[position] = DevicesRegistered.REJECTED;
+        }
+
+        // Copies a part's outcomes to the positions it was split from, groupHandles and epochs may be null when
+        // the part came from a single group with the given handle and epoch
+        void merge(int[] positions, byte[] partOutcomes, int[] partGroupHandles, int groupHandle, int[] partDeviceHandles,
+                   long[] partEpochs, long epoch){
+            for (int i = 0; i < positions.length; i++){
+                int p = positions[i];
+                outcomes[p] = partOutcomes[i];
+                deviceHandles[p] = partDeviceHandles[i];
+                boolean rejected = partOutcomes[i] == DevicesRegistered.REJECTED;
+                groupHandles[p] = rejected ? -1 : partGroupHandles != null ? partGroupHandles[i] : groupHandle;
+                epochs[p] = rejected ? 0L : partEpochs != null ? partEpochs[i] : epoch;
+            }
+            stillWaiting--;
+        }
+
+        DevicesRegistered reply(){
+            return new DevicesRegistered(requestId, outcomes, groupHandles, deviceHandles, epochs);
+        }
+    }
+
+    static final class GroupRegistration {
+        final PendingRegistration pending;
+        final int[] positions;
+        final int groupHandle;
+        final ActorRef groupActor;
+        final Cancellable timeout;
+
+        GroupRegistration(PendingRegistration pending, int[] positions, int groupHandle, ActorRef groupActor,
+                          Cancellable timeout){
+            this.pending = pending;
+            this.positions = positions;
+            this.groupHandle = groupHandle;
+            this.groupActor = groupActor;
+            this.timeout = timeout;
+        }
+
+        // Rejects the devices of this part, returns whether that completed the request
+        boolean reject(){
+            timeout.cancel();
+            for (int position : positions){
+                pending.reject(position);
+            }
+            return --pending.stillWaiting == 0;
+        }
+    }
+
+    static final class RegistrationTimeout {
+        final long registrationId;
+
+        RegistrationTimeout(long registrationId){
+            this.registrationId = registrationId;
+        }
+    }
+
+    final Map<Long, GroupRegistration> pendingRegistrations = new HashMap<>();
+    long nextRegistrationId = 0L;
+
+    // A group being handed off: drained, then complete once its state has arrived, then waiting for the target
+    // to confirm
+    static final class PendingHandOff {
+        final HandOffGroup handOff;
+        final ActorRef requester;
+        final ActorRef groupActor;
+        // Sent, kept to be sent again when the handoff is retried
+        AdoptGroup adopt = null;
+
+        PendingHandOff(HandOffGroup handOff, ActorRef requester, ActorRef groupActor){
+            this.handOff = handOff;
+            this.requester = requester;
+            this.groupActor = groupActor;
+        }
+    }
+
+    final Map<Long, PendingHandOff> pendingHandOffs = new HashMap<>();
+    final Map<String, PendingHandOff> awaitingAdoption = new HashMap<>();
+    long nextHandOffId = 0L;
+
     final Map<String , ActorRef> groupIdToActor = new HashMap<>();
     final Map<ActorRef , String> actorToGroupId = new HashMap<>();
+    // Group actors by handle, handles come from a ShardedDeviceManager in front of this one or from groupHandles
+    final IdRegistry groupHandles = new IdRegistry(64);
+    ActorRef[] groupsByHandle = new ActorRef[64];
+    final Map<String, TemperatureStats> groupStats = new HashMap<>();
+    // Merged lazily, then shared by every request until a group pushes new statistics
+    TemperatureStats fleetStats = TemperatureStats.EMPTY;
+    boolean fleetStatsStale = false;
 
     @Override
-    public void preStart(){
+    public void preStart() throws IOException {
         log.info("DeviceManager started");
+        if (journalDirectory != null){
+            recover();
+        }
+    }
+
+    // Rebuilds groups from the journal before any new message is processed. Groups get a view of the mapped
+    // snapshot plus the replayed log tail, their Device actors are only created when a device is first used.
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        Journal journal = Journal.open(journalDirectory, DeviceJournal.DEFAULT_SEGMENT_SIZE);
+        Map<String, DeviceGroup.RecoverDevices> recovered = new HashMap<>();
+        for (MappedSnapshot.Group base : journal.base().groups()){
+            recovered.put(base.groupId, DeviceGroup.RecoverDevices.fromTable(base, journal.delta().get(base.groupId)));
+        }
+        journal.delta().forEach((groupId, table) -> recovered.computeIfAbsent(groupId,
+                g -> DeviceGroup.RecoverDevices.fromTable(null, table)));
+
+        ActorRef journalActor = getContext().actorOf(DeviceJournal.props(journal, DeviceJournal.DEFAULT_SNAPSHOT_EVERY), "journal");
+        groupSettings = groupSettings.withJournal(journalActor);
+        recovered.forEach((groupId, devices) -> groupActorFor(groupId).tell(devices, getSelf()));
+        log.info("Recovered {} groups up to sequence number {} in {} ms",
+                recovered.size(), journal.lastSeq(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private ActorRef groupActorFor(String groupId){
+        ActorRef groupActor = groupIdToActor.get(groupId);
+        if (groupActor == null){
+            log.info("Creating device group actor for {}", groupId);
+            groupActor = getContext().actorOf(DeviceGroup.props(groupId, groupSettings), "group-"+groupId);
+            getContext().watch(groupActor);
+            groupIdToActor.put(groupId, groupActor);
+            actorToGroupId.put(groupActor, groupId);
+        }
+        return groupActor;
+    }
+
+    // The groups are stopped with this instance, so none of them will acknowledge its part of a registration
+    @Override
+    public void preRestart(Throwable reason, Optional<Object> message) throws Exception {
+        for (GroupRegistration registration : pendingRegistrations.values()){
+            if (registration.reject()){
+                registration.pending.requester.tell(registration.pending.reply(), getSelf());
+            }
+        }
+        pendingRegistrations.clear();
+        super.preRestart(reason, message);
     }
 
     @Override
@@ -64,40 +674,287 @@ public class DeviceManager extends AbstractActor{
         log.info("DeviceManager stopped");
     }
 
+    // Records the group actor under its handle, which is given when assigned by a ShardedDeviceManager
+    private int registerGroupHandle(String groupId, ActorRef groupActor, int givenHandle){
+        int handle = givenHandle >= 0 ? givenHandle : groupHandles.intern(groupId);
+        if (handle >= groupsByHandle.length){
+            groupsByHandle = Arrays.copyOf(groupsByHandle, Math.max(handle + 1, groupsByHandle.length * 2));
+        }
+        groupsByHandle[handle] = groupActor;
+        return handle;
+    }
+
     private void onTrackDevice(RequestTrackDevice trackMsg){
-        String groupId = trackMsg.groupId;
-        ActorRef ref = groupIdToActor.get(groupId);
-        if(ref != null){
-            ref.forward(trackMsg, getContext());
+        ActorRef groupActor = groupActorFor(trackMsg.groupId);
+        int handle = registerGroupHandle(trackMsg.groupId, groupActor, trackMsg.groupHandle);
+        groupActor.forward(trackMsg.withGroupHandle(handle), getContext());
+    }
+
+    static boolean isValidGroupId(String groupId){
+        return groupId != null && !groupId.isEmpty() && ActorPath.isValidPathElement("group-" + groupId);
+    }
+
+    // Splits the request by group and sends each group all of its devices in one message
+    private void onTrackDevices(RequestTrackDevices r){
+        PendingRegistration pending = new PendingRegistration(r.requestId, getSender(), r.size());
+        Map<String, Positions> byGroup = new HashMap<>();
+        for (int i = 0; i < r.size(); i++){
+            if (isValidGroupId(r.groupIds[i])){
+                byGroup.computeIfAbsent(r.groupIds[i], g -> new Positions()).add(i);
+            }else {
+                pending.reject(i);
+            }
+        }
+        pending.stillWaiting = byGroup.size();
+        byGroup.forEach((groupId, positions) -> {
+            ActorRef groupActor = groupActorFor(groupId);
+            int handle = registerGroupHandle(groupId, groupActor,
+                    r.groupHandles != null ? r.groupHandles[positions.positions[0]] : -1);
+            long registrationId = nextRegistrationId++;
+            Cancellable timeout = getContext().getSystem().scheduler().scheduleOnce(REGISTRATION_TIMEOUT, getSelf(),
+                    new RegistrationTimeout(registrationId), getContext().dispatcher(), getSelf());
+            pendingRegistrations.put(registrationId,
+                    new GroupRegistration(pending, positions.toArray(), handle, groupActor, timeout));
+            groupActor.tell(new DeviceGroup.TrackDevices(registrationId, groupId,
+                    positions.select(r.deviceIds, new String[positions.size])), getSelf());
+        });
+        if (pending.stillWaiting == 0){
+            getSender().tell(pending.reply(), getSelf());
+        }
+    }
+
+    private void onDevicesTracked(DeviceGroup.DevicesTracked tracked){
+        GroupRegistration registration = pendingRegistrations.remove(tracked.requestId);
+        if (registration == null){
+            log.warning("Ignoring registrations for unknown request {}", tracked.requestId);
+            return;
+        }
+        registration.timeout.cancel();
+        PendingRegistration pending = registration.pending;
+        pending.merge(registration.positions, tracked.outcomes, null, registration.groupHandle, tracked.deviceHandles,
+                null, tracked.epoch);
+        if (pending.stillWaiting == 0){
+            pending.requester.tell(pending.reply(), getSelf());
+        }
+    }
+
+    private void onRegistrationTimeout(RegistrationTimeout t){
+        GroupRegistration registration = pendingRegistrations.remove(t.registrationId);
+        if (registration == null){
+            return;
+        }
+        log.warning("Group {} did not acknowledge {} registrations in time, rejecting them",
+                actorToGroupId.get(registration.groupActor), registration.positions.length);
+        if (registration.reject()){
+            registration.pending.requester.tell(registration.pending.reply(), getSelf());
+        }
+    }
+
+    private void onRecordTemperatureBatch(RecordTemperatureBatch batch){
+        ActorRef ref = groupIdToActor.get(batch.groupId);
+        if (ref != null){
+            ref.forward(batch, getContext());
         }else {
-            log.info("Creating device group actor for {}", groupId);
-            ActorRef groupActor = getContext().actorOf(DeviceGroup.props(groupId), "group-"+groupId);
-            getContext().watch(groupActor);
-            groupActor.forward(trackMsg, getContext());
-            groupIdToActor.put(groupId, groupActor);
-            actorToGroupId.put(groupActor, groupId);
+            log.warning("Rejecting temperature batch {} for unknown group {}", batch.requestId, batch.groupId);
+            getSender().tell(new TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
         }
     }
 
+    private void onRecordTemperatureHandleBatch(RecordTemperatureHandleBatch batch){
+        ActorRef ref = batch.groupHandle >= 0 && batch.groupHandle < groupsByHandle.length ? groupsByHandle[batch.groupHandle] : null;
+        if (ref != null){
+            ref.forward(batch, getContext());
+        }else {
+            log.warning("Rejecting temperature batch {} for unknown group handle {}", batch.requestId, batch.groupHandle);
+            getSender().tell(new TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
+        }
+    }
+
+    private void onHandOffGroup(HandOffGroup h){
+        PendingHandOff inProgress = awaitingAdoption.get(h.groupId);
+        if (inProgress != null){
+            if (inProgress.handOff.target.equals(h.target)){
+                log.info("Retrying handoff of group {} to {}", h.groupId, h.target.path());
+                h.target.tell(inProgress.adopt, getSelf());
+            }else {
+                log.warning("Group {} is being handed off to {}, not to {}",
+                        h.groupId, inProgress.handOff.target.path(), h.target.path());
+            }
+            return;
+        }
+        for (PendingHandOff pending : pendingHandOffs.values()){
+            if (pending.handOff.groupId.equals(h.groupId)){
+                // Still collecting its state, GroupHandedOff follows once it is adopted
+                return;
+            }
+        }
+        ActorRef groupActor = groupIdToActor.get(h.groupId);
+        if (groupActor == null){
+            // Nothing to hand over, the target creates the group on its next registration
+            getSender().tell(new GroupHandedOff(h.groupId), getSelf());
+            return;
+        }
+        long handOffId = nextHandOffId++;
+        pendingHandOffs.put(handOffId, new PendingHandOff(h, getSender(), groupActor));
+        groupActor.tell(new DeviceGroup.DrainBatches(handOffId), getSelf());
+    }
+
+    // Every accepted batch is applied and acknowledged, the state asked for now includes them
+    private void onHandOffDrained(DeviceGroup.BatchesDrained drained){
+        PendingHandOff pending = pendingHandOffs.get(drained.requestId);
+        if (pending != null){
+            pending.groupActor.tell(new DeviceGroup.RequestGroupState(drained.requestId), getSelf());
+        }
+    }
+
+    // The group's devices in the order of their handles with their last readings as taken
+    private void onHandOffGroupState(DeviceGroup.GroupState state){
+        PendingHandOff pending = pendingHandOffs.remove(state.requestId);
+        if (pending == null){
+            return;
+        }
+        HandOffGroup h = pending.handOff;
+        pending.adopt = new AdoptGroup(h.groupId, h.groupHandle, state.epoch, state.deviceIds, state.hasReadings,
+                state.timestamps, state.values);
+        awaitingAdoption.put(h.groupId, pending);
+        h.target.tell(pending.adopt, getSelf());
+        log.info("Handing off group {} with {} devices to {}", h.groupId, state.deviceIds.length, h.target.path());
+    }
+
+    // The target has the group, the one here can go. Without a confirmation the group stays and a later rebalance
+    // hands it off again.
+    private void onGroupHandedOff(GroupHandedOff handedOff){
+        PendingHandOff pending = awaitingAdoption.remove(handedOff.groupId);
+        if (pending == null){
+            return;
+        }
+        getContext().stop(pending.groupActor);
+        pending.requester.tell(handedOff, getSelf());
+        log.info("Handed off group {} to {}", handedOff.groupId, pending.handOff.target.path());
+    }
+
+    private void onAdoptGroup(AdoptGroup a){
+        ActorRef groupActor = groupIdToActor.get(a.groupId);
+        boolean adopted = groupActor == null;
+        if (adopted){
+            groupActor = groupActorFor(a.groupId);
+            groupActor.tell(new DeviceGroup.RecoverDevices(
+                    null, a.deviceIds, a.hasReadings, a.timestamps, a.values, a.epoch), getSelf());
+        }else {
+            // The group journals what it merges, its devices keep their epoch and handles
+            log.warning("Group {} is already present, merging the one handed off into it", a.groupId);
+            groupActor.tell(new DeviceGroup.MergeDevices(a.deviceIds, a.hasReadings, a.timestamps, a.values), getSelf());
+        }
+        registerGroupHandle(a.groupId, groupActor, a.groupHandle);
+        GroupHandedOff reply = new GroupHandedOff(a.groupId);
+        if (adopted && groupSettings.journal != null){
+            // Journaled like registrations and readings, so the group is recovered here from now on
+            boolean[] withoutReading = new boolean[a.deviceIds.length];
+            int rejected = 0;
+            for (int i = 0; i < withoutReading.length; i++){
+                if (!a.hasReadings[i]){
+                    withoutReading[i] = true;
+                    rejected++;
+                }
+            }
+            groupSettings.journal.tell(new DeviceJournal.Append(
+                    new DeviceJournal.TrackedBatch(a.groupId, a.deviceIds), null, null, getSelf()), getSelf());
+            groupSettings.journal.tell(new DeviceJournal.Append(DeviceJournal.Recorded.accepted(
+                    a.groupId, a.deviceIds, a.timestamps, a.values, withoutReading, rejected),
+                    // The group runs here either way, the source must not wait on a lost write
+                    getSender(), reply, getSelf(), reply), getSelf());
+        }else {
+            getSender().tell(reply, getSelf());
+        }
+    }
+
+    private void onFleetTemperatures(RequestFleetTemperatures r){
+        List<String> groupIds = new ArrayList<>();
+        List<ActorRef> groups = new ArrayList<>();
+        groupIdToActor.forEach((groupId, groupActor) -> {
+            if (r.filter.acceptsGroup(groupId)){
+                groupIds.add(groupId);
+                groups.add(groupActor);
+            }
+        });
+        getContext().actorOf(FleetTemperatureQuery.props(r.requestId, getSender(),
+                groupIds.toArray(new String[0]), groups.toArray(new ActorRef[0]), r.maxConcurrentGroups, r.filter,
+                r.deadline != null ? r.deadline : groupSettings.queryTimeout, groupSettings.queryDispatcher));
+    }
+
     private void onGroupList(RequestGroupList r){
-        getSender().tell(new ReplyGroupList(r.requestId, groupIdToActor.keySet(),actorToGroupId.keySet()),getSelf());
+        getSender().tell(new ReplyGroupList(r.requestId, new HashSet<>(groupIdToActor.keySet()), new HashSet<>(actorToGroupId.keySet())),getSelf());
     }
 
 
+    private void onGroupStatsUpdated(DeviceGroup.GroupStatsUpdated updated){
+        if (groupIdToActor.containsKey(updated.groupId)){
+            groupStats.put(updated.groupId, updated.stats);
+            fleetStatsStale = true;
+        }
+    }
+
+    private void onFleetStats(RequestFleetStats r){
+        if (fleetStatsStale){
+            fleetStats = TemperatureStats.merge(groupStats.values());
+            fleetStatsStale = false;
+        }
+        getSender().tell(new RespondFleetStats(r.requestId, groupStats.size(), fleetStats), getSelf());
+    }
+
     private void onTerminated(Terminated t){
         ActorRef groupActor = t.getActor();
         String groupId = actorToGroupId.get(groupActor);
         log.info("Device group actor for {} has been terminated", groupId);
         actorToGroupId.remove(groupActor);
         groupIdToActor.remove(groupId);
+        // Registrations it had not acknowledged yet are lost with it
+        pendingRegistrations.values().removeIf(registration -> {
+            if (!registration.groupActor.equals(groupActor)){
+                return false;
+            }
+            if (registration.reject()){
+                registration.pending.requester.tell(registration.pending.reply(), getSelf());
+            }
+            return true;
+        });
+        // A handoff of a group that stopped on its own has nothing left to hand over
+        pendingHandOffs.values().removeIf(pending -> {
+            if (pending.groupActor.equals(groupActor)){
+                pending.requester.tell(new GroupHandedOff(pending.handOff.groupId), getSelf());
+                return true;
+            }
+            return false;
+        });
+        for (int i = 0; i < groupsByHandle.length; i++){
+            if (groupActor.equals(groupsByHandle[i])){
+                groupsByHandle[i] = null;
+            }
+        }
+        if (groupStats.remove(groupId) != null){
+            fleetStatsStale = true;
+        }
     }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(RequestTrackDevice.class, this::onTrackDevice)
+                .match(RequestTrackDevices.class, this::onTrackDevices)
+                .match(DeviceGroup.DevicesTracked.class, this::onDevicesTracked)
+                .match(RegistrationTimeout.class, this::onRegistrationTimeout)
+                .match(RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+                .match(RecordTemperatureHandleBatch.class, this::onRecordTemperatureHandleBatch)
                 .match(Terminated.class, this::onTerminated)
                 .match(RequestGroupList.class, this::onGroupList)
+                .match(DeviceGroup.GroupStatsUpdated.class, this::onGroupStatsUpdated)
+                .match(RequestFleetStats.class, this::onFleetStats)
+                .match(RequestFleetTemperatures.class, this::onFleetTemperatures)
+                .match(HandOffGroup.class, this::onHandOffGroup)
+                .match(DeviceGroup.BatchesDrained.class, this::onHandOffDrained)
+                .match(DeviceGroup.GroupState.class, this::onHandOffGroupState)
+                .match(AdoptGroup.class, this::onAdoptGroup)
+                .match(GroupHandedOff.class, this::onGroupHandedOff)
                 .build();
     }
 }
@@ -0,0 +1,70 @@
+package com.lightbend.akka.sample;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Columnar last-reading table for a group, devices are addressed by their handle in the table's IdRegistry,
+// which is the dense index assigned at registration.
+final class DeviceTable {
+    private final IdRegistry deviceIds;
+    private long[] timestamps;
+    private double[] values;
+    // Every timestamp is a valid one, so whether a device has a reading is kept apart
+    private final BitSet hasReading = new BitSet();
+
+    DeviceTable(int initialCapacity){
+        int capacity = Math.max(16, initialCapacity);
+        this.deviceIds = new IdRegistry(capacity);
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity];
+    }
+
+    int size(){
+        return deviceIds.size();
+    }
+
+    boolean contains(int index){
+        return deviceIds.contains(index);
+    }
+
+    int indexOf(String deviceId){
+        return deviceIds.handleOf(deviceId);
+    }
+
+    // Returns the index of the device, registering it if needed.
+    int register(String deviceId){
+        int index = deviceIds.intern(deviceId);
+        if (index == timestamps.length){
+            grow();
+        }
+        return index;
+    }
+
+    void record(int index, long timestamp, double value){
+        timestamps[index] = timestamp;
+        values[index] = value;
+        hasReading.set(index);
+    }
+
+    boolean hasReading(int index){
+        return hasReading.get(index);
+    }
+
+    long timestamp(int index){
+        return timestamps[index];
+    }
+
+    double value(int index){
+        return values[index];
+    }
+
+    String deviceId(int index){
+        return deviceIds.idOf(index);
+    }
+
+    private void grow(){
+        int capacity = timestamps.length * 2;
+        values = Arrays.copyOf(values, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+    }
+}
@@ -0,0 +1,386 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+// Device group that keeps every device's last reading in a DeviceTable instead of one Device actor per device.
+// Devices are addressed through DeviceGroup.DeviceEnvelope and all replies come from the group itself.
+public class DeviceTableGroup extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    final String groupId;
+    final ActorRef journal;
+    final DeviceTable table = new DeviceTable(1024);
+    // Table indexes are the device handles, valid with this epoch only
+    long epoch = DeviceGroup.newEpoch();
+    final TemperatureSubscriptions subscriptions = new TemperatureSubscriptions();
+    Cancellable subscriptionTimer = null;
+    final boolean aggregates;
+    // Deltas come straight from the table, which holds the value a reading replaces
+    final TemperatureAggregate aggregate = new TemperatureAggregate();
+    Cancellable statsTimer = null;
+    final Metrics metrics;
+    // Readings counter of the group, null while metrics are disabled
+    final LongAdder recordedReadings;
+
+    public DeviceTableGroup(String groupId, DeviceGroupSettings settings){
+        this.groupId = groupId;
+        this.journal = settings.journal;
+        this.aggregates = settings.aggregates;
+        this.metrics = Metrics.get(getContext().getSystem());
+        this.recordedReadings = metrics.enabled ? metrics.readings(groupId) : null;
+    }
+
+    public static Props props(String groupId){
+        return props(groupId, DeviceGroupSettings.DEFAULT.withTableMode(true));
+    }
+
+    public static Props props(String groupId, DeviceGroupSettings settings){
+        return Props.create(DeviceTableGroup.class, groupId, settings);
+    }
+
+    // Sends the reply right away, or once the event is durable when a journal is configured.
+    private void persistAndReply(Object event, Object reply){
+        persistAndReply(event, reply, null);
+    }
+
+    // The failure is sent instead when the journal loses the event, see DeviceJournal.Append
+    private void persistAndReply(Object event, Object reply, Object failure){
+        if (journal != null){
+            journal.tell(new DeviceJournal.Append(event, getSender(), reply, getSelf(), failure), getSelf());
+        }else {
+            getSender().tell(reply, getSelf());
+        }
+    }
+
+    @Override
+    public void preStart() {
+        log.info("DeviceTableGroup {} started", groupId);
+        if (metrics.enabled){
+            metrics.groups.increment();
+        }
+        if (aggregates){
+            statsTimer = getContext().getSystem().scheduler().schedule(
+                    DeviceGroup.STATS_INTERVAL, DeviceGroup.STATS_INTERVAL,
+                    getSelf(), DeviceGroup.StatsTick.INSTANCE, getContext().dispatcher(), getSelf());
+        }
+    }
+
+    @Override
+    public void postStop(){
+        if (subscriptionTimer != null){
+            subscriptionTimer.cancel();
+        }
+        if (statsTimer != null){
+            statsTimer.cancel();
+        }
+        if (metrics.enabled){
+            metrics.groups.decrement();
+            metrics.devices.add(-table.size());
+        }
+        log.info("DeviceTableGroup {} stopped", groupId);
+    }
+
+    private void onTrackDevice(DeviceManager.RequestTrackDevice trackMsg){
+        if (this.groupId.equals(trackMsg.groupId)){
+            int index = table.indexOf(trackMsg.deviceId);
+            if (index >= 0){
+                getSender().tell(new DeviceManager.DeviceRegistered(trackMsg.groupHandle, index, epoch), getSelf());
+            }else {
+                // The index in the table is the handle of the device
+                index = table.register(trackMsg.deviceId);
+                if (metrics.enabled){
+                    metrics.devices.increment();
+                }
+                persistAndReply(new DeviceJournal.Tracked(groupId, trackMsg.deviceId),
+                        new DeviceManager.DeviceRegistered(trackMsg.groupHandle, index, epoch));
+            }
+        }else {
+            log.warning("Ignoring TrackDevice request for {}, This actor is responsible for {}.", trackMsg.groupId, this.groupId);
+        }
+    }
+
+    // As DeviceGroup's, without actor names to check the ids against
+    private void onTrackDevices(DeviceGroup.TrackDevices r){
+        if (!groupId.equals(r.groupId)){
+            log.warning("Ignoring TrackDevices request for {}, This actor is responsible for {}.", r.groupId, groupId);
+            getSender().tell(DeviceGroup.DevicesTracked.rejected(r.requestId, r.deviceIds.length), getSelf());
+            return;
+        }
+        byte[] outcomes = new byte[r.deviceIds.length];
+        int[] handles = new int[r.deviceIds.length];
+        String[] created = new String[r.deviceIds.length];
+        int createdCount = 0;
+        for (int i = 0; i < r.deviceIds.length; i++){
+            String deviceId = r.deviceIds[i];
+            if (deviceId == null || deviceId.isEmpty()){
+                outcomes[i] = DeviceManager.DevicesRegistered.REJECTED;
+                handles[i] = -1;
+            }else if ((handles[i] = table.indexOf(deviceId)) >= 0){
+                outcomes[i] = DeviceManager.DevicesRegistered.ALREADY_PRESENT;
+            }else {
+                handles[i] = table.register(deviceId);
+                outcomes[i] = DeviceManager.DevicesRegistered.REGISTERED;
+                created[createdCount++] = deviceId;
+            }
+        }
+        if (metrics.enabled){
+            metrics.devices.add(createdCount);
+        }
+        DeviceGroup.DevicesTracked ack = new DeviceGroup.DevicesTracked(r.requestId, outcomes, handles, epoch);
+        if (createdCount > 0){
+            persistAndReply(new DeviceJournal.TrackedBatch(groupId, Arrays.copyOf(created, createdCount)), ack,
+                    DeviceGroup.DevicesTracked.rejected(r.requestId, r.deviceIds.length));
+        }else {
+            getSender().tell(ack, getSelf());
+        }
+    }
+
+    private void onDeviceEnvelope(DeviceGroup.DeviceEnvelope envelope){
+        int index = table.indexOf(envelope.deviceId);
+        if (index < 0){
+            log.warning("Dropping message for unknown device {}", envelope.deviceId);
+            return;
+        }
+        if (envelope.message instanceof Device.RecordTemperature){
+            Device.RecordTemperature r = (Device.RecordTemperature) envelope.message;
+            long start = metrics.enabled ? System.nanoTime() : 0L;
+            record(index, r.timestamp, r.value);
+            subscriptions.offer(envelope.deviceId, r.value);
+            persistAndReply(DeviceJournal.Recorded.single(groupId, envelope.deviceId, r.timestamp, r.value),
+                    new Device.TemperatureRecoded(r.requestId));
+            if (metrics.enabled){
+                recordedReadings.increment();
+                metrics.recordTemperature.record(System.nanoTime() - start);
+            }
+        }else if (envelope.message instanceof Device.ReadTemperature){
+            Device.ReadTemperature r = (Device.ReadTemperature) envelope.message;
+            Optional<Double> value = table.hasReading(index) ? Optional.of(table.value(index)) : Optional.empty();
+            getSender().tell(new Device.RespondTemperature(r.requestId, value), getSelf());
+        }else {
+            log.warning("Table mode does not support {} for device {}", envelope.message.getClass().getSimpleName(), envelope.deviceId);
+        }
+    }
+
+    private void onRecordTemperatureBatch(DeviceManager.RecordTemperatureBatch batch){
+        if (!this.groupId.equals(batch.groupId)){
+            log.warning("Ignoring temperature batch for {}, This actor is responsible for {}.", batch.groupId, this.groupId);
+            getSender().tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
+            return;
+        }
+        boolean[] unknown = new boolean[batch.size()];
+        int rejected = 0;
+        for (int i = 0; i < batch.size(); i++){
+            int index = table.indexOf(batch.deviceIds[i]);
+            if (index < 0){
+                unknown[i] = true;
+                rejected++;
+            }else {
+                record(index, batch.timestamps[i], batch.values[i]);
+                subscriptions.offer(batch.deviceIds[i], batch.values[i]);
+            }
+        }
+        if (metrics.enabled){
+            recordedReadings.add(batch.size() - rejected);
+        }
+        persistAndReply(DeviceJournal.Recorded.accepted(batch, unknown, rejected),
+                new DeviceManager.TemperatureBatchRecorded(batch.requestId, batch.size() - rejected, rejected),
+                new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()));
+    }
+
+    private void onRecordTemperatureHandleBatch(DeviceManager.RecordTemperatureHandleBatch batch){
+        if (batch.epoch != epoch){
+            log.warning("Rejecting temperature batch {} with handles of an earlier incarnation of group {}",
+                    batch.requestId, groupId);
+            getSender().tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
+            return;
+        }
+        boolean[] unknown = new boolean[batch.size()];
+        // Ids are only needed for the journal
+        String[] deviceIds = journal != null ? new String[batch.size()] : null;
+        int rejected = 0;
+        for (int i = 0; i < batch.size(); i++){
+            int index = batch.deviceHandles[i];
+            if (!table.contains(index)){
+                unknown[i] = true;
+                rejected++;
+            }else {
+                if (deviceIds != null){
+                    deviceIds[i] = table.deviceId(index);
+                }
+                record(index, batch.timestamps[i], batch.values[i]);
+                subscriptions.offer(table.deviceId(index), batch.values[i]);
+            }
+        }
+        if (metrics.enabled){
+            recordedReadings.add(batch.size() - rejected);
+        }
+        DeviceJournal.Recorded event = deviceIds == null ? null
+                : DeviceJournal.Recorded.accepted(groupId, deviceIds, batch.timestamps, batch.values, unknown, rejected);
+        persistAndReply(event, new DeviceManager.TemperatureBatchRecorded(batch.requestId, batch.size() - rejected, rejected),
+                new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()));
+    }
+
+    private void onRecoverDevices(DeviceGroup.RecoverDevices r){
+        if (r.epoch != 0L){
+            epoch = r.epoch;
+        }
+        int registered = table.size();
+        if (r.base != null){
+            for (int i = 0; i < r.base.size(); i++){
+                int index = table.register(r.base.deviceId(i));
+                if (r.base.hasReading(i)){
+                    record(index, r.base.timestamp(i), r.base.value(i));
+                }
+            }
+        }
+        for (int i = 0; i < r.deviceIds.length; i++){
+            int index = table.register(r.deviceIds[i]);
+            if (r.hasReading(i)){
+                record(index, r.timestamps[i], r.values[i]);
+            }
+        }
+        if (metrics.enabled){
+            metrics.devices.add(table.size() - registered);
+        }
+    }
+
+    private void onMergeDevices(DeviceGroup.MergeDevices m){
+        int registered = table.size();
+        boolean[] older = new boolean[m.deviceIds.length];
+        int olderCount = 0;
+        for (int i = 0; i < m.deviceIds.length; i++){
+            int index = table.register(m.deviceIds[i]);
+            if (m.hasReadings[i] && (!table.hasReading(index) || m.timestamps[i] > table.timestamp(index))){
+                record(index, m.timestamps[i], m.values[i]);
+                subscriptions.offer(m.deviceIds[i], m.values[i]);
+            }else {
+                older[i] = true;
+                olderCount++;
+            }
+        }
+        if (metrics.enabled){
+            metrics.devices.add(table.size() - registered);
+        }
+        if (journal != null){
+            journal.tell(new DeviceJournal.Append(
+                    new DeviceJournal.TrackedBatch(groupId, m.deviceIds), null, null, getSelf()), getSelf());
+            journal.tell(new DeviceJournal.Append(DeviceJournal.Recorded.accepted(
+                    groupId, m.deviceIds, m.timestamps, m.values, older, olderCount), null, null, getSelf()), getSelf());
+        }
+        log.info("Merged {} handed off devices into group {}, {} of them new",
+                m.deviceIds.length, groupId, table.size() - registered);
+    }
+
+    private void record(int index, long timestamp, double value){
+        if (aggregates){
+            if (table.hasReading(index)){
+                aggregate.replace(table.value(index), value);
+            }else {
+                aggregate.add(value);
+            }
+        }
+        table.record(index, timestamp, value);
+    }
+
+    private void onSubscribe(DeviceGroup.SubscribeTemperatures subscribe){
+        if (subscriptionTimer == null){
+            subscriptionTimer = getContext().getSystem().scheduler().schedule(
+                    TemperatureSubscriptions.TICK, TemperatureSubscriptions.TICK,
+                    getSelf(), DeviceGroup.SubscriptionTick.INSTANCE, getContext().dispatcher(), getSelf());
+        }
+        if (subscriptions.add(subscribe, getSender())){
+            getContext().watch(getSender());
+        }
+        getSender().tell(new DeviceGroup.TemperaturesSubscribed(subscribe.requestId), getSelf());
+    }
+
+    private void stopSubscriptionTimerIfIdle(){
+        if (subscriptions.isEmpty() && subscriptionTimer != null){
+            subscriptionTimer.cancel();
+            subscriptionTimer = null;
+        }
+    }
+
+    private void onDeviceList(DeviceGroup.RequestDeviceList r){
+        Set<String> ids = new HashSet<>(table.size() * 4 / 3 + 1);
+        for (int i = 0; i < table.size(); i++){
+            ids.add(table.deviceId(i));
+        }
+        getSender().tell(new DeviceGroup.ReplyDeviceList(r.requestId, ids), getSelf());
+    }
+
+    // The index in the table is the handle of the device
+    private void onGroupState(DeviceGroup.RequestGroupState r){
+        DeviceGroup.GroupState state = new DeviceGroup.GroupState(r.requestId, table.size(), epoch);
+        for (int i = 0; i < table.size(); i++){
+            state.deviceIds[i] = table.deviceId(i);
+            if (table.hasReading(i)){
+                state.setReading(i, table.timestamp(i), table.value(i));
+            }
+        }
+        getSender().tell(state, getSelf());
+    }
+
+    private void onAllTemperatures(DeviceGroup.RequestAllTemperatures r){
+        TemperatureReadings.Builder temperatures = new TemperatureReadings.Builder(table.size());
+        for (int i = 0; i < table.size(); i++){
+            temperatures.add(table.deviceId(i), table.hasReading(i)
+                    ? TemperatureReadings.TEMPERATURE : TemperatureReadings.TEMPERATURE_NOT_AVAILABLE, table.value(i));
+        }
+        getSender().tell(new DeviceGroup.RespondAllTemperatures(r.requestId, temperatures.build()), getSelf());
+        if (r.streaming){
+            // Everything is at hand, the stream is a single chunk
+            getSender().tell(new DeviceGroup.AllTemperaturesCompleted(r.requestId, table.size()), getSelf());
+        }
+    }
+
+    @Override
+    public Receive createReceive(){
+        return receiveBuilder()
+                .match(DeviceManager.RequestTrackDevice.class, this::onTrackDevice)
+                .match(DeviceGroup.TrackDevices.class, this::onTrackDevices)
+                .match(DeviceGroup.DeviceEnvelope.class, this::onDeviceEnvelope)
+                .match(DeviceManager.RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+                .match(DeviceManager.RecordTemperatureHandleBatch.class, this::onRecordTemperatureHandleBatch)
+                .match(DeviceGroup.SubscribeTemperatures.class, this::onSubscribe)
+                .match(DeviceGroup.UnsubscribeTemperatures.class, u -> {
+                    if (subscriptions.remove(u.requestId, getSender())){
+                        getContext().unwatch(getSender());
+                    }
+                    stopSubscriptionTimerIfIdle();
+                })
+                .match(DeviceGroup.SubscriptionTick.class, t -> subscriptions.flush(getSelf()))
+                .match(Terminated.class, t -> {
+                    subscriptions.removeSubscriber(t.getActor());
+                    stopSubscriptionTimerIfIdle();
+                })
+                .match(DeviceGroup.RecoverDevices.class, this::onRecoverDevices)
+                .match(DeviceGroup.MergeDevices.class, this::onMergeDevices)
+                .match(DeviceGroup.RequestDeviceList.class, this::onDeviceList)
+                .match(DeviceGroup.RequestGroupState.class, this::onGroupState)
+                // The journal acknowledges batches itself, none is ever waiting here
+                .match(DeviceGroup.DrainBatches.class, r ->
+                        getSender().tell(new DeviceGroup.BatchesDrained(r.requestId), getSelf()))
+                .match(DeviceGroup.RequestAllTemperatures.class, this::onAllTemperatures)
+                .match(DeviceGroup.RequestGroupStats.class, r ->
+                        getSender().tell(new DeviceGroup.RespondGroupStats(r.requestId, aggregate.stats()), getSelf()))
+                .match(DeviceGroup.StatsTick.class, t -> {
+                    if (aggregate.takeChanged()){
+                        getContext().getParent().tell(new DeviceGroup.GroupStatsUpdated(groupId, aggregate.stats()), getSelf());
+                    }
+                })
+                .build();
+    }
+}
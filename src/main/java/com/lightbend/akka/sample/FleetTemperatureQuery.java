@@ -0,0 +1,167 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Scatter-gather of a DeviceManager.RequestFleetTemperatures. At most maxConcurrentGroups groups are asked at a time,
+// the next one as soon as one answers or stops. Each answer is filtered into the result columns when it arrives and
+// then dropped, so only the kept readings are held. Each group is given a share of the time left until the deadline,
+// so a slow device times out inside its group and the group's partial answer still arrives before the deadline,
+// rather than costing the whole group. Whatever has arrived by the deadline is the reply.
+public class FleetTemperatureQuery extends AbstractActor {
+    static final class Deadline {
+        static final Deadline INSTANCE = new Deadline();
+    }
+
+    // Share of the time left that a group may spend, the rest carries its answer back
+    static final double GROUP_DEADLINE_SHARE = 0.8;
+
+    final long requestId;
+    final ActorRef requester;
+    final String[] groupIds;
+    final ActorRef[] groups;
+    final int maxConcurrentGroups;
+    final DeviceManager.ReadingFilter filter;
+    final long deadlineNanos;
+    final Cancellable deadlineTimer;
+
+    int nextGroup = 0;
+    // Index of every group asked and not answered yet
+    final Map<ActorRef, Integer> inFlight = new HashMap<>();
+    final List<String> missingGroups = new ArrayList<>();
+
+    String[] answeredGroups;
+    int[] groupStarts;
+    int answeredCount = 0;
+    String[] deviceIds = new String[64];
+    byte[] status = new byte[64];
+    double[] values = new double[64];
+    int size = 0;
+
+    public FleetTemperatureQuery(long requestId, ActorRef requester, String[] groupIds, ActorRef[] groups,
+                                 int maxConcurrentGroups, DeviceManager.ReadingFilter filter, FiniteDuration deadline){
+        this.requestId = requestId;
+        this.requester = requester;
+        this.groupIds = groupIds;
+        this.groups = groups;
+        this.maxConcurrentGroups = maxConcurrentGroups;
+        this.filter = filter;
+        this.answeredGroups = new String[groupIds.length];
+        this.groupStarts = new int[groupIds.length];
+        this.deadlineNanos = System.nanoTime() + deadline.toNanos();
+        this.deadlineTimer = getContext().getSystem().scheduler().scheduleOnce(
+                deadline, getSelf(), Deadline.INSTANCE, getContext().dispatcher(), getSelf());
+    }
+
+    public static Props props(long requestId, ActorRef requester, String[] groupIds, ActorRef[] groups,
+                              int maxConcurrentGroups, DeviceManager.ReadingFilter filter, FiniteDuration deadline){
+        return props(requestId, requester, groupIds, groups, maxConcurrentGroups, filter, deadline, null);
+    }
+
+    static Props props(long requestId, ActorRef requester, String[] groupIds, ActorRef[] groups,
+                       int maxConcurrentGroups, DeviceManager.ReadingFilter filter, FiniteDuration deadline, String dispatcher){
+        Props props = Props.create(FleetTemperatureQuery.class,
+                requestId, requester, groupIds, groups, maxConcurrentGroups, filter, deadline);
+        return dispatcher == null ? props : props.withDispatcher(dispatcher);
+    }
+
+    @Override
+    public void preStart(){
+        askNextGroups();
+    }
+
+    @Override
+    public void postStop(){
+        deadlineTimer.cancel();
+    }
+
+    // The request id sent to a group is its index
+    private void askNextGroups(){
+        while (inFlight.size() < maxConcurrentGroups && nextGroup < groups.length){
+            ActorRef group = groups[nextGroup];
+            getContext().watch(group);
+            inFlight.put(group, nextGroup);
+            long remaining = Math.max(deadlineNanos - System.nanoTime(), 0L);
+            long groupDeadline = (long) (remaining * GROUP_DEADLINE_SHARE);
+            group.tell(new DeviceGroup.RequestAllTemperatures(
+                    nextGroup, FiniteDuration.create(groupDeadline, TimeUnit.NANOSECONDS), false), getSelf());
+            nextGroup++;
+        }
+        if (inFlight.isEmpty()){
+            replyAndStop();
+        }
+    }
+
+    // Answered by the group's own query actor, so the group is found by index rather than by sender
+    private void onGroupTemperatures(DeviceGroup.RespondAllTemperatures r){
+        ActorRef group = groups[(int) r.requestId];
+        if (inFlight.remove(group) == null){
+            return;
+        }
+        getContext().unwatch(group);
+        String groupId = groupIds[(int) r.requestId];
+        answeredGroups[answeredCount] = groupId;
+        groupStarts[answeredCount++] = size;
+        TemperatureReadings readings = r.readings;
+        for (int i = 0; i < readings.size(); i++){
+            if (filter.test(groupId, readings.status(i), readings.value(i))){
+                add(readings.deviceId(i), readings.status(i), readings.value(i));
+            }
+        }
+        askNextGroups();
+    }
+
+    private void onTerminated(Terminated t){
+        Integer index = inFlight.remove(t.getActor());
+        if (index != null){
+            missingGroups.add(groupIds[index]);
+            askNextGroups();
+        }
+    }
+
+    private void add(String deviceId, byte readingStatus, double value){
+        if (size == deviceIds.length){
+            deviceIds = Arrays.copyOf(deviceIds, size * 2);
+            status = Arrays.copyOf(status, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        deviceIds[size] = deviceId;
+        status[size] = readingStatus;
+        values[size] = value;
+        size++;
+    }
+
+    private void replyAndStop(){
+        // Still in flight, then never asked
+        for (int i = 0; i < groupIds.length; i++){
+            if (i >= nextGroup || inFlight.containsKey(groups[i])){
+                missingGroups.add(groupIds[i]);
+            }
+        }
+        requester.tell(new DeviceManager.RespondFleetTemperatures(requestId,
+                Arrays.copyOf(answeredGroups, answeredCount), Arrays.copyOf(groupStarts, answeredCount),
+                Arrays.copyOf(deviceIds, size), Arrays.copyOf(status, size), Arrays.copyOf(values, size),
+                missingGroups), getSelf());
+        getContext().stop(getSelf());
+    }
+
+    @Override
+    public Receive createReceive(){
+        return receiveBuilder()
+                .match(DeviceGroup.RespondAllTemperatures.class, this::onGroupTemperatures)
+                .match(Terminated.class, this::onTerminated)
+                .match(Deadline.class, d -> replyAndStop())
+                .build();
+    }
+}
@@ -0,0 +1,153 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.ActorRef;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Map;
+
+// State of one RequestAllTemperatures fan-out, run with all other queries of its group by a DeviceGroupQueryManager,
+// or on its own by a DeviceGroupQuery over devices outside a group. Replies are collected in place, indexed by the
+// position of the device in these arrays.
+final class GroupQuery {
+    static final byte WAITING = 0;
+
+    // When streaming, replies go out in chunks of this many readings, or whatever arrived within a flush interval
+    static final int STREAM_CHUNK_SIZE = 256;
+
+    final long requestId;
+    final ActorRef requester;
+    // Null until the owner decides, when the requester did not choose a deadline
+    FiniteDuration timeout;
+    // Send partial RespondAllTemperatures as replies arrive and end with AllTemperaturesCompleted
+    final boolean streaming;
+    // Readings already known without asking a device, merged into the result as-is.
+    final Map<String, DeviceGroup.TemperatureReading> knownReadings;
+
+    final ActorRef[] deviceActors;
+    final String[] deviceIds;
+    final ActorIndex deviceIndex;
+    final double[] values;
+    final byte[] status;
+    int stillWaiting;
+    // Devices that stopped or did not answer in time
+    int notAvailable = 0;
+    int timedOut = 0;
+    // requestId of the ReadTemperature sent to the devices
+    long readId;
+    long startedAt;
+    TemperatureReadings.Builder chunk = null;
+    TimerWheel.Timeout<GroupQuery> timer = null;
+
+    // Copies the devices, so the map may change once this returns
+    GroupQuery(Map<ActorRef, String> actorToDeviceId, Map<String, DeviceGroup.TemperatureReading> knownReadings,
+               long requestId, ActorRef requester, FiniteDuration timeout, boolean streaming){
+        this.knownReadings = knownReadings;
+        this.requestId = requestId;
+        this.requester = requester;
+        this.timeout = timeout;
+        this.streaming = streaming;
+
+        int size = actorToDeviceId.size();
+        this.deviceActors = new ActorRef[size];
+        this.deviceIds = new String[size];
+        this.deviceIndex = new ActorIndex(size);
+        this.values = new double[size];
+        this.status = new byte[size];
+        int i = 0;
+        for (Map.Entry<ActorRef, String> entry : actorToDeviceId.entrySet()){
+            deviceActors[i] = entry.getKey();
+            deviceIds[i] = entry.getValue();
+            deviceIndex.put(entry.getKey(), i);
+            i++;
+        }
+        this.stillWaiting = size;
+    }
+
+    // Asks every device, replies must come back to self carrying readId.
+    void start(long readId, ActorRef self){
+        this.readId = readId;
+        startedAt = System.nanoTime();
+        Device.ReadTemperature read = new Device.ReadTemperature(readId);
+        for (ActorRef deviceActor : deviceActors){
+            deviceActor.tell(read, self);
+        }
+        if (streaming){
+            // Known readings need no waiting, they make up the first chunk
+            if (!knownReadings.isEmpty()){
+                requester.tell(new DeviceGroup.RespondAllTemperatures(requestId, knownReadings), self);
+            }
+            chunk = new TemperatureReadings.Builder(Math.min(stillWaiting, STREAM_CHUNK_SIZE));
+        }
+    }
+
+    boolean isComplete(){
+        return stillWaiting == 0;
+    }
+
+    // Records the answer of a device, returns false if the device is not part of the query or already answered.
+    boolean received(ActorRef deviceActor, byte readingStatus, double value, QuantileSketch latencies, ActorRef self){
+        int index = deviceIndex.get(deviceActor);
+        if (index < 0 || status[index] != WAITING){
+            return false;
+        }
+        status[index] = readingStatus;
+        values[index] = value;
+        if (readingStatus != TemperatureReadings.DEVICE_NOT_AVAILABLE){
+            latencies.add((System.nanoTime() - startedAt) / 1000.0);
+        }else {
+            notAvailable++;
+        }
+        if (streaming){
+            chunk.add(deviceIds[index], readingStatus, value);
+            if (chunk.size() >= STREAM_CHUNK_SIZE){
+                flush(self);
+            }
+        }
+        stillWaiting--;
+        return true;
+    }
+
+    // Devices that did not answer count with the timeout, so a timeout that is too short grows back.
+    void timeOut(QuantileSketch latencies){
+        double timeoutMicros = timeout.toMicros();
+        for (int i = 0; i < status.length; i++){
+            if (status[i] == WAITING){
+                status[i] = TemperatureReadings.DEVICE_TIMED_OUT;
+                timedOut++;
+                latencies.add(timeoutMicros);
+                if (streaming){
+                    chunk.add(deviceIds[i], TemperatureReadings.DEVICE_TIMED_OUT, 0.0);
+                }
+            }
+        }
+        stillWaiting = 0;
+    }
+
+    void flush(ActorRef self){
+        if (chunk.size() > 0){
+            requester.tell(new DeviceGroup.RespondAllTemperatures(requestId, chunk.build()), self);
+            chunk = new TemperatureReadings.Builder(Math.min(stillWaiting, STREAM_CHUNK_SIZE));
+        }
+    }
+
+    void reply(ActorRef self){
+        if (streaming){
+            flush(self);
+            requester.tell(new DeviceGroup.AllTemperaturesCompleted(requestId, deviceIds.length + knownReadings.size()), self);
+        }else {
+            requester.tell(new DeviceGroup.RespondAllTemperatures(requestId, collectReplies()), self);
+        }
+    }
+
+    private TemperatureReadings collectReplies(){
+        if (knownReadings.isEmpty()){
+            return new TemperatureReadings(deviceIds, values, status, deviceIds.length);
+        }
+        TemperatureReadings.Builder replies = new TemperatureReadings.Builder(deviceIds.length + knownReadings.size());
+        replies.addAll(knownReadings);
+        for (int i = 0; i < deviceIds.length; i++){
+            replies.add(deviceIds[i], status[i], values[i]);
+        }
+        return replies.build();
+    }
+}
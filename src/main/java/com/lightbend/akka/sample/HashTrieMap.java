@@ -0,0 +1,335 @@
+package com.lightbend.akka.sample;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+// Persistent hash array mapped trie. plus and minus return a new map that shares every node off the changed path
+// with this one, so an update costs O(log32 n) and the map itself can be handed to other actors as an O(1)
+// snapshot. The java.util.Map mutators are unsupported. Keys and values must not be null.
+final class HashTrieMap<K, V> extends AbstractMap<K, V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    // Entries whose hashes agree in the bits consumed so far. Bit i of dataMap marks an inlined key and value at
+    // slot i, bit i of nodeMap a sub-trie. content holds the key/value pairs in slot order, then the sub-tries in
+    // slot order. Past the last level, content holds colliding pairs and both maps are 0.
+    private static final class Node {
+        static final Node EMPTY = new Node(0, 0, new Object[0]);
+
+        final int dataMap;
+        final int nodeMap;
+        final Object[] content;
+
+        Node(int dataMap, int nodeMap, Object[] content){
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.content = content;
+        }
+
+        int payloadCount(){
+            return nodeMap == 0 && dataMap == 0 ? content.length / 2 : Integer.bitCount(dataMap);
+        }
+
+        int dataIndex(int bit){
+            return Integer.bitCount(dataMap & (bit - 1));
+        }
+
+        Node nodeAt(int bit){
+            return (Node) content[2 * Integer.bitCount(dataMap) + Integer.bitCount(nodeMap & (bit - 1))];
+        }
+
+        Object get(Object key, int hash, int shift){
+            if (shift >= 32){
+                for (int i = 0; i < content.length; i += 2){
+                    if (content[i].equals(key)){
+                        return content[i + 1];
+                    }
+                }
+                return null;
+            }
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0){
+                int i = 2 * dataIndex(bit);
+                return content[i].equals(key) ? content[i + 1] : null;
+            }
+            if ((nodeMap & bit) != 0){
+                return nodeAt(bit).get(key, hash, shift + BITS);
+            }
+            return null;
+        }
+
+        // Returns this node when the key already maps to the value, sizeChange[0] is set to 1 when the key is new
+        Node plus(Object key, Object value, int hash, int shift, int[] sizeChange){
+            if (shift >= 32){
+                for (int i = 0; i < content.length; i += 2){
+                    if (content[i].equals(key)){
+                        return content[i + 1] == value ? this : new Node(0, 0, with(content, i + 1, value));
+                    }
+                }
+                sizeChange[0] = 1;
+                Object[] grown = Arrays.copyOf(content, content.length + 2);
+                grown[content.length] = key;
+                grown[content.length + 1] = value;
+                return new Node(0, 0, grown);
+            }
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0){
+                int i = 2 * dataIndex(bit);
+                Object existing = content[i];
+                if (existing.equals(key)){
+                    return content[i + 1] == value ? this : new Node(dataMap, nodeMap, with(content, i + 1, value));
+                }
+                sizeChange[0] = 1;
+                Node sub = pair(existing, content[i + 1], hash(existing), key, value, hash, shift + BITS);
+                return dataToNode(bit, sub);
+            }
+            if ((nodeMap & bit) != 0){
+                Node sub = nodeAt(bit);
+                Node changed = sub.plus(key, value, hash, shift + BITS, sizeChange);
+                return changed == sub ? this : replaceNode(bit, changed);
+            }
+            sizeChange[0] = 1;
+            int i = 2 * dataIndex(bit);
+            Object[] grown = new Object[content.length + 2];
+            System.arraycopy(content, 0, grown, 0, i);
+            grown[i] = key;
+            grown[i + 1] = value;
+            System.arraycopy(content, i, grown, i + 2, content.length - i);
+            return new Node(dataMap | bit, nodeMap, grown);
+        }
+
+        // Returns this node when the key is absent, sizeChange[0] is set to -1 otherwise
+        Node minus(Object key, int hash, int shift, int[] sizeChange){
+            if (shift >= 32){
+                for (int i = 0; i < content.length; i += 2){
+                    if (content[i].equals(key)){
+                        sizeChange[0] = -1;
+                        return new Node(0, 0, without(content, i, 2));
+                    }
+                }
+                return this;
+            }
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0){
+                int i = 2 * dataIndex(bit);
+                if (!content[i].equals(key)){
+                    return this;
+                }
+                sizeChange[0] = -1;
+                return new Node(dataMap & ~bit, nodeMap, without(content, i, 2));
+            }
+            if ((nodeMap & bit) != 0){
+                Node sub = nodeAt(bit);
+                Node changed = sub.minus(key, hash, shift + BITS, sizeChange);
+                if (changed == sub){
+                    return this;
+                }
+                // A sub-trie down to one entry is inlined, which keeps the trie as shallow as a fresh one
+                if (changed.payloadCount() == 1 && changed.nodeMap == 0){
+                    return nodeToData(bit, changed.content[0], changed.content[1]);
+                }
+                return replaceNode(bit, changed);
+            }
+            return this;
+        }
+
+        private Node dataToNode(int bit, Node sub){
+            int dataAt = 2 * dataIndex(bit);
+            int nodeAt = 2 * Integer.bitCount(dataMap) - 2 + Integer.bitCount(nodeMap & (bit - 1));
+            Object[] moved = new Object[content.length - 1];
+            System.arraycopy(content, 0, moved, 0, dataAt);
+            System.arraycopy(content, dataAt + 2, moved, dataAt, nodeAt - dataAt);
+            moved[nodeAt] = sub;
+            System.arraycopy(content, nodeAt + 2, moved, nodeAt + 1, content.length - nodeAt - 2);
+            return new Node(dataMap & ~bit, nodeMap | bit, moved);
+        }
+
+        private Node nodeToData(int bit, Object key, Object value){
+            int nodeAt = 2 * Integer.bitCount(dataMap) + Integer.bitCount(nodeMap & (bit - 1));
+            int dataAt = 2 * dataIndex(bit);
+            Object[] moved = new Object[content.length + 1];
+            System.arraycopy(content, 0, moved, 0, dataAt);
+            moved[dataAt] = key;
+            moved[dataAt + 1] = value;
+            System.arraycopy(content, dataAt, moved, dataAt + 2, nodeAt - dataAt);
+            System.arraycopy(content, nodeAt + 1, moved, nodeAt + 2, content.length - nodeAt - 1);
+            return new Node(dataMap | bit, nodeMap & ~bit, moved);
+        }
+
+        private Node replaceNode(int bit, Node sub){
+            int i = 2 * Integer.bitCount(dataMap) + Integer.bitCount(nodeMap & (bit - 1));
+            return new Node(dataMap, nodeMap, with(content, i, sub));
+        }
+
+        void forEach(BiConsumer<Object, Object> action){
+            int data = 2 * payloadCount();
+            for (int i = 0; i < data; i += 2){
+                action.accept(content[i], content[i + 1]);
+            }
+            for (int i = data; i < content.length; i++){
+                ((Node) content[i]).forEach(action);
+            }
+        }
+    }
+
+    private static final HashTrieMap<?, ?> EMPTY = new HashTrieMap<>(Node.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private HashTrieMap(Node root, int size){
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> HashTrieMap<K, V> empty(){
+        return (HashTrieMap<K, V>) EMPTY;
+    }
+
+    HashTrieMap<K, V> plus(K key, V value){
+        int[] sizeChange = new int[1];
+        Node changed = root.plus(key, value, hash(key), 0, sizeChange);
+        return changed == root ? this : new HashTrieMap<>(changed, size + sizeChange[0]);
+    }
+
+    HashTrieMap<K, V> minus(Object key){
+        int[] sizeChange = new int[1];
+        Node changed = root.minus(key, hash(key), 0, sizeChange);
+        return changed == root ? this : new HashTrieMap<>(changed, size + sizeChange[0]);
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key){
+        return key == null ? null : (V) root.get(key, hash(key), 0);
+    }
+
+    @Override
+    public boolean containsKey(Object key){
+        return get(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action){
+        root.forEach((k, v) -> action.accept((K) k, (V) v));
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet(){
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator(){
+                return new EntryIterator<>(root);
+            }
+
+            @Override
+            public int size(){
+                return size;
+            }
+        };
+    }
+
+    // Depth-first over the trie, a trie is at most 8 levels deep including the collision level
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final Node[] nodes = new Node[8];
+        private final int[] positions = new int[8];
+        private int depth = 0;
+
+        EntryIterator(Node root){
+            nodes[0] = root;
+            advance();
+        }
+
+        // Moves to the next pair, descending into sub-tries and popping exhausted nodes
+        private void advance(){
+            while (depth >= 0){
+                Node node = nodes[depth];
+                int data = 2 * node.payloadCount();
+                int position = positions[depth];
+                if (position < data){
+                    return;
+                }
+                int child = data + (position - data) / 2;
+                if (child < node.content.length){
+                    positions[depth] += 2;
+                    depth++;
+                    nodes[depth] = (Node) node.content[child];
+                    positions[depth] = 0;
+                }else {
+                    depth--;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext(){
+            return depth >= 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next(){
+            if (depth < 0){
+                throw new NoSuchElementException();
+            }
+            Node node = nodes[depth];
+            int position = positions[depth];
+            positions[depth] += 2;
+            Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<>(
+                    (K) node.content[position], (V) node.content[position + 1]);
+            advance();
+            return entry;
+        }
+    }
+
+    private static int hash(Object key){
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift){
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    // Two entries that agree up to shift, split over as many levels as their hashes keep agreeing
+    private static Node pair(Object key1, Object value1, int hash1, Object key2, Object value2, int hash2, int shift){
+        if (shift >= 32){
+            return new Node(0, 0, new Object[]{key1, value1, key2, value2});
+        }
+        int bit1 = bit(hash1, shift);
+        int bit2 = bit(hash2, shift);
+        if (bit1 == bit2){
+            return new Node(0, bit1, new Object[]{pair(key1, value1, hash1, key2, value2, hash2, shift + BITS)});
+        }
+        // Slot 31 is the sign bit, so slots are ordered by the unsigned bits
+        return Integer.compareUnsigned(bit1, bit2) < 0
+                ? new Node(bit1 | bit2, 0, new Object[]{key1, value1, key2, value2})
+                : new Node(bit1 | bit2, 0, new Object[]{key2, value2, key1, value1});
+    }
+
+    private static Object[] with(Object[] content, int i, Object element){
+        Object[] copy = content.clone();
+        copy[i] = element;
+        return copy;
+    }
+
+    private static Object[] without(Object[] content, int i, int count){
+        Object[] copy = new Object[content.length - count];
+        System.arraycopy(content, 0, copy, 0, i);
+        System.arraycopy(content, i + count, copy, i, content.length - i - count);
+        return copy;
+    }
+}
@@ -0,0 +1,85 @@
+package com.lightbend.akka.sample;
+
+import java.util.Arrays;
+
+// Interns string ids into dense int handles 0, 1, 2, ... in registration order. Handles are never reused, so an
+// array indexed by handle can stand in for a map keyed by id.
+final class IdRegistry {
+    private String[] ids;
+    private int size = 0;
+
+    // Open-addressing index from id to handle, slots hold handle + 1 so that 0 means empty
+    private int[] slots;
+    private int mask;
+
+    IdRegistry(int initialCapacity){
+        this.ids = new String[Math.max(16, initialCapacity)];
+        int slotCapacity = 2;
+        while (slotCapacity < ids.length * 2){
+            slotCapacity <<= 1;
+        }
+        this.slots = new int[slotCapacity];
+        this.mask = slotCapacity - 1;
+    }
+
+    int size(){
+        return size;
+    }
+
+    boolean contains(int handle){
+        return handle >= 0 && handle < size;
+    }
+
+    int handleOf(String id){
+        int slot = mix(id.hashCode()) & mask;
+        int entry;
+        while ((entry = slots[slot]) != 0){
+            if (ids[entry - 1].equals(id)){
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Returns the handle of the id, assigning the next one if it is new.
+    int intern(String id){
+        int existing = handleOf(id);
+        if (existing >= 0){
+            return existing;
+        }
+        if (size == ids.length){
+            grow();
+        }
+        int handle = size++;
+        ids[handle] = id;
+        insertSlot(id, handle);
+        return handle;
+    }
+
+    String idOf(int handle){
+        return ids[handle];
+    }
+
+    private void insertSlot(String id, int handle){
+        int slot = mix(id.hashCode()) & mask;
+        while (slots[slot] != 0){
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = handle + 1;
+    }
+
+    private void grow(){
+        ids = Arrays.copyOf(ids, ids.length * 2);
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int i = 0; i < size; i++){
+            insertSlot(ids[i], i);
+        }
+    }
+
+    private static int mix(int h){
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,82 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.io.Tcp;
+import akka.io.Tcp$;
+import akka.io.TcpMessage;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+// Accepts line-protocol connections and hands each one to a TemperatureIngestor. Connections are in pull mode,
+// the kernel socket buffers fill up and TCP flow control pushes back on producers while an ingestor has no credit.
+public class IngestServer extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    final ActorRef deviceManager;
+    final InetSocketAddress address;
+    final int batchSize;
+    final int maxInFlight;
+    final FiniteDuration ackTimeout;
+
+    public IngestServer(ActorRef deviceManager, InetSocketAddress address, int batchSize, int maxInFlight,
+                        FiniteDuration ackTimeout){
+        this.deviceManager = deviceManager;
+        this.address = address;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        this.ackTimeout = ackTimeout;
+    }
+
+    public static Props props(ActorRef deviceManager, InetSocketAddress address, int batchSize, int maxInFlight){
+        return props(deviceManager, address, batchSize, maxInFlight, TemperatureIngestor.ACK_TIMEOUT);
+    }
+
+    public static Props props(ActorRef deviceManager, InetSocketAddress address, int batchSize, int maxInFlight,
+                              FiniteDuration ackTimeout){
+        return Props.create(IngestServer.class, deviceManager, address, batchSize, maxInFlight, ackTimeout);
+    }
+
+    ActorRef listener;
+
+    @Override
+    public void preStart(){
+        // Tcp.get(system) is ambiguous from Java with Scala 2.12
+        Tcp$.MODULE$.get(getContext().getSystem()).manager().tell(
+                TcpMessage.bind(getSelf(), address, 100, Collections.emptyList(), true), getSelf());
+    }
+
+    private void onBound(Tcp.Bound bound){
+        log.info("Accepting readings on {}", bound.localAddress());
+        listener = getSender();
+        listener.tell(TcpMessage.resumeAccepting(1), getSelf());
+    }
+
+    private void onConnected(Tcp.Connected connected){
+        log.info("Ingesting readings from {}", connected.remoteAddress());
+        ActorRef connection = getSender();
+        ActorRef ingestor = getContext().actorOf(TemperatureIngestor.props(
+                deviceManager, connection, TcpMessage.resumeReading(), batchSize, maxInFlight, ackTimeout));
+        connection.tell(TcpMessage.register(ingestor), getSelf());
+        listener.tell(TcpMessage.resumeAccepting(1), getSelf());
+    }
+
+    private void onCommandFailed(Tcp.CommandFailed failed){
+        log.error("Ingest server command failed: {}", failed.cmd());
+        getContext().stop(getSelf());
+    }
+
+    @Override
+    public Receive createReceive(){
+        return receiveBuilder()
+                .match(Tcp.Bound.class, this::onBound)
+                .match(Tcp.Connected.class, this::onConnected)
+                .match(Tcp.CommandFailed.class, this::onCommandFailed)
+                .build();
+    }
+}
@@ -1,21 +1,55 @@
 package com.lightbend.akka.sample;
 
+import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.actor.Props;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
 
 public class IoTMain {
+    static final class CompletionListener extends AbstractActor {
+        static Props props(CountDownLatch completed){
+            return Props.create(CompletionListener.class, completed);
+        }
+
+        final CountDownLatch completed;
+
+        CompletionListener(CountDownLatch completed){
+            this.completed = completed;
+        }
+
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .match(TemperatureIngestor.Completed.class, c -> completed.countDown())
+                    .build();
+        }
+    }
+
     public static void main(String[] args){
         ActorSystem system = ActorSystem.create("iot-system");
 
         try {
+            // Readings come from stdin when enabled, run until all of them were recorded
+            boolean ingestStdin = system.settings().config().getBoolean("iot.ingest.stdin");
+            CountDownLatch completed = new CountDownLatch(1);
+            if (ingestStdin){
+                ActorRef listener = system.actorOf(CompletionListener.props(completed));
+                system.eventStream().subscribe(listener, TemperatureIngestor.Completed.class);
+            }
+
             // Create top level supervisor
             ActorRef supervisor = system.actorOf(IotSupervisor.props(), "iot-supervisor");
 
-            System.out.println("Press ENTER to exit the system");
-            System.in.read();
-        } catch (IOException e) {
+            if (ingestStdin){
+                completed.await();
+            }else {
+                System.out.println("Press ENTER to exit the system");
+                System.in.read();
+            }
+        } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         } finally {
             system.terminate();
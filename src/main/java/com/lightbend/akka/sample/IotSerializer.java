@@ -0,0 +1,254 @@
+package com.lightbend.akka.sample;
+
+import akka.serialization.SerializerWithStringManifest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Binary format of the registration and reading messages that a PartitionedDeviceManager exchanges with its nodes,
+// bound in application.conf. Arrays are written as a length followed by the elements, which keeps a batch of
+// readings a few bytes per reading instead of a Java serialization object graph. Other remote messages are rare
+// and left to Java serialization.
+public class IotSerializer extends SerializerWithStringManifest {
+    static final int IDENTIFIER = 7301;
+
+    private static final String TRACK_DEVICE = "T";
+    private static final String DEVICE_REGISTERED = "R";
+    private static final String TRACK_DEVICES = "TB";
+    private static final String DEVICES_REGISTERED = "RB";
+    private static final String TEMPERATURE_BATCH = "B";
+    private static final String TEMPERATURE_HANDLE_BATCH = "H";
+    private static final String TEMPERATURE_BATCH_RECORDED = "A";
+
+    // Length of a null string, longer strings cannot be written
+    private static final int NULL_STRING = 0xFFFF;
+
+    @Override
+    public int identifier(){
+        return IDENTIFIER;
+    }
+
+    @Override
+    public String manifest(Object o){
+        if (o instanceof DeviceManager.RequestTrackDevice){
+            return TRACK_DEVICE;
+        }
+        if (o instanceof DeviceManager.DeviceRegistered){
+            return DEVICE_REGISTERED;
+        }
+        if (o instanceof DeviceManager.RequestTrackDevices){
+            return TRACK_DEVICES;
+        }
+        if (o instanceof DeviceManager.DevicesRegistered){
+            return DEVICES_REGISTERED;
+        }
+        if (o instanceof DeviceManager.RecordTemperatureBatch){
+            return TEMPERATURE_BATCH;
+        }
+        if (o instanceof DeviceManager.RecordTemperatureHandleBatch){
+            return TEMPERATURE_HANDLE_BATCH;
+        }
+        if (o instanceof DeviceManager.TemperatureBatchRecorded){
+            return TEMPERATURE_BATCH_RECORDED;
+        }
+        throw new IllegalArgumentException("Cannot serialize " + o.getClass().getName());
+    }
+
+    @Override
+    public byte[] toBinary(Object o){
+        if (o instanceof DeviceManager.RecordTemperatureBatch){
+            DeviceManager.RecordTemperatureBatch b = (DeviceManager.RecordTemperatureBatch) o;
+            ByteBuffer buf = ByteBuffer.allocate(16 + stringSize(b.groupId) + stringsSize(b.deviceIds) + 16 * b.size());
+            buf.putLong(b.requestId);
+            putString(buf, b.groupId);
+            putStrings(buf, b.deviceIds);
+            putLongs(buf, b.timestamps);
+            putDoubles(buf, b.values);
+            return bytes(buf);
+        }
+        if (o instanceof DeviceManager.RecordTemperatureHandleBatch){
+            DeviceManager.RecordTemperatureHandleBatch b = (DeviceManager.RecordTemperatureHandleBatch) o;
+            ByteBuffer buf = ByteBuffer.allocate(32 + 20 * b.size());
+            buf.putLong(b.requestId);
+            buf.putInt(b.groupHandle);
+            buf.putLong(b.epoch);
+            putInts(buf, b.deviceHandles);
+            putLongs(buf, b.timestamps);
+            putDoubles(buf, b.values);
+            return bytes(buf);
+        }
+        if (o instanceof DeviceManager.TemperatureBatchRecorded){
+            DeviceManager.TemperatureBatchRecorded r = (DeviceManager.TemperatureBatchRecorded) o;
+            return ByteBuffer.allocate(16).putLong(r.requestId).putInt(r.recorded).putInt(r.rejected).array();
+        }
+        if (o instanceof DeviceManager.RequestTrackDevice){
+            DeviceManager.RequestTrackDevice r = (DeviceManager.RequestTrackDevice) o;
+            ByteBuffer buf = ByteBuffer.allocate(stringSize(r.groupId) + stringSize(r.deviceId) + 16);
+            putString(buf, r.groupId);
+            putString(buf, r.deviceId);
+            buf.putInt(r.groupHandle);
+            buf.putInt(r.deviceHandle);
+            buf.putLong(r.epoch);
+            return bytes(buf);
+        }
+        if (o instanceof DeviceManager.DeviceRegistered){
+            DeviceManager.DeviceRegistered r = (DeviceManager.DeviceRegistered) o;
+            return ByteBuffer.allocate(16).putInt(r.groupHandle).putInt(r.deviceHandle).putLong(r.epoch).array();
+        }
+        if (o instanceof DeviceManager.RequestTrackDevices){
+            DeviceManager.RequestTrackDevices r = (DeviceManager.RequestTrackDevices) o;
+            ByteBuffer buf = ByteBuffer.allocate(8 + stringsSize(r.groupIds) + stringsSize(r.deviceIds) + 4 + 4 * r.size());
+            buf.putLong(r.requestId);
+            putStrings(buf, r.groupIds);
+            putStrings(buf, r.deviceIds);
+            if (r.groupHandles == null){
+                buf.putInt(-1);
+            }else {
+                putInts(buf, r.groupHandles);
+            }
+            return bytes(buf);
+        }
+        if (o instanceof DeviceManager.DevicesRegistered){
+            DeviceManager.DevicesRegistered r = (DeviceManager.DevicesRegistered) o;
+            ByteBuffer buf = ByteBuffer.allocate(24 + 17 * r.outcomes.length);
+            buf.putLong(r.requestId);
+            buf.putInt(r.outcomes.length);
+            buf.put(r.outcomes);
+            putInts(buf, r.groupHandles);
+            putInts(buf, r.deviceHandles);
+            putLongs(buf, r.epochs);
+            return bytes(buf);
+        }
+        throw new IllegalArgumentException("Cannot serialize " + o.getClass().getName());
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest){
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        switch (manifest){
+            case TEMPERATURE_BATCH:
+                return new DeviceManager.RecordTemperatureBatch(
+                        buf.getLong(), getString(buf), getStrings(buf), getLongs(buf), getDoubles(buf));
+            case TEMPERATURE_HANDLE_BATCH:
+                return new DeviceManager.RecordTemperatureHandleBatch(
+                        buf.getLong(), buf.getInt(), buf.getLong(), getInts(buf), getLongs(buf), getDoubles(buf));
+            case TEMPERATURE_BATCH_RECORDED:
+                return new DeviceManager.TemperatureBatchRecorded(buf.getLong(), buf.getInt(), buf.getInt());
+            case TRACK_DEVICE:
+                return new DeviceManager.RequestTrackDevice(
+                        getString(buf), getString(buf), buf.getInt(), buf.getInt(), buf.getLong());
+            case DEVICE_REGISTERED:
+                return new DeviceManager.DeviceRegistered(buf.getInt(), buf.getInt(), buf.getLong());
+            case TRACK_DEVICES:
+                return new DeviceManager.RequestTrackDevices(buf.getLong(), getStrings(buf), getStrings(buf), getInts(buf));
+            case DEVICES_REGISTERED: {
+                long requestId = buf.getLong();
+                byte[] outcomes = new byte[buf.getInt()];
+                buf.get(outcomes);
+                return new DeviceManager.DevicesRegistered(requestId, outcomes, getInts(buf), getInts(buf), getLongs(buf));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown manifest " + manifest);
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buf){
+        return buf.position() == buf.capacity() ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    // Upper bounds, a char takes at most 3 bytes in UTF-8
+    private static int stringSize(String s){
+        return 2 + (s == null ? 0 : 3 * s.length());
+    }
+
+    private static int stringsSize(String[] strings){
+        int size = 4;
+        for (String s : strings){
+            size += stringSize(s);
+        }
+        return size;
+    }
+
+    private static void putString(ByteBuffer buf, String s){
+        if (s == null){
+            buf.putShort((short) NULL_STRING);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NULL_STRING){
+            throw new IllegalArgumentException("Id of " + bytes.length + " bytes is too long to send");
+        }
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buf){
+        int length = buf.getShort() & 0xFFFF;
+        if (length == NULL_STRING){
+            return null;
+        }
+        String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    private static void putStrings(ByteBuffer buf, String[] strings){
+        buf.putInt(strings.length);
+        for (String s : strings){
+            putString(buf, s);
+        }
+    }
+
+    private static String[] getStrings(ByteBuffer buf){
+        String[] strings = new String[buf.getInt()];
+        for (int i = 0; i < strings.length; i++){
+            strings[i] = getString(buf);
+        }
+        return strings;
+    }
+
+    private static void putInts(ByteBuffer buf, int[] ints){
+        buf.putInt(ints.length);
+        buf.asIntBuffer().put(ints);
+        buf.position(buf.position() + 4 * ints.length);
+    }
+
+    // A negative length stands for null
+    private static int[] getInts(ByteBuffer buf){
+        int length = buf.getInt();
+        if (length < 0){
+            return null;
+        }
+        int[] ints = new int[length];
+        buf.asIntBuffer().get(ints);
+        buf.position(buf.position() + 4 * length);
+        return ints;
+    }
+
+    private static void putLongs(ByteBuffer buf, long[] longs){
+        buf.putInt(longs.length);
+        buf.asLongBuffer().put(longs);
+        buf.position(buf.position() + 8 * longs.length);
+    }
+
+    private static long[] getLongs(ByteBuffer buf){
+        long[] longs = new long[buf.getInt()];
+        buf.asLongBuffer().get(longs);
+        buf.position(buf.position() + 8 * longs.length);
+        return longs;
+    }
+
+    private static void putDoubles(ByteBuffer buf, double[] doubles){
+        buf.putInt(doubles.length);
+        buf.asDoubleBuffer().put(doubles);
+        buf.position(buf.position() + 8 * doubles.length);
+    }
+
+    private static double[] getDoubles(ByteBuffer buf){
+        double[] doubles = new double[buf.getInt()];
+        buf.asDoubleBuffer().get(doubles);
+        buf.position(buf.position() + 8 * doubles.length);
+        return doubles;
+    }
+}
@@ -1,9 +1,16 @@
 package com.lightbend.akka.sample;
 
 import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
 import akka.actor.Props;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class IotSupervisor extends AbstractActor {
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
@@ -14,6 +21,40 @@ public class IotSupervisor extends AbstractActor {
 
     @Override
     public void preStart(){
+        Config config = getContext().getSystem().settings().config();
+        // Dispatchers and mailboxes of the hierarchy come from the iot section and deployment of application.conf
+        Config partitioning = config.getConfig("iot.partitioning");
+        List<String> nodes = partitioning.getStringList("nodes");
+        ActorRef deviceManager;
+        if (nodes.isEmpty()){
+            deviceManager = getContext().actorOf(
+                    DeviceManager.props(DeviceGroupSettings.fromConfig(config.getConfig("iot.group"))), "device-manager");
+        }else {
+            deviceManager = getContext().actorOf(PartitionedDeviceManager.props(nodes, partitioning.getInt("virtual-nodes"),
+                    FiniteDuration.create(partitioning.getDuration("rebalance-timeout").toNanos(), TimeUnit.NANOSECONDS)),
+                    "device-manager");
+        }
+
+        Config ingest = config.getConfig("iot.ingest");
+        int batchSize = ingest.getInt("batch-size");
+        int maxInFlight = ingest.getInt("max-in-flight");
+        FiniteDuration ackTimeout = FiniteDuration.create(ingest.getDuration("ack-timeout").toNanos(), TimeUnit.NANOSECONDS);
+        if (ingest.getInt("port") > 0){
+            InetSocketAddress address = new InetSocketAddress(ingest.getString("interface"), ingest.getInt("port"));
+            getContext().actorOf(IngestServer.props(deviceManager, address, batchSize, maxInFlight, ackTimeout),
+                    "ingest-server");
+        }
+        if (ingest.getBoolean("stdin")){
+            ActorRef reader = getContext().actorOf(
+                    StreamReader.props(System.in, ingest.getBytes("chunk-size").intValue()), "stdin-reader");
+            getContext().actorOf(TemperatureIngestor.props(
+                    deviceManager, reader, StreamReader.Read.INSTANCE, batchSize, maxInFlight, ackTimeout), "stdin-ingestor");
+        }
+        long dumpInterval = config.getDuration("iot.metrics.dump-interval").toNanos();
+        if (dumpInterval > 0){
+            getContext().actorOf(MetricsReporter.props(
+                    FiniteDuration.create(dumpInterval, TimeUnit.NANOSECONDS)), "metrics-reporter");
+        }
         log.info("iot Application started");
     }
 
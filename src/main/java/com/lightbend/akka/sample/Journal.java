@@ -0,0 +1,335 @@
+package com.lightbend.akka.sample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+// Segmented append-only log of device registrations and readings with compact snapshots.
+//
+// Every record is [int length][int crc32][long seq][byte type][utf groupId][utf deviceId] followed by
+// [long timestamp][double value] for readings. Appends are buffered and only made durable by sync(), so callers
+// can commit many events with a single fsync. The state is the memory-mapped base snapshot plus the compacted
+// changes since (registered devices and their last reading), snapshot() merges both into a new base and drops
+// all older segments. A failed write leaves the in-memory state ahead of the disk, reload() drops everything not yet
+// synced and rebuilds the state from disk.
+final class Journal implements AutoCloseable {
+    static final byte TRACKED = 1;
+    static final byte RECORDED = 2;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    private final Path directory;
+    private final long segmentSize;
+    private MappedSnapshot base;
+    private Map<String, DeviceTable> delta = new HashMap<>();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private final ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel segment;
+    private long segmentBytes;
+    // Size of the current segment at the last sync, what a reload() keeps of it
+    private long syncedBytes;
+    private long lastSeq;
+    private long eventsSinceSnapshot = 0;
+
+    private Journal(Path directory, long segmentSize){
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    // Maps the latest snapshot, replays the log tail on top of it and opens a fresh segment for appends.
+    static Journal open(Path directory, long segmentSize) throws IOException {
+        Files.createDirectories(directory);
+        Journal journal = new Journal(directory, segmentSize);
+        journal.load();
+        return journal;
+    }
+
+    // Drops the buffered records and whatever a failed write left of them in the current segment, then rebuilds
+    // base, changes and sequence number from disk. Records appended since the last sync are lost. A closed journal
+    // stays closed, every write to it keeps failing.
+    void reload() throws IOException {
+        buffer.clear();
+        segment.truncate(syncedBytes);
+        segment.close();
+        load();
+    }
+
+    private void load() throws IOException {
+        base = MappedSnapshot.open(directory.resolve(SNAPSHOT_FILE));
+        delta = new HashMap<>();
+        lastSeq = base.seq();
+        for (Path segmentFile : segments(directory)){
+            lastSeq = Math.max(lastSeq, replaySegment(segmentFile, base.seq(), delta));
+        }
+        rollSegment();
+    }
+
+    MappedSnapshot base(){
+        return base;
+    }
+
+    // Devices registered or updated since the base snapshot
+    Map<String, DeviceTable> delta(){
+        return delta;
+    }
+
+    long lastSeq(){
+        return lastSeq;
+    }
+
+    long eventsSinceSnapshot(){
+        return eventsSinceSnapshot;
+    }
+
+    void appendTracked(String groupId, String deviceId) throws IOException {
+        table(groupId).register(deviceId);
+        beginRecord(TRACKED, groupId, deviceId);
+        endRecord();
+    }
+
+    void appendRecorded(String groupId, String deviceId, long timestamp, double value) throws IOException {
+        DeviceTable table = table(groupId);
+        table.record(table.register(deviceId), timestamp, value);
+        beginRecord(RECORDED, groupId, deviceId);
+        record.putLong(timestamp);
+        record.putDouble(value);
+        endRecord();
+    }
+
+    // Writes all buffered records and forces them to disk.
+    void sync() throws IOException {
+        drain();
+        segment.force(false);
+        syncedBytes = segmentBytes;
+        if (segmentBytes >= segmentSize){
+            rollSegment();
+        }
+    }
+
+    // Merges base and changes into a new snapshot, maps it as the new base and deletes the segments it covers.
+    // Views of the previous base stay valid, its pages remain mapped until they are no longer referenced.
+    void snapshot() throws IOException {
+        sync();
+        Set<String> groupIds = new HashSet<>(delta.keySet());
+        for (MappedSnapshot.Group group : base.groups()){
+            groupIds.add(group.groupId);
+        }
+        List<MappedSnapshot.GroupSource> groups = new ArrayList<>(groupIds.size());
+        for (String groupId : groupIds){
+            groups.add(merge(groupId, base.group(groupId), delta.get(groupId)));
+        }
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        Path tmp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        MappedSnapshot.write(tmp, lastSeq, groups);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        base = MappedSnapshot.open(file);
+        delta = new HashMap<>();
+        rollSegment();
+        Path current = segmentPath(lastSeq + 1);
+        for (Path segmentFile : segments(directory)){
+            if (!segmentFile.equals(current)){
+                Files.delete(segmentFile);
+            }
+        }
+        eventsSinceSnapshot = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        segment.close();
+    }
+
+    private DeviceTable table(String groupId){
+        return delta.computeIfAbsent(groupId, g -> new DeviceTable(16));
+    }
+
+    // Merge-walks the sorted base devices and the sorted changes of one group.
+    private static MappedSnapshot.GroupSource merge(String groupId, MappedSnapshot.Group baseGroup, DeviceTable changes){
+        int baseSize = baseGroup == null ? 0 : baseGroup.size();
+        int changeSize = changes == null ? 0 : changes.size();
+        Integer[] order = new Integer[changeSize];
+        for (int i = 0; i < changeSize; i++){
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> changes.deviceId(a).compareTo(changes.deviceId(b)));
+
+        int capacity = baseSize + changeSize;
+        String[] deviceIds = new String[capacity];
+        boolean[] hasReadings = new boolean[capacity];
+        long[] timestamps = new long[capacity];
+        double[] values = new double[capacity];
+        int size = 0;
+        int b = 0;
+        int c = 0;
+        String baseId = baseSize > 0 ? baseGroup.deviceId(0) : null;
+        while (b < baseSize || c < changeSize){
+            int cmp = b == baseSize ? 1 : c == changeSize ? -1 : baseId.compareTo(changes.deviceId(order[c]));
+            if (cmp < 0){
+                deviceIds[size] = baseId;
+                hasReadings[size] = baseGroup.hasReading(b);
+                timestamps[size] = baseGroup.timestamp(b);
+                values[size] = baseGroup.value(b);
+            }else {
+                int change = order[c];
+                deviceIds[size] = changes.deviceId(change);
+                if (changes.hasReading(change) || cmp > 0){
+                    hasReadings[size] = changes.hasReading(change);
+                    timestamps[size] = changes.timestamp(change);
+                    values[size] = changes.value(change);
+                }else {
+                    // Re-registered without a new reading, keep the reading from the base
+                    hasReadings[size] = baseGroup.hasReading(b);
+                    timestamps[size] = baseGroup.timestamp(b);
+                    values[size] = baseGroup.value(b);
+                }
+                c++;
+            }
+            if (cmp <= 0){
+                b++;
+                baseId = b < baseSize ? baseGroup.deviceId(b) : null;
+            }
+            size++;
+        }
+        final int count = size;
+        return new MappedSnapshot.GroupSource() {
+            public String groupId(){ return groupId; }
+            public int size(){ return count; }
+            public String deviceId(int i){ return deviceIds[i]; }
+            public boolean hasReading(int i){ return hasReadings[i]; }
+            public long timestamp(int i){ return timestamps[i]; }
+            public double value(int i){ return values[i]; }
+        };
+    }
+
+    private void beginRecord(byte type, String groupId, String deviceId){
+        record.clear();
+        record.position(8);
+        record.putLong(++lastSeq);
+        record.put(type);
+        putString(record, groupId);
+        putString(record, deviceId);
+    }
+
+    private void endRecord() throws IOException {
+        int length = record.position() - 8;
+        crc.reset();
+        crc.update(record.array(), 8, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        if (buffer.remaining() < record.remaining()){
+            drain();
+        }
+        segmentBytes += record.remaining();
+        buffer.put(record);
+        eventsSinceSnapshot++;
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()){
+            segment.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void rollSegment() throws IOException {
+        if (segment != null && segment.isOpen()){
+            drain();
+            segment.force(false);
+            segment.close();
+        }
+        segment = FileChannel.open(segmentPath(lastSeq + 1),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentBytes = segment.size();
+        syncedBytes = segmentBytes;
+    }
+
+    private Path segmentPath(long firstSeq){
+        return directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)){
+            for (Path file : files){
+                result.add(file);
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+    // Applies all intact records newer than afterSeq. A torn or corrupt tail, left by a crash mid-write,
+    // is cut off so that later appends to the segment remain readable.
+    private static long replaySegment(Path segmentFile, long afterSeq, Map<String, DeviceTable> state) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segmentFile));
+        CRC32 crc = new CRC32();
+        long lastSeq = afterSeq;
+        int validBytes = 0;
+        while (data.remaining() >= 8){
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length <= 0 || length > data.remaining()){
+                break;
+            }
+            crc.reset();
+            crc.update(data.array(), data.position(), length);
+            if ((int) crc.getValue() != checksum){
+                break;
+            }
+            int end = data.position() + length;
+            long seq = data.getLong();
+            if (seq > afterSeq){
+                byte type = data.get();
+                String groupId = getString(data);
+                DeviceTable table = state.computeIfAbsent(groupId, g -> new DeviceTable(16));
+                int index = table.register(getString(data));
+                if (type == RECORDED){
+                    table.record(index, data.getLong(), data.getDouble());
+                }
+                lastSeq = seq;
+            }
+            data.position(end);
+            validBytes = end;
+        }
+        if (validBytes < data.capacity()){
+            try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.WRITE)){
+                channel.truncate(validBytes);
+            }
+        }
+        return lastSeq;
+    }
+
+    static void putString(ByteBuffer buf, String s){
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    static String getString(ByteBuffer buf){
+        int length = buf.getShort() & 0xFFFF;
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+}
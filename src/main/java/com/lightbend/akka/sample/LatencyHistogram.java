@@ -0,0 +1,102 @@
+package com.lightbend.akka.sample;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear histogram of nanosecond latencies in the style of HdrHistogram. Values below 128 get a bucket each,
+// above that every power of two is split into 64 buckets, so a value is reported at most 1.6% high. Recording is
+// one atomic increment in a stripe picked by the calling thread, so actors on many threads rarely share a line.
+final class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 7;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    // Larger values are clamped, about 68 seconds
+    static final long MAX_VALUE = (1L << 36) - 1;
+    static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+
+    LatencyHistogram(){
+        int stripeCount = Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        this.stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++){
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        this.stripeMask = stripeCount - 1;
+    }
+
+    static int indexOf(long value){
+        if (value < SUB_BUCKET_COUNT){
+            return (int) Math.max(0L, value);
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    // Largest value that lands in the bucket
+    static long highestEquivalent(int index){
+        if (index < SUB_BUCKET_COUNT){
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index - shift * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    void record(long nanos){
+        stripes[(int) Thread.currentThread().getId() & stripeMask].incrementAndGet(indexOf(Math.min(nanos, MAX_VALUE)));
+    }
+
+    // Not atomic across buckets, values recorded meanwhile may or may not be included
+    Snapshot snapshot(){
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes){
+            for (int i = 0; i < BUCKETS; i++){
+                counts[i] += stripe.get(i);
+            }
+        }
+        return new Snapshot(counts);
+    }
+
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new long[BUCKETS]);
+
+        final long[] counts;
+        final long count;
+
+        Snapshot(long[] counts){
+            this.counts = counts;
+            long total = 0L;
+            for (long c : counts){
+                total += c;
+            }
+            this.count = total;
+        }
+
+        // What was recorded since the earlier snapshot of the same histogram
+        Snapshot minus(Snapshot earlier){
+            long[] delta = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++){
+                delta[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(delta);
+        }
+
+        // Value at or below which the fraction q of the recorded values lie, 0 when nothing was recorded
+        long percentile(double q){
+            long rank = Math.max(1L, (long) Math.ceil(q * count));
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i++){
+                seen += counts[i];
+                if (seen >= rank){
+                    return highestEquivalent(i);
+                }
+            }
+            return 0L;
+        }
+
+        long max(){
+            return percentile(1.0);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.lightbend.akka.sample;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+// Writes readings in the ingest line protocol to a local IngestServer as fast as the socket accepts them.
+// Writes block once the server stops reading, so the achieved rate is what the pipeline sustains end to end.
+//
+//   mvn exec:java -Dexec.mainClass=com.lightbend.akka.sample.LoadGenerator -Dexec.args="9876 100 100 10000000"
+public class LoadGenerator {
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9876;
+        int groups = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int devicesPerGroup = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        long readings = args.length > 3 ? Long.parseLong(args[3]) : 10_000_000L;
+
+        long start = System.nanoTime();
+        long bytes = send(new InetSocketAddress("127.0.0.1", port), groups, devicesPerGroup, readings);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Sent %d readings (%d bytes) in %.2f s, %.0f readings/s%n",
+                readings, bytes, seconds, readings / seconds);
+    }
+
+    // Sends readings round-robin over groups "group-<g>" with devices "device-<d>", returns the bytes written.
+    public static long send(InetSocketAddress address, int groups, int devicesPerGroup, long readings) throws IOException {
+        byte[][] groupIds = ids("group-", groups);
+        byte[][] deviceIds = ids("device-", devicesPerGroup);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long written = 0L;
+        try (SocketChannel channel = SocketChannel.open(address)){
+            for (long n = 0; n < readings; n++){
+                if (buffer.remaining() < 128){
+                    written += flush(channel, buffer);
+                }
+                buffer.put(groupIds[(int) (n % groups)]).put((byte) ' ');
+                buffer.put(deviceIds[(int) ((n / groups) % devicesPerGroup)]).put((byte) ' ');
+                putLong(buffer, n);
+                buffer.put((byte) ' ');
+                // Values between 15.0 and 34.9 with one decimal
+                long tenths = 150 + n % 200;
+                putLong(buffer, tenths / 10);
+                buffer.put((byte) '.').put((byte) ('0' + tenths % 10)).put((byte) '\n');
+            }
+            written += flush(channel, buffer);
+        }
+        return written;
+    }
+
+    private static byte[][] ids(String prefix, int count){
+        byte[][] ids = new byte[count][];
+        for (int i = 0; i < count; i++){
+            ids[i] = (prefix + i).getBytes(StandardCharsets.UTF_8);
+        }
+        return ids;
+    }
+
+    private static void putLong(ByteBuffer buffer, long value){
+        if (value == 0){
+            buffer.put((byte) '0');
+            return;
+        }
+        int start = buffer.position();
+        while (value > 0){
+            buffer.put((byte) ('0' + value % 10));
+            value /= 10;
+        }
+        // Digits were written least significant first
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--){
+            byte b = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, b);
+        }
+    }
+
+    private static int flush(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        int bytes = buffer.remaining();
+        while (buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+        buffer.clear();
+        return bytes;
+    }
+}
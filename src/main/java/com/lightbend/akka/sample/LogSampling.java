@@ -0,0 +1,94 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import com.typesafe.config.Config;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Sampling and rate limits for the log lines devices and groups write per event, one instance per ActorSystem and
+// configured under iot.logging. Actors ask a category before logging, so events that are not logged cost neither
+// boxing of their arguments nor a trip over the event bus.
+public final class LogSampling implements Extension {
+    static final class Id extends AbstractExtensionId<LogSampling> implements ExtensionIdProvider {
+        @Override
+        public LogSampling createExtension(ExtendedActorSystem system){
+            Config logging = system.settings().config().getConfig("iot.logging");
+            return new LogSampling(Category.fromConfig(logging.getConfig("readings")),
+                    Category.fromConfig(logging.getConfig("lifecycle")));
+        }
+
+        @Override
+        public Id lookup(){
+            return ID;
+        }
+    }
+
+    static final Id ID = new Id();
+
+    public static LogSampling get(ActorSystem system){
+        return ID.get(system);
+    }
+
+    static final class Category {
+        // One event in sampleEvery is logged, picked at random, none when 0
+        final int sampleEvery;
+        // Sampled events beyond this many per second across the system are dropped and only counted, the count is
+        // in the MetricsReporter dump
+        final int maxPerSecond;
+
+        private final AtomicLong currentSecond = new AtomicLong();
+        private final AtomicInteger loggedThisSecond = new AtomicInteger();
+        final LongAdder dropped = new LongAdder();
+
+        Category(int sampleEvery, int maxPerSecond){
+            this.sampleEvery = sampleEvery;
+            this.maxPerSecond = maxPerSecond;
+        }
+
+        static Category fromConfig(Config category){
+            return new Category(category.getInt("sample-every"), category.getInt("max-per-second"));
+        }
+
+        // Whether the caller should log this event, free of allocation and of shared writes for unsampled events
+        boolean sample(){
+            if (sampleEvery <= 0){
+                return false;
+            }
+            if (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0){
+                return false;
+            }
+            return withinRate(System.nanoTime());
+        }
+
+        // Counts a sampled event against the limit of the second it falls in
+        boolean withinRate(long nanoTime){
+            long second = nanoTime / 1_000_000_000L;
+            long current = currentSecond.get();
+            if (second != current && currentSecond.compareAndSet(current, second)){
+                loggedThisSecond.set(0);
+            }
+            if (loggedThisSecond.incrementAndGet() > maxPerSecond){
+                dropped.increment();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    // A log line per recorded reading or batch
+    final Category readings;
+    // Device actors starting, stopping, passivating and being re-created
+    final Category lifecycle;
+
+    LogSampling(Category readings, Category lifecycle){
+        this.readings = readings;
+        this.lifecycle = lifecycle;
+    }
+}
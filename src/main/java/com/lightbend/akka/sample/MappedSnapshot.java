@@ -0,0 +1,223 @@
+package com.lightbend.akka.sample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Read-only, memory-mapped view of a journal snapshot. Nothing is decoded up front: groups and devices are read
+// straight from the mapped pages, so a restart can serve the snapshot before any Device actor exists.
+//
+// Layout, all offsets absolute:
+//   header  [int magic][long seq][int stringCount][int groupCount][long stringsOffset][long groupsOffset][long recordsOffset]
+//   strings [int offset] x (stringCount + 1) followed by the UTF-8 bytes, every group and device id is stored once
+//   groups  [int groupIdString][int firstRecord][int recordCount] per group
+//   records [int deviceIdString][long timestamp][double value][byte hasReading] per device, sorted by device id
+//           within a group
+final class MappedSnapshot {
+    static final int MAGIC = 0x494f5403;
+    static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 8 + 8 + 8;
+    static final int GROUP_SIZE = 12;
+    static final int RECORD_SIZE = 21;
+
+    static final MappedSnapshot EMPTY = new MappedSnapshot(null, 0L, 0, 0, 0, 0);
+
+    private final ByteBuffer data;
+    private final long seq;
+    private final int stringCount;
+    private final int stringsOffset;
+    private final int stringBytesOffset;
+    private final int recordsOffset;
+    private final Map<String, Group> groups = new HashMap<>();
+
+    private MappedSnapshot(ByteBuffer data, long seq, int stringCount, int stringsOffset, int groupsOffset, int recordsOffset){
+        this.data = data;
+        this.seq = seq;
+        this.stringCount = stringCount;
+        this.stringsOffset = stringsOffset;
+        this.stringBytesOffset = stringsOffset + 4 * (stringCount + 1);
+        this.recordsOffset = recordsOffset;
+        if (data != null){
+            int groupCount = data.getInt(16);
+            for (int g = 0; g < groupCount; g++){
+                int at = groupsOffset + g * GROUP_SIZE;
+                String groupId = string(data.getInt(at));
+                groups.put(groupId, new Group(groupId, data.getInt(at + 4), data.getInt(at + 8)));
+            }
+        }
+    }
+
+    static MappedSnapshot open(Path file) throws IOException {
+        if (!Files.exists(file)){
+            return EMPTY;
+        }
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            if (channel.size() > Integer.MAX_VALUE){
+                throw new IOException("Snapshot larger than 2 GB cannot be mapped: " + file);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.getInt(0) != MAGIC){
+            throw new IOException("Not a device journal snapshot: " + file);
+        }
+        return new MappedSnapshot(data, data.getLong(4), data.getInt(12),
+                (int) data.getLong(20), (int) data.getLong(28), (int) data.getLong(36));
+    }
+
+    long seq(){
+        return seq;
+    }
+
+    Collection<Group> groups(){
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    Group group(String groupId){
+        return groups.get(groupId);
+    }
+
+    private String string(int index){
+        int start = data.getInt(stringsOffset + 4 * index);
+        int end = data.getInt(stringsOffset + 4 * (index + 1));
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++){
+            bytes[i] = data.get(stringBytesOffset + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Devices of one group. Reads only use absolute positions, so a view can be shared between actors.
+    final class Group {
+        final String groupId;
+        private final int firstRecord;
+        private final int size;
+
+        private Group(String groupId, int firstRecord, int size){
+            this.groupId = groupId;
+            this.firstRecord = firstRecord;
+            this.size = size;
+        }
+
+        int size(){
+            return size;
+        }
+
+        String deviceId(int i){
+            return string(data.getInt(record(i)));
+        }
+
+        long timestamp(int i){
+            return data.getLong(record(i) + 4);
+        }
+
+        double value(int i){
+            return data.getDouble(record(i) + 12);
+        }
+
+        boolean hasReading(int i){
+            return data.get(record(i) + 20) != 0;
+        }
+
+        // Binary search over the sorted device ids, -1 if the device is not in the snapshot.
+        int indexOf(String deviceId){
+            int low = 0;
+            int high = size - 1;
+            while (low <= high){
+                int mid = (low + high) >>> 1;
+                int cmp = deviceId(mid).compareTo(deviceId);
+                if (cmp < 0){
+                    low = mid + 1;
+                }else if (cmp > 0){
+                    high = mid - 1;
+                }else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private int record(int i){
+            return recordsOffset + (firstRecord + i) * RECORD_SIZE;
+        }
+    }
+
+    // Source of the devices of one group when writing a snapshot, already sorted by device id.
+    interface GroupSource {
+        String groupId();
+        int size();
+        String deviceId(int i);
+        boolean hasReading(int i);
+        long timestamp(int i);
+        double value(int i);
+    }
+
+    static void write(Path file, long seq, List<GroupSource> groups) throws IOException {
+        Map<String, Integer> interned = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int recordCount = 0;
+        for (GroupSource group : groups){
+            intern(group.groupId(), interned, strings);
+            for (int i = 0; i < group.size(); i++){
+                intern(group.deviceId(i), interned, strings);
+            }
+            recordCount += group.size();
+        }
+        int stringBytes = 0;
+        for (byte[] s : strings){
+            stringBytes += s.length;
+        }
+        long stringsOffset = HEADER_SIZE;
+        long groupsOffset = stringsOffset + 4L * (strings.size() + 1) + stringBytes;
+        long recordsOffset = groupsOffset + (long) GROUP_SIZE * groups.size();
+        long total = recordsOffset + (long) RECORD_SIZE * recordCount;
+        if (total > Integer.MAX_VALUE){
+            throw new IOException("Snapshot would exceed 2 GB: " + total + " bytes");
+        }
+
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            MappedByteBuffer buf = out.map(FileChannel.MapMode.READ_WRITE, 0, total);
+            buf.putInt(MAGIC).putLong(seq).putInt(strings.size()).putInt(groups.size())
+                    .putLong(stringsOffset).putLong(groupsOffset).putLong(recordsOffset);
+            int offset = 0;
+            for (byte[] s : strings){
+                buf.putInt(offset);
+                offset += s.length;
+            }
+            buf.putInt(offset);
+            for (byte[] s : strings){
+                buf.put(s);
+            }
+            int firstRecord = 0;
+            for (GroupSource group : groups){
+                buf.putInt(interned.get(group.groupId())).putInt(firstRecord).putInt(group.size());
+                firstRecord += group.size();
+            }
+            for (GroupSource group : groups){
+                for (int i = 0; i < group.size(); i++){
+                    buf.putInt(interned.get(group.deviceId(i))).putLong(group.timestamp(i)).putDouble(group.value(i))
+                            .put(group.hasReading(i) ? (byte) 1 : (byte) 0);
+                }
+            }
+            buf.force();
+        }
+    }
+
+    private static void intern(String s, Map<String, Integer> interned, List<byte[]> strings){
+        if (!interned.containsKey(s)){
+            interned.put(s, strings.size());
+            strings.add(s.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms of the IoT hierarchy, one instance per ActorSystem. Actors on many threads update
+// them at once and nothing reads them on the hot path, so counters are striped LongAdders and histograms are striped
+// as well. MetricsReporter dumps them. With iot.metrics.enabled = off actors skip every update.
+public final class Metrics implements Extension {
+    static final class Id extends AbstractExtensionId<Metrics> implements ExtensionIdProvider {
+        @Override
+        public Metrics createExtension(ExtendedActorSystem system){
+            return new Metrics(system.settings().config().getBoolean("iot.metrics.enabled"));
+        }
+
+        @Override
+        public Id lookup(){
+            return ID;
+        }
+    }
+
+    static final Id ID = new Id();
+
+    public static Metrics get(ActorSystem system){
+        return ID.get(system);
+    }
+
+    final boolean enabled;
+
+    // Running actors, devices of table groups count as well
+    final LongAdder groups = new LongAdder();
+    final LongAdder devices = new LongAdder();
+
+    // Readings recorded per group, and the time a device or table group spends on a single RecordTemperature
+    final ConcurrentMap<String, LongAdder> readings = new ConcurrentHashMap<>();
+    final LatencyHistogram recordTemperature = new LatencyHistogram();
+
+    // Completed RequestAllTemperatures fan-outs, from asking the devices to the reply
+    final LongAdder queries = new LongAdder();
+    final LatencyHistogram queryLatency = new LatencyHistogram();
+    final LongAdder queriesTimedOut = new LongAdder();
+    final LongAdder devicesTimedOut = new LongAdder();
+    final LongAdder devicesNotAvailable = new LongAdder();
+
+    Metrics(boolean enabled){
+        this.enabled = enabled;
+    }
+
+    // Looked up once per actor, which then increments it directly
+    LongAdder readings(String groupId){
+        return readings.computeIfAbsent(groupId, g -> new LongAdder());
+    }
+
+    void queryCompleted(GroupQuery query){
+        if (!enabled){
+            return;
+        }
+        queries.increment();
+        queryLatency.record(System.nanoTime() - query.startedAt);
+        if (query.timedOut > 0){
+            queriesTimedOut.increment();
+            devicesTimedOut.add(query.timedOut);
+        }
+        devicesNotAvailable.add(query.notAvailable);
+    }
+}
@@ -0,0 +1,152 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Dumps the Metrics of the system to the log at a fixed interval, or to whoever sends RequestMetrics. Rates and
+// latency percentiles cover the time since the previous dump, counts of running groups and devices are current.
+public class MetricsReporter extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    // Groups listed by name in a dump, the busiest ones of the interval
+    static final int TOP_GROUPS = 10;
+
+    final FiniteDuration interval;
+    final Metrics metrics = Metrics.get(getContext().getSystem());
+    final LogSampling logSampling = LogSampling.get(getContext().getSystem());
+    Cancellable timer = null;
+
+    public MetricsReporter(FiniteDuration interval){
+        this.interval = interval;
+    }
+
+    public static Props props(FiniteDuration interval){
+        return Props.create(MetricsReporter.class, interval);
+    }
+
+    public static final class RequestMetrics {
+        final long requestId;
+
+        public RequestMetrics(long requestId){
+            this.requestId = requestId;
+        }
+    }
+
+    public static final class RespondMetrics {
+        final long requestId;
+        final String dump;
+
+        public RespondMetrics(long requestId, String dump){
+            this.requestId = requestId;
+            this.dump = dump;
+        }
+    }
+
+    static final class Report {
+        static final Report INSTANCE = new Report();
+    }
+
+    // Totals at the previous dump
+    long lastDumpAt = System.nanoTime();
+    final Map<String, Long> lastReadings = new HashMap<>();
+    LatencyHistogram.Snapshot lastRecordTemperature = LatencyHistogram.Snapshot.EMPTY;
+    LatencyHistogram.Snapshot lastQueryLatency = LatencyHistogram.Snapshot.EMPTY;
+    long lastQueriesTimedOut = 0L;
+    long lastDevicesTimedOut = 0L;
+    long lastDevicesNotAvailable = 0L;
+    long lastReadingLinesDropped = 0L;
+    long lastLifecycleLinesDropped = 0L;
+
+    @Override
+    public void preStart(){
+        if (!metrics.enabled){
+            log.warning("Metrics are disabled, set iot.metrics.enabled = on to collect them");
+        }
+        timer = getContext().getSystem().scheduler().schedule(interval, interval, getSelf(), Report.INSTANCE,
+                getContext().dispatcher(), getSelf());
+    }
+
+    @Override
+    public void postStop(){
+        if (timer != null){
+            timer.cancel();
+        }
+    }
+
+    String dump(){
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastDumpAt) / 1e9);
+        lastDumpAt = now;
+
+        long totalReadings = 0L;
+        List<Map.Entry<String, Long>> perGroup = new ArrayList<>(metrics.readings.size());
+        for (Map.Entry<String, LongAdder> entry : metrics.readings.entrySet()){
+            long count = entry.getValue().sum();
+            Long last = lastReadings.put(entry.getKey(), count);
+            long delta = count - (last == null ? 0L : last);
+            totalReadings += delta;
+            perGroup.add(new AbstractMap.SimpleEntry<>(entry.getKey(), delta));
+        }
+        perGroup.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        LatencyHistogram.Snapshot recordTotal = metrics.recordTemperature.snapshot();
+        LatencyHistogram.Snapshot record = recordTotal.minus(lastRecordTemperature);
+        lastRecordTemperature = recordTotal;
+        LatencyHistogram.Snapshot queryTotal = metrics.queryLatency.snapshot();
+        LatencyHistogram.Snapshot query = queryTotal.minus(lastQueryLatency);
+        lastQueryLatency = queryTotal;
+        long queriesTimedOut = metrics.queriesTimedOut.sum();
+        long devicesTimedOut = metrics.devicesTimedOut.sum();
+        long devicesNotAvailable = metrics.devicesNotAvailable.sum();
+        long readingLinesDropped = logSampling.readings.dropped.sum();
+        long lifecycleLinesDropped = logSampling.lifecycle.dropped.sum();
+
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("groups=%d devices=%d%n", metrics.groups.sum(), metrics.devices.sum()));
+        out.append(String.format("readings %.0f/s", totalReadings / seconds));
+        for (int i = 0; i < Math.min(TOP_GROUPS, perGroup.size()) && perGroup.get(i).getValue() > 0; i++){
+            out.append(String.format(" %s=%.0f/s", perGroup.get(i).getKey(), perGroup.get(i).getValue() / seconds));
+        }
+        out.append(String.format("%nrecord-temperature n=%d %s%n", record.count, percentiles(record)));
+        out.append(String.format("queries n=%d %s timed-out=%d devices-timed-out=%d devices-not-available=%d%n",
+                query.count, percentiles(query), queriesTimedOut - lastQueriesTimedOut,
+                devicesTimedOut - lastDevicesTimedOut, devicesNotAvailable - lastDevicesNotAvailable));
+        // Sampled log lines over the rate limit of their category
+        out.append(String.format("log-lines-dropped readings=%d lifecycle=%d",
+                readingLinesDropped - lastReadingLinesDropped, lifecycleLinesDropped - lastLifecycleLinesDropped));
+        lastQueriesTimedOut = queriesTimedOut;
+        lastDevicesTimedOut = devicesTimedOut;
+        lastDevicesNotAvailable = devicesNotAvailable;
+        lastReadingLinesDropped = readingLinesDropped;
+        lastLifecycleLinesDropped = lifecycleLinesDropped;
+        return out.toString();
+    }
+
+    private static String percentiles(LatencyHistogram.Snapshot snapshot){
+        return String.format("p50=%dus p99=%dus p99.9=%dus max=%dus",
+                TimeUnit.NANOSECONDS.toMicros(snapshot.percentile(0.5)),
+                TimeUnit.NANOSECONDS.toMicros(snapshot.percentile(0.99)),
+                TimeUnit.NANOSECONDS.toMicros(snapshot.percentile(0.999)),
+                TimeUnit.NANOSECONDS.toMicros(snapshot.max()));
+    }
+
+    @Override
+    public Receive createReceive(){
+        return receiveBuilder()
+                .match(Report.class, r -> log.info("Metrics since the previous dump:\n{}", dump()))
+                .match(RequestMetrics.class, r -> getSender().tell(new RespondMetrics(r.requestId, dump()), getSelf()))
+                .build();
+    }
+}
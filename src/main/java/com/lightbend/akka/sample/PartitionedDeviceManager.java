@@ -0,0 +1,687 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActorWithStash;
+import akka.actor.ActorIdentity;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Identify;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.japi.pf.ReceiveBuilder;
+import akka.routing.ConsistentHash;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Front of a fleet whose groups live on DeviceManager nodes in other JVMs. Groups are placed by a consistent-hash
+// ring over their groupId, so a node joining or leaving only moves the groups of the ring segments it takes over or
+// gives up. Registrations and readings are forwarded to the owning node over remoting and answered from there.
+//
+// Whenever the ring changes, every node lists its groups and the ones now owned by another node are handed off to
+// it, messages for any group wait in the stash meanwhile, up to MAX_STASHED of them. A node that fails instead of
+// being removed takes its groups with it, they start empty on their new owner. Collections still waiting on it
+// complete without its part, and a rebalance it was part of is followed by another over the remaining nodes.
+//
+// A rebalance that times out routes by the new ring anyway. Handoffs not confirmed by then are retried until they
+// are, their group is merged into the one its new owner started meanwhile, and a removed node stays a member until
+// all of its groups are handed off. A removed node that did not even list its groups stays on the ring.
+public class PartitionedDeviceManager extends AbstractActorWithStash {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    static final FiniteDuration IDENTIFY_RETRY = FiniteDuration.create(1, TimeUnit.SECONDS);
+    // Messages waiting for a rebalance beyond this are rejected, or dropped when they have no reply to reject with
+    static final int MAX_STASHED = 10_000;
+
+    final int virtualNodes;
+    final FiniteDuration rebalanceTimeout;
+
+    public PartitionedDeviceManager(List<String> nodePaths, int virtualNodes, FiniteDuration rebalanceTimeout){
+        this.virtualNodes = virtualNodes;
+        this.rebalanceTimeout = rebalanceTimeout;
+        unresolved.addAll(nodePaths);
+    }
+
+    public static Props props(List<String> nodePaths){
+        return props(nodePaths, 100, FiniteDuration.create(10, TimeUnit.SECONDS));
+    }
+
+    // nodePaths are the actor paths of the nodes' DeviceManagers, which are also their positions on the ring
+    public static Props props(List<String> nodePaths, int virtualNodes, FiniteDuration rebalanceTimeout){
+        return Props.create(PartitionedDeviceManager.class, nodePaths, virtualNodes, rebalanceTimeout);
+    }
+
+    // Puts the DeviceManager at path on the ring once it answers
+    public static final class AddNode {
+        final String path;
+
+        public AddNode(String path){
+            this.path = path;
+        }
+    }
+
+    // Hands the groups of the node to the others, then takes it off the ring
+    public static final class RemoveNode {
+        final String path;
+
+        public RemoveNode(String path){
+            this.path = path;
+        }
+    }
+
+    public static final class RequestNodes {
+        final long requestId;
+
+        public RequestNodes(long requestId){
+            this.requestId = requestId;
+        }
+    }
+
+    // Paths of the nodes on the ring, answered only when no rebalance is in progress
+    public static final class ReplyNodes {
+        final long requestId;
+        final Set<String> paths;
+
+        public ReplyNodes(long requestId, Set<String> paths){
+            this.requestId = requestId;
+            this.paths = paths;
+        }
+    }
+
+    static final class RetryIdentify {
+        final String path;
+
+        RetryIdentify(String path){
+            this.path = path;
+        }
+    }
+
+    static final class RebalanceTimeout {
+        final long rebalanceId;
+
+        RebalanceTimeout(long rebalanceId){
+            this.rebalanceId = rebalanceId;
+        }
+    }
+
+    static final class RetryHandOffs {
+        static final RetryHandOffs INSTANCE = new RetryHandOffs();
+    }
+
+    // Nodes that have not answered an Identify yet
+    final Set<String> unresolved = new HashSet<>();
+    final Map<String, ActorRef> nodes = new HashMap<>();
+    final Map<ActorRef, String> nodePaths = new HashMap<>();
+    // Nodes handing off their groups before they leave the ring
+    final Set<String> leaving = new HashSet<>();
+    // Over the nodes that are not leaving, null when there are none
+    ConsistentHash<String> ring = null;
+
+    final Map<Long, ShardedDeviceManager.PendingGroupList> pendingGroupLists = new HashMap<>();
+    final Map<Long, ShardedDeviceManager.PendingFleetStats> pendingFleetStats = new HashMap<>();
+    // By the request id each node was asked under
+    final Map<Long, ShardedDeviceManager.PendingFleetTemperatures> pendingFleetTemperatures = new HashMap<>();
+    final Map<Long, ShardedDeviceManager.ShardRegistration> pendingRegistrations = new HashMap<>();
+    long nextCollectionId = 0L;
+    // Assigned here so they stay the same when a group moves to another node
+    final IdRegistry groupHandles = new IdRegistry(64);
+
+    static final class HandOff {
+        final ActorRef source;
+        final ActorRef target;
+
+        HandOff(ActorRef source, ActorRef target){
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    // The rebalance in progress, its group listing uses its id as collection id
+    long rebalanceId = -1L;
+    final Set<ActorRef> awaitingGroupLists = new HashSet<>();
+    final Map<String, HandOff> awaitingHandOffs = new HashMap<>();
+    // A node failed during the rebalance, whose handoffs to or from it did not happen
+    boolean rebalanceAgain = false;
+    Cancellable rebalanceTimer = null;
+    // Handoffs of a timed out rebalance, retried every rebalanceTimeout until confirmed
+    final Map<String, HandOff> lateHandOffs = new HashMap<>();
+    Cancellable handOffRetryTimer = null;
+    int stashed = 0;
+
+    @Override
+    public void preStart(){
+        for (String path : unresolved){
+            identify(path);
+        }
+        log.info("PartitionedDeviceManager started with {} nodes", unresolved.size());
+    }
+
+    @Override
+    public void postStop(){
+        if (rebalanceTimer != null){
+            rebalanceTimer.cancel();
+        }
+        if (handOffRetryTimer != null){
+            handOffRetryTimer.cancel();
+        }
+        log.info("PartitionedDeviceManager stopped");
+    }
+
+    private void identify(String path){
+        getContext().actorSelection(path).tell(new Identify(path), getSelf());
+    }
+
+    private void onActorIdentity(ActorIdentity identity){
+        String path = (String) identity.correlationId();
+        if (!unresolved.contains(path)){
+            return;
+        }
+        if (!identity.getActorRef().isPresent()){
+            getContext().getSystem().scheduler().scheduleOnce(IDENTIFY_RETRY, getSelf(), new RetryIdentify(path),
+                    getContext().dispatcher(), getSelf());
+            return;
+        }
+        ActorRef node = identity.getActorRef().get();
+        unresolved.remove(path);
+        getContext().watch(node);
+        nodes.put(path, node);
+        nodePaths.put(node, path);
+        log.info("Node {} joined the ring", path);
+        rebuildRing();
+        startRebalance();
+    }
+
+    private void onAddNode(AddNode add){
+        if (!nodes.containsKey(add.path) && unresolved.add(add.path)){
+            identify(add.path);
+        }
+    }
+
+    private void onRemoveNode(RemoveNode remove){
+        if (unresolved.remove(remove.path) || !nodes.containsKey(remove.path)){
+            return;
+        }
+        if (nodes.size() - leaving.size() == 1){
+            log.warning("Not removing {}, the last node of the ring", remove.path);
+            return;
+        }
+        leaving.add(remove.path);
+        rebuildRing();
+        startRebalance();
+    }
+
+    // A failed node leaves the ring right away, without a handoff. It is identified again in case it comes back.
+    private void onTerminated(Terminated t){
+        ActorRef node = t.getActor();
+        String path = nodePaths.remove(node);
+        if (path == null){
+            return;
+        }
+        nodes.remove(path);
+        leaving.remove(path);
+        log.warning("Node {} failed, its groups are lost", path);
+        rebuildRing();
+        unresolved.add(path);
+        identify(path);
+        abandonCollections(node);
+        if (rebalanceId >= 0){
+            awaitingGroupLists.remove(node);
+            awaitingHandOffs.values().removeIf(h -> h.source.equals(node) || h.target.equals(node));
+            rebalanceAgain = true;
+            finishRebalanceIfDone();
+        }else if (lateHandOffs.values().removeIf(h -> h.source.equals(node) || h.target.equals(node))
+                && !nodes.isEmpty()){
+            // Groups handed to it are with their source still, which may be about to leave
+            startRebalance();
+        }else {
+            getContext().become(nodes.isEmpty() ? waitingForNodes() : routing());
+        }
+    }
+
+    // Completes whatever was waiting on the node with the parts of the others, its registrations are rejected
+    private void abandonCollections(ActorRef node){
+        new ArrayList<>(pendingGroupLists.keySet()).forEach(collectionId -> {
+            ShardedDeviceManager.PendingGroupList pending = pendingGroupLists.get(collectionId);
+            if (pending.stillWaiting.remove(node)){
+                completeGroupListIfDone(collectionId, pending);
+            }
+        });
+        new ArrayList<>(pendingFleetStats.keySet()).forEach(collectionId -> {
+            ShardedDeviceManager.PendingFleetStats pending = pendingFleetStats.get(collectionId);
+            if (pending.stillWaiting.remove(node)){
+                completeFleetStatsIfDone(collectionId, pending);
+            }
+        });
+        pendingFleetTemperatures.entrySet().removeIf(entry -> {
+            ShardedDeviceManager.PendingFleetTemperatures pending = entry.getValue();
+            if (!node.equals(pending.stillWaiting.get(entry.getKey()))){
+                return false;
+            }
+            pending.stillWaiting.remove(entry.getKey());
+            if (pending.stillWaiting.isEmpty()){
+                pending.requester.tell(pending.reply(), getSelf());
+            }
+            return true;
+        });
+        pendingRegistrations.values().removeIf(registration -> {
+            if (!registration.shard.equals(node)){
+                return false;
+            }
+            if (registration.reject()){
+                registration.pending.requester.tell(registration.pending.reply(), getSelf());
+            }
+            return true;
+        });
+    }
+
+    private void rebuildRing(){
+        List<String> members = new ArrayList<>();
+        for (String path : nodes.keySet()){
+            if (!leaving.contains(path)){
+                members.add(path);
+            }
+        }
+        ring = members.isEmpty() ? null : ConsistentHash.create(members, virtualNodes);
+    }
+
+    private ActorRef ownerOf(String groupId){
+        return nodes.get(ring.nodeFor(groupId));
+    }
+
+    private void onRequestNodes(RequestNodes r){
+        Set<String> paths = new HashSet<>(nodes.keySet());
+        paths.removeAll(leaving);
+        getSender().tell(new ReplyNodes(r.requestId, paths), getSelf());
+    }
+
+    // Asks every node for its groups, onRebalanceGroupList then hands off those placed elsewhere by the new ring
+    private void startRebalance(){
+        if (rebalanceTimer != null){
+            rebalanceTimer.cancel();
+        }
+        // Its group listing finds the groups of late handoffs where they still are
+        stopRetryingHandOffs();
+        rebalanceId = nextCollectionId++;
+        awaitingGroupLists.clear();
+        awaitingGroupLists.addAll(nodes.values());
+        awaitingHandOffs.clear();
+        rebalanceAgain = false;
+        DeviceManager.RequestGroupList request = new DeviceManager.RequestGroupList(rebalanceId);
+        for (ActorRef node : nodes.values()){
+            node.tell(request, getSelf());
+        }
+        rebalanceTimer = getContext().getSystem().scheduler().scheduleOnce(rebalanceTimeout, getSelf(),
+                new RebalanceTimeout(rebalanceId), getContext().dispatcher(), getSelf());
+        getContext().become(rebalancing());
+    }
+
+    private void onRebalanceGroupList(DeviceManager.ReplyGroupList reply){
+        if (pendingGroupLists.containsKey(reply.requestId)){
+            // Requested before the rebalance started
+            onNodeGroupList(reply);
+            return;
+        }
+        String path = nodePaths.get(getSender());
+        if (reply.requestId != rebalanceId || path == null || ring == null){
+            return;
+        }
+        for (String groupId : reply.ids){
+            String owner = ring.nodeFor(groupId);
+            if (!owner.equals(path) && !awaitingHandOffs.containsKey(groupId)){
+                ActorRef target = nodes.get(owner);
+                awaitingHandOffs.put(groupId, new HandOff(getSender(), target));
+                getSender().tell(new DeviceManager.HandOffGroup(groupId, groupHandles.intern(groupId), target), getSelf());
+            }
+        }
+        awaitingGroupLists.remove(getSender());
+        finishRebalanceIfDone();
+    }
+
+    private void onGroupHandedOff(DeviceManager.GroupHandedOff handedOff){
+        if (awaitingHandOffs.remove(handedOff.groupId) != null){
+            finishRebalanceIfDone();
+        }
+    }
+
+    private void onRebalanceTimeout(RebalanceTimeout timeout){
+        if (timeout.rebalanceId == rebalanceId){
+            log.warning("Rebalance timed out waiting for {} group lists and {} handoffs",
+                    awaitingGroupLists.size(), awaitingHandOffs.size());
+            finishRebalance();
+        }
+    }
+
+    private void finishRebalanceIfDone(){
+        if (awaitingGroupLists.isEmpty() && awaitingHandOffs.isEmpty()){
+            finishRebalance();
+        }
+    }
+
+    private void finishRebalance(){
+        rebalanceTimer.cancel();
+        rebalanceTimer = null;
+        rebalanceId = -1L;
+        for (ActorRef node : awaitingGroupLists){
+            String path = nodePaths.get(node);
+            if (leaving.remove(path)){
+                log.warning("Node {} did not list its groups, it stays on the ring", path);
+                rebuildRing();
+            }
+        }
+        awaitingGroupLists.clear();
+        lateHandOffs.putAll(awaitingHandOffs);
+        awaitingHandOffs.clear();
+        for (String path : new ArrayList<>(leaving)){
+            leaveIfHandedOff(path);
+        }
+        if (!lateHandOffs.isEmpty()){
+            retryHandOffs();
+            handOffRetryTimer = getContext().getSystem().scheduler().schedule(rebalanceTimeout, rebalanceTimeout,
+                    getSelf(), RetryHandOffs.INSTANCE, getContext().dispatcher(), getSelf());
+        }
+        log.info("Rebalanced groups over {} nodes", nodes.size() - leaving.size());
+        if (rebalanceAgain && !nodes.isEmpty()){
+            // Stashed messages keep waiting for the ring to settle
+            startRebalance();
+            return;
+        }
+        getContext().become(nodes.isEmpty() ? waitingForNodes() : routing());
+        unstashAll();
+        stashed = 0;
+    }
+
+    // Takes a removed node off the ring unless one of its groups is still being handed off
+    private void leaveIfHandedOff(String path){
+        ActorRef node = nodes.get(path);
+        for (HandOff h : lateHandOffs.values()){
+            if (h.source.equals(node)){
+                return;
+            }
+        }
+        nodes.remove(path);
+        nodePaths.remove(node);
+        leaving.remove(path);
+        getContext().unwatch(node);
+        log.info("Node {} left the ring", path);
+    }
+
+    private void retryHandOffs(){
+        log.warning("Retrying {} handoffs not confirmed in time", lateHandOffs.size());
+        lateHandOffs.forEach((groupId, h) ->
+                h.source.tell(new DeviceManager.HandOffGroup(groupId, groupHandles.intern(groupId), h.target), getSelf()));
+    }
+
+    private void stopRetryingHandOffs(){
+        lateHandOffs.clear();
+        if (handOffRetryTimer != null){
+            handOffRetryTimer.cancel();
+            handOffRetryTimer = null;
+        }
+    }
+
+    private void onLateGroupHandedOff(DeviceManager.GroupHandedOff handedOff){
+        HandOff h = lateHandOffs.remove(handedOff.groupId);
+        if (h == null){
+            return;
+        }
+        String path = nodePaths.get(h.source);
+        if (leaving.contains(path)){
+            leaveIfHandedOff(path);
+        }
+        if (lateHandOffs.isEmpty()){
+            stopRetryingHandOffs();
+        }
+    }
+
+    // Ring changes always wait, other messages only up to MAX_STASHED
+    private void stashOrReject(Object message){
+        if (stashed < MAX_STASHED || message instanceof AddNode || message instanceof RemoveNode
+                || message instanceof RequestNodes){
+            stash();
+            stashed++;
+        }else if (message instanceof DeviceManager.RecordTemperatureBatch){
+            DeviceManager.RecordTemperatureBatch batch = (DeviceManager.RecordTemperatureBatch) message;
+            getSender().tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
+        }else if (message instanceof DeviceManager.RecordTemperatureHandleBatch){
+            DeviceManager.RecordTemperatureHandleBatch batch = (DeviceManager.RecordTemperatureHandleBatch) message;
+            getSender().tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
+        }else if (message instanceof DeviceManager.RequestTrackDevices){
+            DeviceManager.RequestTrackDevices r = (DeviceManager.RequestTrackDevices) message;
+            DeviceManager.PendingRegistration pending = new DeviceManager.PendingRegistration(r.requestId, getSender(), r.size());
+            for (int i = 0; i < r.size(); i++){
+                pending.reject(i);
+            }
+            getSender().tell(pending.reply(), getSelf());
+        }else {
+            log.warning("Dropping {} while waiting for the ring, {} messages are waiting already",
+                    message.getClass().getSimpleName(), stashed);
+        }
+    }
+
+    private void onTrackDevice(DeviceManager.RequestTrackDevice r){
+        ownerOf(r.groupId).forward(r.withGroupHandle(groupHandles.intern(r.groupId)), getContext());
+    }
+
+    // As ShardedDeviceManager's, split by owning node
+    private void onTrackDevices(DeviceManager.RequestTrackDevices r){
+        DeviceManager.PendingRegistration pending = new DeviceManager.PendingRegistration(r.requestId, getSender(), r.size());
+        Map<ActorRef, DeviceManager.Positions> byNode = new HashMap<>();
+        for (int i = 0; i < r.size(); i++){
+            if (DeviceManager.isValidGroupId(r.groupIds[i])){
+                byNode.computeIfAbsent(ownerOf(r.groupIds[i]), n -> new DeviceManager.Positions()).add(i);
+            }else {
+                pending.reject(i);
+            }
+        }
+        byNode.forEach((node, positions) -> {
+            String[] groupIds = positions.select(r.groupIds, new String[positions.size]);
+            int[] handles = new int[positions.size];
+            for (int i = 0; i < positions.size; i++){
+                handles[i] = groupHandles.intern(groupIds[i]);
+            }
+            long collectionId = nextCollectionId++;
+            Cancellable timeout = getContext().getSystem().scheduler().scheduleOnce(
+                    ShardedDeviceManager.REGISTRATION_TIMEOUT, getSelf(),
+                    new DeviceManager.RegistrationTimeout(collectionId), getContext().dispatcher(), getSelf());
+            pendingRegistrations.put(collectionId,
+                    new ShardedDeviceManager.ShardRegistration(pending, positions.toArray(), node, timeout));
+            pending.stillWaiting++;
+            node.tell(new DeviceManager.RequestTrackDevices(collectionId, groupIds,
+                    positions.select(r.deviceIds, new String[positions.size]), handles), getSelf());
+        });
+        if (pending.stillWaiting == 0){
+            getSender().tell(pending.reply(), getSelf());
+        }
+    }
+
+    private void onNodeDevicesRegistered(DeviceManager.DevicesRegistered registered){
+        ShardedDeviceManager.ShardRegistration registration = pendingRegistrations.remove(registered.requestId);
+        if (registration == null){
+            log.warning("Ignoring registrations for unknown collection {}", registered.requestId);
+            return;
+        }
+        registration.timeout.cancel();
+        DeviceManager.PendingRegistration pending = registration.pending;
+        pending.merge(registration.positions, registered.outcomes, registered.groupHandles, -1, registered.deviceHandles,
+                registered.epochs, 0L);
+        if (pending.stillWaiting == 0){
+            pending.requester.tell(pending.reply(), getSelf());
+        }
+    }
+
+    // A reply lost on the way from a node that is still up
+    private void onRegistrationTimeout(DeviceManager.RegistrationTimeout t){
+        ShardedDeviceManager.ShardRegistration registration = pendingRegistrations.remove(t.registrationId);
+        if (registration == null){
+            return;
+        }
+        log.warning("Node {} did not answer registration {} in time, rejecting its {} devices",
+                nodePaths.get(registration.shard), t.registrationId, registration.positions.length);
+        if (registration.reject()){
+            registration.pending.requester.tell(registration.pending.reply(), getSelf());
+        }
+    }
+
+    private void onRecordTemperatureHandleBatch(DeviceManager.RecordTemperatureHandleBatch batch){
+        if (groupHandles.contains(batch.groupHandle)){
+            ownerOf(groupHandles.idOf(batch.groupHandle)).forward(batch, getContext());
+        }else {
+            log.warning("Rejecting temperature batch {} for unknown group handle {}", batch.requestId, batch.groupHandle);
+            getSender().tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
+        }
+    }
+
+    private void onGroupList(DeviceManager.RequestGroupList r){
+        long collectionId = nextCollectionId++;
+        pendingGroupLists.put(collectionId, new ShardedDeviceManager.PendingGroupList(r.requestId, getSender(), nodes.values()));
+        DeviceManager.RequestGroupList request = new DeviceManager.RequestGroupList(collectionId);
+        for (ActorRef node : nodes.values()){
+            node.tell(request, getSelf());
+        }
+    }
+
+    private void onNodeGroupList(DeviceManager.ReplyGroupList reply){
+        ShardedDeviceManager.PendingGroupList pending = pendingGroupLists.get(reply.requestId);
+        if (pending == null){
+            log.warning("Ignoring group list for unknown collection {}", reply.requestId);
+            return;
+        }
+        pending.ids.addAll(reply.ids);
+        pending.actors.addAll(reply.actors);
+        pending.stillWaiting.remove(getSender());
+        completeGroupListIfDone(reply.requestId, pending);
+    }
+
+    private void completeGroupListIfDone(long collectionId, ShardedDeviceManager.PendingGroupList pending){
+        if (pending.stillWaiting.isEmpty()){
+            pendingGroupLists.remove(collectionId);
+            pending.requester.tell(new DeviceManager.ReplyGroupList(pending.requestId, pending.ids, pending.actors), getSelf());
+        }
+    }
+
+    private void onFleetStats(DeviceManager.RequestFleetStats r){
+        long collectionId = nextCollectionId++;
+        pendingFleetStats.put(collectionId, new ShardedDeviceManager.PendingFleetStats(r.requestId, getSender(), nodes.values()));
+        DeviceManager.RequestFleetStats request = new DeviceManager.RequestFleetStats(collectionId);
+        for (ActorRef node : nodes.values()){
+            node.tell(request, getSelf());
+        }
+    }
+
+    private void onNodeFleetStats(DeviceManager.RespondFleetStats reply){
+        ShardedDeviceManager.PendingFleetStats pending = pendingFleetStats.get(reply.requestId);
+        if (pending == null){
+            log.warning("Ignoring fleet statistics for unknown collection {}", reply.requestId);
+            return;
+        }
+        pending.parts.add(reply.stats);
+        pending.groups += reply.groups;
+        pending.stillWaiting.remove(getSender());
+        completeFleetStatsIfDone(reply.requestId, pending);
+    }
+
+    private void completeFleetStatsIfDone(long collectionId, ShardedDeviceManager.PendingFleetStats pending){
+        if (pending.stillWaiting.isEmpty()){
+            pendingFleetStats.remove(collectionId);
+            pending.requester.tell(new DeviceManager.RespondFleetStats(
+                    pending.requestId, pending.groups, TemperatureStats.merge(pending.parts)), getSelf());
+        }
+    }
+
+    private void onFleetTemperatures(DeviceManager.RequestFleetTemperatures r){
+        ShardedDeviceManager.PendingFleetTemperatures pending =
+                new ShardedDeviceManager.PendingFleetTemperatures(r.requestId, getSender());
+        for (ActorRef node : nodes.values()){
+            long collectionId = nextCollectionId++;
+            pending.stillWaiting.put(collectionId, node);
+            pendingFleetTemperatures.put(collectionId, pending);
+            node.tell(new DeviceManager.RequestFleetTemperatures(
+                    collectionId, r.filter, r.deadline, r.maxConcurrentGroups), getSelf());
+        }
+    }
+
+    private void onNodeFleetTemperatures(DeviceManager.RespondFleetTemperatures reply){
+        ShardedDeviceManager.PendingFleetTemperatures pending = pendingFleetTemperatures.remove(reply.requestId);
+        if (pending == null){
+            log.warning("Ignoring fleet temperatures for unknown collection {}", reply.requestId);
+            return;
+        }
+        pending.parts.add(reply);
+        pending.stillWaiting.remove(reply.requestId);
+        if (pending.stillWaiting.isEmpty()){
+            pending.requester.tell(pending.reply(), getSelf());
+        }
+    }
+
+    // Node membership, handled in every behavior but rebalancing, which stashes ring changes until it is done
+    private ReceiveBuilder membership(){
+        return receiveBuilder()
+                .match(ActorIdentity.class, this::onActorIdentity)
+                .match(RetryIdentify.class, r -> {
+                    if (unresolved.contains(r.path)){
+                        identify(r.path);
+                    }
+                })
+                .match(AddNode.class, this::onAddNode)
+                .match(RemoveNode.class, this::onRemoveNode)
+                .match(RequestNodes.class, this::onRequestNodes)
+                .match(Terminated.class, this::onTerminated);
+    }
+
+    // Replies to requests forwarded before a rebalance started are still delivered
+    private ReceiveBuilder replies(ReceiveBuilder builder){
+        return builder
+                .match(DeviceManager.DevicesRegistered.class, this::onNodeDevicesRegistered)
+                .match(DeviceManager.RegistrationTimeout.class, this::onRegistrationTimeout)
+                .match(DeviceManager.RespondFleetStats.class, this::onNodeFleetStats)
+                .match(DeviceManager.RespondFleetTemperatures.class, this::onNodeFleetTemperatures);
+    }
+
+    private Receive waitingForNodes(){
+        return replies(membership())
+                .match(DeviceManager.ReplyGroupList.class, this::onNodeGroupList)
+                .matchAny(this::stashOrReject)
+                .build();
+    }
+
+    private Receive routing(){
+        return replies(membership())
+                .match(DeviceManager.ReplyGroupList.class, this::onNodeGroupList)
+                .match(DeviceManager.RequestTrackDevice.class, this::onTrackDevice)
+                .match(DeviceManager.RequestTrackDevices.class, this::onTrackDevices)
+                .match(DeviceManager.RecordTemperatureBatch.class, r -> ownerOf(r.groupId).forward(r, getContext()))
+                .match(DeviceManager.RecordTemperatureHandleBatch.class, this::onRecordTemperatureHandleBatch)
+                .match(DeviceManager.RequestGroupList.class, this::onGroupList)
+                .match(DeviceManager.RequestFleetStats.class, this::onFleetStats)
+                .match(DeviceManager.RequestFleetTemperatures.class, this::onFleetTemperatures)
+                .match(DeviceManager.GroupHandedOff.class, this::onLateGroupHandedOff)
+                .match(RetryHandOffs.class, r -> {
+                    if (!lateHandOffs.isEmpty()){
+                        retryHandOffs();
+                    }
+                })
+                .build();
+    }
+
+    private Receive rebalancing(){
+        return replies(receiveBuilder())
+                .match(DeviceManager.ReplyGroupList.class, this::onRebalanceGroupList)
+                .match(DeviceManager.GroupHandedOff.class, this::onGroupHandedOff)
+                .match(RebalanceTimeout.class, this::onRebalanceTimeout)
+                .match(Terminated.class, this::onTerminated)
+                .matchAny(this::stashOrReject)
+                .build();
+    }
+
+    @Override
+    public Receive createReceive(){
+        return waitingForNodes();
+    }
+}
@@ -0,0 +1,151 @@
+package com.lightbend.akka.sample;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+// Mergeable quantile sketch with a relative error guarantee. Values are counted in logarithmic buckets, so any
+// quantile is within relativeAccuracy of a true value, two sketches merge by adding their counts and a value can
+// be removed again, which lets a group follow the current readings of its devices instead of all readings ever.
+final class QuantileSketch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+    // Values closer to zero than this share one bucket
+    static final double MIN_INDEXABLE = 1e-6;
+
+    final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    // Dense counts of one sign, covering bucket indexes [offset, offset + counts.length)
+    private static final class Store implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        long[] counts = new long[0];
+        int offset = 0;
+
+        void add(int index, long delta){
+            if (counts.length == 0){
+                counts = new long[1];
+                offset = index;
+            }else if (index < offset){
+                long[] grown = new long[counts.length + offset - index];
+                System.arraycopy(counts, 0, grown, offset - index, counts.length);
+                counts = grown;
+                offset = index;
+            }else if (index >= offset + counts.length){
+                counts = Arrays.copyOf(counts, index - offset + 1);
+            }
+            counts[index - offset] += delta;
+        }
+
+        void merge(Store other){
+            for (int i = 0; i < other.counts.length; i++){
+                if (other.counts[i] != 0){
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+
+        Store copy(){
+            Store copy = new Store();
+            copy.counts = counts.clone();
+            copy.offset = offset;
+            return copy;
+        }
+    }
+
+    private Store positive = new Store();
+    private Store negative = new Store();
+    private long zeroCount = 0L;
+    private long count = 0L;
+
+    QuantileSketch(double relativeAccuracy){
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    long count(){
+        return count;
+    }
+
+    void add(double value){
+        update(value, 1L);
+    }
+
+    // Removes a value that was added before.
+    void remove(double value){
+        update(value, -1L);
+    }
+
+    void merge(QuantileSketch other){
+        if (other.relativeAccuracy != relativeAccuracy){
+            throw new IllegalArgumentException("Cannot merge sketches of different accuracy");
+        }
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeroCount += other.zeroCount;
+        count += other.count;
+    }
+
+    QuantileSketch copy(){
+        QuantileSketch copy = new QuantileSketch(relativeAccuracy);
+        copy.positive = positive.copy();
+        copy.negative = negative.copy();
+        copy.zeroCount = zeroCount;
+        copy.count = count;
+        return copy;
+    }
+
+    // Value at quantile q in [0, 1], NaN when empty.
+    double quantile(double q){
+        if (count == 0){
+            return Double.NaN;
+        }
+        long rank = (long) (q * (count - 1));
+        long seen = 0L;
+        // Most negative values sit in the highest negative buckets
+        for (int i = negative.counts.length - 1; i >= 0; i--){
+            seen += negative.counts[i];
+            if (seen > rank){
+                return -bucketValue(negative.offset + i);
+            }
+        }
+        seen += zeroCount;
+        if (seen > rank){
+            return 0.0;
+        }
+        for (int i = 0; i < positive.counts.length; i++){
+            seen += positive.counts[i];
+            if (seen > rank){
+                return bucketValue(positive.offset + i);
+            }
+        }
+        return bucketValue(positive.offset + positive.counts.length - 1);
+    }
+
+    // An infinite value would index a bucket at Integer.MAX_VALUE, growing a store to 2^31 counts
+    private void update(double value, long delta){
+        if (!Double.isFinite(value)){
+            throw new IllegalArgumentException("Cannot count non-finite value " + value);
+        }
+        if (value > MIN_INDEXABLE){
+            positive.add(index(value), delta);
+        }else if (value < -MIN_INDEXABLE){
+            negative.add(index(-value), delta);
+        }else {
+            zeroCount += delta;
+        }
+        count += delta;
+    }
+
+    private int index(double value){
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    // Every value in bucket i lies within relativeAccuracy of this
+    private double bucketValue(int index){
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+}
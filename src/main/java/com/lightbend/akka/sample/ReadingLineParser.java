@@ -0,0 +1,243 @@
+package com.lightbend.akka.sample;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Parses "<groupId> <deviceId> <timestamp> <value>" lines straight out of network or file buffers.
+// Fields are read with absolute gets, numbers are decoded without intermediate Strings and ids are looked up in
+// a small cache keyed by their bytes, so steady-state parsing allocates nothing per line.
+// A line cut at the end of a buffer is carried over and completed by the next one.
+final class ReadingLineParser {
+    static final int MAX_LINE_LENGTH = 1024;
+
+    interface Sink {
+        void reading(String groupId, String deviceId, long timestamp, double value);
+
+        void malformed();
+    }
+
+    private final byte[] carry = new byte[MAX_LINE_LENGTH];
+    private final ByteBuffer carryBuffer = ByteBuffer.wrap(carry);
+    private int carryLength = 0;
+    private boolean discardingLine = false;
+
+    // Direct-mapped cache from id bytes to the decoded String
+    private final byte[][] cachedBytes;
+    private final String[] cachedIds;
+    private final int cacheMask;
+
+    ReadingLineParser(int idCacheSize){
+        int capacity = Integer.highestOneBit(Math.max(idCacheSize, 16) - 1) << 1;
+        this.cachedBytes = new byte[capacity][];
+        this.cachedIds = new String[capacity];
+        this.cacheMask = capacity - 1;
+    }
+
+    // Parses every complete line between the position and limit of data, leaving the buffer untouched.
+    void parse(ByteBuffer data, Sink sink){
+        int position = data.position();
+        int limit = data.limit();
+        if (carryLength > 0 || discardingLine){
+            int newline = indexOf(data, position, limit, (byte) '\n');
+            int end = newline < 0 ? limit : newline;
+            if (!discardingLine && carryLength + end - position <= MAX_LINE_LENGTH){
+                for (int i = position; i < end; i++){
+                    carry[carryLength++] = data.get(i);
+                }
+            }else {
+                discardingLine = true;
+            }
+            if (newline < 0){
+                return;
+            }
+            if (discardingLine){
+                sink.malformed();
+            }else {
+                parseLine(carryBuffer, 0, carryLength, sink);
+            }
+            carryLength = 0;
+            discardingLine = false;
+            position = newline + 1;
+        }
+        while (position < limit){
+            int newline = indexOf(data, position, limit, (byte) '\n');
+            if (newline < 0){
+                if (limit - position > MAX_LINE_LENGTH){
+                    discardingLine = true;
+                }else {
+                    for (int i = position; i < limit; i++){
+                        carry[carryLength++] = data.get(i);
+                    }
+                }
+                return;
+            }
+            parseLine(data, position, newline, sink);
+            position = newline + 1;
+        }
+    }
+
+    // Parses a last line that was not terminated by a newline.
+    void finish(Sink sink){
+        if (discardingLine){
+            sink.malformed();
+        }else if (carryLength > 0){
+            parseLine(carryBuffer, 0, carryLength, sink);
+        }
+        carryLength = 0;
+        discardingLine = false;
+    }
+
+    private void parseLine(ByteBuffer data, int start, int end, Sink sink){
+        if (end > start && data.get(end - 1) == '\r'){
+            end--;
+        }
+        if (end == start){
+            return;
+        }
+        int groupStart = skipBlanks(data, start, end);
+        int groupEnd = fieldEnd(data, groupStart, end);
+        int deviceStart = skipBlanks(data, groupEnd, end);
+        int deviceEnd = fieldEnd(data, deviceStart, end);
+        int timestampStart = skipBlanks(data, deviceEnd, end);
+        int timestampEnd = fieldEnd(data, timestampStart, end);
+        int valueStart = skipBlanks(data, timestampEnd, end);
+        int valueEnd = fieldEnd(data, valueStart, end);
+        if (groupStart == groupEnd || deviceStart == deviceEnd || timestampStart == timestampEnd
+                || valueStart == valueEnd || skipBlanks(data, valueEnd, end) != end){
+            sink.malformed();
+            return;
+        }
+        long timestamp = parseLong(data, timestampStart, timestampEnd);
+        double value = parseDouble(data, valueStart, valueEnd);
+        if (timestamp == Long.MIN_VALUE || !Double.isFinite(value)){
+            sink.malformed();
+            return;
+        }
+        sink.reading(id(data, groupStart, groupEnd), id(data, deviceStart, deviceEnd), timestamp, value);
+    }
+
+    // Decimal long of up to 18 digits, Long.MIN_VALUE when malformed.
+    private static long parseLong(ByteBuffer data, int start, int end){
+        boolean negative = data.get(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 18){
+            return Long.MIN_VALUE;
+        }
+        long result = 0L;
+        for (; i < end; i++){
+            int digit = data.get(i) - '0';
+            if (digit < 0 || digit > 9){
+                return Long.MIN_VALUE;
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    // Plain decimals with up to 15 significant digits are exact as mantissa / 10^scale,
+    // anything else (exponents, longer mantissas) falls back to Double.parseDouble. NaN when malformed.
+    private static double parseDouble(ByteBuffer data, int start, int end){
+        byte sign = data.get(start);
+        boolean negative = sign == '-';
+        int i = sign == '-' || sign == '+' ? start + 1 : start;
+        long mantissa = 0L;
+        int digits = 0;
+        int scale = -1;
+        for (; i < end; i++){
+            byte b = data.get(i);
+            if (b == '.' && scale < 0){
+                scale = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || digits == 15){
+                return slowParseDouble(data, start, end);
+            }
+            mantissa = mantissa * 10 + digit;
+            digits++;
+            if (scale >= 0){
+                scale++;
+            }
+        }
+        if (digits == 0){
+            return Double.NaN;
+        }
+        double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private static double slowParseDouble(ByteBuffer data, int start, int end){
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++){
+            bytes[i] = data.get(start + i);
+        }
+        try {
+            return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e){
+            return Double.NaN;
+        }
+    }
+
+    private String id(ByteBuffer data, int start, int end){
+        int hash = 1;
+        for (int i = start; i < end; i++){
+            hash = 31 * hash + data.get(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & cacheMask;
+        byte[] cached = cachedBytes[slot];
+        if (cached != null && equalBytes(cached, data, start, end)){
+            return cachedIds[slot];
+        }
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++){
+            bytes[i] = data.get(start + i);
+        }
+        String id = new String(bytes, StandardCharsets.UTF_8);
+        cachedBytes[slot] = bytes;
+        cachedIds[slot] = id;
+        return id;
+    }
+
+    private static boolean equalBytes(byte[] cached, ByteBuffer data, int start, int end){
+        if (cached.length != end - start){
+            return false;
+        }
+        for (int i = 0; i < cached.length; i++){
+            if (cached[i] != data.get(start + i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer data, int start, int end, byte b){
+        for (int i = start; i < end; i++){
+            if (data.get(i) == b){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipBlanks(ByteBuffer data, int start, int end){
+        while (start < end && isBlank(data.get(start))){
+            start++;
+        }
+        return start;
+    }
+
+    private static int fieldEnd(ByteBuffer data, int start, int end){
+        while (start < end && !isBlank(data.get(start))){
+            start++;
+        }
+        return start;
+    }
+
+    private static boolean isBlank(byte b){
+        return b == ' ' || b == '\t' || b == ',';
+    }
+}
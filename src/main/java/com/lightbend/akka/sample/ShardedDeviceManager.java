@@ -0,0 +1,438 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Thin router that partitions groups across DeviceManager shards by hash of the groupId.
+public class ShardedDeviceManager extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    // Longer than the shards' own, which reject what their groups did not acknowledge first
+    static final FiniteDuration REGISTRATION_TIMEOUT = DeviceManager.REGISTRATION_TIMEOUT.mul(2);
+
+    final ActorRef[] shards;
+    // Shards that have not stopped. Collections only wait on these, and what routes to a stopped one is rejected.
+    final Set<ActorRef> liveShards = new HashSet<>();
+    final DeviceGroupSettings groupSettings;
+    // When set, every shard journals to its own sub-directory, so the shard count must stay the same across restarts
+    final Path journalDirectory;
+
+    public ShardedDeviceManager(int shardCount, DeviceGroupSettings groupSettings, Path journalDirectory){
+        if (shardCount < 1){
+            throw new IllegalArgumentException("shardCount must be at least 1, was " + shardCount);
+        }
+        this.shards = new ActorRef[shardCount];
+        this.groupSettings = groupSettings;
+        this.journalDirectory = journalDirectory;
+    }
+
+    public static Props props(int shardCount){
+        return props(shardCount, DeviceGroupSettings.DEFAULT);
+    }
+
+    public static Props props(int shardCount, DeviceGroupSettings groupSettings){
+        return props(shardCount, groupSettings, null);
+    }
+
+    public static Props props(int shardCount, DeviceGroupSettings groupSettings, Path journalDirectory){
+        return Props.create(ShardedDeviceManager.class, shardCount, groupSettings, journalDirectory);
+    }
+
+    // Collections wait on the shards or nodes that have not answered yet, so one that is gone can be left out
+    static final class PendingGroupList {
+        final long requestId;
+        final ActorRef requester;
+        final Set<String> ids = new HashSet<>();
+        final Set<ActorRef> actors = new HashSet<>();
+        final Set<ActorRef> stillWaiting;
+
+        PendingGroupList(long requestId, ActorRef requester, Collection<ActorRef> stillWaiting){
+            this.requestId = requestId;
+            this.requester = requester;
+            this.stillWaiting = new HashSet<>(stillWaiting);
+        }
+    }
+
+    static final class PendingFleetStats {
+        final long requestId;
+        final ActorRef requester;
+        final List<TemperatureStats> parts = new ArrayList<>();
+        int groups = 0;
+        final Set<ActorRef> stillWaiting;
+
+        PendingFleetStats(long requestId, ActorRef requester, Collection<ActorRef> stillWaiting){
+            this.requestId = requestId;
+            this.requester = requester;
+            this.stillWaiting = new HashSet<>(stillWaiting);
+        }
+    }
+
+    // The answers come from the query each shard or node starts rather than from it, so every one of them is asked
+    // under a request id of its own, mapped to it while it has not answered
+    static final class PendingFleetTemperatures {
+        final long requestId;
+        final ActorRef requester;
+        final List<DeviceManager.RespondFleetTemperatures> parts = new ArrayList<>();
+        final Map<Long, ActorRef> stillWaiting = new HashMap<>();
+
+        PendingFleetTemperatures(long requestId, ActorRef requester){
+            this.requestId = requestId;
+            this.requester = requester;
+        }
+
+        // The parts one after the other
+        DeviceManager.RespondFleetTemperatures reply(){
+            int groups = 0;
+            int size = 0;
+            for (DeviceManager.RespondFleetTemperatures part : parts){
+                groups += part.groupCount();
+                size += part.size();
+            }
+            String[] groupIds = new String[groups];
+            int[] groupStarts = new int[groups];
+            String[] deviceIds = new String[size];
+            byte[] status = new byte[size];
+            double[] values = new double[size];
+            List<String> missingGroups = new ArrayList<>();
+            int g = 0;
+            int offset = 0;
+            for (DeviceManager.RespondFleetTemperatures part : parts){
+                for (int i = 0; i < part.groupCount(); i++){
+                    groupIds[g] = part.groupIds[i];
+                    groupStarts[g++] = offset + part.groupStarts[i];
+                }
+                System.arraycopy(part.deviceIds, 0, deviceIds, offset, part.size());
+                System.arraycopy(part.status, 0, status, offset, part.size());
+                System.arraycopy(part.values, 0, values, offset, part.size());
+                offset += part.size();
+                missingGroups.addAll(part.missingGroups);
+            }
+            return new DeviceManager.RespondFleetTemperatures(
+                    requestId, groupIds, groupStarts, deviceIds, status, values, missingGroups);
+        }
+    }
+
+    static final class ShardRegistration {
+        final DeviceManager.PendingRegistration pending;
+        final int[] positions;
+        final ActorRef shard;
+        final Cancellable timeout;
+
+        ShardRegistration(DeviceManager.PendingRegistration pending, int[] positions, ActorRef shard,
+                          Cancellable timeout){
+            this.pending = pending;
+            this.positions = positions;
+            this.shard = shard;
+            this.timeout = timeout;
+        }
+
+        // Rejects the devices of this part, returns whether that completed the request
+        boolean reject(){
+            timeout.cancel();
+            for (int position : positions){
+                pending.reject(position);
+            }
+            return --pending.stillWaiting == 0;
+        }
+    }
+
+    final Map<Long, PendingGroupList> pendingGroupLists = new HashMap<>();
+    final Map<Long, PendingFleetStats> pendingFleetStats = new HashMap<>();
+    // By the request id each shard was asked under
+    final Map<Long, PendingFleetTemperatures> pendingFleetTemperatures = new HashMap<>();
+    final Map<Long, ShardRegistration> pendingRegistrations = new HashMap<>();
+    long nextCollectionId = 0L;
+    // Handles are assigned here rather than by the shards, so they are unique across shards and lead to one
+    final IdRegistry groupHandles = new IdRegistry(64);
+
+    @Override
+    public void preStart(){
+        for (int i = 0; i < shards.length; i++){
+            Path shardJournal = journalDirectory == null ? null : journalDirectory.resolve("shard-" + i);
+            shards[i] = getContext().actorOf(DeviceManager.props(groupSettings, shardJournal), "shard-" + i);
+            getContext().watch(shards[i]);
+            liveShards.add(shards[i]);
+        }
+        log.info("ShardedDeviceManager started with {} shards", shards.length);
+    }
+
+    @Override
+    public void postStop(){
+        log.info("ShardedDeviceManager stopped");
+    }
+
+    int shardIndex(String groupId){
+        return Math.floorMod(groupId.hashCode(), shards.length);
+    }
+
+    ActorRef shardFor(String groupId){
+        return shards[shardIndex(groupId)];
+    }
+
+    private void onTrackDevice(DeviceManager.RequestTrackDevice r){
+        ActorRef shard = shardFor(r.groupId);
+        if (liveShards.contains(shard)){
+            shard.forward(r.withGroupHandle(groupHandles.intern(r.groupId)), getContext());
+        }else {
+            log.warning("Dropping registration of device {} in group {}, shard {} is stopped",
+                    r.deviceId, r.groupId, shard.path().name());
+        }
+    }
+
+    // Sends every shard the part of the request for its groups, with their handles assigned here
+    private void onTrackDevices(DeviceManager.RequestTrackDevices r){
+        DeviceManager.PendingRegistration pending = new DeviceManager.PendingRegistration(r.requestId, getSender(), r.size());
+        DeviceManager.Positions[] byShard = new DeviceManager.Positions[shards.length];
+        for (int i = 0; i < r.size(); i++){
+            if (DeviceManager.isValidGroupId(r.groupIds[i]) && liveShards.contains(shardFor(r.groupIds[i]))){
+                int shard = shardIndex(r.groupIds[i]);
+                if (byShard[shard] == null){
+                    byShard[shard] = new DeviceManager.Positions();
+                }
+                byShard[shard].add(i);
+            }else {
+                pending.reject(i);
+            }
+        }
+        for (int shard = 0; shard < shards.length; shard++){
+            DeviceManager.Positions positions = byShard[shard];
+            if (positions == null){
+                continue;
+            }
+            String[] groupIds = positions.select(r.groupIds, new String[positions.size]);
+            int[] handles = new int[positions.size];
+            for (int i = 0; i < positions.size; i++){
+                handles[i] = groupHandles.intern(groupIds[i]);
+            }
+            long collectionId = nextCollectionId++;
+            pendingRegistrations.put(collectionId, new ShardRegistration(pending, positions.toArray(), shards[shard],
+                    scheduleRegistrationTimeout(collectionId)));
+            pending.stillWaiting++;
+            shards[shard].tell(new DeviceManager.RequestTrackDevices(collectionId, groupIds,
+                    positions.select(r.deviceIds, new String[positions.size]), handles), getSelf());
+        }
+        if (pending.stillWaiting == 0){
+            getSender().tell(pending.reply(), getSelf());
+        }
+    }
+
+    private void onShardDevicesRegistered(DeviceManager.DevicesRegistered registered){
+        ShardRegistration registration = pendingRegistrations.remove(registered.requestId);
+        if (registration == null){
+            log.warning("Ignoring registrations for unknown collection {}", registered.requestId);
+            return;
+        }
+        registration.timeout.cancel();
+        DeviceManager.PendingRegistration pending = registration.pending;
+        pending.merge(registration.positions, registered.outcomes, registered.groupHandles, -1, registered.deviceHandles,
+                registered.epochs, 0L);
+        if (pending.stillWaiting == 0){
+            pending.requester.tell(pending.reply(), getSelf());
+        }
+    }
+
+    Cancellable scheduleRegistrationTimeout(long collectionId){
+        return getContext().getSystem().scheduler().scheduleOnce(REGISTRATION_TIMEOUT, getSelf(),
+                new DeviceManager.RegistrationTimeout(collectionId), getContext().dispatcher(), getSelf());
+    }
+
+    private void onRegistrationTimeout(DeviceManager.RegistrationTimeout t){
+        ShardRegistration registration = pendingRegistrations.remove(t.registrationId);
+        if (registration == null){
+            return;
+        }
+        log.warning("Shard {} did not answer registration {} in time, rejecting its {} devices",
+                registration.shard.path().name(), t.registrationId, registration.positions.length);
+        if (registration.reject()){
+            registration.pending.requester.tell(registration.pending.reply(), getSelf());
+        }
+    }
+
+    private void onRecordTemperatureBatch(DeviceManager.RecordTemperatureBatch batch){
+        ActorRef shard = shardFor(batch.groupId);
+        if (liveShards.contains(shard)){
+            shard.forward(batch, getContext());
+        }else {
+            log.warning("Rejecting temperature batch {} for group {}, shard {} is stopped",
+                    batch.requestId, batch.groupId, shard.path().name());
+            getSender().tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
+        }
+    }
+
+    private void onRecordTemperatureHandleBatch(DeviceManager.RecordTemperatureHandleBatch batch){
+        ActorRef shard = groupHandles.contains(batch.groupHandle) ? shardFor(groupHandles.idOf(batch.groupHandle)) : null;
+        if (shard != null && liveShards.contains(shard)){
+            shard.forward(batch, getContext());
+        }else if (shard != null){
+            log.warning("Rejecting temperature batch {} for group handle {}, shard {} is stopped",
+                    batch.requestId, batch.groupHandle, shard.path().name());
+            getSender().tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
+        }else {
+            log.warning("Rejecting temperature batch {} for unknown group handle {}", batch.requestId, batch.groupHandle);
+            getSender().tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 0, batch.size()), getSelf());
+        }
+    }
+
+    private void onGroupList(DeviceManager.RequestGroupList r){
+        long collectionId = nextCollectionId++;
+        if (liveShards.isEmpty()){
+            getSender().tell(new DeviceManager.ReplyGroupList(r.requestId, new HashSet<>(), new HashSet<>()), getSelf());
+            return;
+        }
+        pendingGroupLists.put(collectionId, new PendingGroupList(r.requestId, getSender(), liveShards));
+        DeviceManager.RequestGroupList request = new DeviceManager.RequestGroupList(collectionId);
+        for (ActorRef shard : liveShards){
+            shard.tell(request, getSelf());
+        }
+    }
+
+    private void onShardGroupList(DeviceManager.ReplyGroupList reply){
+        PendingGroupList pending = pendingGroupLists.get(reply.requestId);
+        if (pending == null){
+            log.warning("Ignoring group list for unknown collection {}", reply.requestId);
+            return;
+        }
+        pending.ids.addAll(reply.ids);
+        pending.actors.addAll(reply.actors);
+        pending.stillWaiting.remove(getSender());
+        if (pending.stillWaiting.isEmpty()){
+            pendingGroupLists.remove(reply.requestId);
+            pending.requester.tell(new DeviceManager.ReplyGroupList(pending.requestId, pending.ids, pending.actors), getSelf());
+        }
+    }
+
+    private void onFleetStats(DeviceManager.RequestFleetStats r){
+        long collectionId = nextCollectionId++;
+        if (liveShards.isEmpty()){
+            getSender().tell(new DeviceManager.RespondFleetStats(r.requestId, 0, TemperatureStats.merge(new ArrayList<>())),
+                    getSelf());
+            return;
+        }
+        pendingFleetStats.put(collectionId, new PendingFleetStats(r.requestId, getSender(), liveShards));
+        DeviceManager.RequestFleetStats request = new DeviceManager.RequestFleetStats(collectionId);
+        for (ActorRef shard : liveShards){
+            shard.tell(request, getSelf());
+        }
+    }
+
+    private void onShardFleetStats(DeviceManager.RespondFleetStats reply){
+        PendingFleetStats pending = pendingFleetStats.get(reply.requestId);
+        if (pending == null){
+            log.warning("Ignoring fleet statistics for unknown collection {}", reply.requestId);
+            return;
+        }
+        pending.parts.add(reply.stats);
+        pending.groups += reply.groups;
+        pending.stillWaiting.remove(getSender());
+        if (pending.stillWaiting.isEmpty()){
+            pendingFleetStats.remove(reply.requestId);
+            pending.requester.tell(new DeviceManager.RespondFleetStats(
+                    pending.requestId, pending.groups, TemperatureStats.merge(pending.parts)), getSelf());
+        }
+    }
+
+    private void onFleetTemperatures(DeviceManager.RequestFleetTemperatures r){
+        PendingFleetTemperatures pending = new PendingFleetTemperatures(r.requestId, getSender());
+        if (liveShards.isEmpty()){
+            getSender().tell(pending.reply(), getSelf());
+            return;
+        }
+        for (ActorRef shard : liveShards){
+            long collectionId = nextCollectionId++;
+            pending.stillWaiting.put(collectionId, shard);
+            pendingFleetTemperatures.put(collectionId, pending);
+            shard.tell(new DeviceManager.RequestFleetTemperatures(
+                    collectionId, r.filter, r.deadline, r.maxConcurrentGroups), getSelf());
+        }
+    }
+
+    private void onShardFleetTemperatures(DeviceManager.RespondFleetTemperatures reply){
+        PendingFleetTemperatures pending = pendingFleetTemperatures.remove(reply.requestId);
+        if (pending == null){
+            log.warning("Ignoring fleet temperatures for unknown collection {}", reply.requestId);
+            return;
+        }
+        pending.parts.add(reply);
+        pending.stillWaiting.remove(reply.requestId);
+        if (pending.stillWaiting.isEmpty()){
+            pending.requester.tell(pending.reply(), getSelf());
+        }
+    }
+
+    // A shard only stops if its supervision gives up on it, e.g. when its journal cannot be recovered, so it is not
+    // re-created. Its registrations are rejected and collections waiting on it complete with the parts of the others.
+    private void onTerminated(Terminated t){
+        ActorRef shard = t.getActor();
+        liveShards.remove(shard);
+        log.error("Shard {} stopped, its groups are unavailable", shard.path().name());
+        pendingRegistrations.values().removeIf(registration -> {
+            if (!registration.shard.equals(shard)){
+                return false;
+            }
+            if (registration.reject()){
+                registration.pending.requester.tell(registration.pending.reply(), getSelf());
+            }
+            return true;
+        });
+        pendingGroupLists.values().removeIf(pending -> {
+            if (!pending.stillWaiting.remove(shard) || !pending.stillWaiting.isEmpty()){
+                return false;
+            }
+            pending.requester.tell(new DeviceManager.ReplyGroupList(pending.requestId, pending.ids, pending.actors), getSelf());
+            return true;
+        });
+        pendingFleetStats.values().removeIf(pending -> {
+            if (!pending.stillWaiting.remove(shard) || !pending.stillWaiting.isEmpty()){
+                return false;
+            }
+            pending.requester.tell(new DeviceManager.RespondFleetStats(
+                    pending.requestId, pending.groups, TemperatureStats.merge(pending.parts)), getSelf());
+            return true;
+        });
+        pendingFleetTemperatures.entrySet().removeIf(entry -> {
+            PendingFleetTemperatures pending = entry.getValue();
+            if (!shard.equals(pending.stillWaiting.get(entry.getKey()))){
+                return false;
+            }
+            pending.stillWaiting.remove(entry.getKey());
+            if (pending.stillWaiting.isEmpty()){
+                pending.requester.tell(pending.reply(), getSelf());
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public Receive createReceive(){
+        return receiveBuilder()
+                .match(DeviceManager.RequestTrackDevice.class, this::onTrackDevice)
+                .match(DeviceManager.RequestTrackDevices.class, this::onTrackDevices)
+                .match(DeviceManager.DevicesRegistered.class, this::onShardDevicesRegistered)
+                .match(DeviceManager.RegistrationTimeout.class, this::onRegistrationTimeout)
+                .match(DeviceManager.RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+                .match(DeviceManager.RecordTemperatureHandleBatch.class, this::onRecordTemperatureHandleBatch)
+                .match(DeviceManager.RequestGroupList.class, this::onGroupList)
+                .match(DeviceManager.ReplyGroupList.class, this::onShardGroupList)
+                .match(DeviceManager.RequestFleetStats.class, this::onFleetStats)
+                .match(DeviceManager.RespondFleetStats.class, this::onShardFleetStats)
+                .match(DeviceManager.RequestFleetTemperatures.class, this::onFleetTemperatures)
+                .match(DeviceManager.RespondFleetTemperatures.class, this::onShardFleetTemperatures)
+                .match(Terminated.class, this::onTerminated)
+                .build();
+    }
+}
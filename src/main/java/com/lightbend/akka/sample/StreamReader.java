@@ -0,0 +1,50 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.util.ByteString;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Ingestion source over a blocking InputStream such as stdin. Reads one chunk per Read, so the reader only
+// consumes input as fast as the TemperatureIngestor asks for it. Blocks its thread, run it on iot.blocking-io-dispatcher.
+public class StreamReader extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    final InputStream in;
+    final byte[] buffer;
+
+    public StreamReader(InputStream in, int chunkSize){
+        this.in = in;
+        this.buffer = new byte[chunkSize];
+    }
+
+    public static Props props(InputStream in, int chunkSize){
+        return Props.create(StreamReader.class, in, chunkSize).withDispatcher("iot.blocking-io-dispatcher");
+    }
+
+    public static final class Read {
+        public static final Read INSTANCE = new Read();
+    }
+
+    private void onRead(Read r) throws IOException {
+        int n = in.read(buffer);
+        if (n < 0){
+            log.info("End of input stream");
+            getSender().tell(TemperatureIngestor.EndOfStream.INSTANCE, getSelf());
+            getContext().stop(getSelf());
+        }else {
+            getSender().tell(new TemperatureIngestor.Chunk(ByteString.fromArray(buffer, 0, n)), getSelf());
+        }
+    }
+
+    @Override
+    public Receive createReceive(){
+        return receiveBuilder()
+                .match(Read.class, this::onRead)
+                .build();
+    }
+}
@@ -0,0 +1,78 @@
+package com.lightbend.akka.sample;
+
+import java.util.TreeMap;
+
+// Running statistics over the current reading of every device of a group, maintained from deltas: a device that
+// moves from one value to another replaces the old value, so a stats request never has to visit the devices.
+// Non-finite readings are left out of the statistics, the sketch has no bucket for them.
+final class TemperatureAggregate {
+    private final QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    // Multiset of the current values, min and max have to survive the removal of the current extreme
+    private final TreeMap<Double, int[]> values = new TreeMap<>();
+    private double sum = 0.0;
+    private TemperatureStats stats = TemperatureStats.EMPTY;
+    // Whether anything changed since the last call to takeChanged()
+    private boolean changed = false;
+
+    void add(double value){
+        if (!Double.isFinite(value)){
+            return;
+        }
+        int[] count = values.get(value);
+        if (count == null){
+            values.put(value, new int[]{1});
+        }else {
+            count[0]++;
+        }
+        sum += value;
+        sketch.add(value);
+        invalidate();
+    }
+
+    void remove(double value){
+        if (!Double.isFinite(value)){
+            return;
+        }
+        int[] count = values.get(value);
+        if (count == null){
+            return;
+        }
+        if (--count[0] == 0){
+            values.remove(value);
+        }
+        sum -= value;
+        sketch.remove(value);
+        if (values.isEmpty()){
+            // Do not let rounding errors of earlier updates linger
+            sum = 0.0;
+        }
+        invalidate();
+    }
+
+    void replace(double oldValue, double newValue){
+        if (oldValue != newValue){
+            remove(oldValue);
+            add(newValue);
+        }
+    }
+
+    // Built once per change, repeated requests share the same instance
+    TemperatureStats stats(){
+        if (stats == null){
+            stats = values.isEmpty() ? TemperatureStats.EMPTY
+                    : new TemperatureStats(sketch.count(), sum, values.firstKey(), values.lastKey(), sketch.copy());
+        }
+        return stats;
+    }
+
+    boolean takeChanged(){
+        boolean result = changed;
+        changed = false;
+        return result;
+    }
+
+    private void invalidate(){
+        stats = null;
+        changed = true;
+    }
+}
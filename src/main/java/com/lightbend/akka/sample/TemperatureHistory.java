@@ -0,0 +1,112 @@
+package com.lightbend.akka.sample;
+
+import java.util.Arrays;
+
+// Fixed-capacity ring buffer of (timestamp, value) readings, oldest entries are overwritten.
+final class TemperatureHistory {
+    private final long[] timestamps;
+    private final double[] values;
+    private final double[] scratch;
+    private int next = 0;
+    private int size = 0;
+
+    TemperatureHistory(int capacity){
+        if (capacity < 1){
+            throw new IllegalArgumentException("capacity must be at least 1, was " + capacity);
+        }
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity];
+        this.scratch = new double[capacity];
+    }
+
+    void record(long timestamp, double value){
+        timestamps[next] = timestamp;
+        values[next] = value;
+        next = (next + 1) % timestamps.length;
+        if (size < timestamps.length){
+            size++;
+        }
+    }
+
+    boolean isEmpty(){
+        return size == 0;
+    }
+
+    int size(){
+        return size;
+    }
+
+    int capacity(){
+        return timestamps.length;
+    }
+
+    double lastValue(){
+        return values[(next - 1 + values.length) % values.length];
+    }
+
+    long lastTimestamp(){
+        return timestamps[(next - 1 + timestamps.length) % timestamps.length];
+    }
+
+    Device.RespondTemperatureWindow window(long requestId, long from, long to){
+        int count = 0;
+        for (int i = 0; i < size; i++){
+            long ts = timestamps[slot(i)];
+            if (ts >= from && ts <= to){
+                count++;
+            }
+        }
+        long[] windowTimestamps = new long[count];
+        double[] windowValues = new double[count];
+        int j = 0;
+        for (int i = 0; i < size; i++){
+            int slot = slot(i);
+            long ts = timestamps[slot];
+            if (ts >= from && ts <= to){
+                windowTimestamps[j] = ts;
+                windowValues[j] = values[slot];
+                j++;
+            }
+        }
+        return new Device.RespondTemperatureWindow(requestId, windowTimestamps, windowValues);
+    }
+
+    Device.RespondTemperatureStats stats(long requestId, long from, long to, double[] quantiles){
+        int count = 0;
+        double min = Double.NaN;
+        double max = Double.NaN;
+        double sum = 0.0;
+        for (int i = 0; i < size; i++){
+            int slot = slot(i);
+            long ts = timestamps[slot];
+            if (ts >= from && ts <= to){
+                double value = values[slot];
+                if (count == 0 || value < min){
+                    min = value;
+                }
+                if (count == 0 || value > max){
+                    max = value;
+                }
+                sum += value;
+                scratch[count++] = value;
+            }
+        }
+        double[] percentiles = new double[quantiles.length];
+        if (count == 0){
+            Arrays.fill(percentiles, Double.NaN);
+            return new Device.RespondTemperatureStats(requestId, 0, min, max, Double.NaN, quantiles, percentiles);
+        }
+        Arrays.sort(scratch, 0, count);
+        for (int q = 0; q < quantiles.length; q++){
+            int rank = (int) Math.ceil(quantiles[q] * count) - 1;
+            percentiles[q] = scratch[Math.max(0, Math.min(count - 1, rank))];
+        }
+        return new Device.RespondTemperatureStats(requestId, count, min, max, sum / count, quantiles, percentiles);
+    }
+
+    // Maps the i-th oldest entry to its slot in the backing arrays.
+    private int slot(int i){
+        int oldest = size < timestamps.length ? 0 : next;
+        return (oldest + i) % timestamps.length;
+    }
+}
@@ -0,0 +1,266 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.io.Tcp;
+import akka.util.ByteString;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Turns a stream of reading lines into RecordTemperatureBatch messages for a DeviceManager.
+// Demand is credit based: at most maxInFlight batches are unacknowledged, and the next chunk is only requested
+// from the source once every parsed batch has been sent. Groups acknowledge a batch after their devices applied it,
+// so a slow hierarchy slows down reading from the source instead of growing mailboxes. A batch left unacknowledged
+// for ackTimeout, e.g. because its group was stopped, counts as rejected and frees its credit.
+//
+// The source is any actor that answers the demand message with one Tcp.Received or Chunk, and ends the stream
+// with a Tcp.ConnectionClosed or EndOfStream. A TCP connection in pull mode does this with ResumeReading.
+public class TemperatureIngestor extends AbstractActor implements ReadingLineParser.Sink {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    final ActorRef deviceManager;
+    final ActorRef source;
+    final Object demand;
+    final int batchSize;
+    final int maxInFlight;
+    final FiniteDuration ackTimeout;
+
+    // Longer than the groups' own, which reject what their devices and journal did not acknowledge first
+    static final FiniteDuration ACK_TIMEOUT = DeviceGroup.BATCH_TIMEOUT.mul(2);
+
+    public TemperatureIngestor(ActorRef deviceManager, ActorRef source, Object demand, int batchSize, int maxInFlight,
+                               FiniteDuration ackTimeout){
+        this.deviceManager = deviceManager;
+        this.source = source;
+        this.demand = demand;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        this.ackTimeout = ackTimeout;
+    }
+
+    public static Props props(ActorRef deviceManager, ActorRef source, Object demand, int batchSize, int maxInFlight){
+        return props(deviceManager, source, demand, batchSize, maxInFlight, ACK_TIMEOUT);
+    }
+
+    public static Props props(ActorRef deviceManager, ActorRef source, Object demand, int batchSize, int maxInFlight,
+                              FiniteDuration ackTimeout){
+        return Props.create(TemperatureIngestor.class, deviceManager, source, demand, batchSize, maxInFlight, ackTimeout);
+    }
+
+    public static final class Chunk {
+        final ByteString data;
+
+        public Chunk(ByteString data){
+            this.data = data;
+        }
+    }
+
+    public static final class EndOfStream {
+        public static final EndOfStream INSTANCE = new EndOfStream();
+    }
+
+    static final class AckTimeout {
+        final long requestId;
+
+        AckTimeout(long requestId){
+            this.requestId = requestId;
+        }
+    }
+
+    static final class InFlightBatch {
+        final int size;
+        final Cancellable timeout;
+
+        InFlightBatch(int size, Cancellable timeout){
+            this.size = size;
+            this.timeout = timeout;
+        }
+    }
+
+    // Published to the event stream once the stream ended and every batch was acknowledged
+    public static final class Completed {
+        public final long recorded;
+        public final long rejected;
+        public final long malformed;
+
+        public Completed(long recorded, long rejected, long malformed){
+            this.recorded = recorded;
+            this.rejected = rejected;
+            this.malformed = malformed;
+        }
+    }
+
+    static final class BatchBuilder {
+        final String groupId;
+        String[] deviceIds;
+        long[] timestamps;
+        double[] values;
+        int size = 0;
+
+        BatchBuilder(String groupId, int capacity){
+            this.groupId = groupId;
+            this.deviceIds = new String[capacity];
+            this.timestamps = new long[capacity];
+            this.values = new double[capacity];
+        }
+
+        // Hands the arrays over to a batch and starts new ones
+        DeviceManager.RecordTemperatureBatch build(long requestId){
+            DeviceManager.RecordTemperatureBatch batch;
+            if (size == deviceIds.length){
+                batch = new DeviceManager.RecordTemperatureBatch(requestId, groupId, deviceIds, timestamps, values);
+                deviceIds = new String[deviceIds.length];
+                timestamps = new long[timestamps.length];
+                values = new double[values.length];
+            }else {
+                batch = new DeviceManager.RecordTemperatureBatch(requestId, groupId,
+                        Arrays.copyOf(deviceIds, size), Arrays.copyOf(timestamps, size), Arrays.copyOf(values, size));
+                Arrays.fill(deviceIds, 0, size, null);
+            }
+            size = 0;
+            return batch;
+        }
+    }
+
+    final ReadingLineParser parser = new ReadingLineParser(64 * 1024);
+    final Map<String, BatchBuilder> builders = new HashMap<>();
+    final ArrayDeque<DeviceManager.RecordTemperatureBatch> ready = new ArrayDeque<>();
+    long nextRequestId = 0L;
+    final Map<Long, InFlightBatch> inFlight = new HashMap<>();
+    boolean awaitingChunk = false;
+    boolean endOfStream = false;
+    long recorded = 0L;
+    long rejected = 0L;
+    long malformed = 0L;
+
+    @Override
+    public void preStart(){
+        requestChunkIfPossible();
+    }
+
+    @Override
+    public void reading(String groupId, String deviceId, long timestamp, double value){
+        BatchBuilder builder = builders.get(groupId);
+        if (builder == null){
+            builder = new BatchBuilder(groupId, batchSize);
+            builders.put(groupId, builder);
+        }
+        builder.deviceIds[builder.size] = deviceId;
+        builder.timestamps[builder.size] = timestamp;
+        builder.values[builder.size] = value;
+        if (++builder.size == batchSize){
+            ready.add(builder.build(nextRequestId++));
+        }
+    }
+
+    @Override
+    public void malformed(){
+        malformed++;
+    }
+
+    private void onData(ByteString data){
+        awaitingChunk = false;
+        // Only compact ByteStrings are backed by a single array, others are copied once here
+        parser.parse(data.asByteBuffer(), this);
+        // Partial batches are not held back across chunks, a quiet source must not delay its readings
+        for (BatchBuilder builder : builders.values()){
+            if (builder.size > 0){
+                ready.add(builder.build(nextRequestId++));
+            }
+        }
+        sendReady();
+        requestChunkIfPossible();
+    }
+
+    private void onEndOfStream(){
+        parser.finish(this);
+        for (BatchBuilder builder : builders.values()){
+            if (builder.size > 0){
+                ready.add(builder.build(nextRequestId++));
+            }
+        }
+        endOfStream = true;
+        sendReady();
+        completeIfDone();
+    }
+
+    private void onBatchRecorded(DeviceManager.TemperatureBatchRecorded ack){
+        InFlightBatch batch = inFlight.remove(ack.requestId);
+        if (batch == null){
+            // Already counted as rejected when it timed out
+            log.warning("Ignoring late acknowledgement of batch {}", ack.requestId);
+            return;
+        }
+        batch.timeout.cancel();
+        recorded += ack.recorded;
+        rejected += ack.rejected;
+        creditReturned();
+    }
+
+    private void onAckTimeout(AckTimeout t){
+        InFlightBatch batch = inFlight.remove(t.requestId);
+        if (batch == null){
+            return;
+        }
+        log.warning("Batch {} was not acknowledged within {}, counting its {} readings as rejected",
+                t.requestId, ackTimeout, batch.size);
+        rejected += batch.size;
+        creditReturned();
+    }
+
+    private void creditReturned(){
+        sendReady();
+        requestChunkIfPossible();
+        completeIfDone();
+    }
+
+    private void sendReady(){
+        while (inFlight.size() < maxInFlight && !ready.isEmpty()){
+            DeviceManager.RecordTemperatureBatch batch = ready.poll();
+            Cancellable timeout = getContext().getSystem().scheduler().scheduleOnce(ackTimeout, getSelf(),
+                    new AckTimeout(batch.requestId), getContext().dispatcher(), getSelf());
+            inFlight.put(batch.requestId, new InFlightBatch(batch.size(), timeout));
+            deviceManager.tell(batch, getSelf());
+        }
+    }
+
+    @Override
+    public void postStop(){
+        inFlight.values().forEach(batch -> batch.timeout.cancel());
+    }
+
+    private void requestChunkIfPossible(){
+        if (!endOfStream && !awaitingChunk && ready.isEmpty() && inFlight.size() < maxInFlight){
+            awaitingChunk = true;
+            source.tell(demand, getSelf());
+        }
+    }
+
+    private void completeIfDone(){
+        if (endOfStream && ready.isEmpty() && inFlight.isEmpty()){
+            log.info("Ingested {} readings, {} rejected, {} malformed lines", recorded, rejected, malformed);
+            getContext().getSystem().eventStream().publish(new Completed(recorded, rejected, malformed));
+            getContext().stop(getSelf());
+        }
+    }
+
+    @Override
+    public Receive createReceive(){
+        return receiveBuilder()
+                .match(Tcp.Received.class, r -> onData(r.data()))
+                .match(Chunk.class, c -> onData(c.data))
+                .match(DeviceManager.TemperatureBatchRecorded.class, this::onBatchRecorded)
+                .match(AckTimeout.class, this::onAckTimeout)
+                .match(Tcp.ConnectionClosed.class, c -> onEndOfStream())
+                .match(EndOfStream.class, e -> onEndOfStream())
+                .build();
+    }
+}
@@ -0,0 +1,217 @@
+package com.lightbend.akka.sample;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// Immutable readings of a group kept in parallel arrays: one id, value and status byte per device instead of a
+// hash map node plus a reading object. It is also a read-only Map, whose TemperatureReading values are created
+// on access, so callers of RespondAllTemperatures.temperatures keep working unchanged.
+public final class TemperatureReadings extends AbstractMap<String, DeviceGroup.TemperatureReading> {
+    public static final byte TEMPERATURE = 1;
+    public static final byte TEMPERATURE_NOT_AVAILABLE = 2;
+    public static final byte DEVICE_NOT_AVAILABLE = 3;
+    public static final byte DEVICE_TIMED_OUT = 4;
+
+    static final TemperatureReadings EMPTY = new TemperatureReadings(new String[0], new double[0], new byte[0], 0);
+
+    private static final DeviceGroup.TemperatureReading NOT_AVAILABLE = new DeviceGroup.TemperatureNotAvailable();
+    private static final DeviceGroup.TemperatureReading DEVICE_GONE = new DeviceGroup.DeviceNotAvailable();
+    private static final DeviceGroup.TemperatureReading TIMED_OUT = new DeviceGroup.DeviceTimeOut();
+
+    final String[] deviceIds;
+    final double[] values;
+    final byte[] status;
+    final int size;
+    // Open addressing table of index + 1, only built by the first lookup. Replies can be shared between actors,
+    // the volatile write publishes the filled table to the other threads.
+    private volatile int[] slots = null;
+
+    TemperatureReadings(String[] deviceIds, double[] values, byte[] status, int size){
+        this.deviceIds = deviceIds;
+        this.values = values;
+        this.status = status;
+        this.size = size;
+    }
+
+    static TemperatureReadings of(Map<String, DeviceGroup.TemperatureReading> readings){
+        if (readings instanceof TemperatureReadings){
+            return (TemperatureReadings) readings;
+        }
+        return new Builder(readings.size()).addAll(readings).build();
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    public String deviceId(int i){
+        return deviceIds[i];
+    }
+
+    public byte status(int i){
+        return status[i];
+    }
+
+    // Only meaningful when status(i) is TEMPERATURE
+    public double value(int i){
+        return values[i];
+    }
+
+    public DeviceGroup.TemperatureReading reading(int i){
+        switch (status[i]){
+            case TEMPERATURE:
+                return new DeviceGroup.Temperature(values[i]);
+            case TEMPERATURE_NOT_AVAILABLE:
+                return NOT_AVAILABLE;
+            case DEVICE_NOT_AVAILABLE:
+                return DEVICE_GONE;
+            default:
+                return TIMED_OUT;
+        }
+    }
+
+    // Position of a device in the arrays, or -1
+    public int indexOf(String deviceId){
+        if (size == 0){
+            return -1;
+        }
+        int[] table = slots();
+        int mask = table.length - 1;
+        for (int slot = deviceId.hashCode() & mask; table[slot] != 0; slot = (slot + 1) & mask){
+            if (deviceIds[table[slot] - 1].equals(deviceId)){
+                return table[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    private int[] slots(){
+        int[] table = slots;
+        if (table == null){
+            table = new int[Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1];
+            int mask = table.length - 1;
+            for (int i = 0; i < size; i++){
+                int slot = deviceIds[i].hashCode() & mask;
+                while (table[slot] != 0){
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = i + 1;
+            }
+            slots = table;
+        }
+        return table;
+    }
+
+    @Override
+    public boolean containsKey(Object key){
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public DeviceGroup.TemperatureReading get(Object key){
+        int index = key instanceof String ? indexOf((String) key) : -1;
+        return index < 0 ? null : reading(index);
+    }
+
+    @Override
+    public Set<Map.Entry<String, DeviceGroup.TemperatureReading>> entrySet(){
+        return new AbstractSet<Map.Entry<String, DeviceGroup.TemperatureReading>>() {
+            @Override
+            public Iterator<Map.Entry<String, DeviceGroup.TemperatureReading>> iterator(){
+                return new Iterator<Map.Entry<String, DeviceGroup.TemperatureReading>>() {
+                    int next = 0;
+
+                    @Override
+                    public boolean hasNext(){
+                        return next < size;
+                    }
+
+                    @Override
+                    public Map.Entry<String, DeviceGroup.TemperatureReading> next(){
+                        if (next >= size){
+                            throw new NoSuchElementException();
+                        }
+                        int i = next++;
+                        return new AbstractMap.SimpleImmutableEntry<>(deviceIds[i], reading(i));
+                    }
+                };
+            }
+
+            @Override
+            public int size(){
+                return size;
+            }
+        };
+    }
+
+    // Device ids must be unique, the arrays are handed over to the result without a final copy.
+    static final class Builder {
+        private String[] deviceIds;
+        private double[] values;
+        private byte[] status;
+        private int size = 0;
+
+        Builder(int expectedSize){
+            int capacity = Math.max(expectedSize, 1);
+            this.deviceIds = new String[capacity];
+            this.values = new double[capacity];
+            this.status = new byte[capacity];
+        }
+
+        int size(){
+            return size;
+        }
+
+        Builder add(String deviceId, byte readingStatus, double value){
+            if (size == deviceIds.length){
+                int capacity = Math.max(size * 2, 16);
+                deviceIds = Arrays.copyOf(deviceIds, capacity);
+                values = Arrays.copyOf(values, capacity);
+                status = Arrays.copyOf(status, capacity);
+            }
+            deviceIds[size] = deviceId;
+            values[size] = value;
+            status[size] = readingStatus;
+            size++;
+            return this;
+        }
+
+        Builder addAll(Map<String, DeviceGroup.TemperatureReading> readings){
+            if (readings instanceof TemperatureReadings){
+                TemperatureReadings compact = (TemperatureReadings) readings;
+                for (int i = 0; i < compact.size; i++){
+                    add(compact.deviceIds[i], compact.status[i], compact.values[i]);
+                }
+                return this;
+            }
+            readings.forEach((deviceId, reading) -> {
+                if (reading instanceof DeviceGroup.Temperature){
+                    add(deviceId, TEMPERATURE, ((DeviceGroup.Temperature) reading).value);
+                }else if (reading instanceof DeviceGroup.TemperatureNotAvailable){
+                    add(deviceId, TEMPERATURE_NOT_AVAILABLE, 0.0);
+                }else if (reading instanceof DeviceGroup.DeviceNotAvailable){
+                    add(deviceId, DEVICE_NOT_AVAILABLE, 0.0);
+                }else {
+                    add(deviceId, DEVICE_TIMED_OUT, 0.0);
+                }
+            });
+            return this;
+        }
+
+        TemperatureReadings build(){
+            TemperatureReadings readings = new TemperatureReadings(deviceIds, values, status, size);
+            // Later adds must not write into arrays that the result shares
+            deviceIds = new String[0];
+            values = new double[0];
+            status = new byte[0];
+            size = 0;
+            return readings;
+        }
+    }
+}
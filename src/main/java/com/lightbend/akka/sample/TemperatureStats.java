@@ -0,0 +1,54 @@
+package com.lightbend.akka.sample;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+// Immutable summary of the latest reading of a set of devices. Statistics of disjoint sets merge exactly for
+// count, sum, min and max, quantiles keep the relative accuracy of the underlying sketch.
+public final class TemperatureStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final TemperatureStats EMPTY = new TemperatureStats(0L, 0.0, Double.NaN, Double.NaN,
+            new QuantileSketch(QuantileSketch.DEFAULT_RELATIVE_ACCURACY));
+
+    public final long count;
+    public final double sum;
+    public final double min;
+    public final double max;
+    final QuantileSketch sketch;
+
+    TemperatureStats(long count, double sum, double min, double max, QuantileSketch sketch){
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.sketch = sketch;
+    }
+
+    public double mean(){
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    public double quantile(double q){
+        return sketch.quantile(q);
+    }
+
+    public static TemperatureStats merge(Collection<TemperatureStats> parts){
+        long count = 0L;
+        double sum = 0.0;
+        double min = Double.NaN;
+        double max = Double.NaN;
+        QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        for (TemperatureStats part : parts){
+            if (part.count == 0){
+                continue;
+            }
+            count += part.count;
+            sum += part.sum;
+            min = count == part.count ? part.min : Math.min(min, part.min);
+            max = count == part.count ? part.max : Math.max(max, part.max);
+            sketch.merge(part.sketch);
+        }
+        return new TemperatureStats(count, sum, min, max, sketch);
+    }
+}
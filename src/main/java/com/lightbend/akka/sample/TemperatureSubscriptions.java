@@ -0,0 +1,104 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.ActorRef;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Subscribers to temperature changes of one actor. Each applies its own deadband against the value it was last
+// sent, and changes between two flushes are coalesced to the latest value per device, so a subscriber gets at most
+// one TemperatureUpdates per tick and per minimum interval, containing only the devices that moved.
+final class TemperatureSubscriptions {
+    static final FiniteDuration TICK = new FiniteDuration(100, TimeUnit.MILLISECONDS);
+
+    static final class Subscription {
+        final long requestId;
+        final ActorRef subscriber;
+        final double deadband;
+        final long minIntervalNanos;
+        final Map<String, Double> lastSent = new HashMap<>();
+        Map<String, Double> pending = new HashMap<>();
+        long lastFlush;
+
+        Subscription(long requestId, ActorRef subscriber, double deadband, long minIntervalNanos, long now){
+            this.requestId = requestId;
+            this.subscriber = subscriber;
+            this.deadband = deadband;
+            this.minIntervalNanos = minIntervalNanos;
+            this.lastFlush = now - minIntervalNanos;
+        }
+
+        void offer(String deviceId, double value){
+            Double last = lastSent.get(deviceId);
+            if (last != null && Math.abs(value - last) < deadband){
+                // Back within the deadband of what the subscriber knows, a pending change is void
+                pending.remove(deviceId);
+            }else {
+                pending.put(deviceId, value);
+            }
+        }
+
+        void flush(long now, ActorRef from){
+            if (pending.isEmpty() || now - lastFlush < minIntervalNanos){
+                return;
+            }
+            subscriber.tell(new DeviceGroup.TemperatureUpdates(requestId, Collections.unmodifiableMap(pending)), from);
+            lastSent.putAll(pending);
+            pending = new HashMap<>();
+            lastFlush = now;
+        }
+    }
+
+    private final List<Subscription> subscriptions = new ArrayList<>();
+
+    boolean isEmpty(){
+        return subscriptions.isEmpty();
+    }
+
+    // Returns false if the subscriber already had another subscription, so the caller only watches it once.
+    boolean add(DeviceGroup.SubscribeTemperatures subscribe, ActorRef subscriber){
+        boolean known = isSubscribed(subscriber);
+        remove(subscribe.requestId, subscriber);
+        subscriptions.add(new Subscription(subscribe.requestId, subscriber, subscribe.deadband,
+                subscribe.minInterval.toNanos(), System.nanoTime()));
+        return !known;
+    }
+
+    // Returns true if that was the last subscription of the subscriber, so the caller can stop watching it.
+    boolean remove(long requestId, ActorRef subscriber){
+        return subscriptions.removeIf(s -> s.requestId == requestId && s.subscriber.equals(subscriber))
+                && !isSubscribed(subscriber);
+    }
+
+    // Drops every subscription of a terminated subscriber, returns false if it had none.
+    boolean removeSubscriber(ActorRef subscriber){
+        return subscriptions.removeIf(s -> s.subscriber.equals(subscriber));
+    }
+
+    boolean isSubscribed(ActorRef subscriber){
+        for (Subscription s : subscriptions){
+            if (s.subscriber.equals(subscriber)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void offer(String deviceId, double value){
+        for (int i = 0; i < subscriptions.size(); i++){
+            subscriptions.get(i).offer(deviceId, value);
+        }
+    }
+
+    void flush(ActorRef from){
+        long now = System.nanoTime();
+        for (Subscription s : subscriptions){
+            s.flush(now, from);
+        }
+    }
+}
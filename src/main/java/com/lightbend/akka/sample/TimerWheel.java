@@ -0,0 +1,99 @@
+package com.lightbend.akka.sample;
+
+import java.util.function.Consumer;
+
+// Hashed timing wheel. A timeout lands in the slot of the tick it expires on, so scheduling and cancelling are O(1)
+// and a single periodic tick expires everything due, instead of one scheduler task per timeout. Timeouts fire on
+// the first tick at or after their deadline, so at most one tick late.
+final class TimerWheel<T> {
+    static final class Timeout<T> {
+        final T value;
+        // Full turns of the wheel left before the timeout is due when its slot comes up
+        long rounds;
+        int slot = -1;
+        Timeout<T> prev;
+        Timeout<T> next;
+
+        Timeout(T value){
+            this.value = value;
+        }
+
+        boolean isPending(){
+            return slot >= 0;
+        }
+    }
+
+    private final Timeout<T>[] slots;
+    private final long tickNanos;
+    // Slot of the last processed tick and the time of the next one
+    private int cursor = 0;
+    private long nextTickAt;
+    private int size = 0;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(int wheelSize, long tickNanos, long now){
+        this.slots = (Timeout<T>[]) new Timeout<?>[wheelSize];
+        this.tickNanos = tickNanos;
+        this.nextTickAt = now + tickNanos;
+    }
+
+    int size(){
+        return size;
+    }
+
+    Timeout<T> schedule(T value, long delayNanos, long now){
+        if (size == 0){
+            // An idle wheel is not ticked, start counting from now instead of catching up
+            nextTickAt = now + tickNanos;
+        }
+        long lastTickAt = nextTickAt - tickNanos;
+        long ticks = Math.max(1L, (now + delayNanos - lastTickAt + tickNanos - 1) / tickNanos);
+        Timeout<T> timeout = new Timeout<>(value);
+        timeout.rounds = (ticks - 1) / slots.length;
+        timeout.slot = (int) ((cursor + ticks) % slots.length);
+        timeout.next = slots[timeout.slot];
+        if (timeout.next != null){
+            timeout.next.prev = timeout;
+        }
+        slots[timeout.slot] = timeout;
+        size++;
+        return timeout;
+    }
+
+    void cancel(Timeout<T> timeout){
+        if (!timeout.isPending()){
+            return;
+        }
+        if (timeout.prev != null){
+            timeout.prev.next = timeout.next;
+        }else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null){
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+
+    // Processes every tick due by now and hands the expired values to the consumer.
+    void expire(long now, Consumer<T> expired){
+        while (nextTickAt <= now && size > 0){
+            cursor = (cursor + 1) % slots.length;
+            nextTickAt += tickNanos;
+            Timeout<T> timeout = slots[cursor];
+            while (timeout != null){
+                Timeout<T> next = timeout.next;
+                if (timeout.rounds == 0){
+                    cancel(timeout);
+                    expired.accept(timeout.value);
+                }else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeviceGroupQueryManagerTest {
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    TestKit requester;
+    TestKit device1;
+    TestKit device2;
+    Map<ActorRef, String> actorToDeviceId;
+    ActorRef manager;
+
+    @Before
+    public void prepareManager(){
+        requester = new TestKit(system);
+        device1 = new TestKit(system);
+        device2 = new TestKit(system);
+        actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+        manager = system.actorOf(DeviceGroupQueryManager.props(
+                DeviceGroupSettings.DEFAULT.withQueryTimeout(new FiniteDuration(3, TimeUnit.SECONDS))));
+    }
+
+    private void startQuery(long requestId, FiniteDuration timeout){
+        manager.tell(new DeviceGroupQueryManager.StartQuery(actorToDeviceId, Collections.emptyMap(),
+                requestId, requester.getRef(), timeout, false), ActorRef.noSender());
+    }
+
+    @Test
+    public void testTellConcurrentQueriesApartByReadId(){
+        startQuery(1L, null);
+        startQuery(2L, null);
+        long read1 = device1.expectMsgClass(Device.ReadTemperature.class).requestId;
+        long read2 = device1.expectMsgClass(Device.ReadTemperature.class).requestId;
+        assertNotEquals(read1, read2);
+        device2.expectMsgClass(Device.ReadTemperature.class);
+        device2.expectMsgClass(Device.ReadTemperature.class);
+
+        // Only the second query gets all its answers
+        manager.tell(new Device.RespondTemperature(read2, Optional.of(2.0)), device1.getRef());
+        manager.tell(new Device.RespondTemperature(read2, Optional.empty()), device2.getRef());
+        DeviceGroup.RespondAllTemperatures second = requester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(2L, second.requestId);
+        assertEquals(2.0, ((DeviceGroup.Temperature) second.temperatures.get("device1")).value, 0.0);
+        assertTrue(second.temperatures.get("device2") instanceof DeviceGroup.TemperatureNotAvailable);
+
+        // A stopped device answers for every query still waiting on it
+        manager.tell(new Device.RespondTemperature(read1, Optional.of(1.0)), device1.getRef());
+        device2.getRef().tell(PoisonPill.getInstance(), ActorRef.noSender());
+        DeviceGroup.RespondAllTemperatures first = requester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(1L, first.requestId);
+        assertTrue(first.temperatures.get("device2") instanceof DeviceGroup.DeviceNotAvailable);
+    }
+
+    @Test
+    public void testTimeOutQueriesOnTheWheel(){
+        startQuery(1L, new FiniteDuration(200, TimeUnit.MILLISECONDS));
+        startQuery(2L, new FiniteDuration(2, TimeUnit.SECONDS));
+        device1.expectMsgClass(Device.ReadTemperature.class);
+        long read2 = device1.expectMsgClass(Device.ReadTemperature.class).requestId;
+
+        DeviceGroup.RespondAllTemperatures first = requester.expectMsgClass(
+                new FiniteDuration(1, TimeUnit.SECONDS), DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(1L, first.requestId);
+        assertTrue(first.temperatures.get("device1") instanceof DeviceGroup.DeviceTimeOut);
+        assertTrue(first.temperatures.get("device2") instanceof DeviceGroup.DeviceTimeOut);
+
+        // The other query is still running and completes normally
+        manager.tell(new Device.RespondTemperature(read2, Optional.of(1.0)), device1.getRef());
+        manager.tell(new Device.RespondTemperature(read2, Optional.of(2.0)), device2.getRef());
+        DeviceGroup.RespondAllTemperatures second = requester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(2L, second.requestId);
+        assertEquals(2.0, ((DeviceGroup.Temperature) second.temperatures.get("device2")).value, 0.0);
+    }
+}
@@ -121,4 +121,85 @@ public class DeviceGroupQueryTest {
 
         assertEqualTemperatures(expectedTemperatures, response.temperatures);
     }
+
+    @Test
+    public void testIgnoreRepeatedRepliesFromSameDevice() {
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(1.0)), device1.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(3.0)), device1.getRef());
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(2.0)), device2.getRef());
+
+        DeviceGroup.RespondAllTemperatures response = requester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(1L, response.requestId);
+
+        Map<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(1.0));
+        expectedTemperatures.put("device2", new DeviceGroup.Temperature(2.0));
+
+        assertEqualTemperatures(expectedTemperatures, response.temperatures);
+    }
+
+    @Test
+    public void testReplyImmediatelyForEmptyGroup() {
+        TestKit emptyRequester = new TestKit(system);
+        system.actorOf(DeviceGroupQuery.props(
+                new HashMap<>(),
+                2L,
+                emptyRequester.getRef(),
+                new FiniteDuration(3, TimeUnit.SECONDS)));
+
+        DeviceGroup.RespondAllTemperatures response = emptyRequester.expectMsgClass(
+                FiniteDuration.create(1, TimeUnit.SECONDS), DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(2L, response.requestId);
+        assertTrue(response.temperatures.isEmpty());
+    }
+
+    @Test
+    public void testExposeCompactReadingsBehindTheMapView(){
+        queryActor.tell(new Device.RespondTemperature(0L, Optional.of(1.0)), device1.getRef());
+        device2.getRef().tell(PoisonPill.getInstance(), ActorRef.noSender());
+
+        DeviceGroup.RespondAllTemperatures response = requester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        TemperatureReadings readings = response.readings;
+        assertSame(readings, response.temperatures);
+
+        int index1 = readings.indexOf("device1");
+        assertEquals(TemperatureReadings.TEMPERATURE, readings.status(index1));
+        assertEquals(1.0, readings.value(index1), 0.0);
+        assertEquals(TemperatureReadings.DEVICE_NOT_AVAILABLE, readings.status(readings.indexOf("device2")));
+        assertEquals(-1, readings.indexOf("device3"));
+
+        assertTrue(response.temperatures.get("device2") instanceof DeviceGroup.DeviceNotAvailable);
+        assertNull(response.temperatures.get("device3"));
+        Map<String, DeviceGroup.TemperatureReading> copy = new HashMap<>(response.temperatures);
+        assertEquals(2, copy.size());
+        assertEqualTemperatures(copy, response.temperatures);
+    }
+
+    @Test
+    public void testStreamRepliesAsTheyArriveAndCompleteAfterTheDeadline(){
+        TestKit streamRequester = new TestKit(system);
+        TestKit slowDevice = new TestKit(system);
+        Map<ActorRef, String> devices = new HashMap<>();
+        devices.put(device1.getRef(), "device1");
+        devices.put(slowDevice.getRef(), "device2");
+        ActorRef streamingQuery = system.actorOf(DeviceGroupQuery.props(devices, new HashMap<>(), 2L,
+                streamRequester.getRef(), new FiniteDuration(500, TimeUnit.MILLISECONDS), true));
+        device1.expectMsgClass(Device.ReadTemperature.class);
+        slowDevice.expectMsgClass(Device.ReadTemperature.class);
+
+        streamingQuery.tell(new Device.RespondTemperature(0L, Optional.of(1.0)), device1.getRef());
+        // The fast reply is not held back by the silent device
+        DeviceGroup.RespondAllTemperatures first = streamRequester.expectMsgClass(
+                new FiniteDuration(300, TimeUnit.MILLISECONDS), DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(2L, first.requestId);
+        assertEquals(1, first.temperatures.size());
+        assertEquals(1.0, ((DeviceGroup.Temperature) first.temperatures.get("device1")).value, 0.0);
+
+        DeviceGroup.RespondAllTemperatures last = streamRequester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(1, last.temperatures.size());
+        assertTrue(last.temperatures.get("device2") instanceof DeviceGroup.DeviceTimeOut);
+        DeviceGroup.AllTemperaturesCompleted completed = streamRequester.expectMsgClass(DeviceGroup.AllTemperaturesCompleted.class);
+        assertEquals(2L, completed.requestId);
+        assertEquals(2, completed.devices);
+    }
 }
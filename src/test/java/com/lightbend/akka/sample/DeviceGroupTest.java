@@ -3,29 +3,61 @@ package com.lightbend.akka.sample;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.PoisonPill;
+import akka.actor.Status;
 import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import scala.concurrent.duration.FiniteDuration;
+
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static com.lightbend.akka.sample.TestUtils.assertEqualTemperatures;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 
 public class DeviceGroupTest {
     static ActorSystem system;
 
     @BeforeClass
     public static void setup() {
-        system = ActorSystem.create();
+        system = ActorSystem.create("device-group-test", ConfigFactory.parseString(
+                // One thread, which a test can hold to keep the devices on it from answering
+                "stalled-dispatcher {\n" +
+                "  type = Dispatcher\n" +
+                "  executor = thread-pool-executor\n" +
+                "  thread-pool-executor.fixed-pool-size = 1\n" +
+                "}\n").withFallback(ConfigFactory.load()));
+    }
+
+    // Holds the stalled-dispatcher's thread until the returned latch is counted down. Returns once it is held, a
+    // device still running on it could otherwise answer what was sent meanwhile.
+    static CountDownLatch stallDevices() throws InterruptedException {
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        system.dispatchers().lookup("stalled-dispatcher").execute(() -> {
+            stalled.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        });
+        stalled.await();
+        return release;
     }
 
     @AfterClass
@@ -79,6 +111,34 @@ public class DeviceGroupTest {
         probe.expectNoMsg();
     }
 
+    @Test
+    public void testTrackDevicesInOnePass(){
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        groupActor.tell(new DeviceGroup.TrackDevices(1L, "group", new String[]{"device1", "device2", "device 3"}), probe.getRef());
+        DeviceGroup.DevicesTracked ack = probe.expectMsgClass(DeviceGroup.DevicesTracked.class);
+        assertEquals(1L, ack.requestId);
+        assertEquals(DeviceManager.DevicesRegistered.ALREADY_PRESENT, ack.outcomes[0]);
+        assertEquals(DeviceManager.DevicesRegistered.REGISTERED, ack.outcomes[1]);
+        assertEquals(DeviceManager.DevicesRegistered.REJECTED, ack.outcomes[2]);
+
+        groupActor.tell(new DeviceGroup.RequestDeviceList(2L), probe.getRef());
+        assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()),
+                probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids);
+
+        groupActor.tell(new DeviceGroup.TrackDevices(3L, "wrongGroup", new String[]{"device4"}), probe.getRef());
+        assertEquals(DeviceManager.DevicesRegistered.REJECTED, probe.expectMsgClass(DeviceGroup.DevicesTracked.class).outcomes[0]);
+
+        String[] many = new String[200];
+        for (int i = 0; i < many.length; i++){
+            many[i] = "many" + i;
+        }
+        groupActor.tell(new DeviceGroup.TrackDevices(4L, "group", many), probe.getRef());
+        ack = probe.expectMsgClass(DeviceGroup.DevicesTracked.class);
+        assertEquals(199, ack.deviceHandles[199] - ack.deviceHandles[0]);
+    }
+
     @Test
     public void testListActiveDevices(){
         groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"),probe.getRef());
@@ -93,6 +153,22 @@ public class DeviceGroupTest {
         assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()), reply.ids);
     }
 
+    @Test
+    public void testDeviceListIsASnapshot(){
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        groupActor.tell(new DeviceGroup.RequestDeviceList(0L), probe.getRef());
+        DeviceGroup.ReplyDeviceList before = probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class);
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        groupActor.tell(new DeviceGroup.RequestDeviceList(1L), probe.getRef());
+        DeviceGroup.ReplyDeviceList after = probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class);
+
+        assertEquals(Stream.of("device1").collect(Collectors.toSet()), before.ids);
+        assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()), after.ids);
+    }
+
     @Test
     public void testListActiveDevicesAfterOneShutdown(){
         groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
@@ -117,7 +193,7 @@ public class DeviceGroupTest {
             groupActor.tell(new DeviceGroup.RequestDeviceList(1L), probe.getRef());
             DeviceGroup.ReplyDeviceList r = probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class);
             assertEquals(1L, r.requestId);
-            assertEquals(Stream.of("device2").collect(Collectors.toSet()), reply.ids);
+            assertEquals(Stream.of("device2").collect(Collectors.toSet()), r.ids);
             return null;
         });
     }
@@ -154,4 +230,332 @@ public class DeviceGroupTest {
 
         assertEqualTemperatures(expectedTemperatures, response.temperatures);
     }
+
+    @Test
+    public void testRecordTemperatureBatchWithSingleAck(){
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor2 = probe.getLastSender();
+
+        groupActor.tell(new DeviceManager.RecordTemperatureBatch(
+                7L,
+                "group",
+                new String[]{"device1", "device2", "unknown", "device1"},
+                new long[]{1L, 1L, 1L, 2L},
+                new double[]{1.0, 2.0, 3.0, 4.0}), probe.getRef());
+        DeviceManager.TemperatureBatchRecorded ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(7L, ack.requestId);
+        assertEquals(3, ack.recorded);
+        assertEquals(1, ack.rejected);
+        probe.expectNoMsg();
+
+        deviceActor1.tell(new Device.ReadTemperature(1L), probe.getRef());
+        assertEquals(Optional.of(4.0), probe.expectMsgClass(Device.RespondTemperature.class).value);
+        deviceActor2.tell(new Device.ReadTemperature(2L), probe.getRef());
+        assertEquals(Optional.of(2.0), probe.expectMsgClass(Device.RespondTemperature.class).value);
+    }
+
+    @Test
+    public void testReportStateInHandleOrderWithTimestamps(){
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        groupActor.tell(new DeviceManager.RecordTemperatureBatch(1L, "group",
+                new String[]{"device1"}, new long[]{5L}, new double[]{21.5}), probe.getRef());
+        probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+
+        groupActor.tell(new DeviceGroup.RequestGroupState(2L), probe.getRef());
+        DeviceGroup.GroupState state = probe.expectMsgClass(DeviceGroup.GroupState.class);
+        assertEquals(2L, state.requestId);
+        assertArrayEquals(new String[]{"device1", "device2"}, state.deviceIds);
+        assertArrayEquals(new boolean[]{true, false}, state.hasReadings);
+        assertEquals(5L, state.timestamps[0]);
+        assertEquals(21.5, state.values[0], 0.0);
+    }
+
+    @Test
+    public void testServeTemperaturesFromSnapshotWithoutQueryingDevices(){
+        ActorRef cachingGroup = system.actorOf(DeviceGroup.props("group", FiniteDuration.Zero()));
+
+        cachingGroup.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+
+        cachingGroup.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        deviceActor1.tell(new Device.RecordTemperature(0L, 1.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecoded.class);
+
+        probe.awaitAssert(() -> {
+            cachingGroup.tell(new DeviceGroup.RequestAllTemperatures(1L), probe.getRef());
+            DeviceGroup.RespondAllTemperatures response = probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+            assertEquals(1L, response.requestId);
+
+            Map<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+            expectedTemperatures.put("device1", new DeviceGroup.Temperature(1.0));
+            expectedTemperatures.put("device2", new DeviceGroup.TemperatureNotAvailable());
+            assertEquals(2, response.temperatures.size());
+            assertEqualTemperatures(expectedTemperatures, response.temperatures);
+            return null;
+        });
+
+        cachingGroup.tell(new DeviceGroup.RequestAllTemperatures(2L, true), probe.getRef());
+        DeviceGroup.RespondAllTemperatures fresh = probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(2L, fresh.requestId);
+        assertEquals(2, fresh.temperatures.size());
+    }
+
+    @Test
+    public void testCoalesceConcurrentTemperatureRequests() throws Exception {
+        TestKit otherRequester = new TestKit(system);
+        ActorRef stalledGroup = system.actorOf(DeviceGroup.props("group",
+                DeviceGroupSettings.DEFAULT.withDeviceDispatcher("stalled-dispatcher")));
+        stalledGroup.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+
+        deviceActor1.tell(new Device.RecordTemperature(0L, 1.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecoded.class);
+
+        // The device cannot answer the first request before the second one reaches the group
+        CountDownLatch release = stallDevices();
+        try {
+            stalledGroup.tell(new DeviceGroup.RequestAllTemperatures(1L), probe.getRef());
+            stalledGroup.tell(new DeviceGroup.RequestAllTemperatures(2L), otherRequester.getRef());
+            stalledGroup.tell(new DeviceGroup.RequestDeviceList(3L), probe.getRef());
+            probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class);
+        } finally {
+            release.countDown();
+        }
+
+        DeviceGroup.RespondAllTemperatures response1 = probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        DeviceGroup.RespondAllTemperatures response2 = otherRequester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(1L, response1.requestId);
+        assertEquals(2L, response2.requestId);
+        assertSame(response1.temperatures, response2.temperatures);
+
+        Map<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(1.0));
+        assertEqualTemperatures(expectedTemperatures, response2.temperatures);
+    }
+
+    @Test
+    public void testPassivateIdleDevicesAndRecreateThemOnDemand(){
+        ActorRef passivatingGroup = system.actorOf(DeviceGroup.props("group",
+                DeviceGroupSettings.DEFAULT.withPassivationTimeout(FiniteDuration.create(200, TimeUnit.MILLISECONDS))));
+
+        passivatingGroup.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+
+        deviceActor1.tell(new Device.RecordTemperature(0L, 5.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecoded.class);
+
+        probe.watch(deviceActor1);
+        probe.expectTerminated(deviceActor1);
+
+        passivatingGroup.tell(new DeviceGroup.RequestDeviceList(1L), probe.getRef());
+        assertEquals(Stream.of("device1").collect(Collectors.toSet()),
+                probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids);
+
+        passivatingGroup.tell(new DeviceGroup.RequestAllTemperatures(2L), probe.getRef());
+        Map<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(5.0));
+        assertEqualTemperatures(expectedTemperatures,
+                probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class).temperatures);
+
+        passivatingGroup.tell(new DeviceGroup.DeviceEnvelope("device1", new Device.ReadTemperature(3L)), probe.getRef());
+        assertEquals(Optional.of(5.0), probe.expectMsgClass(Device.RespondTemperature.class).value);
+
+        passivatingGroup.tell(new DeviceGroup.DeviceEnvelope("device1", new Device.RecordTemperature(4L, 6.0)), probe.getRef());
+        assertEquals(4L, probe.expectMsgClass(Device.TemperatureRecoded.class).requestId);
+        assertNotEquals(deviceActor1, probe.getLastSender());
+
+        probe.getLastSender().tell(new Device.ReadTemperatureWindow(5L, Long.MIN_VALUE, Long.MAX_VALUE), probe.getRef());
+        assertEquals(2, probe.expectMsgClass(Device.RespondTemperatureWindow.class).values.length);
+
+        passivatingGroup.tell(new DeviceGroup.RequestAllTemperatures(6L), probe.getRef());
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(6.0));
+        assertEqualTemperatures(expectedTemperatures,
+                probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class).temperatures);
+    }
+
+    @Test
+    public void testPushCoalescedChangesToGroupSubscribers(){
+        TestKit subscriber = new TestKit(system);
+        groupActor.tell(new DeviceGroup.SubscribeTemperatures(5L), subscriber.getRef());
+        subscriber.expectMsgClass(DeviceGroup.TemperaturesSubscribed.class);
+
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        groupActor.tell(new DeviceManager.RecordTemperatureBatch(1L, "group",
+                new String[]{"device1", "device2", "device1"}, new long[]{1L, 1L, 2L}, new double[]{1.0, 3.0, 2.0}),
+                probe.getRef());
+        probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+
+        // Updates may be split over ticks, but together carry the latest value of each changed device
+        Map<String, Double> expected = new HashMap<>();
+        expected.put("device1", 2.0);
+        expected.put("device2", 3.0);
+        Map<String, Double> received = new HashMap<>();
+        while (!received.equals(expected)){
+            DeviceGroup.TemperatureUpdates updates = subscriber.expectMsgClass(DeviceGroup.TemperatureUpdates.class);
+            assertEquals(5L, updates.requestId);
+            received.putAll(updates.changes);
+        }
+
+        groupActor.tell(new DeviceGroup.UnsubscribeTemperatures(5L), subscriber.getRef());
+        groupActor.tell(new DeviceGroup.DeviceEnvelope("device1", new Device.RecordTemperature(2L, 9.0)), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecoded.class);
+        subscriber.expectNoMsg(new FiniteDuration(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testAnswerGroupStatsFromRunningAggregates(){
+        ActorRef aggregatingGroup = system.actorOf(DeviceGroup.props("group", DeviceGroupSettings.DEFAULT.withAggregates(true)));
+        for (String deviceId : new String[]{"device1", "device2", "device3"}){
+            aggregatingGroup.tell(new DeviceManager.RequestTrackDevice("group", deviceId), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        }
+        aggregatingGroup.tell(new DeviceManager.RecordTemperatureBatch(1L, "group",
+                new String[]{"device1", "device2", "device3"}, new long[]{1L, 1L, 1L}, new double[]{10.0, 20.0, 30.0}),
+                probe.getRef());
+        probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        // Replaces the minimum, which must not linger in the aggregate
+        aggregatingGroup.tell(new DeviceGroup.DeviceEnvelope("device1", new Device.RecordTemperature(2L, 40.0)), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecoded.class);
+
+        aggregatingGroup.tell(new DeviceGroup.RequestGroupStats(3L), probe.getRef());
+        DeviceGroup.RespondGroupStats response = probe.expectMsgClass(DeviceGroup.RespondGroupStats.class);
+        assertEquals(3L, response.requestId);
+        assertEquals(3L, response.stats.count);
+        assertEquals(90.0, response.stats.sum, 1e-9);
+        assertEquals(20.0, response.stats.min, 0.0);
+        assertEquals(40.0, response.stats.max, 0.0);
+        assertEquals(30.0, response.stats.quantile(0.5), 30.0 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+
+        // A stopped device leaves the statistics
+        aggregatingGroup.tell(new DeviceGroup.DeviceEnvelope("device1", PoisonPill.getInstance()), probe.getRef());
+        probe.awaitAssert(() -> {
+            aggregatingGroup.tell(new DeviceGroup.RequestGroupStats(5L), probe.getRef());
+            DeviceGroup.RespondGroupStats afterStop = probe.expectMsgClass(DeviceGroup.RespondGroupStats.class);
+            assertEquals(2L, afterStop.stats.count);
+            assertEquals(30.0, afterStop.stats.max, 0.0);
+            return null;
+        });
+    }
+
+    @Test
+    public void testStreamTemperaturesWithCallerDeadline(){
+        for (String deviceId : new String[]{"device1", "device2"}){
+            groupActor.tell(new DeviceManager.RequestTrackDevice("group", deviceId), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        }
+        groupActor.tell(new DeviceGroup.DeviceEnvelope("device1", new Device.RecordTemperature(0L, 1.0)), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecoded.class);
+
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(1L, new FiniteDuration(1, TimeUnit.SECONDS), true), probe.getRef());
+        Map<String, DeviceGroup.TemperatureReading> received = new HashMap<>();
+        Object message = probe.receiveOne(new FiniteDuration(3, TimeUnit.SECONDS));
+        while (message instanceof DeviceGroup.RespondAllTemperatures){
+            DeviceGroup.RespondAllTemperatures chunk = (DeviceGroup.RespondAllTemperatures) message;
+            assertEquals(1L, chunk.requestId);
+            received.putAll(chunk.temperatures);
+            message = probe.receiveOne(new FiniteDuration(3, TimeUnit.SECONDS));
+        }
+        DeviceGroup.AllTemperaturesCompleted completed = (DeviceGroup.AllTemperaturesCompleted) message;
+        assertEquals(1L, completed.requestId);
+        assertEquals(2, completed.devices);
+
+        Map<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(1.0));
+        expectedTemperatures.put("device2", new DeviceGroup.TemperatureNotAvailable());
+        assertEquals(2, received.size());
+        assertEqualTemperatures(expectedTemperatures, received);
+    }
+
+    @Test
+    public void testRejectWhatTheJournalLosesToAFailedWrite() throws Exception {
+        Journal journal = Journal.open(Files.createTempDirectory("device-journal"), DeviceJournal.DEFAULT_SEGMENT_SIZE);
+        ActorRef journalActor = system.actorOf(DeviceJournal.props(journal, DeviceJournal.DEFAULT_SNAPSHOT_EVERY));
+        ActorRef journaledGroup = system.actorOf(DeviceGroup.props("group", DeviceGroupSettings.DEFAULT.withJournal(journalActor)));
+        journaledGroup.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        // Every later write fails and restarts the journal
+        journal.close();
+        journaledGroup.tell(new DeviceManager.RecordTemperatureBatch(1L, "group",
+                new String[]{"device1", "unknown"}, new long[]{1L, 2L}, new double[]{1.0, 2.0}), probe.getRef());
+        DeviceManager.TemperatureBatchRecorded recorded = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(1L, recorded.requestId);
+        assertEquals(0, recorded.recorded);
+        assertEquals(2, recorded.rejected);
+
+        journaledGroup.tell(new DeviceGroup.TrackDevices(2L, "group", new String[]{"device2"}), probe.getRef());
+        DeviceGroup.DevicesTracked tracked = probe.expectMsgClass(DeviceGroup.DevicesTracked.class);
+        assertEquals(2L, tracked.requestId);
+        assertArrayEquals(new byte[]{DeviceManager.DevicesRegistered.REJECTED}, tracked.outcomes);
+    }
+
+    @Test
+    public void testFailCollectionLostToAQueryManagerRestart() throws Exception {
+        ActorRef stalledGroup = system.actorOf(DeviceGroup.props("group", DeviceGroupSettings.DEFAULT
+                .withQueryTimeout(FiniteDuration.create(10, TimeUnit.SECONDS))
+                .withDeviceDispatcher("stalled-dispatcher")));
+        stalledGroup.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        CountDownLatch release = stallDevices();
+        try {
+            stalledGroup.tell(new DeviceGroup.RequestAllTemperatures(1L), probe.getRef());
+            probe.expectNoMsg(FiniteDuration.create(300, TimeUnit.MILLISECONDS));
+            // A query without devices fails to start and restarts the manager
+            TestKit crasher = new TestKit(system);
+            system.actorSelection(stalledGroup.path().child("queries")).tell(
+                    new DeviceGroupQueryManager.StartQuery(null, null, 9L, crasher.getRef(), null, false), crasher.getRef());
+            crasher.expectMsgClass(Status.Failure.class);
+            probe.expectMsgClass(Status.Failure.class);
+        } finally {
+            release.countDown();
+        }
+
+        stalledGroup.tell(new DeviceGroup.RequestAllTemperatures(2L), probe.getRef());
+        DeviceGroup.RespondAllTemperatures response = probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(2L, response.requestId);
+        assertEquals(1, response.temperatures.size());
+    }
+
+    @Test
+    public void testRejectPendingBatchesOfAStoppedGroup() throws Exception {
+        ActorRef stalledGroup = system.actorOf(DeviceGroup.props("group", DeviceGroupSettings.DEFAULT
+                .withDeviceDispatcher("stalled-dispatcher")));
+        stalledGroup.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        CountDownLatch release = stallDevices();
+        try {
+            stalledGroup.tell(new DeviceManager.RecordTemperatureBatch(3L, "group",
+                    new String[]{"device1", "device1"}, new long[]{1L, 2L}, new double[]{1.0, 2.0}), probe.getRef());
+            probe.expectNoMsg(FiniteDuration.create(300, TimeUnit.MILLISECONDS));
+            system.stop(stalledGroup);
+            // The group cannot finish stopping before its devices, but passes the stop on to them meanwhile
+            probe.expectNoMsg(FiniteDuration.create(300, TimeUnit.MILLISECONDS));
+        } finally {
+            release.countDown();
+        }
+
+        DeviceManager.TemperatureBatchRecorded ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(3L, ack.requestId);
+        assertEquals(0, ack.recorded);
+        assertEquals(2, ack.rejected);
+    }
 }
@@ -1,19 +1,33 @@
 package com.lightbend.akka.sample;
 
+import akka.actor.ActorIdentity;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.actor.Identify;
 import akka.actor.PoisonPill;
 import akka.testkit.javadsl.TestKit;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static com.lightbend.akka.sample.TestUtils.assertEqualTemperatures;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 public class DeviceManagerTest {
     static ActorSystem system;
@@ -117,4 +131,363 @@ public class DeviceManagerTest {
             return null;
         });
     }
+
+    @Test
+    public void testRouteTemperatureBatchByHandles(){
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        DeviceManager.DeviceRegistered device1 = probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        DeviceManager.DeviceRegistered device2 = probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        assertEquals(device1.groupHandle, device2.groupHandle);
+        assertNotEquals(device1.deviceHandle, device2.deviceHandle);
+        ActorRef deviceActor2 = probe.getLastSender();
+
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        assertEquals(device2.deviceHandle, probe.expectMsgClass(DeviceManager.DeviceRegistered.class).deviceHandle);
+
+        managerActor.tell(new DeviceManager.RecordTemperatureHandleBatch(1L, device1.groupHandle, device1.epoch,
+                new int[]{device1.deviceHandle, device2.deviceHandle, 99}, new long[]{1L, 2L, 3L}, new double[]{1.0, 2.0, 3.0}),
+                probe.getRef());
+        DeviceManager.TemperatureBatchRecorded ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(1L, ack.requestId);
+        assertEquals(2, ack.recorded);
+        assertEquals(1, ack.rejected);
+
+        deviceActor2.tell(new Device.ReadTemperature(2L), probe.getRef());
+        assertEquals(Optional.of(2.0), probe.expectMsgClass(Device.RespondTemperature.class).value);
+
+        managerActor.tell(new DeviceManager.RecordTemperatureHandleBatch(
+                3L, device1.groupHandle + 1, device1.epoch, new int[]{0}, new long[]{1L}, new double[]{1.0}), probe.getRef());
+        assertEquals(1, probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class).rejected);
+    }
+
+    @Test
+    public void testRejectHandlesOfAnEarlierGroupIncarnation(){
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        DeviceManager.DeviceRegistered before = probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        system.actorSelection(probe.getLastSender().path().parent()).tell(new Identify(1), probe.getRef());
+        ActorRef groupActor = probe.expectMsgClass(ActorIdentity.class).getActorRef().get();
+        probe.watch(groupActor);
+        groupActor.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        probe.expectTerminated(groupActor);
+        // Leaves the manager time to forget the group
+        probe.expectNoMsg(FiniteDuration.create(200, TimeUnit.MILLISECONDS));
+
+        // The new group hands out the same handles for other devices
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        DeviceManager.DeviceRegistered after = probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        assertEquals(before.groupHandle, after.groupHandle);
+        assertEquals(before.deviceHandle, after.deviceHandle);
+        assertNotEquals(before.epoch, after.epoch);
+
+        managerActor.tell(new DeviceManager.RecordTemperatureHandleBatch(1L, before.groupHandle, before.epoch,
+                new int[]{before.deviceHandle}, new long[]{1L}, new double[]{1.0}), probe.getRef());
+        DeviceManager.TemperatureBatchRecorded stale = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(0, stale.recorded);
+        assertEquals(1, stale.rejected);
+
+        managerActor.tell(new DeviceManager.RecordTemperatureHandleBatch(2L, after.groupHandle, after.epoch,
+                new int[]{after.deviceHandle}, new long[]{1L}, new double[]{1.0}), probe.getRef());
+        assertEquals(1, probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class).recorded);
+    }
+
+    @Test
+    public void testRegisterDevicesInBulk(){
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group1", "device1"), probe.getRef());
+        DeviceManager.DeviceRegistered existing = probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        managerActor.tell(new DeviceManager.RequestTrackDevices(1L,
+                new String[]{"group1", "group2", "group1", "", "group2", "group1"},
+                new String[]{"device1", "device1", "device2", "device3", "device/4", "device2"}), probe.getRef());
+        DeviceManager.DevicesRegistered ack = probe.expectMsgClass(DeviceManager.DevicesRegistered.class);
+        assertEquals(1L, ack.requestId);
+        assertArrayEquals(new byte[]{
+                DeviceManager.DevicesRegistered.ALREADY_PRESENT, DeviceManager.DevicesRegistered.REGISTERED,
+                DeviceManager.DevicesRegistered.REGISTERED, DeviceManager.DevicesRegistered.REJECTED,
+                DeviceManager.DevicesRegistered.REJECTED, DeviceManager.DevicesRegistered.ALREADY_PRESENT}, ack.outcomes);
+        assertEquals(2, ack.count(DeviceManager.DevicesRegistered.REGISTERED));
+        assertEquals(existing.groupHandle, ack.groupHandles[0]);
+        assertEquals(existing.deviceHandle, ack.deviceHandles[0]);
+        assertEquals(ack.deviceHandles[2], ack.deviceHandles[5]);
+        assertEquals(-1, ack.groupHandles[3]);
+        assertEquals(-1, ack.deviceHandles[4]);
+
+        managerActor.tell(new DeviceManager.RecordTemperatureHandleBatch(2L, ack.groupHandles[2], ack.epochs[2],
+                new int[]{ack.deviceHandles[0], ack.deviceHandles[2]}, new long[]{1L, 2L}, new double[]{1.0, 2.0}),
+                probe.getRef());
+        assertEquals(2, probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class).recorded);
+
+        managerActor.tell(new DeviceManager.RequestGroupList(3L), probe.getRef());
+        assertEquals(Stream.of("group1", "group2").collect(Collectors.toSet()),
+                probe.expectMsgClass(DeviceManager.ReplyGroupList.class).ids);
+
+        managerActor.tell(new DeviceManager.RequestTrackDevices(4L, new String[0], new String[0]), probe.getRef());
+        assertEquals(0, probe.expectMsgClass(DeviceManager.DevicesRegistered.class).outcomes.length);
+    }
+
+    @Test
+    public void testRejectRegistrationsOfAGroupThatStopsBeforeAcknowledging(){
+        TestKit journal = new TestKit(system);
+        ActorRef journaledManager = system.actorOf(DeviceManager.props(
+                DeviceGroupSettings.DEFAULT.withJournal(journal.getRef())));
+        journaledManager.tell(new DeviceManager.RequestTrackDevices(1L,
+                new String[]{"group1", "group2", "group1"}, new String[]{"device1", "device1", "device2"}), probe.getRef());
+
+        // The acknowledgements wait on the journal, which only lets the one of group1 through
+        Map<String, DeviceJournal.Append> appends = new HashMap<>();
+        for (int i = 0; i < 2; i++){
+            DeviceJournal.Append append = journal.expectMsgClass(DeviceJournal.Append.class);
+            appends.put(((DeviceJournal.TrackedBatch) append.event).groupId, append);
+        }
+        DeviceJournal.Append group1 = appends.get("group1");
+        group1.replyTo.tell(group1.reply, group1.replyFrom);
+        appends.get("group2").replyFrom.tell(PoisonPill.getInstance(), ActorRef.noSender());
+
+        DeviceManager.DevicesRegistered ack = probe.expectMsgClass(DeviceManager.DevicesRegistered.class);
+        assertArrayEquals(new byte[]{DeviceManager.DevicesRegistered.REGISTERED,
+                DeviceManager.DevicesRegistered.REJECTED, DeviceManager.DevicesRegistered.REGISTERED}, ack.outcomes);
+        assertEquals(-1, ack.deviceHandles[1]);
+    }
+
+    @Test
+    public void testRecoverDevicesRegisteredInBulk() throws Exception {
+        Path journalDirectory = Files.createTempDirectory("device-journal");
+        ActorRef persistentManager = system.actorOf(DeviceManager.props(DeviceGroupSettings.DEFAULT, journalDirectory));
+        persistentManager.tell(new DeviceManager.RequestTrackDevices(1L,
+                new String[]{"group", "group"}, new String[]{"device1", "device2"}), probe.getRef());
+        assertEquals(2, probe.expectMsgClass(DeviceManager.DevicesRegistered.class)
+                .count(DeviceManager.DevicesRegistered.REGISTERED));
+
+        probe.watch(persistentManager);
+        system.stop(persistentManager);
+        probe.expectTerminated(persistentManager);
+
+        ActorRef recoveredManager = system.actorOf(DeviceManager.props(DeviceGroupSettings.DEFAULT, journalDirectory));
+        recoveredManager.tell(new DeviceManager.RequestTrackDevices(2L,
+                new String[]{"group", "group"}, new String[]{"device1", "device3"}), probe.getRef());
+        DeviceManager.DevicesRegistered ack = probe.expectMsgClass(DeviceManager.DevicesRegistered.class);
+        assertArrayEquals(new byte[]{DeviceManager.DevicesRegistered.ALREADY_PRESENT,
+                DeviceManager.DevicesRegistered.REGISTERED}, ack.outcomes);
+    }
+
+    @Test
+    public void testRouteTemperatureBatchToGroup(){
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        managerActor.tell(new DeviceManager.RecordTemperatureBatch(
+                1L, "group", new String[]{"device1", "device1"}, new long[]{1L, 2L}, new double[]{1.0, 2.0}), probe.getRef());
+        DeviceManager.TemperatureBatchRecorded ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(1L, ack.requestId);
+        assertEquals(2, ack.recorded);
+        assertEquals(0, ack.rejected);
+
+        managerActor.tell(new DeviceManager.RecordTemperatureBatch(
+                2L, "unknown", new String[]{"device1"}, new long[]{1L}, new double[]{1.0}), probe.getRef());
+        ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(2L, ack.requestId);
+        assertEquals(0, ack.recorded);
+        assertEquals(1, ack.rejected);
+    }
+
+    @Test
+    public void testRecoverDevicesAndReadingsFromJournal() throws Exception {
+        Path journalDirectory = Files.createTempDirectory("device-journal");
+        ActorRef persistentManager = system.actorOf(DeviceManager.props(DeviceGroupSettings.DEFAULT, journalDirectory));
+
+        persistentManager.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+        persistentManager.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        deviceActor1.tell(new Device.RecordTemperature(1L, 21.0), probe.getRef());
+        assertEquals(1L, probe.expectMsgClass(Device.TemperatureRecoded.class).requestId);
+        assertEquals(deviceActor1, probe.getLastSender());
+        persistentManager.tell(new DeviceManager.RecordTemperatureBatch(
+                2L, "group", new String[]{"device2"}, new long[]{5L}, new double[]{22.0}), probe.getRef());
+        probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+
+        probe.watch(persistentManager);
+        system.stop(persistentManager);
+        probe.expectTerminated(persistentManager);
+
+        ActorRef recoveredManager = system.actorOf(DeviceManager.props(DeviceGroupSettings.DEFAULT, journalDirectory));
+        recoveredManager.tell(new DeviceManager.RequestGroupList(3L), probe.getRef());
+        DeviceManager.ReplyGroupList groups = probe.expectMsgClass(DeviceManager.ReplyGroupList.class);
+        assertEquals(Stream.of("group").collect(Collectors.toSet()), groups.ids);
+
+        ActorRef groupActor = groups.actors.iterator().next();
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(4L), probe.getRef());
+        DeviceGroup.RespondAllTemperatures response = probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        Map<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(21.0));
+        expectedTemperatures.put("device2", new DeviceGroup.Temperature(22.0));
+        assertEquals(2, response.temperatures.size());
+        assertEqualTemperatures(expectedTemperatures, response.temperatures);
+    }
+
+    @Test
+    public void testServeSnapshotBeforeMaterializingDevices() throws Exception {
+        Path journalDirectory = Files.createTempDirectory("device-journal");
+        try (Journal journal = Journal.open(journalDirectory, DeviceJournal.DEFAULT_SEGMENT_SIZE)){
+            journal.appendRecorded("group", "device1", 1L, 21.0);
+            journal.appendTracked("group", "device2");
+            journal.snapshot();
+            journal.appendRecorded("group", "device3", 2L, 23.0);
+            journal.sync();
+        }
+
+        ActorRef recoveredManager = system.actorOf(DeviceManager.props(DeviceGroupSettings.DEFAULT, journalDirectory));
+        recoveredManager.tell(new DeviceManager.RequestGroupList(0L), probe.getRef());
+        ActorRef groupActor = probe.expectMsgClass(DeviceManager.ReplyGroupList.class).actors.iterator().next();
+
+        groupActor.tell(new DeviceGroup.RequestDeviceList(1L), probe.getRef());
+        assertEquals(Stream.of("device1", "device2", "device3").collect(Collectors.toSet()),
+                probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids);
+
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(2L), probe.getRef());
+        Map<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(21.0));
+        expectedTemperatures.put("device2", new DeviceGroup.TemperatureNotAvailable());
+        expectedTemperatures.put("device3", new DeviceGroup.Temperature(23.0));
+        assertEqualTemperatures(expectedTemperatures,
+                probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class).temperatures);
+
+        // Devices from the snapshot only get an actor once they are addressed
+        system.actorSelection(groupActor.path().child("device-device1")).tell(new Identify(3L), probe.getRef());
+        assertFalse(probe.expectMsgClass(ActorIdentity.class).getActorRef().isPresent());
+        recoveredManager.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+        assertEquals("device-device1", deviceActor1.path().name());
+        deviceActor1.tell(new Device.ReadTemperature(4L), probe.getRef());
+        assertEquals(Optional.of(21.0), probe.expectMsgClass(Device.RespondTemperature.class).value);
+
+        // The next query asks the materialized device rather than the snapshot
+        deviceActor1.tell(new Device.RecordTemperature(5L, 25.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecoded.class);
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(6L), probe.getRef());
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(25.0));
+        assertEqualTemperatures(expectedTemperatures,
+                probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class).temperatures);
+    }
+
+    @Test
+    public void testCombineGroupStatsIntoFleetStats(){
+        ActorRef aggregatingManager = system.actorOf(DeviceManager.props(DeviceGroupSettings.DEFAULT.withAggregates(true)));
+        aggregatingManager.tell(new DeviceManager.RequestTrackDevice("group1", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        aggregatingManager.tell(new DeviceManager.RequestTrackDevice("group2", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        aggregatingManager.tell(new DeviceManager.RequestTrackDevice("group2", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        aggregatingManager.tell(new DeviceManager.RecordTemperatureBatch(1L, "group1",
+                new String[]{"device1"}, new long[]{1L}, new double[]{-5.0}), probe.getRef());
+        probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        aggregatingManager.tell(new DeviceManager.RecordTemperatureBatch(2L, "group2",
+                new String[]{"device1", "device2"}, new long[]{1L, 1L}, new double[]{10.0, 25.0}), probe.getRef());
+        probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+
+        // Groups push their aggregates once per DeviceGroup.STATS_INTERVAL
+        probe.awaitAssert(() -> {
+            aggregatingManager.tell(new DeviceManager.RequestFleetStats(3L), probe.getRef());
+            DeviceManager.RespondFleetStats r = probe.expectMsgClass(DeviceManager.RespondFleetStats.class);
+            assertEquals(3L, r.requestId);
+            assertEquals(2, r.groups);
+            assertEquals(3L, r.stats.count);
+            assertEquals(30.0, r.stats.sum, 1e-9);
+            assertEquals(-5.0, r.stats.min, 0.0);
+            assertEquals(25.0, r.stats.max, 0.0);
+            assertEquals(10.0, r.stats.quantile(0.5), 10.0 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+            return null;
+        });
+    }
+
+    @Test
+    public void testGatherFilteredTemperaturesOfTheFleet(){
+        for (int g = 0; g < 3; g++){
+            for (int d = 0; d < 2; d++){
+                managerActor.tell(new DeviceManager.RequestTrackDevice("group" + g, "device" + d), probe.getRef());
+                probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+            }
+            managerActor.tell(new DeviceManager.RecordTemperatureBatch(g, "group" + g, new String[]{"device0", "device1"},
+                    new long[]{1L, 1L}, new double[]{g, 10.0 + g}), probe.getRef());
+            probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        }
+
+        managerActor.tell(new DeviceManager.RequestFleetTemperatures(4L, DeviceManager.ReadingFilter.ALL
+                .withoutGroups("group1").withStatuses(TemperatureReadings.TEMPERATURE)
+                .withValuesBetween(10.0, Double.POSITIVE_INFINITY),
+                FiniteDuration.create(3, TimeUnit.SECONDS), 1), probe.getRef());
+        DeviceManager.RespondFleetTemperatures r = probe.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(4L, r.requestId);
+        assertEquals(2, r.groupCount());
+        assertEquals(Collections.emptyList(), r.missingGroups());
+        Map<String, Double> values = new HashMap<>();
+        for (int g = 0; g < r.groupCount(); g++){
+            assertEquals(1, r.groupEnd(g) - r.groupStart(g));
+            assertEquals("device1", r.deviceId(r.groupStart(g)));
+            values.put(r.groupId(g), r.value(r.groupStart(g)));
+        }
+        assertEquals(10.0, values.get("group0"), 0.0);
+        assertEquals(12.0, values.get("group2"), 0.0);
+    }
+
+    @Test
+    public void testHandOffGroupOnlyAfterItsBatchesAndTheTargetsConfirmation() throws Exception {
+        ActorRef persistentManager = system.actorOf(DeviceManager.props(
+                DeviceGroupSettings.DEFAULT, Files.createTempDirectory("device-journal")));
+        persistentManager.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        persistentManager.tell(new DeviceManager.RequestGroupList(0L), probe.getRef());
+        ActorRef groupActor = probe.expectMsgClass(DeviceManager.ReplyGroupList.class).actors.iterator().next();
+        TestKit watcher = new TestKit(system);
+        watcher.watch(groupActor);
+
+        // The batch is still waiting for the journal when the handoff starts
+        TestKit producer = new TestKit(system);
+        TestKit target = new TestKit(system);
+        persistentManager.tell(new DeviceManager.RecordTemperatureBatch(1L, "group",
+                new String[]{"device1"}, new long[]{1L}, new double[]{21.0}), producer.getRef());
+        persistentManager.tell(new DeviceManager.HandOffGroup("group", 0, target.getRef()), probe.getRef());
+
+        assertEquals(1, producer.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class).recorded);
+        DeviceManager.AdoptGroup adopt = target.expectMsgClass(DeviceManager.AdoptGroup.class);
+        assertArrayEquals(new String[]{"device1"}, adopt.deviceIds);
+        assertTrue(adopt.hasReadings[0]);
+        assertEquals(1L, adopt.timestamps[0]);
+        assertEquals(21.0, adopt.values[0], 0.0);
+        watcher.expectNoMsg(FiniteDuration.create(200, TimeUnit.MILLISECONDS));
+        probe.expectNoMsg(FiniteDuration.create(100, TimeUnit.MILLISECONDS));
+
+        // A retry sends the same state again
+        persistentManager.tell(new DeviceManager.HandOffGroup("group", 0, target.getRef()), probe.getRef());
+        assertEquals(21.0, target.expectMsgClass(DeviceManager.AdoptGroup.class).values[0], 0.0);
+        target.reply(new DeviceManager.GroupHandedOff("group"));
+        assertEquals("group", probe.expectMsgClass(DeviceManager.GroupHandedOff.class).groupId);
+        watcher.expectTerminated(groupActor);
+    }
+
+    @Test
+    public void testMergeAGroupHandedOffAfterItStartedHere(){
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+        managerActor.tell(new DeviceManager.RecordTemperatureBatch(1L, "group",
+                new String[]{"device1"}, new long[]{10L}, new double[]{5.0}), probe.getRef());
+        probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+
+        managerActor.tell(new DeviceManager.AdoptGroup("group", 0, 7L, new String[]{"device1", "device2"},
+                new boolean[]{true, true}, new long[]{5L, 3L}, new double[]{1.0, 2.0}), probe.getRef());
+        assertEquals("group", probe.expectMsgClass(DeviceManager.GroupHandedOff.class).groupId);
+
+        deviceActor1.tell(new Device.ReadTemperature(2L), probe.getRef());
+        assertEquals(Optional.of(5.0), probe.expectMsgClass(Device.RespondTemperature.class).value);
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        probe.getLastSender().tell(new Device.ReadTemperature(3L), probe.getRef());
+        assertEquals(Optional.of(2.0), probe.expectMsgClass(Device.RespondTemperature.class).value);
+    }
 }
@@ -0,0 +1,139 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.lightbend.akka.sample.TestUtils.assertEqualTemperatures;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class DeviceTableGroupTest {
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    TestKit probe;
+    ActorRef groupActor;
+
+    @Before
+    public void prepareGroupActor(){
+        probe = new TestKit(system);
+        groupActor = system.actorOf(DeviceGroup.props("group", DeviceGroupSettings.DEFAULT.withTableMode(true)));
+    }
+
+    @Test
+    public void testRecordAndReadThroughGroup(){
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        assertEquals(groupActor, probe.getLastSender());
+
+        groupActor.tell(new DeviceGroup.DeviceEnvelope("device1", new Device.ReadTemperature(1L)), probe.getRef());
+        assertEquals(Optional.empty(), probe.expectMsgClass(Device.RespondTemperature.class).value);
+
+        groupActor.tell(new DeviceGroup.DeviceEnvelope("device1", new Device.RecordTemperature(2L, 21.0)), probe.getRef());
+        assertEquals(2L, probe.expectMsgClass(Device.TemperatureRecoded.class).requestId);
+
+        groupActor.tell(new DeviceGroup.DeviceEnvelope("device1", new Device.ReadTemperature(3L)), probe.getRef());
+        Device.RespondTemperature response = probe.expectMsgClass(Device.RespondTemperature.class);
+        assertEquals(3L, response.requestId);
+        assertEquals(Optional.of(21.0), response.value);
+    }
+
+    @Test
+    public void testCollectTemperaturesFromTable(){
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        groupActor.tell(new DeviceManager.RecordTemperatureBatch(
+                1L, "group", new String[]{"device1", "unknown"}, new long[]{1L, 1L}, new double[]{1.0, 2.0}), probe.getRef());
+        DeviceManager.TemperatureBatchRecorded ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(1, ack.recorded);
+        assertEquals(1, ack.rejected);
+
+        groupActor.tell(new DeviceGroup.RequestDeviceList(2L), probe.getRef());
+        assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()),
+                probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids);
+
+        groupActor.tell(new DeviceGroup.RequestAllTemperatures(3L), probe.getRef());
+        DeviceGroup.RespondAllTemperatures response = probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        assertEquals(3L, response.requestId);
+
+        Map<String, DeviceGroup.TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new DeviceGroup.Temperature(1.0));
+        expectedTemperatures.put("device2", new DeviceGroup.TemperatureNotAvailable());
+        assertEquals(2, response.temperatures.size());
+        assertEqualTemperatures(expectedTemperatures, response.temperatures);
+    }
+
+    @Test
+    public void testRecordHandleBatchIntoTable(){
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        int device1 = probe.expectMsgClass(DeviceManager.DeviceRegistered.class).deviceHandle;
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device2"), probe.getRef());
+        DeviceManager.DeviceRegistered registered = probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        int device2 = registered.deviceHandle;
+
+        groupActor.tell(new DeviceManager.RecordTemperatureHandleBatch(
+                1L, 0, registered.epoch, new int[]{device2, 42}, new long[]{1L, 1L}, new double[]{2.0, 3.0}), probe.getRef());
+        DeviceManager.TemperatureBatchRecorded ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        assertEquals(1, ack.recorded);
+        assertEquals(1, ack.rejected);
+
+        groupActor.tell(new DeviceGroup.DeviceEnvelope("device2", new Device.ReadTemperature(2L)), probe.getRef());
+        assertEquals(Optional.of(2.0), probe.expectMsgClass(Device.RespondTemperature.class).value);
+        groupActor.tell(new DeviceGroup.DeviceEnvelope("device1", new Device.ReadTemperature(3L)), probe.getRef());
+        assertEquals(Optional.empty(), probe.expectMsgClass(Device.RespondTemperature.class).value);
+        assertNotEquals(device1, device2);
+    }
+
+    @Test
+    public void testRegisterManyDevices(){
+        int count = 5000;
+        for (int i = 0; i < count; i++){
+            groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device" + i), probe.getRef());
+        }
+        probe.receiveN(count);
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device42"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        groupActor.tell(new DeviceGroup.RequestDeviceList(1L), probe.getRef());
+        assertEquals(count, probe.expectMsgClass(DeviceGroup.ReplyDeviceList.class).ids.size());
+    }
+
+    @Test
+    public void testPushChangesToSubscribers(){
+        TestKit subscriber = new TestKit(system);
+        groupActor.tell(new DeviceGroup.SubscribeTemperatures(1L), subscriber.getRef());
+        subscriber.expectMsgClass(DeviceGroup.TemperaturesSubscribed.class);
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        groupActor.tell(new DeviceGroup.DeviceEnvelope("device1", new Device.RecordTemperature(2L, 21.0)), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecoded.class);
+        assertEquals(Collections.singletonMap("device1", 21.0),
+                subscriber.expectMsgClass(DeviceGroup.TemperatureUpdates.class).changes);
+    }
+}
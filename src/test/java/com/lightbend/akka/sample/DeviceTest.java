@@ -6,8 +6,11 @@ import akka.testkit.javadsl.TestKit;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
 
+import java.util.Collections;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -79,4 +82,74 @@ public class DeviceTest {
         deviceActor.tell(new DeviceManager.RequestTrackDevice("group", "wrongDevice"), probe.getRef());
         probe.expectNoMsg();
     }
+
+    @Test
+    public void testReplyWithReadingsInsideTimeWindow(){
+        TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group", "device", 3));
+
+        for (int i = 1; i <= 4; i++){
+            deviceActor.tell(new Device.RecordTemperature(i, i * 10.0, i * 100L), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecoded.class);
+        }
+
+        // Capacity is 3, so the reading at t=100 has been overwritten
+        deviceActor.tell(new Device.ReadTemperatureWindow(5L, 0L, 300L), probe.getRef());
+        Device.RespondTemperatureWindow window = probe.expectMsgClass(Device.RespondTemperatureWindow.class);
+        assertEquals(5L, window.requestId);
+        assertArrayEquals(new long[]{200L, 300L}, window.timestamps);
+        assertArrayEquals(new double[]{20.0, 30.0}, window.values, 0.0);
+
+        deviceActor.tell(new Device.ReadTemperature(6L), probe.getRef());
+        assertEquals(Optional.of(40.0), probe.expectMsgClass(Device.RespondTemperature.class).value);
+    }
+
+    @Test
+    public void testReplyWithStatisticsOverTimeWindow(){
+        TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group", "device"));
+
+        deviceActor.tell(new Device.RecordTemperatures(
+                new long[]{1L, 2L, 3L, 4L, 5L}, new double[]{5.0, 1.0, 4.0, 2.0, 3.0}), probe.getRef());
+
+        deviceActor.tell(new Device.ReadTemperatureStats(1L, 2L, 5L, new double[]{0.5, 1.0}), probe.getRef());
+        Device.RespondTemperatureStats stats = probe.expectMsgClass(Device.RespondTemperatureStats.class);
+        assertEquals(1L, stats.requestId);
+        assertEquals(4, stats.count);
+        assertEquals(1.0, stats.min, 0.0);
+        assertEquals(4.0, stats.max, 0.0);
+        assertEquals(2.5, stats.avg, 0.0001);
+        assertArrayEquals(new double[]{2.0, 4.0}, stats.percentiles, 0.0);
+
+        deviceActor.tell(new Device.ReadTemperatureStats(2L, 10L, 20L), probe.getRef());
+        Device.RespondTemperatureStats empty = probe.expectMsgClass(Device.RespondTemperatureStats.class);
+        assertEquals(0, empty.count);
+        assertTrue(Double.isNaN(empty.avg));
+    }
+
+    @Test
+    public void testPushOnlyChangesBeyondDeadband(){
+        TestKit recorder = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group", "device"));
+        deviceActor.tell(new DeviceGroup.SubscribeTemperatures(7L, 1.0, FiniteDuration.Zero()), subscriber.getRef());
+        assertEquals(7L, subscriber.expectMsgClass(DeviceGroup.TemperaturesSubscribed.class).requestId);
+
+        deviceActor.tell(new Device.RecordTemperature(1L, 20.0), recorder.getRef());
+        DeviceGroup.TemperatureUpdates first = subscriber.expectMsgClass(DeviceGroup.TemperatureUpdates.class);
+        assertEquals(7L, first.requestId);
+        assertEquals(Collections.singletonMap("device", 20.0), first.changes);
+
+        deviceActor.tell(new Device.RecordTemperature(2L, 20.5), recorder.getRef());
+        deviceActor.tell(new Device.RecordTemperature(3L, 19.2), recorder.getRef());
+        subscriber.expectNoMsg(new FiniteDuration(300, TimeUnit.MILLISECONDS));
+
+        deviceActor.tell(new Device.RecordTemperature(4L, 21.5), recorder.getRef());
+        assertEquals(Collections.singletonMap("device", 21.5),
+                subscriber.expectMsgClass(DeviceGroup.TemperatureUpdates.class).changes);
+
+        deviceActor.tell(new DeviceGroup.UnsubscribeTemperatures(7L), subscriber.getRef());
+        deviceActor.tell(new Device.RecordTemperature(5L, 30.0), recorder.getRef());
+        subscriber.expectNoMsg(new FiniteDuration(300, TimeUnit.MILLISECONDS));
+    }
 }
@@ -0,0 +1,212 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FleetTemperatureQueryTest {
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("fleet-query-test", ConfigFactory.parseString(
+                // One thread, which a test can hold to keep the devices on it from answering
+                "stalled-dispatcher {\n" +
+                "  type = Dispatcher\n" +
+                "  executor = thread-pool-executor\n" +
+                "  thread-pool-executor.fixed-pool-size = 1\n" +
+                "}\n").withFallback(ConfigFactory.load()));
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    TestKit requester;
+    TestKit[] groups;
+    String[] groupIds;
+
+    @Before
+    public void prepareGroups(){
+        requester = new TestKit(system);
+        groups = new TestKit[3];
+        groupIds = new String[groups.length];
+        for (int g = 0; g < groups.length; g++){
+            groups[g] = new TestKit(system);
+            groupIds[g] = "group" + g;
+        }
+    }
+
+    ActorRef startQuery(int maxConcurrentGroups, DeviceManager.ReadingFilter filter, FiniteDuration deadline){
+        ActorRef[] groupRefs = new ActorRef[groups.length];
+        for (int g = 0; g < groups.length; g++){
+            groupRefs[g] = groups[g].getRef();
+        }
+        return system.actorOf(FleetTemperatureQuery.props(
+                7L, requester.getRef(), groupIds, groupRefs, maxConcurrentGroups, filter, deadline));
+    }
+
+    static DeviceGroup.RespondAllTemperatures readings(long requestId, double... values){
+        TemperatureReadings.Builder readings = new TemperatureReadings.Builder(values.length);
+        for (int d = 0; d < values.length; d++){
+            readings.add("device" + d, TemperatureReadings.TEMPERATURE, values[d]);
+        }
+        return new DeviceGroup.RespondAllTemperatures(requestId, readings.build());
+    }
+
+    static void assertValues(DeviceManager.RespondFleetTemperatures r, int g, double... expected){
+        double[] values = new double[r.groupEnd(g) - r.groupStart(g)];
+        for (int i = 0; i < values.length; i++){
+            values[i] = r.value(r.groupStart(g) + i);
+        }
+        assertArrayEquals(expected, values, 0.0);
+    }
+
+    @Test
+    public void testAskAtMostMaxConcurrentGroupsAtATime(){
+        ActorRef query = startQuery(2, DeviceManager.ReadingFilter.ALL, FiniteDuration.create(3, TimeUnit.SECONDS));
+
+        DeviceGroup.RequestAllTemperatures first = groups[0].expectMsgClass(DeviceGroup.RequestAllTemperatures.class);
+        DeviceGroup.RequestAllTemperatures second = groups[1].expectMsgClass(DeviceGroup.RequestAllTemperatures.class);
+        groups[2].expectNoMsg(FiniteDuration.create(100, TimeUnit.MILLISECONDS));
+        assertNotNull(first.deadline);
+
+        query.tell(readings(second.requestId, 3.0), groups[1].getRef());
+        DeviceGroup.RequestAllTemperatures third = groups[2].expectMsgClass(DeviceGroup.RequestAllTemperatures.class);
+        query.tell(readings(third.requestId, 4.0, 5.0), groups[2].getRef());
+        query.tell(readings(first.requestId, 1.0, 2.0), groups[0].getRef());
+
+        DeviceManager.RespondFleetTemperatures r = requester.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(7L, r.requestId);
+        assertEquals(3, r.groupCount());
+        assertEquals(5, r.size());
+        assertEquals(Arrays.asList("group1", "group2", "group0"),
+                Arrays.asList(r.groupId(0), r.groupId(1), r.groupId(2)));
+        assertValues(r, 0, 3.0);
+        assertValues(r, 1, 4.0, 5.0);
+        assertValues(r, 2, 1.0, 2.0);
+        assertEquals("device1", r.deviceId(r.groupStart(1) + 1));
+        assertEquals(Collections.emptyList(), r.missingGroups());
+    }
+
+    @Test
+    public void testReportGroupsWithoutAnswerByTheDeadlineAsMissing(){
+        ActorRef query = startQuery(2, DeviceManager.ReadingFilter.ALL, FiniteDuration.create(300, TimeUnit.MILLISECONDS));
+
+        DeviceGroup.RequestAllTemperatures first = groups[0].expectMsgClass(DeviceGroup.RequestAllTemperatures.class);
+        groups[1].expectMsgClass(DeviceGroup.RequestAllTemperatures.class);
+        query.tell(readings(first.requestId, 1.0), groups[0].getRef());
+        groups[2].expectMsgClass(DeviceGroup.RequestAllTemperatures.class);
+
+        DeviceManager.RespondFleetTemperatures r = requester.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(1, r.groupCount());
+        assertValues(r, 0, 1.0);
+        assertEquals(Arrays.asList("group1", "group2"), r.missingGroups());
+    }
+
+    @Test
+    public void testReportStoppedGroupsAsMissing(){
+        startQuery(1, DeviceManager.ReadingFilter.ALL, FiniteDuration.create(3, TimeUnit.SECONDS));
+
+        groups[0].expectMsgClass(DeviceGroup.RequestAllTemperatures.class);
+        groups[0].getRef().tell(PoisonPill.getInstance(), ActorRef.noSender());
+        DeviceGroup.RequestAllTemperatures second = groups[1].expectMsgClass(DeviceGroup.RequestAllTemperatures.class);
+        groups[1].reply(readings(second.requestId, 2.0));
+        DeviceGroup.RequestAllTemperatures third = groups[2].expectMsgClass(DeviceGroup.RequestAllTemperatures.class);
+        groups[2].reply(readings(third.requestId));
+
+        DeviceManager.RespondFleetTemperatures r = requester.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(2, r.groupCount());
+        assertValues(r, 0, 2.0);
+        assertEquals(r.groupStart(1), r.groupEnd(1));
+        assertEquals(Collections.singletonList("group0"), r.missingGroups());
+    }
+
+    @Test
+    public void testKeepOnlyReadingsAcceptedByTheFilter(){
+        ActorRef query = startQuery(3, DeviceManager.ReadingFilter.ALL.withStatuses(TemperatureReadings.TEMPERATURE)
+                .withValuesBetween(20.5, Double.POSITIVE_INFINITY).withoutGroups("group2"),
+                FiniteDuration.create(3, TimeUnit.SECONDS));
+
+        for (int g = 0; g < groups.length; g++){
+            DeviceGroup.RequestAllTemperatures request = groups[g].expectMsgClass(DeviceGroup.RequestAllTemperatures.class);
+            query.tell(readings(request.requestId, 10.0 * g, 25.0, 30.0 + g), groups[g].getRef());
+        }
+
+        DeviceManager.RespondFleetTemperatures r = requester.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(3, r.groupCount());
+        assertValues(r, 0, 25.0, 30.0);
+        assertValues(r, 1, 25.0, 31.0);
+        assertValues(r, 2);
+        assertEquals(4, r.size());
+    }
+
+    @Test
+    public void testGetPartialAnswerOfAGroupWithASilentDeviceBeforeTheDeadline() throws Exception {
+        ActorRef answering = system.actorOf(DeviceGroup.props("answering"));
+        ActorRef stalled = system.actorOf(DeviceGroup.props("stalled", DeviceGroupSettings.DEFAULT
+                .withQueryTimeout(FiniteDuration.create(10, TimeUnit.SECONDS))
+                .withDeviceDispatcher("stalled-dispatcher")));
+        answering.tell(new DeviceManager.RequestTrackDevice("answering", "device0"), requester.getRef());
+        requester.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        requester.getLastSender().tell(new Device.RecordTemperature(0L, 1.0), requester.getRef());
+        requester.expectMsgClass(Device.TemperatureRecoded.class);
+        stalled.tell(new DeviceManager.RequestTrackDevice("stalled", "device0"), requester.getRef());
+        requester.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        system.dispatchers().lookup("stalled-dispatcher").execute(() -> {
+            held.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        });
+        // The device could still be running on the thread and answer the query before it is held
+        held.await();
+        try {
+            system.actorOf(FleetTemperatureQuery.props(8L, requester.getRef(), new String[]{"answering", "stalled"},
+                    new ActorRef[]{answering, stalled}, 2, DeviceManager.ReadingFilter.ALL,
+                    FiniteDuration.create(1, TimeUnit.SECONDS)));
+
+            DeviceManager.RespondFleetTemperatures r = requester.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+            assertEquals(Collections.emptyList(), r.missingGroups());
+            assertEquals(2, r.groupCount());
+            int g = r.groupId(0).equals("stalled") ? 0 : 1;
+            assertEquals(1, r.groupEnd(g) - r.groupStart(g));
+            assertEquals(TemperatureReadings.DEVICE_TIMED_OUT, r.status(r.groupStart(g)));
+            assertValues(r, 1 - g, 1.0);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testAnswerAtOnceWithoutGroups(){
+        groups = new TestKit[0];
+        groupIds = new String[0];
+        startQuery(2, DeviceManager.ReadingFilter.ALL, FiniteDuration.create(3, TimeUnit.SECONDS));
+
+        DeviceManager.RespondFleetTemperatures r = requester.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(0, r.groupCount());
+        assertEquals(0, r.size());
+    }
+}
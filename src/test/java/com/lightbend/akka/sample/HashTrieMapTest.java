@@ -0,0 +1,74 @@
+package com.lightbend.akka.sample;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class HashTrieMapTest {
+
+    // Keys with few distinct hash codes, so that tries go all the way down to collision nodes
+    static final class Key {
+        final int id;
+
+        Key(int id){
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            return o instanceof Key && ((Key) o).id == id;
+        }
+
+        @Override
+        public int hashCode(){
+            return id % 7 == 0 ? 42 : id * 31;
+        }
+    }
+
+    @Test
+    public void testMatchHashMapUnderRandomUpdates(){
+        Random random = new Random(1);
+        Map<Key, Integer> expected = new HashMap<>();
+        HashTrieMap<Key, Integer> map = HashTrieMap.empty();
+        for (int i = 0; i < 50_000; i++){
+            Key key = new Key(random.nextInt(2_000));
+            if (random.nextInt(3) == 0){
+                expected.remove(key);
+                map = map.minus(key);
+            }else {
+                expected.put(key, i);
+                map = map.plus(key, i);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+        assertEquals(expected.keySet(), map.keySet());
+        Map<Key, Integer> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void testLeaveEarlierVersionsUnchanged(){
+        HashTrieMap<String, Integer> empty = HashTrieMap.empty();
+        HashTrieMap<String, Integer> one = empty.plus("a", 1);
+        HashTrieMap<String, Integer> two = one.plus("b", 2);
+        HashTrieMap<String, Integer> replaced = two.plus("a", 3);
+        HashTrieMap<String, Integer> removed = replaced.minus("b");
+
+        assertEquals(0, empty.size());
+        assertEquals(1, one.size());
+        assertEquals(Integer.valueOf(1), two.get("a"));
+        assertEquals(Integer.valueOf(3), replaced.get("a"));
+        assertNull(removed.get("b"));
+        assertEquals(Integer.valueOf(2), two.get("b"));
+        assertSame(removed, removed.minus("b"));
+        assertSame(one, one.plus("a", one.get("a")));
+    }
+}
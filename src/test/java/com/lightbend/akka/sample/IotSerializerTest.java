@@ -0,0 +1,132 @@
+package com.lightbend.akka.sample;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class IotSerializerTest {
+    final IotSerializer serializer = new IotSerializer();
+
+    @SuppressWarnings("unchecked")
+    <T> T roundTrip(T message, String expectedManifest){
+        String manifest = serializer.manifest(message);
+        assertEquals(expectedManifest, manifest);
+        return (T) serializer.fromBinary(serializer.toBinary(message), manifest);
+    }
+
+    static String repeat(char c, int times){
+        char[] chars = new char[times];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void testRoundTripTrackDevice(){
+        DeviceManager.RequestTrackDevice r = roundTrip(
+                new DeviceManager.RequestTrackDevice("group", "d\u00e9vice", 3, 4, 5L), "T");
+        assertEquals("group", r.groupId);
+        assertEquals("d\u00e9vice", r.deviceId);
+        assertEquals(3, r.groupHandle);
+        assertEquals(4, r.deviceHandle);
+        assertEquals(5L, r.epoch);
+
+        r = roundTrip(new DeviceManager.RequestTrackDevice(null, "device"), "T");
+        assertNull(r.groupId);
+        assertEquals("device", r.deviceId);
+        assertEquals(-1, r.groupHandle);
+        assertEquals(0L, r.epoch);
+    }
+
+    @Test
+    public void testRoundTripDeviceRegistered(){
+        DeviceManager.DeviceRegistered r = roundTrip(new DeviceManager.DeviceRegistered(1, 2, Long.MIN_VALUE), "R");
+        assertEquals(1, r.groupHandle);
+        assertEquals(2, r.deviceHandle);
+        assertEquals(Long.MIN_VALUE, r.epoch);
+    }
+
+    @Test
+    public void testRoundTripTrackDevices(){
+        DeviceManager.RequestTrackDevices r = roundTrip(new DeviceManager.RequestTrackDevices(7L,
+                new String[]{"group", null, ""}, new String[]{"device1", "device2", "device3"}), "TB");
+        assertEquals(7L, r.requestId);
+        assertArrayEquals(new String[]{"group", null, ""}, r.groupIds);
+        assertArrayEquals(new String[]{"device1", "device2", "device3"}, r.deviceIds);
+        assertNull(r.groupHandles);
+
+        r = roundTrip(new DeviceManager.RequestTrackDevices(8L,
+                new String[]{"group"}, new String[]{"device1"}, new int[]{9}), "TB");
+        assertArrayEquals(new int[]{9}, r.groupHandles);
+
+        r = roundTrip(new DeviceManager.RequestTrackDevices(9L, new String[0], new String[0]), "TB");
+        assertEquals(0, r.size());
+    }
+
+    @Test
+    public void testRoundTripDevicesRegistered(){
+        DeviceManager.DevicesRegistered r = roundTrip(new DeviceManager.DevicesRegistered(3L,
+                new byte[]{DeviceManager.DevicesRegistered.REGISTERED, DeviceManager.DevicesRegistered.REJECTED},
+                new int[]{1, -1}, new int[]{2, -1}, new long[]{42L, 0L}), "RB");
+        assertEquals(3L, r.requestId);
+        assertArrayEquals(new byte[]{DeviceManager.DevicesRegistered.REGISTERED,
+                DeviceManager.DevicesRegistered.REJECTED}, r.outcomes);
+        assertArrayEquals(new int[]{1, -1}, r.groupHandles);
+        assertArrayEquals(new int[]{2, -1}, r.deviceHandles);
+        assertArrayEquals(new long[]{42L, 0L}, r.epochs);
+    }
+
+    @Test
+    public void testRoundTripTemperatureBatches(){
+        DeviceManager.RecordTemperatureBatch b = roundTrip(new DeviceManager.RecordTemperatureBatch(4L, "group",
+                new String[]{"device1", "device2"}, new long[]{1L, Long.MIN_VALUE}, new double[]{1.5, -0.0}), "B");
+        assertEquals(4L, b.requestId);
+        assertEquals("group", b.groupId);
+        assertArrayEquals(new String[]{"device1", "device2"}, b.deviceIds);
+        assertArrayEquals(new long[]{1L, Long.MIN_VALUE}, b.timestamps);
+        assertArrayEquals(new double[]{1.5, -0.0}, b.values, 0.0);
+
+        b = roundTrip(new DeviceManager.RecordTemperatureBatch(5L, null, new String[0], new long[0], new double[0]), "B");
+        assertNull(b.groupId);
+        assertEquals(0, b.size());
+
+        DeviceManager.RecordTemperatureHandleBatch h = roundTrip(new DeviceManager.RecordTemperatureHandleBatch(6L, 2, 77L,
+                new int[]{0, 3}, new long[]{10L, 20L}, new double[]{21.0, 22.5}), "H");
+        assertEquals(6L, h.requestId);
+        assertEquals(2, h.groupHandle);
+        assertEquals(77L, h.epoch);
+        assertArrayEquals(new int[]{0, 3}, h.deviceHandles);
+        assertArrayEquals(new long[]{10L, 20L}, h.timestamps);
+        assertArrayEquals(new double[]{21.0, 22.5}, h.values, 0.0);
+
+        DeviceManager.TemperatureBatchRecorded a = roundTrip(new DeviceManager.TemperatureBatchRecorded(6L, 1, 1), "A");
+        assertEquals(6L, a.requestId);
+        assertEquals(1, a.recorded);
+        assertEquals(1, a.rejected);
+    }
+
+    @Test
+    public void testRejectIdsTooLongToSend(){
+        String longest = repeat('a', 0xFFFE);
+        assertEquals(longest, roundTrip(new DeviceManager.RequestTrackDevice("group", longest), "T").deviceId);
+
+        try {
+            serializer.toBinary(new DeviceManager.RequestTrackDevice("group", repeat('a', 0xFFFF)));
+            fail("Serialized an id that reads back as null");
+        } catch (IllegalArgumentException expected){
+        }
+        try {
+            // Short in chars, but over the limit in UTF-8
+            serializer.toBinary(new DeviceManager.RequestTrackDevices(1L,
+                    new String[]{repeat('\u00e9', 0x8000)}, new String[]{"device"}));
+            fail("Serialized an id of more than 0xFFFE bytes");
+        } catch (IllegalArgumentException expected){
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectUnknownManifest(){
+        serializer.fromBinary(new byte[0], "X");
+    }
+}
@@ -0,0 +1,155 @@
+package com.lightbend.akka.sample;
+
+import org.junit.Test;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JournalTest {
+
+    @Test
+    public void testRecoverFromSnapshotAndLogTail() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        try (Journal journal = Journal.open(directory, 1024)){
+            journal.appendTracked("group", "device1");
+            journal.appendRecorded("group", "device1", 1L, 1.0);
+            journal.snapshot();
+            journal.appendRecorded("group", "device1", 2L, 2.0);
+            journal.appendTracked("group", "device2");
+            journal.sync();
+        }
+
+        try (Journal journal = Journal.open(directory, 1024)){
+            assertEquals(4L, journal.lastSeq());
+            MappedSnapshot.Group base = journal.base().group("group");
+            assertEquals(1, base.size());
+            assertEquals(1.0, base.value(base.indexOf("device1")), 0.0);
+            DeviceTable table = journal.delta().get("group");
+            assertEquals(2, table.size());
+            int device1 = table.indexOf("device1");
+            assertEquals(2L, table.timestamp(device1));
+            assertEquals(2.0, table.value(device1), 0.0);
+            assertFalse(table.hasReading(table.indexOf("device2")));
+        }
+    }
+
+    @Test
+    public void testSnapshotMergesBaseAndChanges() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        try (Journal journal = Journal.open(directory, 1024)){
+            journal.appendRecorded("group", "device2", 1L, 1.0);
+            journal.appendRecorded("group", "device1", 1L, 1.5);
+            journal.snapshot();
+            journal.appendTracked("group", "device2");
+            journal.appendTracked("group", "device0");
+            journal.appendRecorded("group", "device1", 2L, 2.0);
+            journal.appendTracked("other", "device1");
+            journal.snapshot();
+        }
+
+        try (Journal journal = Journal.open(directory, 1024)){
+            assertTrue(journal.delta().isEmpty());
+            MappedSnapshot.Group base = journal.base().group("group");
+            assertEquals(3, base.size());
+            assertEquals("device0", base.deviceId(0));
+            assertEquals("device1", base.deviceId(1));
+            assertEquals("device2", base.deviceId(2));
+            assertFalse(base.hasReading(0));
+            assertEquals(2.0, base.value(1), 0.0);
+            // Re-registration without a reading keeps the reading from the previous snapshot
+            assertEquals(1.0, base.value(2), 0.0);
+            assertEquals(-1, base.indexOf("device3"));
+            assertEquals(1, journal.base().group("other").size());
+        }
+    }
+
+    @Test
+    public void testKeepReadingsAtAnyTimestamp() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        try (Journal journal = Journal.open(directory, 1024)){
+            journal.appendRecorded("group", "device1", Long.MIN_VALUE, 1.0);
+            journal.appendTracked("group", "device2");
+            journal.snapshot();
+            journal.appendRecorded("group", "device3", Long.MIN_VALUE, 3.0);
+            journal.sync();
+        }
+
+        try (Journal journal = Journal.open(directory, 1024)){
+            MappedSnapshot.Group base = journal.base().group("group");
+            int device1 = base.indexOf("device1");
+            assertTrue(base.hasReading(device1));
+            assertEquals(Long.MIN_VALUE, base.timestamp(device1));
+            assertEquals(1.0, base.value(device1), 0.0);
+            assertFalse(base.hasReading(base.indexOf("device2")));
+            DeviceTable table = journal.delta().get("group");
+            int device3 = table.indexOf("device3");
+            assertTrue(table.hasReading(device3));
+            assertEquals(Long.MIN_VALUE, table.timestamp(device3));
+        }
+    }
+
+    @Test
+    public void testIgnoreTornTailOnRecovery() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        try (Journal journal = Journal.open(directory, 1024 * 1024)){
+            journal.appendTracked("group", "device1");
+            journal.appendRecorded("group", "device1", 1L, 1.0);
+            journal.sync();
+        }
+        Path segment;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")){
+            segment = files.iterator().next();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)){
+            channel.truncate(channel.size() - 3);
+        }
+
+        try (Journal journal = Journal.open(directory, 1024 * 1024)){
+            assertEquals(1L, journal.lastSeq());
+            DeviceTable table = journal.delta().get("group");
+            assertFalse(table.hasReading(table.indexOf("device1")));
+            journal.appendRecorded("group", "device1", 2L, 2.0);
+            journal.sync();
+        }
+
+        try (Journal journal = Journal.open(directory, 1024 * 1024)){
+            DeviceTable table = journal.delta().get("group");
+            assertEquals(2.0, table.value(table.indexOf("device1")), 0.0);
+        }
+    }
+
+    @Test
+    public void testReloadDropsRecordsNotSynced() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        try (Journal journal = Journal.open(directory, 64L * 1024 * 1024)){
+            journal.appendRecorded("group", "device1", 1L, 1.0);
+            journal.sync();
+            // More than the write buffer holds, so part of it already reached the segment
+            for (int i = 0; i < 50_000; i++){
+                journal.appendRecorded("group", "device2", i, 2.0);
+            }
+            journal.reload();
+            assertEquals(1L, journal.lastSeq());
+            DeviceTable table = journal.delta().get("group");
+            assertEquals(1, table.size());
+            assertEquals(-1, table.indexOf("device2"));
+
+            journal.appendRecorded("group", "device3", 3L, 3.0);
+            journal.sync();
+        }
+
+        try (Journal journal = Journal.open(directory, 64L * 1024 * 1024)){
+            assertEquals(2L, journal.lastSeq());
+            DeviceTable table = journal.delta().get("group");
+            assertEquals(-1, table.indexOf("device2"));
+            assertEquals(3.0, table.value(table.indexOf("device3")), 0.0);
+        }
+    }
+}
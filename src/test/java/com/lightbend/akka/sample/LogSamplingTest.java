@@ -0,0 +1,52 @@
+package com.lightbend.akka.sample;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogSamplingTest {
+
+    static int sampled(LogSampling.Category category, int events){
+        int logged = 0;
+        for (int i = 0; i < events; i++){
+            if (category.sample()){
+                logged++;
+            }
+        }
+        return logged;
+    }
+
+    @Test
+    public void testSampleEachCategoryAtItsOwnRate(){
+        LogSampling sampling = new LogSampling(new LogSampling.Category(0, Integer.MAX_VALUE),
+                new LogSampling.Category(10, Integer.MAX_VALUE));
+
+        assertEquals(0, sampled(sampling.readings, 10_000));
+        int logged = sampled(sampling.lifecycle, 100_000);
+        assertTrue(String.valueOf(logged), logged > 9_000 && logged < 11_000);
+        assertEquals(100, sampled(new LogSampling.Category(1, Integer.MAX_VALUE), 100));
+        assertEquals(0L, sampling.readings.dropped.sum());
+        assertEquals(0L, sampling.lifecycle.dropped.sum());
+    }
+
+    @Test
+    public void testDropAndCountSampledEventsOverTheRateLimit(){
+        LogSampling.Category category = new LogSampling.Category(1, 3);
+        long second = TimeUnit.SECONDS.toNanos(100);
+
+        for (int i = 0; i < 3; i++){
+            assertTrue(category.withinRate(second + i));
+        }
+        assertFalse(category.withinRate(second + 3));
+        assertFalse(category.withinRate(second + TimeUnit.MILLISECONDS.toNanos(999)));
+        assertEquals(2L, category.dropped.sum());
+
+        // The limit starts over with the next second, the dropped count does not
+        assertTrue(category.withinRate(second + TimeUnit.SECONDS.toNanos(1)));
+        assertEquals(2L, category.dropped.sum());
+    }
+}
@@ -0,0 +1,73 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsReporterTest {
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private String dump(ActorRef reporter, TestKit probe){
+        reporter.tell(new MetricsReporter.RequestMetrics(1L), probe.getRef());
+        return probe.expectMsgClass(MetricsReporter.RespondMetrics.class).dump;
+    }
+
+    @Test
+    public void testDumpReadingsAndQueryTimeoutsSinceThePreviousDump(){
+        TestKit probe = new TestKit(system);
+        ActorRef reporter = system.actorOf(MetricsReporter.props(new FiniteDuration(1, TimeUnit.HOURS)));
+        dump(reporter, probe);
+
+        ActorRef deviceActor = system.actorOf(Device.props("metrics-group", "device"));
+        for (long i = 0; i < 3; i++){
+            deviceActor.tell(new Device.RecordTemperature(i, 20.0), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecoded.class);
+        }
+
+        // A device that never answers times the query out
+        TestKit silentDevice = new TestKit(system);
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(silentDevice.getRef(), "silent");
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.props(actorToDeviceId, Collections.emptyMap(), 1L,
+                probe.getRef(), new FiniteDuration(100, TimeUnit.MILLISECONDS)));
+        probe.watch(queryActor);
+        probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+        probe.expectTerminated(queryActor);
+
+        String dump = dump(reporter, probe);
+        assertTrue(dump, dump.contains("devices=1"));
+        assertTrue(dump, dump.contains("metrics-group="));
+        assertTrue(dump, dump.contains("record-temperature n=3 "));
+        assertTrue(dump, dump.contains("queries n=1 "));
+        assertTrue(dump, dump.contains("timed-out=1 devices-timed-out=1 devices-not-available=0"));
+        assertTrue(dump, dump.contains("log-lines-dropped readings=0 lifecycle=0"));
+
+        // Everything but the running actors starts over
+        dump = dump(reporter, probe);
+        assertTrue(dump, dump.contains("devices=1"));
+        assertTrue(dump, dump.contains("record-temperature n=0 "));
+        assertTrue(dump, dump.contains("timed-out=0 devices-timed-out=0"));
+    }
+}
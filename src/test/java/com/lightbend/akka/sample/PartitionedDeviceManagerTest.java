@@ -0,0 +1,323 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Props;
+import akka.routing.ConsistentHash;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// The front and its nodes run in actor systems of their own, talking over remoting on localhost
+public class PartitionedDeviceManagerTest {
+    static final Config REMOTE = ConfigFactory.parseString(
+            "akka.actor.provider = remote\n" +
+            "akka.actor.warn-about-java-serializer-usage = off\n" +
+            "akka.remote.netty.tcp.hostname = \"127.0.0.1\"\n" +
+            "akka.remote.netty.tcp.port = 0\n" +
+            // Notices a node system that was shut down within seconds
+            "akka.remote.watch-failure-detector.acceptable-heartbeat-pause = 3s\n").withFallback(ConfigFactory.load());
+    static final int GROUPS = 20;
+
+    ActorSystem front;
+    ActorSystem node1;
+    ActorSystem node2;
+    String node1Path;
+    String node2Path;
+    TestKit probe;
+
+    @Before
+    public void startSystems(){
+        front = ActorSystem.create("iot-system", REMOTE);
+        node1 = ActorSystem.create("iot-system", REMOTE);
+        node2 = ActorSystem.create("iot-system", REMOTE);
+        node1Path = startNode(node1);
+        node2Path = startNode(node2);
+        probe = new TestKit(front);
+    }
+
+    @After
+    public void stopSystems(){
+        TestKit.shutdownActorSystem(front);
+        TestKit.shutdownActorSystem(node1);
+        TestKit.shutdownActorSystem(node2);
+    }
+
+    // Lists no groups while not muted and answers nothing else, so whatever is sent to it stays pending
+    static final class SilentNode extends AbstractActor {
+        boolean muted = false;
+
+        @Override
+        public Receive createReceive(){
+            return receiveBuilder()
+                    .match(DeviceManager.RequestGroupList.class, r -> {
+                        if (!muted){
+                            getSender().tell(new DeviceManager.ReplyGroupList(
+                                    r.requestId, Collections.emptySet(), Collections.emptySet()), getSelf());
+                        }
+                    })
+                    .matchEquals("mute", m -> muted = true)
+                    .matchAny(m -> {})
+                    .build();
+        }
+    }
+
+    static String startNode(ActorSystem node){
+        node.actorOf(DeviceManager.props(), "device-manager");
+        return ((ExtendedActorSystem) node).provider().getDefaultAddress() + "/user/device-manager";
+    }
+
+    ActorRef startFront(String... nodePaths){
+        return front.actorOf(PartitionedDeviceManager.props(
+                Arrays.asList(nodePaths), 100, FiniteDuration.create(10, TimeUnit.SECONDS)), "device-manager");
+    }
+
+    // Waits until the ring has settled on the given nodes
+    void awaitNodes(ActorRef manager, String... nodePaths){
+        Set<String> expected = new HashSet<>(Arrays.asList(nodePaths));
+        probe.awaitAssert(FiniteDuration.create(10, TimeUnit.SECONDS), () -> {
+            manager.tell(new PartitionedDeviceManager.RequestNodes(0L), probe.getRef());
+            assertEquals(expected, probe.expectMsgClass(PartitionedDeviceManager.ReplyNodes.class).paths);
+            return null;
+        });
+    }
+
+    // Asked from inside the node, so the reply needs no remoting
+    static Set<String> groupsOn(ActorSystem node){
+        TestKit local = new TestKit(node);
+        node.actorSelection("/user/device-manager").tell(new DeviceManager.RequestGroupList(0L), local.getRef());
+        return local.expectMsgClass(DeviceManager.ReplyGroupList.class).ids;
+    }
+
+    static DeviceGroup.RespondAllTemperatures temperaturesOf(ActorSystem node, String groupId){
+        TestKit local = new TestKit(node);
+        node.actorSelection("/user/device-manager/group-" + groupId)
+                .tell(new DeviceGroup.RequestAllTemperatures(0L, true), local.getRef());
+        return local.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+    }
+
+    // Two devices per group, returns the registration of each group's last device
+    DeviceManager.DeviceRegistered[] registerAndRecord(ActorRef manager){
+        DeviceManager.DeviceRegistered[] registered = new DeviceManager.DeviceRegistered[GROUPS];
+        for (int g = 0; g < GROUPS; g++){
+            for (int d = 0; d < 2; d++){
+                manager.tell(new DeviceManager.RequestTrackDevice("group" + g, "device" + d), probe.getRef());
+                registered[g] = probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+            }
+            manager.tell(new DeviceManager.RecordTemperatureBatch(g, "group" + g, new String[]{"device0", "device1"},
+                    new long[]{1L, 1L}, new double[]{g, g + 0.5}), probe.getRef());
+            DeviceManager.TemperatureBatchRecorded ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+            assertEquals(g, ack.requestId);
+            assertEquals(2, ack.recorded);
+        }
+        return registered;
+    }
+
+    static String ownerOf(String groupId, String... nodePaths){
+        return ConsistentHash.create(Arrays.asList(nodePaths), 100).nodeFor(groupId);
+    }
+
+    @Test
+    public void testPlaceGroupsOnTheirNodeOfTheRing(){
+        ActorRef manager = startFront(node1Path, node2Path);
+        awaitNodes(manager, node1Path, node2Path);
+        registerAndRecord(manager);
+
+        Set<String> onNode1 = groupsOn(node1);
+        Set<String> onNode2 = groupsOn(node2);
+        assertEquals(GROUPS, onNode1.size() + onNode2.size());
+        for (int g = 0; g < GROUPS; g++){
+            String groupId = "group" + g;
+            Set<String> expected = ownerOf(groupId, node1Path, node2Path).equals(node1Path) ? onNode1 : onNode2;
+            assertTrue(groupId, expected.contains(groupId));
+        }
+
+        manager.tell(new DeviceManager.RequestGroupList(7L), probe.getRef());
+        DeviceManager.ReplyGroupList all = probe.expectMsgClass(DeviceManager.ReplyGroupList.class);
+        assertEquals(7L, all.requestId);
+        assertEquals(GROUPS, all.ids.size());
+
+        // Filter and readings cross the wire to both nodes and back
+        manager.tell(new DeviceManager.RequestFleetTemperatures(8L, DeviceManager.ReadingFilter.ALL
+                .withoutGroups("group0").withStatuses(TemperatureReadings.TEMPERATURE)
+                .withValuesBetween(10.0, Double.POSITIVE_INFINITY),
+                FiniteDuration.create(3, TimeUnit.SECONDS), 4), probe.getRef());
+        DeviceManager.RespondFleetTemperatures temperatures =
+                probe.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(8L, temperatures.requestId);
+        assertEquals(GROUPS - 1, temperatures.groupCount());
+        assertEquals(2 * (GROUPS - 10), temperatures.size());
+        assertEquals(Collections.emptyList(), temperatures.missingGroups());
+    }
+
+    @Test
+    public void testRegisterDevicesInBulkAcrossNodes(){
+        ActorRef manager = startFront(node1Path, node2Path);
+        awaitNodes(manager, node1Path, node2Path);
+        String[] groupIds = new String[GROUPS + 1];
+        String[] deviceIds = new String[GROUPS + 1];
+        for (int g = 0; g < GROUPS; g++){
+            groupIds[g] = "group" + g;
+            deviceIds[g] = "device";
+        }
+        groupIds[GROUPS] = "";
+        deviceIds[GROUPS] = "device";
+
+        manager.tell(new DeviceManager.RequestTrackDevices(3L, groupIds, deviceIds), probe.getRef());
+        DeviceManager.DevicesRegistered ack = probe.expectMsgClass(DeviceManager.DevicesRegistered.class);
+        assertEquals(3L, ack.requestId);
+        assertEquals(GROUPS, ack.count(DeviceManager.DevicesRegistered.REGISTERED));
+        assertEquals(DeviceManager.DevicesRegistered.REJECTED, ack.outcomes[GROUPS]);
+        assertEquals(GROUPS, groupsOn(node1).size() + groupsOn(node2).size());
+    }
+
+    @Test
+    public void testHandOffGroupsToAJoiningNode(){
+        ActorRef manager = startFront(node1Path);
+        awaitNodes(manager, node1Path);
+        DeviceManager.DeviceRegistered[] registered = registerAndRecord(manager);
+        assertEquals(GROUPS, groupsOn(node1).size());
+
+        manager.tell(new PartitionedDeviceManager.AddNode(node2Path), probe.getRef());
+        awaitNodes(manager, node1Path, node2Path);
+
+        int moved = 0;
+        for (int g = 0; g < GROUPS; g++){
+            String groupId = "group" + g;
+            if (ownerOf(groupId, node1Path, node2Path).equals(node2Path)){
+                moved++;
+                DeviceGroup.RespondAllTemperatures readings = temperaturesOf(node2, groupId);
+                assertEquals(g, ((DeviceGroup.Temperature) readings.temperatures.get("device0")).value, 0.0);
+                assertEquals(g + 0.5, ((DeviceGroup.Temperature) readings.temperatures.get("device1")).value, 0.0);
+            }
+        }
+        assertTrue(moved > 0);
+        Set<String> moving = groupsOn(node2);
+        assertEquals(moved, moving.size());
+        probe.awaitAssert(() -> {
+            Set<String> remaining = new HashSet<>(groupsOn(node1));
+            remaining.retainAll(moving);
+            assertEquals(Collections.emptySet(), remaining);
+            return null;
+        });
+
+        // Handles handed out before the move keep addressing the same devices
+        for (int g = 0; g < GROUPS; g++){
+            manager.tell(new DeviceManager.RecordTemperatureHandleBatch(
+                    g, registered[g].groupHandle, registered[g].epoch, new int[]{0, 1}, new long[]{2L, 2L}, new double[]{-1.0, -2.0}), probe.getRef());
+            DeviceManager.TemperatureBatchRecorded ack = probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+            assertEquals(2, ack.recorded);
+        }
+        for (String groupId : moving){
+            DeviceGroup.RespondAllTemperatures readings = temperaturesOf(node2, groupId);
+            assertEquals(-1.0, ((DeviceGroup.Temperature) readings.temperatures.get("device0")).value, 0.0);
+            assertEquals(-2.0, ((DeviceGroup.Temperature) readings.temperatures.get("device1")).value, 0.0);
+        }
+    }
+
+    @Test
+    public void testHandOffGroupsOfARemovedNode(){
+        ActorRef manager = startFront(node1Path, node2Path);
+        awaitNodes(manager, node1Path, node2Path);
+        registerAndRecord(manager);
+        Set<String> leaving = groupsOn(node2);
+        assertTrue(!leaving.isEmpty());
+
+        manager.tell(new PartitionedDeviceManager.RemoveNode(node2Path), probe.getRef());
+        awaitNodes(manager, node1Path);
+
+        assertEquals(GROUPS, groupsOn(node1).size());
+        probe.awaitAssert(() -> {
+            assertEquals(Collections.emptySet(), groupsOn(node2));
+            return null;
+        });
+        for (String groupId : leaving){
+            int g = Integer.parseInt(groupId.substring("group".length()));
+            DeviceGroup.RespondAllTemperatures readings = temperaturesOf(node1, groupId);
+            assertEquals(g, ((DeviceGroup.Temperature) readings.temperatures.get("device0")).value, 0.0);
+        }
+
+        // New registrations for those groups go to the remaining node as well
+        List<String> groups = Arrays.asList(leaving.toArray(new String[0]));
+        manager.tell(new DeviceManager.RequestTrackDevice(groups.get(0), "device2"), probe.getRef());
+        assertEquals(2, probe.expectMsgClass(DeviceManager.DeviceRegistered.class).deviceHandle);
+        assertEquals(GROUPS, groupsOn(node1).size());
+    }
+
+    @Test
+    public void testCompletePendingWorkWhenANodeFails(){
+        ActorRef silent = node2.actorOf(Props.create(SilentNode.class), "silent");
+        String silentPath = ((ExtendedActorSystem) node2).provider().getDefaultAddress() + "/user/silent";
+        ActorRef manager = startFront(node1Path, silentPath);
+        awaitNodes(manager, node1Path, silentPath);
+        silent.tell("mute", ActorRef.noSender());
+
+        String[] groupIds = new String[GROUPS];
+        String[] deviceIds = new String[GROUPS];
+        int onSilent = 0;
+        for (int g = 0; g < GROUPS; g++){
+            groupIds[g] = "group" + g;
+            deviceIds[g] = "device";
+            if (ownerOf(groupIds[g], node1Path, silentPath).equals(silentPath)){
+                onSilent++;
+            }
+        }
+        assertTrue(onSilent > 0 && onSilent < GROUPS);
+        manager.tell(new DeviceManager.RequestTrackDevices(3L, groupIds, deviceIds), probe.getRef());
+        manager.tell(new DeviceManager.RequestGroupList(1L), probe.getRef());
+        manager.tell(new DeviceManager.RequestFleetStats(2L), probe.getRef());
+        probe.expectNoMsg(FiniteDuration.create(500, TimeUnit.MILLISECONDS));
+
+        TestKit.shutdownActorSystem(node2);
+        FiniteDuration failureDetected = FiniteDuration.create(20, TimeUnit.SECONDS);
+        DeviceManager.ReplyGroupList groups = probe.expectMsgClass(failureDetected, DeviceManager.ReplyGroupList.class);
+        assertEquals(1L, groups.requestId);
+        assertEquals(GROUPS - onSilent, groups.ids.size());
+        assertEquals(2L, probe.expectMsgClass(DeviceManager.RespondFleetStats.class).requestId);
+        DeviceManager.DevicesRegistered registered = probe.expectMsgClass(DeviceManager.DevicesRegistered.class);
+        assertEquals(GROUPS - onSilent, registered.count(DeviceManager.DevicesRegistered.REGISTERED));
+        assertEquals(onSilent, registered.count(DeviceManager.DevicesRegistered.REJECTED));
+
+        // The ring is down to the remaining node, which takes the failed node's groups from now on
+        awaitNodes(manager, node1Path);
+        manager.tell(new DeviceManager.RequestTrackDevice(groupIds[0], "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+    }
+
+    @Test
+    public void testFinishRebalanceWhenANodeFailsDuringIt(){
+        ActorRef silent = node2.actorOf(Props.create(SilentNode.class), "silent");
+        String silentPath = ((ExtendedActorSystem) node2).provider().getDefaultAddress() + "/user/silent";
+        silent.tell("mute", ActorRef.noSender());
+        ActorRef manager = front.actorOf(PartitionedDeviceManager.props(
+                Collections.singletonList(node1Path), 100, FiniteDuration.create(60, TimeUnit.SECONDS)), "device-manager");
+        awaitNodes(manager, node1Path);
+
+        // Messages wait while the rebalance waits for the silent node's group list
+        manager.tell(new PartitionedDeviceManager.AddNode(silentPath), probe.getRef());
+        // Leaves time to identify the silent node, which starts the rebalance
+        probe.expectNoMsg(FiniteDuration.create(500, TimeUnit.MILLISECONDS));
+        manager.tell(new DeviceManager.RequestTrackDevice("group", "device"), probe.getRef());
+        probe.expectNoMsg(FiniteDuration.create(2, TimeUnit.SECONDS));
+
+        TestKit.shutdownActorSystem(node2);
+        probe.expectMsgClass(FiniteDuration.create(20, TimeUnit.SECONDS), DeviceManager.DeviceRegistered.class);
+        assertEquals(Collections.singleton("group"), groupsOn(node1));
+    }
+}
@@ -0,0 +1,170 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.ActorIdentity;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Identify;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ShardedDeviceManagerTest {
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    TestKit probe;
+    ActorRef managerActor;
+
+    @Before
+    public void prepareManagerActor(){
+        probe = new TestKit(system);
+        managerActor = system.actorOf(ShardedDeviceManager.props(4));
+    }
+
+    @Test
+    public void testRegisterDevicesAcrossShards(){
+        for (int i = 0; i < 8; i++){
+            managerActor.tell(new DeviceManager.RequestTrackDevice("group" + i, "device"), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        }
+
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group0", "device"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group0", "device"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        assertEquals(deviceActor1, probe.getLastSender());
+    }
+
+    @Test
+    public void testRouteHandleBatchesToTheShardOfTheGroup(){
+        int[] groupHandles = new int[8];
+        long[] epochs = new long[8];
+        for (int i = 0; i < 8; i++){
+            managerActor.tell(new DeviceManager.RequestTrackDevice("group" + i, "device"), probe.getRef());
+            DeviceManager.DeviceRegistered registered = probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+            groupHandles[i] = registered.groupHandle;
+            epochs[i] = registered.epoch;
+        }
+        assertEquals(8, Arrays.stream(groupHandles).distinct().count());
+
+        for (int i = 0; i < 8; i++){
+            managerActor.tell(new DeviceManager.RecordTemperatureHandleBatch(
+                    i, groupHandles[i], epochs[i], new int[]{0}, new long[]{1L}, new double[]{1.0}), probe.getRef());
+            assertEquals(1, probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class).recorded);
+        }
+    }
+
+    @Test
+    public void testRegisterDevicesInBulkAcrossShards(){
+        String[] groupIds = new String[16];
+        String[] deviceIds = new String[16];
+        for (int i = 0; i < 16; i++){
+            groupIds[i] = "group" + (i % 8);
+            deviceIds[i] = "device" + (i / 8);
+        }
+        managerActor.tell(new DeviceManager.RequestTrackDevices(1L, groupIds, deviceIds), probe.getRef());
+        DeviceManager.DevicesRegistered ack = probe.expectMsgClass(DeviceManager.DevicesRegistered.class);
+        assertEquals(1L, ack.requestId);
+        assertEquals(16, ack.count(DeviceManager.DevicesRegistered.REGISTERED));
+        assertEquals(8, Arrays.stream(ack.groupHandles).distinct().count());
+
+        for (int i = 0; i < 8; i++){
+            managerActor.tell(new DeviceManager.RecordTemperatureHandleBatch(i, ack.groupHandles[i], ack.epochs[i],
+                    new int[]{ack.deviceHandles[i], ack.deviceHandles[i + 8]}, new long[]{1L, 2L}, new double[]{1.0, 2.0}),
+                    probe.getRef());
+            assertEquals(2, probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class).recorded);
+        }
+    }
+
+    @Test
+    public void testListGroupsFromAllShards(){
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group1", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group2", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        managerActor.tell(new DeviceManager.RequestTrackDevice("group3", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+        managerActor.tell(new DeviceManager.RequestGroupList(5L), probe.getRef());
+        DeviceManager.ReplyGroupList reply = probe.expectMsgClass(DeviceManager.ReplyGroupList.class);
+        assertEquals(5L, reply.requestId);
+        assertEquals(Stream.of("group1", "group2", "group3").collect(Collectors.toSet()), reply.ids);
+        assertEquals(3, reply.actors.size());
+    }
+
+    @Test
+    public void testListGroupsOfTheShardsStillRunning(){
+        for (int i = 0; i < 8; i++){
+            managerActor.tell(new DeviceManager.RequestTrackDevice("group" + i, "device"), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        }
+        int stopped = Math.floorMod("group0".hashCode(), 4);
+        system.actorSelection(managerActor.path().child("shard-" + stopped)).tell(new Identify(1), probe.getRef());
+        ActorRef shard = probe.expectMsgClass(ActorIdentity.class).getActorRef().get();
+        probe.watch(shard);
+        system.stop(shard);
+        probe.expectTerminated(shard);
+
+        managerActor.tell(new DeviceManager.RequestGroupList(6L), probe.getRef());
+        DeviceManager.ReplyGroupList reply = probe.expectMsgClass(DeviceManager.ReplyGroupList.class);
+        Set<String> expected = IntStream.range(0, 8).mapToObj(i -> "group" + i)
+                .filter(groupId -> Math.floorMod(groupId.hashCode(), 4) != stopped).collect(Collectors.toSet());
+        assertEquals(expected, reply.ids);
+
+        managerActor.tell(new DeviceManager.RecordTemperatureBatch(7L, "group0",
+                new String[]{"device"}, new long[]{1L}, new double[]{1.0}), probe.getRef());
+        assertEquals(1, probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class).rejected);
+    }
+
+    @Test
+    public void testGatherFilteredTemperaturesFromAllShards(){
+        for (int i = 0; i < 8; i++){
+            managerActor.tell(new DeviceManager.RequestTrackDevice("group" + i, "device"), probe.getRef());
+            probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+            managerActor.tell(new DeviceManager.RecordTemperatureBatch(i, "group" + i,
+                    new String[]{"device"}, new long[]{1L}, new double[]{i}), probe.getRef());
+            probe.expectMsgClass(DeviceManager.TemperatureBatchRecorded.class);
+        }
+
+        managerActor.tell(new DeviceManager.RequestFleetTemperatures(8L, DeviceManager.ReadingFilter.ALL
+                .withoutGroups("group7").withValuesBetween(2.0, Double.POSITIVE_INFINITY),
+                FiniteDuration.create(3, TimeUnit.SECONDS), 2), probe.getRef());
+        DeviceManager.RespondFleetTemperatures r = probe.expectMsgClass(DeviceManager.RespondFleetTemperatures.class);
+        assertEquals(8L, r.requestId);
+        assertEquals(7, r.groupCount());
+        assertEquals(Collections.emptyList(), r.missingGroups());
+        Set<Double> values = new HashSet<>();
+        for (int g = 0; g < r.groupCount(); g++){
+            for (int i = r.groupStart(g); i < r.groupEnd(g); i++){
+                assertEquals(r.groupId(g), "group" + (int) r.value(i));
+                values.add(r.value(i));
+            }
+        }
+        assertEquals(Stream.of(2.0, 3.0, 4.0, 5.0, 6.0).collect(Collectors.toSet()), values);
+    }
+}
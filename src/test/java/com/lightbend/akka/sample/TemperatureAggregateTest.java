@@ -0,0 +1,42 @@
+package com.lightbend.akka.sample;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TemperatureAggregateTest {
+
+    @Test
+    public void testRejectNonFiniteValuesInSketch(){
+        QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        for (double value : new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN}){
+            try {
+                sketch.add(value);
+                fail("Accepted " + value);
+            } catch (IllegalArgumentException expected){
+            }
+        }
+        sketch.add(1.0);
+        assertEquals(1L, sketch.count());
+        assertEquals(1.0, sketch.quantile(0.5), QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    @Test
+    public void testLeaveNonFiniteReadingsOutOfStats(){
+        TemperatureAggregate aggregate = new TemperatureAggregate();
+        aggregate.add(Double.POSITIVE_INFINITY);
+        aggregate.add(Double.NEGATIVE_INFINITY);
+        assertSame(TemperatureStats.EMPTY, aggregate.stats());
+
+        aggregate.add(10.0);
+        aggregate.replace(Double.POSITIVE_INFINITY, 20.0);
+        aggregate.replace(10.0, Double.NEGATIVE_INFINITY);
+        TemperatureStats stats = aggregate.stats();
+        assertEquals(1L, stats.count);
+        assertEquals(20.0, stats.sum, 0.0);
+        assertEquals(20.0, stats.min, 0.0);
+        assertEquals(20.0, stats.max, 0.0);
+    }
+}
@@ -0,0 +1,170 @@
+package com.lightbend.akka.sample;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import akka.util.ByteString;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TemperatureIngestorTest {
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    final FiniteDuration noMessage = Duration.create(200, TimeUnit.MILLISECONDS);
+    TestKit manager;
+    TestKit source;
+
+    @Before
+    public void prepareProbes(){
+        manager = new TestKit(system);
+        source = new TestKit(system);
+    }
+
+    private static TemperatureIngestor.Chunk chunk(String lines){
+        return new TemperatureIngestor.Chunk(ByteString.fromString(lines, "UTF-8"));
+    }
+
+    @Test
+    public void testParseLinesSplitAcrossChunks(){
+        ActorRef ingestor = system.actorOf(TemperatureIngestor.props(manager.getRef(), source.getRef(), "demand", 10, 4));
+        source.expectMsgEquals("demand");
+        ingestor.tell(chunk("group device1 1 21.5\ngroup dev"), source.getRef());
+
+        DeviceManager.RecordTemperatureBatch first = manager.expectMsgClass(DeviceManager.RecordTemperatureBatch.class);
+        assertEquals("group", first.groupId);
+        assertArrayEquals(new String[]{"device1"}, first.deviceIds);
+        assertArrayEquals(new long[]{1L}, first.timestamps);
+        assertEquals(21.5, first.values[0], 0.0);
+
+        source.expectMsgEquals("demand");
+        ingestor.tell(chunk("ice2 2 -3.25\r\nnot a reading\n"), source.getRef());
+        DeviceManager.RecordTemperatureBatch second = manager.expectMsgClass(DeviceManager.RecordTemperatureBatch.class);
+        assertArrayEquals(new String[]{"device2"}, second.deviceIds);
+        assertArrayEquals(new long[]{2L}, second.timestamps);
+        assertEquals(-3.25, second.values[0], 0.0);
+    }
+
+    @Test
+    public void testStopReadingWithoutCredit(){
+        ActorRef ingestor = system.actorOf(TemperatureIngestor.props(manager.getRef(), source.getRef(), "demand", 1, 1));
+        source.expectMsgEquals("demand");
+        ingestor.tell(chunk("group device1 1 1.0\ngroup device2 2 2.0\n"), source.getRef());
+
+        DeviceManager.RecordTemperatureBatch first = manager.expectMsgClass(DeviceManager.RecordTemperatureBatch.class);
+        manager.expectNoMsg(noMessage);
+        source.expectNoMsg(noMessage);
+
+        ingestor.tell(new DeviceManager.TemperatureBatchRecorded(first.requestId, 1, 0), manager.getRef());
+        DeviceManager.RecordTemperatureBatch second = manager.expectMsgClass(DeviceManager.RecordTemperatureBatch.class);
+        assertArrayEquals(new String[]{"device2"}, second.deviceIds);
+        source.expectNoMsg(noMessage);
+
+        ingestor.tell(new DeviceManager.TemperatureBatchRecorded(second.requestId, 1, 0), manager.getRef());
+        source.expectMsgEquals("demand");
+    }
+
+    @Test
+    public void testFreeTheCreditOfAnUnacknowledgedBatch(){
+        TestKit listener = new TestKit(system);
+        system.eventStream().subscribe(listener.getRef(), TemperatureIngestor.Completed.class);
+        ActorRef ingestor = system.actorOf(TemperatureIngestor.props(manager.getRef(), source.getRef(), "demand", 2, 1,
+                FiniteDuration.create(300, TimeUnit.MILLISECONDS)));
+        source.expectMsgEquals("demand");
+        ingestor.tell(chunk("group device1 1 1.0\ngroup device2 2 2.0\ngroup device3 3 3.0\n"), source.getRef());
+        ingestor.tell(TemperatureIngestor.EndOfStream.INSTANCE, source.getRef());
+
+        manager.expectMsgClass(DeviceManager.RecordTemperatureBatch.class);
+        DeviceManager.RecordTemperatureBatch second = manager.expectMsgClass(DeviceManager.RecordTemperatureBatch.class);
+        ingestor.tell(new DeviceManager.TemperatureBatchRecorded(second.requestId, 1, 0), manager.getRef());
+
+        TemperatureIngestor.Completed completed = listener.expectMsgClass(TemperatureIngestor.Completed.class);
+        assertEquals(1L, completed.recorded);
+        assertEquals(2L, completed.rejected);
+    }
+
+    @Test
+    public void testCompleteAfterLastAcknowledgement(){
+        TestKit listener = new TestKit(system);
+        system.eventStream().subscribe(listener.getRef(), TemperatureIngestor.Completed.class);
+        ActorRef ingestor = system.actorOf(TemperatureIngestor.props(manager.getRef(), source.getRef(), "demand", 10, 4));
+        source.expectMsgEquals("demand");
+        ingestor.tell(chunk("group device1 1 1.0\nbroken\ngroup device2 2"), source.getRef());
+        manager.expectMsgClass(DeviceManager.RecordTemperatureBatch.class);
+        source.expectMsgEquals("demand");
+        ingestor.tell(chunk(" 2.0"), source.getRef());
+        source.expectMsgEquals("demand");
+        ingestor.tell(TemperatureIngestor.EndOfStream.INSTANCE, source.getRef());
+
+        DeviceManager.RecordTemperatureBatch last = manager.expectMsgClass(DeviceManager.RecordTemperatureBatch.class);
+        assertArrayEquals(new String[]{"device2"}, last.deviceIds);
+        listener.expectNoMsg(noMessage);
+        ingestor.tell(new DeviceManager.TemperatureBatchRecorded(0L, 1, 0), manager.getRef());
+        ingestor.tell(new DeviceManager.TemperatureBatchRecorded(1L, 0, 1), manager.getRef());
+
+        TemperatureIngestor.Completed completed = listener.expectMsgClass(TemperatureIngestor.Completed.class);
+        assertEquals(1L, completed.recorded);
+        assertEquals(1L, completed.rejected);
+        assertEquals(1L, completed.malformed);
+    }
+
+    @Test
+    public void testCountNonFiniteValuesAsMalformed(){
+        TestKit listener = new TestKit(system);
+        system.eventStream().subscribe(listener.getRef(), TemperatureIngestor.Completed.class);
+        ActorRef ingestor = system.actorOf(TemperatureIngestor.props(manager.getRef(), source.getRef(), "demand", 10, 4));
+        source.expectMsgEquals("demand");
+        ingestor.tell(chunk("group device1 1 Infinity\ngroup device1 2 -Infinity\ngroup device1 3 1e400\n" +
+                "group device1 4 NaN\ngroup device1 5 1e3\n"), source.getRef());
+        source.expectMsgEquals("demand");
+        ingestor.tell(TemperatureIngestor.EndOfStream.INSTANCE, source.getRef());
+
+        DeviceManager.RecordTemperatureBatch batch = manager.expectMsgClass(DeviceManager.RecordTemperatureBatch.class);
+        assertArrayEquals(new long[]{5L}, batch.timestamps);
+        assertEquals(1000.0, batch.values[0], 0.0);
+        ingestor.tell(new DeviceManager.TemperatureBatchRecorded(batch.requestId, 1, 0), manager.getRef());
+        assertEquals(4L, listener.expectMsgClass(TemperatureIngestor.Completed.class).malformed);
+    }
+
+    @Test
+    public void testIngestFromStreamIntoDeviceManager(){
+        ActorRef deviceManager = system.actorOf(DeviceManager.props());
+        deviceManager.tell(new DeviceManager.RequestTrackDevice("group", "device1"), manager.getRef());
+        manager.expectMsgClass(DeviceManager.DeviceRegistered.class);
+        ActorRef deviceActor = manager.getLastSender();
+
+        TestKit listener = new TestKit(system);
+        system.eventStream().subscribe(listener.getRef(), TemperatureIngestor.Completed.class);
+        byte[] input = "group device1 1 20.0\ngroup device1 2 22.5\ngroup unknown 3 1.0\n".getBytes(StandardCharsets.UTF_8);
+        ActorRef reader = system.actorOf(StreamReader.props(new ByteArrayInputStream(input), 16));
+        system.actorOf(TemperatureIngestor.props(deviceManager, reader, StreamReader.Read.INSTANCE, 2, 2));
+
+        TemperatureIngestor.Completed completed = listener.expectMsgClass(TemperatureIngestor.Completed.class);
+        assertEquals(2L, completed.recorded);
+        assertEquals(1L, completed.rejected);
+
+        deviceActor.tell(new Device.ReadTemperature(1L), manager.getRef());
+        assertEquals(22.5, manager.expectMsgClass(Device.RespondTemperature.class).value.get(), 0.0);
+    }
+}